@@ -0,0 +1,350 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.cm.file;
+
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Iterator;
+
+
+/**
+ * The <code>BinaryConfigurationHandler</code> class implements a compact
+ * binary encoding of configuration data on behalf of the
+ * {@link JournalPersistenceManager} class. The encoding supports the same
+ * types as the {@link ConfigurationHandler} and uses its type codes:
+ *
+ * <pre>
+ * cfg = count { string value } .
+ *  value = &quot;&quot;&quot; simple | &quot;[&quot; type count { element } | &quot;(&quot; count { simple } .
+ *  simple = type element .
+ *  element = // binary representation of the value, see writeElement .
+ *  string = length // UTF-8 bytes .
+ *  count = length = // 4-byte integer .
+ *  type = // 1-byte type code .
+ * </pre>
+ * <p>
+ * Contrary to the <code>ConfigurationHandler</code> empty arrays and
+ * collections are kept and collections may contain elements of different
+ * types. Values of unsupported types are stored as their string
+ * representation.
+ */
+class BinaryConfigurationHandler
+{
+
+    // type code of values of unsupported types, which are written as
+    // their string representation
+    private static final int TOKEN_UNKNOWN = 0;
+
+
+    /**
+     * Writes the configuration data from the <code>Dictionary</code> to the
+     * given <code>DataOutput</code>. <code>null</code> values are not
+     * written.
+     *
+     * @param out The <code>DataOutput</code> to write the configuration data
+     *      to.
+     * @param properties The <code>Dictionary</code> to write.
+     * @throws IOException If an error occurrs writing to the output.
+     */
+    static void write( DataOutput out, Dictionary properties ) throws IOException
+    {
+        int count = 0;
+        for ( Enumeration ce = properties.elements(); ce.hasMoreElements(); )
+        {
+            if ( ce.nextElement() != null )
+            {
+                count++;
+            }
+        }
+
+        out.writeInt( count );
+        for ( Enumeration ce = properties.keys(); ce.hasMoreElements(); )
+        {
+            Object key = ce.nextElement();
+            Object value = properties.get( key );
+            if ( value != null )
+            {
+                writeString( out, String.valueOf( key ) );
+                writeValue( out, value );
+            }
+        }
+    }
+
+
+    /**
+     * Reads configuration data written by {@link #write(DataOutput, Dictionary)}
+     * from the given <code>DataInput</code> and returns a new
+     * <code>Dictionary</code> object containing the data.
+     *
+     * @param in The <code>DataInput</code> from which to read the
+     *      configuration data.
+     * @return A <code>Dictionary</code> object containing the configuration
+     *      data.
+     * @throws IOException If an error occurrs reading from the input. This
+     *      exception is also thrown if an unknown type code is encountered.
+     */
+    static Dictionary read( DataInput in ) throws IOException
+    {
+        int count = in.readInt();
+        Hashtable properties = new Hashtable();
+        for ( int i = 0; i < count; i++ )
+        {
+            String key = readString( in );
+            properties.put( key, readValue( in ) );
+        }
+        return properties;
+    }
+
+
+    /**
+     * Writes the string as its length in bytes followed by its UTF-8 bytes.
+     * Contrary to <code>DataOutput.writeUTF</code> the length of the string
+     * is not limited.
+     */
+    static void writeString( DataOutput out, String value ) throws IOException
+    {
+        byte[] bytes = value.getBytes( ConfigurationHandler.ENCODING );
+        out.writeInt( bytes.length );
+        out.write( bytes );
+    }
+
+
+    /**
+     * Reads a string written by {@link #writeString(DataOutput, String)}.
+     */
+    static String readString( DataInput in ) throws IOException
+    {
+        int length = in.readInt();
+        if ( length < 0 )
+        {
+            throw new IOException( "Invalid string length " + length );
+        }
+
+        byte[] bytes = new byte[length];
+        in.readFully( bytes );
+        return new String( bytes, ConfigurationHandler.ENCODING );
+    }
+
+
+    // this class is not to be instantiated
+    private BinaryConfigurationHandler()
+    {
+    }
+
+    // ---------- Configuration Output Implementation --------------------------
+
+    private static void writeValue( DataOutput out, Object value ) throws IOException
+    {
+        Class clazz = value.getClass();
+        if ( clazz.isArray() )
+        {
+            int type = getTypeCode( clazz.getComponentType() );
+            int size = Array.getLength( value );
+            out.writeByte( ConfigurationHandler.TOKEN_ARR_OPEN );
+            out.writeByte( type );
+            out.writeInt( size );
+            for ( int i = 0; i < size; i++ )
+            {
+                writeElement( out, type, Array.get( value, i ) );
+            }
+        }
+        else if ( value instanceof Collection )
+        {
+            Collection collection = ( Collection ) value;
+            out.writeByte( ConfigurationHandler.TOKEN_VEC_OPEN );
+            out.writeInt( collection.size() );
+            for ( Iterator ci = collection.iterator(); ci.hasNext(); )
+            {
+                writeSimple( out, ci.next() );
+            }
+        }
+        else
+        {
+            out.writeByte( ConfigurationHandler.TOKEN_VAL_OPEN );
+            writeSimple( out, value );
+        }
+    }
+
+
+    private static void writeSimple( DataOutput out, Object value ) throws IOException
+    {
+        int type = ( value == null ) ? TOKEN_UNKNOWN : getTypeCode( value.getClass() );
+        out.writeByte( type );
+        writeElement( out, type, value );
+    }
+
+
+    private static void writeElement( DataOutput out, int type, Object value ) throws IOException
+    {
+        switch ( type )
+        {
+            case ConfigurationHandler.TOKEN_SIMPLE_STRING:
+                writeString( out, ( String ) value );
+                break;
+            case ConfigurationHandler.TOKEN_SIMPLE_INTEGER:
+            case ConfigurationHandler.TOKEN_PRIMITIVE_INT:
+                out.writeInt( ( ( Integer ) value ).intValue() );
+                break;
+            case ConfigurationHandler.TOKEN_SIMPLE_LONG:
+            case ConfigurationHandler.TOKEN_PRIMITIVE_LONG:
+                out.writeLong( ( ( Long ) value ).longValue() );
+                break;
+            case ConfigurationHandler.TOKEN_SIMPLE_FLOAT:
+            case ConfigurationHandler.TOKEN_PRIMITIVE_FLOAT:
+                out.writeFloat( ( ( Float ) value ).floatValue() );
+                break;
+            case ConfigurationHandler.TOKEN_SIMPLE_DOUBLE:
+            case ConfigurationHandler.TOKEN_PRIMITIVE_DOUBLE:
+                out.writeDouble( ( ( Double ) value ).doubleValue() );
+                break;
+            case ConfigurationHandler.TOKEN_SIMPLE_BYTE:
+            case ConfigurationHandler.TOKEN_PRIMITIVE_BYTE:
+                out.writeByte( ( ( Byte ) value ).byteValue() );
+                break;
+            case ConfigurationHandler.TOKEN_SIMPLE_SHORT:
+            case ConfigurationHandler.TOKEN_PRIMITIVE_SHORT:
+                out.writeShort( ( ( Short ) value ).shortValue() );
+                break;
+            case ConfigurationHandler.TOKEN_SIMPLE_CHARACTER:
+            case ConfigurationHandler.TOKEN_PRIMITIVE_CHAR:
+                out.writeChar( ( ( Character ) value ).charValue() );
+                break;
+            case ConfigurationHandler.TOKEN_SIMPLE_BOOLEAN:
+            case ConfigurationHandler.TOKEN_PRIMITIVE_BOOLEAN:
+                out.writeBoolean( ( ( Boolean ) value ).booleanValue() );
+                break;
+            default:
+                // unsupported type, write the string representation, which
+                // may be null for null elements of object arrays
+                out.writeBoolean( value != null );
+                if ( value != null )
+                {
+                    writeString( out, String.valueOf( value ) );
+                }
+        }
+    }
+
+
+    private static int getTypeCode( Class type )
+    {
+        if ( type == String.class )
+        {
+            return ConfigurationHandler.TOKEN_SIMPLE_STRING;
+        }
+
+        Integer code = ( Integer ) ConfigurationHandler.type2Code.get( type );
+        return ( code != null ) ? code.intValue() : TOKEN_UNKNOWN;
+    }
+
+    // ---------- Configuration Input Implementation ---------------------------
+
+    private static Object readValue( DataInput in ) throws IOException
+    {
+        int kind = in.readByte();
+        switch ( kind )
+        {
+            case ConfigurationHandler.TOKEN_ARR_OPEN:
+                int type = in.readByte();
+                int size = in.readInt();
+                Object array = Array.newInstance( getType( type ), size );
+                for ( int i = 0; i < size; i++ )
+                {
+                    Array.set( array, i, readElement( in, type ) );
+                }
+                return array;
+
+            case ConfigurationHandler.TOKEN_VEC_OPEN:
+                int count = in.readInt();
+                Collection collection = new ArrayList( count );
+                for ( int i = 0; i < count; i++ )
+                {
+                    collection.add( readElement( in, in.readByte() ) );
+                }
+                return collection;
+
+            case ConfigurationHandler.TOKEN_VAL_OPEN:
+                return readElement( in, in.readByte() );
+
+            default:
+                throw new IOException( "Unknown value kind " + kind );
+        }
+    }
+
+
+    private static Object readElement( DataInput in, int type ) throws IOException
+    {
+        switch ( type )
+        {
+            case ConfigurationHandler.TOKEN_SIMPLE_STRING:
+                return readString( in );
+            case ConfigurationHandler.TOKEN_SIMPLE_INTEGER:
+            case ConfigurationHandler.TOKEN_PRIMITIVE_INT:
+                return new Integer( in.readInt() );
+            case ConfigurationHandler.TOKEN_SIMPLE_LONG:
+            case ConfigurationHandler.TOKEN_PRIMITIVE_LONG:
+                return new Long( in.readLong() );
+            case ConfigurationHandler.TOKEN_SIMPLE_FLOAT:
+            case ConfigurationHandler.TOKEN_PRIMITIVE_FLOAT:
+                return new Float( in.readFloat() );
+            case ConfigurationHandler.TOKEN_SIMPLE_DOUBLE:
+            case ConfigurationHandler.TOKEN_PRIMITIVE_DOUBLE:
+                return new Double( in.readDouble() );
+            case ConfigurationHandler.TOKEN_SIMPLE_BYTE:
+            case ConfigurationHandler.TOKEN_PRIMITIVE_BYTE:
+                return new Byte( in.readByte() );
+            case ConfigurationHandler.TOKEN_SIMPLE_SHORT:
+            case ConfigurationHandler.TOKEN_PRIMITIVE_SHORT:
+                return new Short( in.readShort() );
+            case ConfigurationHandler.TOKEN_SIMPLE_CHARACTER:
+            case ConfigurationHandler.TOKEN_PRIMITIVE_CHAR:
+                return new Character( in.readChar() );
+            case ConfigurationHandler.TOKEN_SIMPLE_BOOLEAN:
+            case ConfigurationHandler.TOKEN_PRIMITIVE_BOOLEAN:
+                return in.readBoolean() ? Boolean.TRUE : Boolean.FALSE;
+            case TOKEN_UNKNOWN:
+                return in.readBoolean() ? readString( in ) : null;
+            default:
+                throw new IOException( "Unknown type code " + type );
+        }
+    }
+
+
+    private static Class getType( int code ) throws IOException
+    {
+        if ( code == TOKEN_UNKNOWN )
+        {
+            return String.class;
+        }
+
+        Class type = ( Class ) ConfigurationHandler.code2Type.get( new Integer( code ) );
+        if ( type == null )
+        {
+            throw new IOException( "Unknown type code " + code );
+        }
+        return type;
+    }
+}
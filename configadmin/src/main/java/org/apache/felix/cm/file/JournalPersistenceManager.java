@@ -0,0 +1,919 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.cm.file;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.AccessControlContext;
+import java.security.AccessController;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.felix.cm.PersistenceManager;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.log.LogService;
+
+
+/**
+ * The <code>JournalPersistenceManager</code> class stores configuration data
+ * in a single append-only journal file. Each call to the
+ * {@link #store(String, Dictionary)} and {@link #delete(String)} methods
+ * appends a single record to the journal. Thus writing a configuration takes
+ * constant time regardless of the number of configurations and loading all
+ * configurations at startup only requires reading a single file sequentially.
+ * <p>
+ * The journal file location is set by the
+ * {@link #JournalPersistenceManager(BundleContext, String)} constructor.
+ * When this persistence manager is used by the Configuration Admin Service,
+ * the location is configured using the
+ * {@link org.apache.felix.cm.impl.ConfigurationManager#CM_CONFIG_JOURNAL}
+ * bundle context property.
+ * <p>
+ * The configuration data is encoded in a compact binary format supporting the
+ * same types as the {@link ConfigurationHandler} used by the
+ * {@link FilePersistenceManager}. Each record is framed by its length and
+ * followed by a CRC32 checksum, such that a record only partially written,
+ * for example due to a crash, is detected and discarded when the journal is
+ * read.
+ * <p>
+ * The journal is read once by the constructor. The current configurations
+ * are kept in memory in their encoded form so that the {@link #load(String)}
+ * and {@link #getDictionaries()} methods never access the file system and
+ * always return new <code>Dictionary</code> objects.
+ * <p>
+ * <b>Compaction</b>
+ * <p>
+ * Records of configurations which have been overwritten or deleted remain in
+ * the journal until it is compacted. Compaction writes the current
+ * configurations to a temporary file, which then replaces the journal. The
+ * journal is compacted when more than half of it is taken by obsolete records
+ * and it is larger than {@link #COMPACTION_THRESHOLD} bytes. It may also be
+ * compacted explicitly calling the {@link #compact()} method.
+ * <p>
+ * <b>Multithreading Issues</b>
+ * <p>
+ * All methods are synchronized on the <code>JournalPersistenceManager</code>
+ * instance. Since the methods reading configuration data do not access the
+ * file system, they only block while a record is being appended or while
+ * the journal is compacted.
+ */
+public class JournalPersistenceManager implements PersistenceManager
+{
+
+    /**
+     * The default name of the journal file if no location is configured
+     * (value is "config.journal").
+     */
+    public static final String DEFAULT_JOURNAL_FILE = "config.journal";
+
+    /**
+     * The minimum size in bytes of the journal before it is compacted
+     * automatically (value is 65536).
+     */
+    public static final int COMPACTION_THRESHOLD = 64 * 1024;
+
+    /**
+     * The magic number at the start of the journal file ("FCMJ").
+     */
+    private static final int MAGIC = 0x46434D4A;
+
+    /**
+     * The version of the journal file format.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * The size of the file header consisting of the magic number and version.
+     */
+    private static final int HEADER_SIZE = 8;
+
+    /**
+     * The size of the record framing consisting of the record length and the
+     * checksum.
+     */
+    private static final int FRAME_SIZE = 8;
+
+    /**
+     * The record type of a stored configuration.
+     */
+    private static final byte OP_STORE = 1;
+
+    /**
+     * The record type of a deleted configuration.
+     */
+    private static final byte OP_DELETE = 2;
+
+    /**
+     * The extension of the temporary file written during compaction (value is
+     * ".tmp").
+     */
+    private static final String TMP_EXT = ".tmp";
+
+    /**
+     * The access control context we use in the presence of a security manager.
+     */
+    private final AccessControlContext acc;
+
+    /**
+     * The bundle context used to log problems or <code>null</code> if none
+     * has been given.
+     */
+    private final BundleContext bundleContext;
+
+    /**
+     * The abstract path name of the journal file.
+     */
+    private final File location;
+
+    /**
+     * The encoded configurations mapped by their PID. The values are the
+     * records of the configurations as written to the journal.
+     */
+    private final Map records = new HashMap();
+
+    /**
+     * The number of bytes in the journal taken by the records in the
+     * {@link #records} map including the header.
+     */
+    private long liveSize;
+
+    /**
+     * The size of the journal file in bytes.
+     */
+    private long journalSize;
+
+    /**
+     * The stream appending to the journal or <code>null</code> if the
+     * journal is currently not open for writing.
+     */
+    private OutputStream journal;
+
+
+    /**
+     * Creates an instance of this persistence manager using the given location
+     * as the journal file and reads the configurations from the journal.
+     * <p>
+     * This constructor resolves the journal file location as follows:
+     * <ul>
+     * <li>If <code>location</code> is <code>null</code>, the
+     * <code>config.journal</code> file in the persistent storage area of the
+     * bundle identified by <code>bundleContext</code> is used.</li>
+     * <li>If the framework does not support persistent storage area for bundles
+     * in the filesystem or if <code>bundleContext</code> is <code>null</code>,
+     * the <code>config.journal</code> file in the current working directory as
+     * specified in the <code>user.dir</code> system property is assumed.</li>
+     * <li>Otherwise the named file is used.</li>
+     * <li>If the file name is not an absolute path and a
+     * <code>bundleContext</code> is provided which provides access to
+     * persistent storage area, the file name is resolved as being inside the
+     * persistent storage area. Otherwise the file name is resolved to an
+     * absolute path calling the <code>File.getAbsoluteFile()</code> method.</li>
+     * <li>If a directory exists as the location found in the previous step or
+     * the journal cannot be read or created, an
+     * <code>IllegalArgumentException</code> is thrown. This is also the case
+     * if the file is not a journal or a journal of an unsupported format
+     * version, in which case the file is left untouched.</li>
+     * </ul>
+     * <p>
+     * If the end of the journal is corrupt, for example because the system
+     * crashed while a record was being written, the journal is truncated after
+     * the last complete record.
+     *
+     * @param bundleContext The <code>BundleContext</code> to optionally get
+     *      the data location for the journal file. This may be
+     *      <code>null</code>.
+     * @param location The journal file location. If this is <code>null</code>
+     *      the <code>config.journal</code> file in the bundle data area or
+     *      the current working directory is used.
+     *
+     * @throws IllegalArgumentException If the location is a directory, the
+     *      file is not a journal or the journal cannot be read or created.
+     * @throws IllegalStateException If the <code>bundleContext</code> is not
+     *      valid.
+     */
+    public JournalPersistenceManager( BundleContext bundleContext, String location )
+    {
+        // setup the access control context from the calling setup
+        if ( System.getSecurityManager() != null )
+        {
+            acc = AccessController.getContext();
+        }
+        else
+        {
+            acc = null;
+        }
+
+        // no configured location, use the journal in the bundle persistent
+        // area or fall back to the current working directory
+        if ( location == null )
+        {
+            location = DEFAULT_JOURNAL_FILE;
+        }
+
+        // ensure the file is absolute
+        File locationFile = new File( location );
+        if ( !locationFile.isAbsolute() )
+        {
+            if ( bundleContext != null )
+            {
+                File bundleLocationFile = bundleContext.getDataFile( locationFile.getPath() );
+                if ( bundleLocationFile != null )
+                {
+                    locationFile = bundleLocationFile;
+                }
+            }
+
+            // ensure the file object is an absolute file object
+            locationFile = locationFile.getAbsoluteFile();
+        }
+
+        // check the location
+        if ( locationFile.isDirectory() )
+        {
+            throw new IllegalArgumentException( location + " is a directory" );
+        }
+
+        File parent = locationFile.getParentFile();
+        if ( parent != null && !parent.isDirectory() && !parent.mkdirs() )
+        {
+            throw new IllegalArgumentException( "Cannot create directory " + parent );
+        }
+
+        this.bundleContext = bundleContext;
+        this.location = locationFile;
+
+        try
+        {
+            readJournal();
+        }
+        catch ( IOException ioe )
+        {
+            throw new IllegalArgumentException( "Cannot read journal " + locationFile + ": " + ioe );
+        }
+    }
+
+
+    /**
+     * Returns the journal file as a <code>File</code> object.
+     *
+     * @return The journal file location.
+     */
+    public File getLocation()
+    {
+        return location;
+    }
+
+
+    /**
+     * Returns the configurations currently stored in the journal as
+     * <code>Dictionary</code> objects.
+     * <p>
+     * The enumeration is created from the configurations stored at the time
+     * of the call and is not affected by later modifications.
+     *
+     * @return an enumeration of configuration data returned as instances of
+     *      the <code>Dictionary</code> class.
+     */
+    public Enumeration getDictionaries()
+    {
+        final List dictionaries = new ArrayList();
+        synchronized ( this )
+        {
+            for ( Iterator ri = records.values().iterator(); ri.hasNext(); )
+            {
+                try
+                {
+                    dictionaries.add( decode( ( byte[] ) ri.next() ) );
+                }
+                catch ( IOException ioe )
+                {
+                    // cannot happen as the record has been checked before
+                }
+            }
+        }
+        return Collections.enumeration( dictionaries );
+    }
+
+
+    /**
+     * Returns <code>true</code> if a configuration is stored for the given
+     * identifier.
+     *
+     * @param pid The identifier of the configuration to check.
+     *
+     * @return <code>true</code> if the configuration exists
+     */
+    public synchronized boolean exists( String pid )
+    {
+        return records.containsKey( pid );
+    }
+
+
+    /**
+     * Returns the configuration stored for the given identifier as a new
+     * <code>Dictionary</code> object.
+     *
+     * @param pid The identifier of the configuration to load.
+     *
+     * @return The configuration stored for the identifier.
+     *
+     * @throws IOException If no configuration is stored for the identifier.
+     */
+    public Dictionary load( String pid ) throws IOException
+    {
+        byte[] record;
+        synchronized ( this )
+        {
+            record = ( byte[] ) records.get( pid );
+        }
+
+        if ( record == null )
+        {
+            throw new IOException( "No configuration stored for " + pid );
+        }
+
+        return decode( record );
+    }
+
+
+    /**
+     * Appends a record storing the contents of the <code>Dictionary</code>
+     * for the given identifier to the journal.
+     *
+     * @param pid The identifier of the configuration.
+     * @param props The configuration data to write.
+     *
+     * @throws IOException If an error occurrs writing the configuration data.
+     */
+    public void store( final String pid, final Dictionary props ) throws IOException
+    {
+        final byte[] record = encode( OP_STORE, pid, props );
+        if ( System.getSecurityManager() != null )
+        {
+            privileged( new PrivilegedExceptionAction()
+            {
+                public Object run() throws IOException
+                {
+                    _append( pid, record );
+                    return null;
+                }
+            } );
+        }
+        else
+        {
+            _append( pid, record );
+        }
+    }
+
+
+    /**
+     * Appends a record deleting the configuration for the given identifier to
+     * the journal. If no configuration is stored for the identifier, this
+     * method does nothing.
+     *
+     * @param pid The identifier of the configuration to delete.
+     *
+     * @throws IOException If an error occurrs writing to the journal.
+     */
+    public void delete( final String pid ) throws IOException
+    {
+        if ( !exists( pid ) )
+        {
+            return;
+        }
+
+        final byte[] record = encode( OP_DELETE, pid, null );
+        if ( System.getSecurityManager() != null )
+        {
+            privileged( new PrivilegedExceptionAction()
+            {
+                public Object run() throws IOException
+                {
+                    _append( pid, record );
+                    return null;
+                }
+            } );
+        }
+        else
+        {
+            _append( pid, record );
+        }
+    }
+
+
+    /**
+     * Rewrites the journal to only contain the current configurations.
+     *
+     * @throws IOException If an error occurrs writing the journal. In this
+     *      case the journal is left unmodified.
+     */
+    public void compact() throws IOException
+    {
+        if ( System.getSecurityManager() != null )
+        {
+            privileged( new PrivilegedExceptionAction()
+            {
+                public Object run() throws IOException
+                {
+                    _compact();
+                    return null;
+                }
+            } );
+        }
+        else
+        {
+            _compact();
+        }
+    }
+
+
+    /**
+     * Closes the journal file. The journal is opened again by the next call
+     * to the {@link #store(String, Dictionary)} or {@link #delete(String)}
+     * methods.
+     */
+    public synchronized void close()
+    {
+        if ( journal != null )
+        {
+            try
+            {
+                journal.close();
+            }
+            catch ( IOException ioe )
+            {
+                // ignore
+            }
+            journal = null;
+        }
+    }
+
+
+    private void privileged( PrivilegedExceptionAction action ) throws IOException
+    {
+        try
+        {
+            AccessController.doPrivileged( action, acc );
+        }
+        catch ( PrivilegedActionException pae )
+        {
+            throw ( IOException ) pae.getCause();
+        }
+    }
+
+
+    /**
+     * Appends the record for the configuration to the journal and updates
+     * the in-memory configurations. If the journal is larger than the
+     * {@link #COMPACTION_THRESHOLD} and more than half of it is taken by
+     * obsolete records, the journal is compacted.
+     */
+    private synchronized void _append( String pid, byte[] record ) throws IOException
+    {
+        if ( journal == null )
+        {
+            // cut off a partial record left by a failed write
+            if ( location.length() > journalSize )
+            {
+                truncate();
+            }
+            journal = openJournal();
+        }
+
+        try
+        {
+            journal.write( frame( record ) );
+            journal.flush();
+        }
+        catch ( IOException ioe )
+        {
+            // drop the partially written record such that later records
+            // are not appended after it
+            close();
+            try
+            {
+                truncate();
+            }
+            catch ( IOException tioe )
+            {
+                // ignore, truncated again before the next record is written
+            }
+            throw ioe;
+        }
+        journalSize += record.length + FRAME_SIZE;
+
+        byte[] old = ( byte[] ) records.remove( pid );
+        if ( old != null )
+        {
+            liveSize -= old.length + FRAME_SIZE;
+        }
+        if ( record[0] == OP_STORE )
+        {
+            records.put( pid, record );
+            liveSize += record.length + FRAME_SIZE;
+        }
+
+        if ( journalSize > COMPACTION_THRESHOLD && journalSize > 2 * liveSize )
+        {
+            // the record has been written, so a failure to compact the
+            // journal does not fail the store or delete operation
+            try
+            {
+                _compact();
+            }
+            catch ( IOException ioe )
+            {
+                log( LogService.LOG_WARNING, "Failed to compact journal " + location, ioe );
+            }
+        }
+    }
+
+
+    /**
+     * Logs the message with the log service if available or else to
+     * <code>System.err</code>.
+     */
+    private void log( int level, String message, Throwable t )
+    {
+        if ( bundleContext != null )
+        {
+            try
+            {
+                ServiceReference ref = bundleContext.getServiceReference( LogService.class.getName() );
+                if ( ref != null )
+                {
+                    LogService log = ( LogService ) bundleContext.getService( ref );
+                    if ( log != null )
+                    {
+                        try
+                        {
+                            log.log( level, message, t );
+                            return;
+                        }
+                        finally
+                        {
+                            bundleContext.ungetService( ref );
+                        }
+                    }
+                }
+            }
+            catch ( IllegalStateException ise )
+            {
+                // bundle context no longer valid
+            }
+        }
+
+        System.err.println( message );
+        if ( t != null )
+        {
+            t.printStackTrace( System.err );
+        }
+    }
+
+
+    /**
+     * Opens the stream appending to the journal file.
+     */
+    OutputStream openJournal() throws IOException
+    {
+        return new FileOutputStream( location, true );
+    }
+
+
+    /**
+     * Truncates the journal file to the end of the last record written
+     * completely.
+     */
+    private void truncate() throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile( location, "rw" );
+        try
+        {
+            raf.setLength( journalSize );
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+
+    private synchronized void _compact() throws IOException
+    {
+        File tmpFile = new File( location.getPath() + TMP_EXT );
+        FileOutputStream out = null;
+        try
+        {
+            out = new FileOutputStream( tmpFile );
+            DataOutputStream dos = new DataOutputStream( new BufferedOutputStream( out ) );
+            dos.writeInt( MAGIC );
+            dos.writeInt( VERSION );
+            for ( Iterator ri = records.values().iterator(); ri.hasNext(); )
+            {
+                dos.write( frame( ( byte[] ) ri.next() ) );
+            }
+            dos.flush();
+
+            // make sure the new journal is on disk before replacing the
+            // current journal
+            out.getFD().sync();
+            out.close();
+            out = null;
+
+            close();
+            if ( location.exists() && !location.delete() )
+            {
+                throw new IOException( "Failed to remove journal " + location );
+            }
+            if ( !tmpFile.renameTo( location ) )
+            {
+                throw new IOException( "Failed to rename journal from '" + tmpFile + "' to '" + location + "'" );
+            }
+
+            journalSize = liveSize;
+        }
+        finally
+        {
+            if ( out != null )
+            {
+                try
+                {
+                    out.close();
+                }
+                catch ( IOException ioe )
+                {
+                    // ignore
+                }
+            }
+
+            if ( tmpFile.exists() )
+            {
+                tmpFile.delete();
+            }
+        }
+    }
+
+
+    /**
+     * Reads the journal into the {@link #records} map. A missing or empty
+     * journal is initialized with the file header. A file with another
+     * header is not modified and an <code>IOException</code> is thrown.
+     * Reading stops at the first
+     * incomplete or corrupt record and the journal is truncated at that
+     * position.
+     */
+    private void readJournal() throws IOException
+    {
+        // a journal left over from an interrupted compaction is still
+        // complete, if the journal itself has already been removed
+        File tmpFile = new File( location.getPath() + TMP_EXT );
+        if ( tmpFile.exists() && !location.exists() )
+        {
+            tmpFile.renameTo( location );
+        }
+
+        long validSize = 0;
+        if ( location.exists() )
+        {
+            InputStream ins = null;
+            try
+            {
+                ins = new FileInputStream( location );
+                DataInputStream dis = new DataInputStream( new BufferedInputStream( ins ) );
+                validSize = readRecords( dis );
+            }
+            finally
+            {
+                if ( ins != null )
+                {
+                    try
+                    {
+                        ins.close();
+                    }
+                    catch ( IOException ioe )
+                    {
+                        // ignore
+                    }
+                }
+            }
+        }
+
+        if ( validSize == 0 && location.length() >= HEADER_SIZE )
+        {
+            // not a journal or a journal of another format version, which
+            // must not be overwritten
+            throw new IOException( location + " is not a configuration journal of version " + VERSION );
+        }
+        else if ( validSize == 0 )
+        {
+            // no journal or an incomplete header, write a new header
+            records.clear();
+            RandomAccessFile raf = new RandomAccessFile( location, "rw" );
+            try
+            {
+                raf.setLength( 0 );
+                raf.writeInt( MAGIC );
+                raf.writeInt( VERSION );
+            }
+            finally
+            {
+                raf.close();
+            }
+            validSize = HEADER_SIZE;
+        }
+        else if ( validSize < location.length() )
+        {
+            // cut off a partially written record
+            RandomAccessFile raf = new RandomAccessFile( location, "rw" );
+            try
+            {
+                raf.setLength( validSize );
+            }
+            finally
+            {
+                raf.close();
+            }
+        }
+
+        journalSize = validSize;
+        liveSize = HEADER_SIZE;
+        for ( Iterator ri = records.values().iterator(); ri.hasNext(); )
+        {
+            liveSize += ( ( byte[] ) ri.next() ).length + FRAME_SIZE;
+        }
+    }
+
+
+    /**
+     * Reads the records from the journal and returns the number of bytes
+     * up to the end of the last valid record or zero if the header is not
+     * valid.
+     */
+    private long readRecords( DataInputStream dis ) throws IOException
+    {
+        try
+        {
+            if ( dis.readInt() != MAGIC || dis.readInt() != VERSION )
+            {
+                return 0;
+            }
+        }
+        catch ( EOFException eofe )
+        {
+            return 0;
+        }
+
+        long validSize = HEADER_SIZE;
+        CRC32 crc = new CRC32();
+        for ( ;; )
+        {
+            byte[] record;
+            try
+            {
+                int length = dis.readInt();
+                if ( length <= 0 || length > location.length() - validSize - FRAME_SIZE )
+                {
+                    return validSize;
+                }
+
+                record = new byte[length];
+                dis.readFully( record );
+
+                crc.reset();
+                crc.update( record );
+                if ( dis.readInt() != ( int ) crc.getValue() )
+                {
+                    return validSize;
+                }
+            }
+            catch ( EOFException eofe )
+            {
+                return validSize;
+            }
+
+            String pid;
+            try
+            {
+                DataInputStream rdis = new DataInputStream( new ByteArrayInputStream( record ) );
+                byte op = rdis.readByte();
+                pid = BinaryConfigurationHandler.readString( rdis );
+                if ( op == OP_STORE )
+                {
+                    // make sure the configuration can be decoded
+                    BinaryConfigurationHandler.read( rdis );
+                    records.put( pid, record );
+                }
+                else if ( op == OP_DELETE )
+                {
+                    records.remove( pid );
+                }
+                else
+                {
+                    return validSize;
+                }
+            }
+            catch ( IOException ioe )
+            {
+                return validSize;
+            }
+
+            validSize += record.length + FRAME_SIZE;
+        }
+    }
+
+
+    /**
+     * Encodes the record of the given type for the configuration.
+     */
+    private static byte[] encode( byte op, String pid, Dictionary props ) throws IOException
+    {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream( bos );
+        dos.writeByte( op );
+        BinaryConfigurationHandler.writeString( dos, pid );
+        if ( props != null )
+        {
+            BinaryConfigurationHandler.write( dos, props );
+        }
+        dos.flush();
+        return bos.toByteArray();
+    }
+
+
+    /**
+     * Decodes the configuration from the given store record.
+     */
+    private static Dictionary decode( byte[] record ) throws IOException
+    {
+        DataInputStream dis = new DataInputStream( new ByteArrayInputStream( record ) );
+        dis.readByte();
+        BinaryConfigurationHandler.readString( dis );
+        return BinaryConfigurationHandler.read( dis );
+    }
+
+
+    /**
+     * Returns the record framed by its length and checksum as written to the
+     * journal.
+     */
+    private static byte[] frame( byte[] record )
+    {
+        CRC32 crc = new CRC32();
+        crc.update( record );
+        int checksum = ( int ) crc.getValue();
+
+        byte[] framed = new byte[record.length + FRAME_SIZE];
+        putInt( framed, 0, record.length );
+        System.arraycopy( record, 0, framed, 4, record.length );
+        putInt( framed, record.length + 4, checksum );
+        return framed;
+    }
+
+
+    private static void putInt( byte[] buf, int offset, int value )
+    {
+        buf[offset] = ( byte ) ( value >>> 24 );
+        buf[offset + 1] = ( byte ) ( value >>> 16 );
+        buf[offset + 2] = ( byte ) ( value >>> 8 );
+        buf[offset + 3] = ( byte ) value;
+    }
+}
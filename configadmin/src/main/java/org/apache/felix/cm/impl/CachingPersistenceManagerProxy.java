@@ -0,0 +1,414 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.cm.impl;
+
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
+
+import org.apache.felix.cm.PersistenceManager;
+import org.osgi.framework.Constants;
+import org.osgi.service.cm.ConfigurationAdmin;
+
+
+/**
+ * The <code>CachingPersistenceManagerProxy</code> keeps the dictionaries of
+ * a {@link PersistenceManager} in memory such that configurations need only
+ * be read from the persistence manager once. All modifications are written
+ * through to the persistence manager and applied to the cache, which is
+ * therefore kept coherent as long as the persistence manager is only
+ * modified through this proxy.
+ * <p>
+ * Additionally the cached configurations are indexed by their
+ * <code>service.pid</code>, <code>service.factoryPid</code> and
+ * <code>service.bundleLocation</code> properties such that listing the
+ * configurations for a filter on one of these properties does not have to
+ * evaluate the filter on all configurations.
+ */
+class CachingPersistenceManagerProxy implements PersistenceManager
+{
+
+    /**
+     * The properties by which the configurations are indexed ordered by their
+     * selectivity.
+     */
+    private static final String[] INDEXED_KEYS =
+        { Constants.SERVICE_PID, ConfigurationAdmin.SERVICE_FACTORYPID, ConfigurationAdmin.SERVICE_BUNDLELOCATION };
+
+    // the actual persistence manager
+    private final PersistenceManager pm;
+
+    // the cached dictionaries mapped by their identifier
+    private final Map cache = new HashMap();
+
+    // for each indexed property a map of property values to the set of
+    // identifiers of the cached dictionaries having that value
+    private final Map[] indexes = new Map[INDEXED_KEYS.length];
+
+    // whether all configurations of the persistence manager are cached
+    private boolean fullyLoaded;
+
+
+    CachingPersistenceManagerProxy( PersistenceManager pm )
+    {
+        this.pm = pm;
+
+        for ( int i = 0; i < indexes.length; i++ )
+        {
+            indexes[i] = new HashMap();
+        }
+    }
+
+
+    /**
+     * Returns the actual persistence manager whose dictionaries are cached.
+     */
+    PersistenceManager getDelegatee()
+    {
+        return pm;
+    }
+
+
+    /**
+     * @param pid
+     * @see org.apache.felix.cm.PersistenceManager#exists(java.lang.String)
+     */
+    public synchronized boolean exists( String pid )
+    {
+        return cache.containsKey( pid ) || pm.exists( pid );
+    }
+
+
+    /**
+     * Returns a copy of the cached dictionary or loads and caches the
+     * dictionary if not cached yet.
+     *
+     * @param pid
+     * @throws IOException
+     * @see org.apache.felix.cm.PersistenceManager#load(java.lang.String)
+     */
+    public synchronized Dictionary load( String pid ) throws IOException
+    {
+        Dictionary props = ( Dictionary ) cache.get( pid );
+        if ( props == null )
+        {
+            props = copy( pm.load( pid ) );
+            put( pid, props );
+        }
+
+        return copy( props );
+    }
+
+
+    /**
+     * Returns the dictionaries of the actual persistence manager. This method
+     * is not cached since all dictionaries and not only configurations must
+     * be returned, whose identifiers are not known.
+     *
+     * @throws IOException
+     * @see org.apache.felix.cm.PersistenceManager#getDictionaries()
+     */
+    public Enumeration getDictionaries() throws IOException
+    {
+        return pm.getDictionaries();
+    }
+
+
+    /**
+     * Stores the dictionary with the actual persistence manager and replaces
+     * the cached dictionary with a copy of it.
+     *
+     * @param pid
+     * @param properties
+     * @throws IOException
+     * @see org.apache.felix.cm.PersistenceManager#store(java.lang.String, java.util.Dictionary)
+     */
+    public synchronized void store( String pid, Dictionary properties ) throws IOException
+    {
+        // drop the cached dictionary first as it is not known, what the
+        // persistence manager holds after a failure
+        remove( pid );
+        pm.store( pid, properties );
+        put( pid, copy( properties ) );
+    }
+
+
+    /**
+     * Deletes the dictionary with the actual persistence manager and removes
+     * it from the cache.
+     *
+     * @param pid
+     * @throws IOException
+     * @see org.apache.felix.cm.PersistenceManager#delete(java.lang.String)
+     */
+    public synchronized void delete( String pid ) throws IOException
+    {
+        remove( pid );
+        pm.delete( pid );
+    }
+
+
+    /**
+     * Returns the cached configurations, i.e. the dictionaries with a
+     * <code>service.pid</code> property, of the actual persistence manager.
+     * All configurations are read from the persistence manager on the first
+     * call.
+     * <p>
+     * If an indexed property and its value are given, only the
+     * configurations having the value for the property are returned, which
+     * are taken from the index of the property. Otherwise all configurations
+     * are returned.
+     * <p>
+     * The returned dictionaries are shared with the cache and must not be
+     * modified. Use {@link #copy(Dictionary)} to get a modifiable copy.
+     *
+     * @param term The name and value of an indexed property as returned from
+     *      {@link #getIndexedTerm(String)} or <code>null</code> to return all
+     *      configurations.
+     * @throws IOException If an error occurrs reading the configurations
+     */
+    synchronized Enumeration getConfigurations( String[] term ) throws IOException
+    {
+        if ( !fullyLoaded )
+        {
+            Enumeration dictionaries = pm.getDictionaries();
+            while ( dictionaries.hasMoreElements() )
+            {
+                Dictionary props = ( Dictionary ) dictionaries.nextElement();
+                Object pid = props.get( Constants.SERVICE_PID );
+                if ( pid instanceof String && !cache.containsKey( pid ) )
+                {
+                    put( ( String ) pid, copy( props ) );
+                }
+            }
+            fullyLoaded = true;
+        }
+
+        Collection pids;
+        if ( term == null )
+        {
+            pids = cache.keySet();
+        }
+        else
+        {
+            pids = ( Collection ) indexes[indexOf( term[0] )].get( term[1] );
+            if ( pids == null )
+            {
+                return Collections.enumeration( Collections.EMPTY_LIST );
+            }
+        }
+
+        List configs = new ArrayList( pids.size() );
+        for ( Iterator pi = pids.iterator(); pi.hasNext(); )
+        {
+            Dictionary props = ( Dictionary ) cache.get( pi.next() );
+            if ( props.get( Constants.SERVICE_PID ) != null )
+            {
+                configs.add( props );
+            }
+        }
+
+        return Collections.enumeration( configs );
+    }
+
+
+    /**
+     * Returns the name and value of an equality term on an indexed property
+     * of the filter, which may be used to narrow the configurations that must
+     * be matched against the filter. A term is only returned, if it is the
+     * filter itself or an operand of the filter being a conjunction. Terms on
+     * more selective properties are preferred.
+     *
+     * @param filter The filter string, which is expected to be valid.
+     *
+     * @return The name and value of the term or <code>null</code> if the
+     *      filter has no such term.
+     */
+    static String[] getIndexedTerm( String filter )
+    {
+        if ( filter == null )
+        {
+            return null;
+        }
+
+        filter = filter.trim();
+
+        List terms = new ArrayList();
+        if ( filter.startsWith( "(&" ) && filter.endsWith( ")" ) )
+        {
+            // split the operands of the conjunction
+            int depth = 0;
+            int start = -1;
+            for ( int i = 2; i < filter.length() - 1; i++ )
+            {
+                char c = filter.charAt( i );
+                if ( c == '\\' )
+                {
+                    i++;
+                }
+                else if ( c == '(' && depth++ == 0 )
+                {
+                    start = i;
+                }
+                else if ( c == ')' && --depth == 0 )
+                {
+                    terms.add( filter.substring( start, i + 1 ) );
+                }
+            }
+        }
+        else
+        {
+            terms.add( filter );
+        }
+
+        for ( int k = 0; k < INDEXED_KEYS.length; k++ )
+        {
+            for ( Iterator ti = terms.iterator(); ti.hasNext(); )
+            {
+                String term = ( String ) ti.next();
+                int eq = term.indexOf( '=' );
+                if ( eq < 0 || !term.startsWith( "(" ) || !term.endsWith( ")" ) )
+                {
+                    continue;
+                }
+
+                // only simple equality, no approximate, ordering, presence,
+                // substring or escaped values
+                String key = term.substring( 1, eq ).trim();
+                String value = term.substring( eq + 1, term.length() - 1 );
+                if ( key.equalsIgnoreCase( INDEXED_KEYS[k] ) && value.length() > 0
+                    && value.equals( value.trim() ) && value.indexOf( '*' ) < 0 && value.indexOf( '\\' ) < 0
+                    && value.indexOf( '(' ) < 0 && value.indexOf( ')' ) < 0 )
+                {
+                    return new String[]
+                        { INDEXED_KEYS[k], value };
+                }
+            }
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Returns a copy of the dictionary, which may be modified without
+     * affecting the original. Array and collection values are copied as well.
+     */
+    static Dictionary copy( Dictionary props )
+    {
+        Hashtable copy = new Hashtable( Math.max( 2 * props.size(), 11 ), 0.75f );
+        for ( Enumeration ke = props.keys(); ke.hasMoreElements(); )
+        {
+            Object key = ke.nextElement();
+            Object value = props.get( key );
+            if ( value.getClass().isArray() )
+            {
+                int length = Array.getLength( value );
+                Object newValue = Array.newInstance( value.getClass().getComponentType(), length );
+                System.arraycopy( value, 0, newValue, 0, length );
+                value = newValue;
+            }
+            else if ( value instanceof Collection )
+            {
+                value = new Vector( ( Collection ) value );
+            }
+            copy.put( key, value );
+        }
+        return copy;
+    }
+
+
+    // caches the dictionary and adds it to the indexes
+    private void put( String pid, Dictionary props )
+    {
+        remove( pid );
+        cache.put( pid, props );
+
+        for ( int i = 0; i < INDEXED_KEYS.length; i++ )
+        {
+            Object value = props.get( INDEXED_KEYS[i] );
+            if ( value instanceof String )
+            {
+                Set pids = ( Set ) indexes[i].get( value );
+                if ( pids == null )
+                {
+                    pids = new HashSet();
+                    indexes[i].put( value, pids );
+                }
+                pids.add( pid );
+            }
+        }
+    }
+
+
+    // removes the dictionary from the cache and the indexes
+    private void remove( String pid )
+    {
+        Dictionary props = ( Dictionary ) cache.remove( pid );
+        if ( props == null )
+        {
+            return;
+        }
+
+        for ( int i = 0; i < INDEXED_KEYS.length; i++ )
+        {
+            Object value = props.get( INDEXED_KEYS[i] );
+            if ( value instanceof String )
+            {
+                Set pids = ( Set ) indexes[i].get( value );
+                if ( pids != null )
+                {
+                    pids.remove( pid );
+                    if ( pids.isEmpty() )
+                    {
+                        indexes[i].remove( value );
+                    }
+                }
+            }
+        }
+    }
+
+
+    // returns the index of the indexed property
+    private static int indexOf( String key )
+    {
+        for ( int i = 0; i < INDEXED_KEYS.length; i++ )
+        {
+            if ( INDEXED_KEYS[i].equals( key ) )
+            {
+                return i;
+            }
+        }
+
+        throw new IllegalArgumentException( "Property " + key + " is not indexed" );
+    }
+}
@@ -25,6 +25,7 @@ import java.util.*;
 
 import org.apache.felix.cm.PersistenceManager;
 import org.apache.felix.cm.file.FilePersistenceManager;
+import org.apache.felix.cm.file.JournalPersistenceManager;
 import org.osgi.framework.*;
 import org.osgi.service.cm.*;
 import org.osgi.service.log.LogService;
@@ -73,6 +74,22 @@ public class ConfigurationManager implements BundleActivator, BundleListener
      */
     public static final String CM_CONFIG_DIR = "felix.cm.dir";
 
+    /**
+     * The name of the bundle context property defining the location of the
+     * journal file of the {@link JournalPersistenceManager} (value is
+     * "felix.cm.journal").
+     * <p>
+     * If this property is set, a <code>JournalPersistenceManager</code> is
+     * registered in addition to the default <code>FilePersistenceManager</code>
+     * and ranked above it, such that new configuration data is written to
+     * the journal while configuration files written before are still found.
+     * A relative path name is resolved inside the persistent storage area of
+     * the Configuration Admin bundle.
+     *
+     * @see #start(BundleContext)
+     */
+    public static final String CM_CONFIG_JOURNAL = "felix.cm.journal";
+
     /**
      * The name of the bundle context property defining the maximum log level
      * (value is "felix.cm.loglevel"). The log level setting is only used if
@@ -86,11 +103,30 @@ public class ConfigurationManager implements BundleActivator, BundleListener
      */
     public static final String CM_LOG_LEVEL = "felix.cm.loglevel";
 
+    /**
+     * The name of the bundle context property defining the maximum number of
+     * threads used to update managed services and managed service factories
+     * and to send configuration events (value is "felix.cm.update.threads").
+     * <p>
+     * Updates for the same PID or factory PID are always delivered in order
+     * by a single thread at a time, while updates for different PIDs may be
+     * delivered concurrently. The value of this property is expected to be a
+     * positive integer number. The default value is 4. Setting this property
+     * to 1 delivers all updates in a single thread.
+     */
+    public static final String CM_UPDATE_THREADS = "felix.cm.update.threads";
+
     // The name of the LogService (not using the class, which might be missing)
     private static final String LOG_SERVICE_NAME = "org.osgi.service.log.LogService";
 
     private static final int CM_LOG_LEVEL_DEFAULT = 2;
 
+    private static final int CM_UPDATE_THREADS_DEFAULT = 4;
+
+    // the key of the configuration events in the update dispatcher, such
+    // that the events are sent in order
+    private static final Object EVENT_KEY = new Object();
+
     // random number generator to create configuration PIDs for factory
     // configurations
     private static SecureRandom numberGenerator;
@@ -119,16 +155,25 @@ public class ConfigurationManager implements BundleActivator, BundleListener
     // PersistenceManager services
     private ServiceTracker persistenceManagerTracker;
 
-    // the thread used to schedule tasks required to run asynchronously
-    private UpdateThread updateThread;
+    // the journal persistence manager if configured, closed on stop
+    private JournalPersistenceManager journalPersistenceManager;
+
+    // the dispatcher used to schedule tasks required to run asynchronously
+    private UpdateDispatcher updateDispatcher;
 
     /**
      * The actual list of {@link PersistenceManager persistence managers} to use
      * when looking for configuration data. This list is built from the
      * {@link #persistenceManagerMap}, which is ordered according to the
-     * {@link RankingComparator}.
+     * {@link RankingComparator}. Each persistence manager is wrapped in a
+     * {@link CachingPersistenceManagerProxy}.
      */
-    private PersistenceManager[] persistenceManagers;
+    private CachingPersistenceManagerProxy[] persistenceManagers;
+
+    // the CachingPersistenceManagerProxy instances mapped by the service
+    // reference of their persistence manager, such that the caches are kept
+    // when the persistenceManagers are rebuilt
+    private Map persistenceManagerProxies = new HashMap();
 
     // the persistenceManagerTracker.getTrackingCount when the
     // persistenceManagers were last got
@@ -191,9 +236,21 @@ public class ConfigurationManager implements BundleActivator, BundleListener
         configurationListenerTracker = new ServiceTracker( bundleContext, ConfigurationListener.class.getName(), null );
         configurationListenerTracker.open();
 
-        // initialize the asynchonous updater thread
-        this.updateThread = new UpdateThread( this );
-        this.updateThread.start();
+        // initialize the asynchonous update dispatcher
+        int updateThreads = CM_UPDATE_THREADS_DEFAULT;
+        String updateThreadsProp = bundleContext.getProperty( CM_UPDATE_THREADS );
+        if ( updateThreadsProp != null )
+        {
+            try
+            {
+                updateThreads = Integer.parseInt( updateThreadsProp );
+            }
+            catch ( NumberFormatException nfe )
+            {
+                // use the default
+            }
+        }
+        this.updateDispatcher = new UpdateDispatcher( this, updateThreads );
 
         // set up the location (might throw IllegalArgumentException)
         try
@@ -207,8 +264,31 @@ public class ConfigurationManager implements BundleActivator, BundleListener
             props.put( Constants.SERVICE_RANKING, new Integer( Integer.MIN_VALUE ) );
             bundleContext.registerService( PersistenceManager.class.getName(), fpm, props );
 
+            // the journal persistence manager if configured
+            PersistenceManager bindingsPm = fpm;
+            final String journal = bundleContext.getProperty( CM_CONFIG_JOURNAL );
+            if ( journal != null )
+            {
+                try
+                {
+                    journalPersistenceManager = new JournalPersistenceManager( bundleContext, journal );
+                    props = new Hashtable();
+                    props.put( Constants.SERVICE_PID, journalPersistenceManager.getClass().getName() );
+                    props.put( Constants.SERVICE_DESCRIPTION, "Platform Journal Persistence Manager" );
+                    props.put( Constants.SERVICE_VENDOR, "Apache Software Foundation" );
+                    props.put( Constants.SERVICE_RANKING, new Integer( Integer.MIN_VALUE + 1 ) );
+                    bundleContext.registerService( PersistenceManager.class.getName(), journalPersistenceManager,
+                        props );
+                    bindingsPm = journalPersistenceManager;
+                }
+                catch ( IllegalArgumentException iae )
+                {
+                    log( LogService.LOG_ERROR, "Cannot create the JournalPersistenceManager", iae );
+                }
+            }
+
             // setup dynamic configuration bindings
-            dynamicBindings = new DynamicBindings( bundleContext, fpm );
+            dynamicBindings = new DynamicBindings( bundleContext, bindingsPm );
         }
         catch ( IOException ioe )
         {
@@ -273,20 +353,27 @@ public class ConfigurationManager implements BundleActivator, BundleListener
             configurationListenerTracker.close();
         }
 
-        if ( updateThread != null )
+        if ( updateDispatcher != null )
         {
             // terminate asynchrounous updates
-            updateThread.terminate();
+            updateDispatcher.terminate();
 
             // wait for all updates to terminate
             try
             {
-                updateThread.join();
+                updateDispatcher.join();
             }
             catch ( InterruptedException ie )
             {
                 // don't really care
             }
+
+            log( LogService.LOG_DEBUG, updateDispatcher.toString(), null );
+        }
+
+        if ( journalPersistenceManager != null )
+        {
+            journalPersistenceManager.close();
         }
 
         if ( logTracker != null )
@@ -507,12 +594,22 @@ public class ConfigurationManager implements BundleActivator, BundleListener
         boolean unprivileged = configurationAdmin != null && !configurationAdmin.hasPermission();
         String location = unprivileged ? configurationAdmin.getBundle().getLocation() : null;
 
+        // use the index of the persistence managers for an equality term
+        // on the PID, factory PID or location of the filter or the location
+        // of an unprivileged caller
+        String[] term = CachingPersistenceManagerProxy.getIndexedTerm( filterString );
+        if ( term == null && unprivileged )
+        {
+            term = new String[]
+                { ConfigurationAdmin.SERVICE_BUNDLELOCATION, location };
+        }
+
         List configList = new ArrayList();
 
-        PersistenceManager[] pmList = getPersistenceManagers();
+        CachingPersistenceManagerProxy[] pmList = getPersistenceManagers();
         for ( int i = 0; i < pmList.length; i++ )
         {
-            Enumeration configs = pmList[i].getDictionaries();
+            Enumeration configs = pmList[i].getConfigurations( term );
             while ( configs.hasMoreElements() )
             {
                 Dictionary config = ( Dictionary ) configs.nextElement();
@@ -541,7 +638,8 @@ public class ConfigurationManager implements BundleActivator, BundleListener
                     ConfigurationImpl cfg = getCachedConfiguration( pid );
                     if ( cfg == null )
                     {
-                        cfg = new ConfigurationImpl( this, pmList[i], config );
+                        // the cached dictionary must not be modified
+                        cfg = new ConfigurationImpl( this, pmList[i], CachingPersistenceManagerProxy.copy( config ) );
                     }
 
                     // FELIX-611: Ignore configuration objects without props
@@ -562,21 +660,21 @@ public class ConfigurationManager implements BundleActivator, BundleListener
     {
         // remove the configuration from the cache
         removeConfiguration( config );
-        updateThread.schedule( new DeleteConfiguration( config, true ) );
+        updateDispatcher.schedule( getUpdateKey( config ), new DeleteConfiguration( config, true ) );
         log( LogService.LOG_DEBUG, "DeleteConfiguration(" + config.getPid() + ") scheduled", null );
     }
 
 
     void updated( ConfigurationImpl config, boolean fireEvent )
     {
-        updateThread.schedule( new UpdateConfiguration( config, fireEvent ) );
+        updateDispatcher.schedule( getUpdateKey( config ), new UpdateConfiguration( config, fireEvent ) );
         log( LogService.LOG_DEBUG, "UpdateConfiguration(" + config.getPid() + ") scheduled", null );
     }
 
 
     void revokeConfiguration( ConfigurationImpl config )
     {
-        updateThread.schedule( new DeleteConfiguration( config, false ) );
+        updateDispatcher.schedule( getUpdateKey( config ), new DeleteConfiguration( config, false ) );
 
         // immediately unbind the configuration
         config.setDynamicBundleLocation( null );
@@ -586,14 +684,22 @@ public class ConfigurationManager implements BundleActivator, BundleListener
 
     void reassignConfiguration( ConfigurationImpl config )
     {
-        updateThread.schedule( new UpdateConfiguration( config, false ) );
+        updateDispatcher.schedule( getUpdateKey( config ), new UpdateConfiguration( config, false ) );
     }
 
 
     void fireConfigurationEvent( int type, String pid, String factoryPid )
     {
+        updateDispatcher.schedule( EVENT_KEY, new FireConfigurationEvent( type, pid, factoryPid ) );
+    }
+
 
-        updateThread.schedule( new FireConfigurationEvent( type, pid, factoryPid) );
+    // returns the key of the update dispatcher for the configuration, which
+    // is the factory PID for factory configurations such that all updates
+    // of a ManagedServiceFactory are delivered in order
+    private static Object getUpdateKey( ConfigurationImpl config )
+    {
+        return ( config.getFactoryPid() != null ) ? config.getFactoryPid() : config.getPid();
     }
 
 
@@ -634,19 +740,20 @@ public class ConfigurationManager implements BundleActivator, BundleListener
 
     // ---------- internal -----------------------------------------------------
 
-    private PersistenceManager[] getPersistenceManagers()
+    private CachingPersistenceManagerProxy[] getPersistenceManagers()
     {
         int currentPmtCount = persistenceManagerTracker.getTrackingCount();
         if ( persistenceManagers == null || currentPmtCount > pmtCount )
         {
 
             List pmList = new ArrayList();
-            PersistenceManager[] pm;
+            Map pmProxies = new HashMap();
+            CachingPersistenceManagerProxy[] pm;
 
             ServiceReference[] refs = persistenceManagerTracker.getServiceReferences();
             if ( refs == null || refs.length == 0 )
             {
-                pm = new PersistenceManager[0];
+                pm = new CachingPersistenceManagerProxy[0];
             }
             else
             {
@@ -665,15 +772,25 @@ public class ConfigurationManager implements BundleActivator, BundleListener
                     Object service = persistenceManagerTracker.getService( ref );
                     if ( service != null )
                     {
-                        pmList.add( service );
+                        // keep the proxy (and its cache) of a known service
+                        CachingPersistenceManagerProxy proxy = ( CachingPersistenceManagerProxy ) persistenceManagerProxies
+                            .get( ref );
+                        if ( proxy == null || proxy.getDelegatee() != service )
+                        {
+                            proxy = new CachingPersistenceManagerProxy( ( PersistenceManager ) service );
+                        }
+                        pmProxies.put( ref, proxy );
+                        pmList.add( proxy );
                     }
                 }
 
-                pm = ( PersistenceManager[] ) pmList.toArray( new PersistenceManager[pmList.size()] );
+                pm = ( CachingPersistenceManagerProxy[] ) pmList.toArray( new CachingPersistenceManagerProxy[pmList
+                    .size()] );
             }
 
-            pmtCount = pm.length;
+            pmtCount = currentPmtCount;
             persistenceManagers = pm;
+            persistenceManagerProxies = pmProxies;
         }
 
         return persistenceManagers;
@@ -695,7 +812,7 @@ public class ConfigurationManager implements BundleActivator, BundleListener
             for ( int i = 0; i < pids.length; i++ )
             {
                 ManagedServiceUpdate update = new ManagedServiceUpdate( pids[i], sr, service );
-                updateThread.schedule( update );
+                updateDispatcher.schedule( pids[i], update );
                 log( LogService.LOG_DEBUG, "ManagedServiceUpdate(" + pids[i] + ") scheduled", null );
             }
         }
@@ -710,7 +827,7 @@ public class ConfigurationManager implements BundleActivator, BundleListener
             for ( int i = 0; i < pids.length; i++ )
             {
                 ManagedServiceFactoryUpdate update = new ManagedServiceFactoryUpdate( pids[i], sr, service );
-                updateThread.schedule( update );
+                updateDispatcher.schedule( pids[i], update );
                 log( LogService.LOG_DEBUG, "ManagedServiceFactoryUpdate(" + pids[i] + ") scheduled", null );
             }
         }
@@ -1021,7 +1138,7 @@ public class ConfigurationManager implements BundleActivator, BundleListener
 
     // ---------- inner classes ------------------------------------------------
 
-    private class ManagedServiceUpdate implements Runnable
+    private class ManagedServiceUpdate implements UpdateDispatcher.Supersedable
     {
         private final String pid;
 
@@ -1152,13 +1269,26 @@ public class ConfigurationManager implements BundleActivator, BundleListener
             }
         }
 
+        public boolean supersede( Runnable newer )
+        {
+            // the newer update provides the same service with a current
+            // configuration
+            if ( newer instanceof ManagedServiceUpdate )
+            {
+                ManagedServiceUpdate update = ( ManagedServiceUpdate ) newer;
+                return pid.equals( update.pid ) && sr.equals( update.sr );
+            }
+            return false;
+        }
+
+
         public String toString()
         {
             return "ManagedService Update: pid=" + pid;
         }
     }
 
-    private class ManagedServiceFactoryUpdate implements Runnable
+    private class ManagedServiceFactoryUpdate implements UpdateDispatcher.Supersedable
     {
         private final String factoryPid;
 
@@ -1342,13 +1472,26 @@ public class ConfigurationManager implements BundleActivator, BundleListener
         }
 
 
+        public boolean supersede( Runnable newer )
+        {
+            // the newer update provides the same service with current
+            // configurations
+            if ( newer instanceof ManagedServiceFactoryUpdate )
+            {
+                ManagedServiceFactoryUpdate update = ( ManagedServiceFactoryUpdate ) newer;
+                return factoryPid.equals( update.factoryPid ) && sr.equals( update.sr );
+            }
+            return false;
+        }
+
+
         public String toString()
         {
             return "ManagedServiceFactory Update: factoryPid=" + factoryPid;
         }
     }
 
-    private class UpdateConfiguration implements Runnable
+    private class UpdateConfiguration implements UpdateDispatcher.Supersedable
     {
 
         private final ConfigurationImpl config;
@@ -1356,6 +1499,10 @@ public class ConfigurationManager implements BundleActivator, BundleListener
         private final long lastModificationTime;
         private final boolean fireEvent;
 
+        // set if a later update of the configuration is pending, such
+        // that only the event has to be sent (if at all)
+        private boolean superseded;
+
 
         UpdateConfiguration( final ConfigurationImpl config, boolean fireEvent )
         {
@@ -1378,6 +1525,13 @@ public class ConfigurationManager implements BundleActivator, BundleListener
                 // (this must be inside the try-catch-finally to ensure
                 // the event is sent regardless of ManagedService[Factory]
                 // update)
+                if ( superseded )
+                {
+                    log( LogService.LOG_DEBUG, "Configuration " + config.getPid()
+                        + " will be updated by a later update, nothing to be done anymore.", null );
+                    return;
+                }
+
                 if ( lastModificationTime <= config.getLastUpdatedTime() )
                 {
                     log( LogService.LOG_DEBUG, "Configuration " + config.getPid() + " at modification #"
@@ -1590,6 +1744,19 @@ public class ConfigurationManager implements BundleActivator, BundleListener
         }
 
 
+        public boolean supersede( Runnable newer )
+        {
+            // the newer update delivers the current properties of the
+            // configuration, so this update needs to send the event only
+            if ( newer instanceof UpdateConfiguration && ( ( UpdateConfiguration ) newer ).config == config )
+            {
+                superseded = true;
+                return !fireEvent;
+            }
+            return false;
+        }
+
+
         public String toString()
         {
             return "Update: pid=" + config.getPid();
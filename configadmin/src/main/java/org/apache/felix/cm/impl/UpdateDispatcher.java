@@ -0,0 +1,511 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.cm.impl;
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.osgi.service.log.LogService;
+
+
+/**
+ * The <code>UpdateDispatcher</code> runs the tasks updating managed services
+ * and managed service factories as well as sending configuration events.
+ * <p>
+ * Each task is scheduled with a key, which is the PID of the configuration or
+ * the factory PID of a factory configuration. The tasks of the same key are
+ * run one after the other in the order they have been scheduled, while tasks
+ * of different keys are run concurrently by a bounded number of threads. Thus
+ * a managed service blocking in its <code>updated</code> method only delays
+ * the updates of its own PID.
+ * <p>
+ * A task implementing the {@link Supersedable} interface, which has not been
+ * started yet, may be superseded by a task scheduled later for the same key.
+ * <p>
+ * The dispatcher keeps statistics of the number of pending tasks and the time
+ * tasks wait for being started and take to run.
+ */
+public class UpdateDispatcher
+{
+
+    /**
+     * The interface of tasks which may become obsolete by a task scheduled
+     * later for the same key.
+     */
+    static interface Supersedable extends Runnable
+    {
+
+        /**
+         * Called if the <code>newer</code> task is scheduled for the key of
+         * this task directly after this task and this task has not been
+         * started yet.
+         *
+         * @param newer The task scheduled after this task.
+         * @return <code>true</code> if this task need not be run anymore and
+         *      may be dropped.
+         */
+        boolean supersede( Runnable newer );
+    }
+
+    // the base name of the threads which is set while there is no
+    // task to run
+    private static final String BASE_THREAD_NAME = "Configuration Updater";
+
+    // the configuration manager on whose behalf the threads are started
+    // (this is mainly used for logging)
+    private final ConfigurationManager configurationManager;
+
+    // the maximum number of threads running tasks
+    private final int maxThreads;
+
+    // the threads running tasks
+    private final List threads = new ArrayList();
+
+    // the number of threads waiting for a task
+    private int idleThreads;
+
+    // the queues of tasks not started yet mapped by their key. A key has
+    // an entry while it has a pending or running task
+    private final Map queues = new HashMap();
+
+    // the keys having a pending task but no running task in the order in
+    // which they have become ready
+    private final LinkedList readyKeys = new LinkedList();
+
+    // the keys having a running task
+    private final Set runningKeys = new HashSet();
+
+    // the sequence numbers of the tasks not finished yet
+    private final TreeSet unfinished = new TreeSet();
+
+    // the barrier tasks waiting for the tasks scheduled before them
+    private final LinkedList barriers = new LinkedList();
+
+    // the sequence number of the next task
+    private long sequence;
+
+    // whether the dispatcher has been terminated
+    private boolean terminated;
+
+    // the statistics, see the getters below
+    private int pendingCount;
+    private int maxPendingCount;
+    private long completedCount;
+    private long supersededCount;
+    private long totalWaitTime;
+    private long maxWaitTime;
+    private long totalRunTime;
+    private long maxRunTime;
+
+
+    public UpdateDispatcher( ConfigurationManager configurationManager, int maxThreads )
+    {
+        this.configurationManager = configurationManager;
+        this.maxThreads = Math.max( 1, maxThreads );
+    }
+
+
+    // queue the given runnable to be run after all tasks scheduled
+    // before it have finished
+    void schedule( Runnable task )
+    {
+        synchronized ( queues )
+        {
+            if ( unfinished.isEmpty() )
+            {
+                schedule( new Object(), task );
+            }
+            else
+            {
+                configurationManager.log( LogService.LOG_DEBUG, "Scheduling barrier " + task, null );
+                barriers.add( new Entry( sequence - 1, null, task ) );
+            }
+        }
+    }
+
+
+    // queue the given runnable to be run as soon as all tasks scheduled
+    // before with the same key have finished
+    void schedule( Object key, Runnable task )
+    {
+        synchronized ( queues )
+        {
+            if ( terminated )
+            {
+                configurationManager.log( LogService.LOG_DEBUG, "Ignoring task " + task + " after termination",
+                    null );
+                return;
+            }
+
+            configurationManager.log( LogService.LOG_DEBUG, "Scheduling task " + task, null );
+
+            LinkedList queue = ( LinkedList ) queues.get( key );
+            if ( queue == null )
+            {
+                queue = new LinkedList();
+                queues.put( key, queue );
+            }
+
+            // drop the last pending task of the key if superseded
+            boolean ready = false;
+            if ( !queue.isEmpty() )
+            {
+                Entry last = ( Entry ) queue.getLast();
+                if ( last.task instanceof Supersedable && ( ( Supersedable ) last.task ).supersede( task ) )
+                {
+                    configurationManager.log( LogService.LOG_DEBUG, "Task " + last.task + " superseded by " + task,
+                        null );
+                    queue.removeLast();
+                    finished( last );
+                    pendingCount--;
+                    supersededCount++;
+
+                    // if the dropped task was the only one and not running,
+                    // the key is still in the ready keys
+                    ready = queue.isEmpty() && !runningKeys.contains( key );
+                }
+            }
+
+            Entry entry = new Entry( sequence++, key, task );
+            unfinished.add( entry.seq );
+            queue.add( entry );
+            pendingCount++;
+            maxPendingCount = Math.max( maxPendingCount, pendingCount );
+
+            if ( queue.size() == 1 && !runningKeys.contains( key ) && !ready )
+            {
+                ready( key );
+            }
+        }
+    }
+
+
+    // cause the threads to terminate once all tasks scheduled so far
+    // have finished. Tasks scheduled afterwards are ignored.
+    void terminate()
+    {
+        schedule( new Runnable()
+        {
+            public void run()
+            {
+                synchronized ( queues )
+                {
+                    terminated = true;
+                    queues.notifyAll();
+                }
+            }
+
+
+            public String toString()
+            {
+                return "Terminate";
+            }
+        } );
+    }
+
+
+    // wait for all threads to terminate after terminate() has been called
+    void join() throws InterruptedException
+    {
+        Thread[] threads;
+        synchronized ( queues )
+        {
+            threads = ( Thread[] ) this.threads.toArray( new Thread[this.threads.size()] );
+        }
+
+        for ( int i = 0; i < threads.length; i++ )
+        {
+            threads[i].join();
+        }
+    }
+
+
+    // ---------- statistics ---------------------------------------------------
+
+    /**
+     * Returns the number of tasks scheduled but not started yet.
+     */
+    int getPendingCount()
+    {
+        synchronized ( queues )
+        {
+            return pendingCount;
+        }
+    }
+
+
+    /**
+     * Returns the highest number of tasks scheduled but not started yet at
+     * the same time.
+     */
+    int getMaxPendingCount()
+    {
+        synchronized ( queues )
+        {
+            return maxPendingCount;
+        }
+    }
+
+
+    /**
+     * Returns the number of tasks which have been run.
+     */
+    long getCompletedCount()
+    {
+        synchronized ( queues )
+        {
+            return completedCount;
+        }
+    }
+
+
+    /**
+     * Returns the number of tasks which have been dropped because they have
+     * been superseded by a later task.
+     */
+    long getSupersededCount()
+    {
+        synchronized ( queues )
+        {
+            return supersededCount;
+        }
+    }
+
+
+    /**
+     * Returns the average time in milliseconds the completed tasks waited
+     * for being started.
+     */
+    long getAverageWaitTime()
+    {
+        synchronized ( queues )
+        {
+            return ( completedCount == 0 ) ? 0 : totalWaitTime / completedCount;
+        }
+    }
+
+
+    /**
+     * Returns the longest time in milliseconds a completed task waited for
+     * being started.
+     */
+    long getMaxWaitTime()
+    {
+        synchronized ( queues )
+        {
+            return maxWaitTime;
+        }
+    }
+
+
+    /**
+     * Returns the average time in milliseconds the completed tasks took to
+     * run.
+     */
+    long getAverageRunTime()
+    {
+        synchronized ( queues )
+        {
+            return ( completedCount == 0 ) ? 0 : totalRunTime / completedCount;
+        }
+    }
+
+
+    /**
+     * Returns the longest time in milliseconds a completed task took to run.
+     */
+    long getMaxRunTime()
+    {
+        synchronized ( queues )
+        {
+            return maxRunTime;
+        }
+    }
+
+
+    public String toString()
+    {
+        synchronized ( queues )
+        {
+            return "UpdateDispatcher: threads=" + threads.size() + ", pending=" + pendingCount + " (max "
+                + maxPendingCount + "), completed=" + completedCount + ", superseded=" + supersededCount
+                + ", wait=" + getAverageWaitTime() + "ms (max " + maxWaitTime + "ms), run=" + getAverageRunTime()
+                + "ms (max " + maxRunTime + "ms)";
+        }
+    }
+
+
+    // ---------- internal -----------------------------------------------------
+
+    // marks the key as having a task to start and makes sure a thread will
+    // pick it up. Must be called with the queues locked.
+    private void ready( Object key )
+    {
+        readyKeys.add( key );
+
+        if ( idleThreads > 0 )
+        {
+            queues.notify();
+        }
+        else if ( threads.size() < maxThreads )
+        {
+            Thread thread = new Thread( new Runnable()
+            {
+                public void run()
+                {
+                    dispatch();
+                }
+            }, BASE_THREAD_NAME );
+            threads.add( thread );
+            thread.start();
+        }
+    }
+
+
+    // removes the finished task from the unfinished tasks and releases
+    // the barriers waiting for it. Must be called with the queues locked.
+    private void finished( Entry entry )
+    {
+        unfinished.remove( entry.seq );
+
+        while ( !barriers.isEmpty() )
+        {
+            Entry barrier = ( Entry ) barriers.getFirst();
+            if ( !unfinished.isEmpty() && ( ( Long ) unfinished.first() ).longValue() <= barrier.seq.longValue() )
+            {
+                break;
+            }
+
+            barriers.removeFirst();
+            schedule( new Object(), barrier.task );
+        }
+    }
+
+
+    // takes the tasks from the ready keys and runs them until the
+    // dispatcher is terminated
+    private void dispatch()
+    {
+        for ( ;; )
+        {
+            Entry entry;
+            synchronized ( queues )
+            {
+                while ( readyKeys.isEmpty() )
+                {
+                    if ( terminated )
+                    {
+                        return;
+                    }
+
+                    idleThreads++;
+                    try
+                    {
+                        queues.wait();
+                    }
+                    catch ( InterruptedException ie )
+                    {
+                        // don't care
+                    }
+                    finally
+                    {
+                        idleThreads--;
+                    }
+                }
+
+                Object key = readyKeys.removeFirst();
+                entry = ( Entry ) ( ( LinkedList ) queues.get( key ) ).removeFirst();
+                runningKeys.add( key );
+                pendingCount--;
+            }
+
+            // run the task, log any issues
+            final long start = System.currentTimeMillis();
+            try
+            {
+                // set the thread name indicating the current task
+                Thread.currentThread().setName( BASE_THREAD_NAME + " (" + entry.task + ")" );
+
+                configurationManager.log( LogService.LOG_DEBUG, "Running task " + entry.task, null );
+                entry.task.run();
+            }
+            catch ( Throwable t )
+            {
+                configurationManager.log( LogService.LOG_ERROR, "Unexpected problem executing task", t );
+            }
+            finally
+            {
+                // reset the thread name to "idle"
+                Thread.currentThread().setName( BASE_THREAD_NAME );
+            }
+            final long end = System.currentTimeMillis();
+
+            synchronized ( queues )
+            {
+                completedCount++;
+                totalWaitTime += start - entry.time;
+                maxWaitTime = Math.max( maxWaitTime, start - entry.time );
+                totalRunTime += end - start;
+                maxRunTime = Math.max( maxRunTime, end - start );
+
+                // the key is ready again if it has more tasks
+                runningKeys.remove( entry.key );
+                LinkedList queue = ( LinkedList ) queues.get( entry.key );
+                if ( queue.isEmpty() )
+                {
+                    queues.remove( entry.key );
+                }
+                else
+                {
+                    readyKeys.add( entry.key );
+                }
+
+                finished( entry );
+            }
+        }
+    }
+
+    // a scheduled task
+    private static class Entry
+    {
+        final Long seq;
+
+        final Object key;
+
+        final Runnable task;
+
+        final long time = System.currentTimeMillis();
+
+
+        Entry( long seq, Object key, Runnable task )
+        {
+            this.seq = new Long( seq );
+            this.key = key;
+            this.task = task;
+        }
+    }
+}
@@ -0,0 +1,389 @@
+/* 
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.cm.file;
+
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+
+import junit.framework.TestCase;
+
+
+public class JournalPersistenceManagerTest extends TestCase
+{
+    private File file = new File( System.getProperty( "java.io.tmpdir" ), "config.journal" );
+
+    private JournalPersistenceManager jpm;
+
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        file.delete();
+        jpm = new JournalPersistenceManager( null, file.getAbsolutePath() );
+    }
+
+
+    protected void tearDown() throws Exception
+    {
+        jpm.close();
+        file.delete();
+
+        super.tearDown();
+    }
+
+
+    public void testSimple() throws IOException
+    {
+        check( "String", "String Value" );
+        check( "Integer", new Integer( 2 ) );
+        check( "Long", new Long( 2 ) );
+        check( "Float", new Float( 2 ) );
+        check( "Double", new Double( 2 ) );
+        check( "Byte", new Byte( ( byte ) 2 ) );
+        check( "Short", new Short( ( short ) 2 ) );
+        check( "Character", new Character( 'a' ) );
+        check( "Boolean", Boolean.TRUE );
+        check( "Unicode", "fläche ሴ" );
+    }
+
+
+    public void testArray() throws IOException
+    {
+        check( "StringArray", new String[]
+            { "one", "two", "three" } );
+        check( "IntArray", new int[]
+            { 0, 1, 2 } );
+        check( "IntegerArray", new Integer[]
+            { new Integer( 0 ), new Integer( 1 ), new Integer( 2 ) } );
+        check( "BooleanArray", new boolean[]
+            { true, false } );
+        check( "EmptyArray", new long[0] );
+    }
+
+
+    public void testCollection() throws IOException
+    {
+        check( "StringVector", new Vector( Arrays.asList( new String[]
+            { "one", "two", "three" } ) ) );
+        check( "IntegerList", Arrays.asList( new Integer[]
+            { new Integer( 0 ), new Integer( 1 ), new Integer( 2 ) } ) );
+        check( "MixedList", Arrays.asList( new Object[]
+            { "one", new Integer( 2 ), Boolean.TRUE } ) );
+        check( "EmptyList", Collections.EMPTY_LIST );
+    }
+
+
+    public void testDelete() throws IOException
+    {
+        check( "a", "value" );
+        assertTrue( jpm.exists( "a" ) );
+
+        jpm.delete( "a" );
+        assertFalse( jpm.exists( "a" ) );
+        assertFalse( jpm.getDictionaries().hasMoreElements() );
+
+        try
+        {
+            jpm.load( "a" );
+            fail( "Expected IOException loading deleted configuration" );
+        }
+        catch ( IOException ioe )
+        {
+            // expected
+        }
+    }
+
+
+    public void testReopen() throws IOException
+    {
+        check( "a", "value1" );
+        check( "a", "value2" );
+        check( "b", new Integer( 3 ) );
+        check( "c", "deleted" );
+        jpm.delete( "c" );
+
+        reopen();
+
+        assertEquals( "value2", jpm.load( "a" ).get( "a" ) );
+        assertEquals( new Integer( 3 ), jpm.load( "b" ).get( "b" ) );
+        assertFalse( jpm.exists( "c" ) );
+        assertEquals( 2, count( jpm.getDictionaries() ) );
+    }
+
+
+    public void testTruncatedRecord() throws IOException
+    {
+        check( "a", "value" );
+        long length = file.length();
+        check( "b", "value" );
+        jpm.close();
+
+        // cut off the last record in the middle
+        RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+        raf.setLength( file.length() - 3 );
+        raf.close();
+
+        reopen();
+
+        assertTrue( jpm.exists( "a" ) );
+        assertFalse( jpm.exists( "b" ) );
+        assertEquals( length, file.length() );
+
+        // the journal is usable after truncation
+        check( "b", "value" );
+        reopen();
+        assertTrue( jpm.exists( "b" ) );
+    }
+
+
+    public void testFailedWrite() throws IOException
+    {
+        check( "a", "value" );
+        long length = file.length();
+        jpm.close();
+
+        // write half of the next record before failing
+        final boolean[] fail = { true };
+        jpm = new JournalPersistenceManager( null, file.getAbsolutePath() )
+        {
+            OutputStream openJournal() throws IOException
+            {
+                return new FilterOutputStream( super.openJournal() )
+                {
+                    public void write( byte[] b ) throws IOException
+                    {
+                        if ( fail[0] )
+                        {
+                            out.write( b, 0, b.length / 2 );
+                            out.flush();
+                            throw new IOException( "Simulated failure" );
+                        }
+                        out.write( b );
+                    }
+                };
+            }
+        };
+
+        try
+        {
+            jpm.store( "b", new Hashtable() );
+            fail( "Expected IOException writing the journal" );
+        }
+        catch ( IOException ioe )
+        {
+            // expected
+        }
+        assertFalse( jpm.exists( "b" ) );
+        assertEquals( length, file.length() );
+
+        // the record written after the failure is not lost
+        fail[0] = false;
+        check( "c", "value" );
+        reopen();
+        assertTrue( jpm.exists( "a" ) );
+        assertFalse( jpm.exists( "b" ) );
+        assertTrue( jpm.exists( "c" ) );
+    }
+
+
+    public void testForeignFileUntouched() throws IOException
+    {
+        jpm.close();
+        checkUntouched( new byte[]
+            { 'n', 'o', 't', ' ', 'a', ' ', 'j', 'o', 'u', 'r', 'n', 'a', 'l' } );
+
+        // a journal of a newer format version
+        checkUntouched( new byte[]
+            { 'F', 'C', 'M', 'J', 0, 0, 0, 2, 0, 0, 0, 0 } );
+    }
+
+
+    public void testFailedCompaction() throws IOException
+    {
+        StringBuffer buf = new StringBuffer();
+        for ( int i = 0; i < 1000; i++ )
+        {
+            buf.append( 'x' );
+        }
+
+        // the temporary file of the compaction cannot be created
+        File tmpFile = new File( file.getPath() + ".tmp" );
+        tmpFile.mkdir();
+        try
+        {
+            for ( int i = 0; i < 200; i++ )
+            {
+                check( "a", buf.toString() + i );
+            }
+        }
+        finally
+        {
+            tmpFile.delete();
+        }
+
+        reopen();
+        assertEquals( buf.toString() + 199, jpm.load( "a" ).get( "a" ) );
+    }
+
+
+    public void testCompaction() throws IOException
+    {
+        StringBuffer buf = new StringBuffer();
+        for ( int i = 0; i < 1000; i++ )
+        {
+            buf.append( 'x' );
+        }
+
+        for ( int i = 0; i < 200; i++ )
+        {
+            check( "a", buf.toString() + i );
+        }
+        check( "b", "value" );
+
+        // repeatedly overwriting the configuration compacts the journal
+        assertTrue( file.length() < JournalPersistenceManager.COMPACTION_THRESHOLD * 2 );
+
+        jpm.compact();
+        long compacted = file.length();
+        assertTrue( compacted < 2 * 1024 );
+
+        reopen();
+        assertEquals( buf.toString() + 199, jpm.load( "a" ).get( "a" ) );
+        assertEquals( "value", jpm.load( "b" ).get( "b" ) );
+        assertEquals( compacted, file.length() );
+    }
+
+
+    public void testLoadReturnsCopy() throws IOException
+    {
+        check( "a", "value" );
+
+        Dictionary props = jpm.load( "a" );
+        props.put( "a", "modified" );
+
+        assertEquals( "value", jpm.load( "a" ).get( "a" ) );
+    }
+
+
+    private void checkUntouched( byte[] content ) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+        raf.setLength( 0 );
+        raf.write( content );
+        raf.close();
+
+        try
+        {
+            new JournalPersistenceManager( null, file.getAbsolutePath() );
+            fail( "Expected IllegalArgumentException reading " + new String( content ) );
+        }
+        catch ( IllegalArgumentException iae )
+        {
+            // expected
+        }
+
+        byte[] read = new byte[( int ) file.length()];
+        raf = new RandomAccessFile( file, "r" );
+        raf.readFully( read );
+        raf.close();
+        assertTrue( Arrays.equals( content, read ) );
+    }
+
+
+    private void reopen()
+    {
+        jpm.close();
+        jpm = new JournalPersistenceManager( null, file.getAbsolutePath() );
+    }
+
+
+    private int count( Enumeration e )
+    {
+        int count = 0;
+        for ( ; e.hasMoreElements(); e.nextElement() )
+        {
+            count++;
+        }
+        return count;
+    }
+
+
+    private void check( String name, Object value ) throws IOException
+    {
+        Dictionary props = new Hashtable();
+        props.put( name, value );
+
+        check( name, props );
+    }
+
+
+    private void check( String pid, Dictionary props ) throws IOException
+    {
+        jpm.store( pid, props );
+
+        Dictionary loaded = jpm.load( pid );
+        assertNotNull( loaded );
+        assertEquals( props.size(), loaded.size() );
+
+        for ( Enumeration pe = props.keys(); pe.hasMoreElements(); )
+        {
+            String key = ( String ) pe.nextElement();
+            checkValues( props.get( key ), loaded.get( key ) );
+        }
+    }
+
+
+    private void checkValues( Object value1, Object value2 )
+    {
+        assertNotNull( value2 );
+        if ( value1.getClass().isArray() )
+        {
+            assertTrue( value2.getClass().isArray() );
+            assertEquals( value1.getClass().getComponentType(), value2.getClass().getComponentType() );
+            assertEquals( Array.getLength( value1 ), Array.getLength( value2 ) );
+            for ( int i = 0; i < Array.getLength( value1 ); i++ )
+            {
+                assertEquals( Array.get( value1, i ), Array.get( value2, i ) );
+            }
+        }
+        else if ( value1 instanceof Collection )
+        {
+            assertTrue( value2 instanceof Collection );
+            assertEquals( Arrays.asList( ( ( Collection ) value1 ).toArray() ), Arrays
+                .asList( ( ( Collection ) value2 ).toArray() ) );
+        }
+        else
+        {
+            assertEquals( value1, value2 );
+        }
+    }
+}
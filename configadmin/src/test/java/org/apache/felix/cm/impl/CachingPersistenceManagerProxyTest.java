@@ -0,0 +1,234 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.cm.impl;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.cm.MockPersistenceManager;
+import org.osgi.framework.Constants;
+import org.osgi.service.cm.ConfigurationAdmin;
+
+
+public class CachingPersistenceManagerProxyTest extends TestCase
+{
+
+    private CountingPersistenceManager pm;
+
+    private CachingPersistenceManagerProxy proxy;
+
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        pm = new CountingPersistenceManager();
+        pm.store( "a", config( "a", null, "loc1" ) );
+        pm.store( "b", config( "b", "fac", "loc1" ) );
+        pm.store( "c", config( "c", "fac", "loc2" ) );
+
+        // a dictionary which is not a configuration
+        Hashtable factory = new Hashtable();
+        factory.put( "factory.pid", "fac" );
+        pm.store( "fac.factory", factory );
+
+        proxy = new CachingPersistenceManagerProxy( pm );
+    }
+
+
+    public void testLoadIsCached() throws IOException
+    {
+        Dictionary props = proxy.load( "a" );
+        assertEquals( "a", props.get( Constants.SERVICE_PID ) );
+        assertEquals( 1, pm.loads );
+
+        // modifying the loaded dictionary must not modify the cache
+        props.remove( Constants.SERVICE_PID );
+
+        props = proxy.load( "a" );
+        assertEquals( "a", props.get( Constants.SERVICE_PID ) );
+        assertEquals( 1, pm.loads );
+    }
+
+
+    public void testGetConfigurationsReadsOnce() throws IOException
+    {
+        assertEquals( 3, list( proxy.getConfigurations( null ) ).size() );
+        assertEquals( 3, list( proxy.getConfigurations( null ) ).size() );
+        assertEquals( 1, pm.enumerations );
+
+        // served from the cache
+        proxy.load( "b" );
+        assertEquals( 0, pm.loads );
+    }
+
+
+    public void testGetConfigurationsIndexed() throws IOException
+    {
+        assertPids( new String[]
+            { "b" }, proxy.getConfigurations( new String[]
+            { Constants.SERVICE_PID, "b" } ) );
+        assertPids( new String[]
+            { "b", "c" }, proxy.getConfigurations( new String[]
+            { ConfigurationAdmin.SERVICE_FACTORYPID, "fac" } ) );
+        assertPids( new String[]
+            { "a", "b" }, proxy.getConfigurations( new String[]
+            { ConfigurationAdmin.SERVICE_BUNDLELOCATION, "loc1" } ) );
+        assertPids( new String[0], proxy.getConfigurations( new String[]
+            { ConfigurationAdmin.SERVICE_BUNDLELOCATION, "loc3" } ) );
+    }
+
+
+    public void testStoreAndDeleteUpdateIndex() throws IOException
+    {
+        proxy.getConfigurations( null );
+
+        proxy.store( "a", config( "a", null, "loc2" ) );
+        proxy.store( "d", config( "d", "fac", "loc2" ) );
+        proxy.delete( "c" );
+
+        assertEquals( "loc2", pm.load( "a" ).get( ConfigurationAdmin.SERVICE_BUNDLELOCATION ) );
+        assertFalse( pm.exists( "c" ) );
+        assertFalse( proxy.exists( "c" ) );
+        assertTrue( proxy.exists( "d" ) );
+
+        assertPids( new String[]
+            { "a", "b", "d" }, proxy.getConfigurations( null ) );
+        assertPids( new String[]
+            { "b", "d" }, proxy.getConfigurations( new String[]
+            { ConfigurationAdmin.SERVICE_FACTORYPID, "fac" } ) );
+        assertPids( new String[]
+            { "a", "d" }, proxy.getConfigurations( new String[]
+            { ConfigurationAdmin.SERVICE_BUNDLELOCATION, "loc2" } ) );
+        assertPids( new String[]
+            { "b" }, proxy.getConfigurations( new String[]
+            { ConfigurationAdmin.SERVICE_BUNDLELOCATION, "loc1" } ) );
+        assertEquals( 1, pm.enumerations );
+    }
+
+
+    public void testGetIndexedTerm()
+    {
+        assertTerm( null, null );
+        assertTerm( null, "(foo=bar)" );
+        assertTerm( null, "(service.pid=a*)" );
+        assertTerm( null, "(service.pid~=a)" );
+        assertTerm( null, "(service.pid>=a)" );
+        assertTerm( null, "(!(service.pid=a))" );
+        assertTerm( null, "(|(service.pid=a)(service.pid=b))" );
+        assertTerm( null, "(service.pid=a\\29)" );
+
+        assertTerm( new String[]
+            { Constants.SERVICE_PID, "a" }, "(service.pid=a)" );
+        assertTerm( new String[]
+            { Constants.SERVICE_PID, "a" }, " (SERVICE.PID=a) " );
+        assertTerm( new String[]
+            { ConfigurationAdmin.SERVICE_BUNDLELOCATION, "file:/x=y" }, "(service.bundleLocation=file:/x=y)" );
+
+        // the most selective term of a conjunction is used
+        assertTerm( new String[]
+            { ConfigurationAdmin.SERVICE_FACTORYPID, "fac" },
+            "(&(service.bundleLocation=loc)(|(a=b)(c=d))(service.factoryPid=fac))" );
+        assertTerm( new String[]
+            { Constants.SERVICE_PID, "a" }, "(&(service.factoryPid=fac)(service.pid=a))" );
+    }
+
+
+    private static Dictionary config( String pid, String factoryPid, String location )
+    {
+        Hashtable props = new Hashtable();
+        props.put( Constants.SERVICE_PID, pid );
+        if ( factoryPid != null )
+        {
+            props.put( ConfigurationAdmin.SERVICE_FACTORYPID, factoryPid );
+        }
+        props.put( ConfigurationAdmin.SERVICE_BUNDLELOCATION, location );
+        props.put( "values", new String[]
+            { pid } );
+        return props;
+    }
+
+
+    private static List list( Enumeration configs )
+    {
+        List result = new ArrayList();
+        while ( configs.hasMoreElements() )
+        {
+            result.add( ( ( Dictionary ) configs.nextElement() ).get( Constants.SERVICE_PID ) );
+        }
+        Collections.sort( result );
+        return result;
+    }
+
+
+    private static void assertPids( String[] expected, Enumeration configs )
+    {
+        List pids = new ArrayList();
+        for ( int i = 0; i < expected.length; i++ )
+        {
+            pids.add( expected[i] );
+        }
+        assertEquals( pids, list( configs ) );
+    }
+
+
+    private static void assertTerm( String[] expected, String filter )
+    {
+        String[] term = CachingPersistenceManagerProxy.getIndexedTerm( filter );
+        if ( expected == null )
+        {
+            assertNull( filter, term );
+        }
+        else
+        {
+            assertNotNull( filter, term );
+            assertEquals( filter, expected[0], term[0] );
+            assertEquals( filter, expected[1], term[1] );
+        }
+    }
+
+    private static class CountingPersistenceManager extends MockPersistenceManager
+    {
+        int loads;
+
+        int enumerations;
+
+
+        public Dictionary load( String pid ) throws IOException
+        {
+            loads++;
+            return super.load( pid );
+        }
+
+
+        public Enumeration getDictionaries()
+        {
+            enumerations++;
+            return super.getDictionaries();
+        }
+    }
+}
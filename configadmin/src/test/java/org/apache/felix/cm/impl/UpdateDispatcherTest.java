@@ -0,0 +1,316 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.cm.impl;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+
+public class UpdateDispatcherTest extends TestCase
+{
+
+    private UpdateDispatcher dispatcher;
+
+    // the names of the tasks in the order they have been run
+    private List runs;
+
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        dispatcher = new UpdateDispatcher( new MockConfigurationManager(), 4 );
+        runs = Collections.synchronizedList( new ArrayList() );
+    }
+
+
+    protected void tearDown() throws Exception
+    {
+        dispatcher.terminate();
+        dispatcher.join();
+
+        super.tearDown();
+    }
+
+
+    public void testOrderPerKey() throws InterruptedException
+    {
+        for ( int i = 0; i < 20; i++ )
+        {
+            dispatcher.schedule( "a", new RecordingTask( "a" + i, 0 ) );
+            dispatcher.schedule( "b", new RecordingTask( "b" + i, 0 ) );
+        }
+        awaitBarrier();
+
+        List a = new ArrayList();
+        List b = new ArrayList();
+        for ( int i = 0; i < runs.size(); i++ )
+        {
+            String name = ( String ) runs.get( i );
+            ( name.startsWith( "a" ) ? a : b ).add( name );
+        }
+        for ( int i = 0; i < 20; i++ )
+        {
+            assertEquals( "a" + i, a.get( i ) );
+            assertEquals( "b" + i, b.get( i ) );
+        }
+        assertEquals( 41, dispatcher.getCompletedCount() );
+        assertEquals( 0, dispatcher.getPendingCount() );
+    }
+
+
+    public void testBlockedKeyDoesNotDelayOthers() throws InterruptedException
+    {
+        final Object lock = new Object();
+        final boolean[] released = new boolean[1];
+        dispatcher.schedule( "blocked", new RecordingTask( "blocked", 0 )
+        {
+            public void run()
+            {
+                synchronized ( lock )
+                {
+                    while ( !released[0] )
+                    {
+                        try
+                        {
+                            lock.wait();
+                        }
+                        catch ( InterruptedException ie )
+                        {
+                            return;
+                        }
+                    }
+                }
+                super.run();
+            }
+        } );
+        dispatcher.schedule( "blocked", new RecordingTask( "blocked2", 0 ) );
+        dispatcher.schedule( "other", new RecordingTask( "other", 0 ) );
+
+        long end = System.currentTimeMillis() + 5000;
+        while ( !runs.contains( "other" ) && System.currentTimeMillis() < end )
+        {
+            Thread.sleep( 10 );
+        }
+        assertEquals( Collections.singletonList( "other" ), new ArrayList( runs ) );
+
+        synchronized ( lock )
+        {
+            released[0] = true;
+            lock.notifyAll();
+        }
+        awaitBarrier();
+
+        assertEquals( 4, runs.size() );
+        assertTrue( runs.indexOf( "blocked" ) < runs.indexOf( "blocked2" ) );
+    }
+
+
+    public void testSupersede() throws InterruptedException
+    {
+        // block the key such that the later tasks are pending
+        dispatcher.schedule( "a", new RecordingTask( "first", 100 ) );
+        dispatcher.schedule( "a", new SupersedableTask( "a1" ) );
+        dispatcher.schedule( "a", new SupersedableTask( "a2" ) );
+        dispatcher.schedule( "a", new SupersedableTask( "a3" ) );
+        awaitBarrier();
+
+        assertEquals( 3, runs.size() );
+        assertEquals( "first", runs.get( 0 ) );
+        assertEquals( "a3", runs.get( 1 ) );
+        assertEquals( 2, dispatcher.getSupersededCount() );
+    }
+
+
+    public void testSupersedeReadyTaskWhileAllThreadsBlocked() throws InterruptedException
+    {
+        // block all four threads such that the key of the superseded task
+        // is ready but not picked up
+        final Object lock = new Object();
+        final int[] started = new int[1];
+        final boolean[] released = new boolean[1];
+        for ( int i = 0; i < 4; i++ )
+        {
+            dispatcher.schedule( "blocked" + i, new RecordingTask( "blocked" + i, 0 )
+            {
+                public void run()
+                {
+                    synchronized ( lock )
+                    {
+                        started[0]++;
+                        lock.notifyAll();
+                        while ( !released[0] )
+                        {
+                            try
+                            {
+                                lock.wait();
+                            }
+                            catch ( InterruptedException ie )
+                            {
+                                return;
+                            }
+                        }
+                    }
+                    super.run();
+                }
+            } );
+        }
+        synchronized ( lock )
+        {
+            long end = System.currentTimeMillis() + 5000;
+            while ( started[0] < 4 && System.currentTimeMillis() < end )
+            {
+                lock.wait( 100 );
+            }
+            assertEquals( 4, started[0] );
+        }
+
+        dispatcher.schedule( "a", new SupersedableTask( "a1", 0 ) );
+        dispatcher.schedule( "a", new SupersedableTask( "a2", 50 ) );
+        dispatcher.schedule( "a", new RecordingTask( "a3", 0 ) );
+
+        synchronized ( lock )
+        {
+            released[0] = true;
+            lock.notifyAll();
+        }
+        awaitBarrier();
+
+        assertEquals( 7, runs.size() );
+        assertFalse( runs.contains( "a1" ) );
+        assertTrue( runs.indexOf( "a2" ) < runs.indexOf( "a3" ) );
+        assertEquals( 1, dispatcher.getSupersededCount() );
+        assertEquals( 0, dispatcher.getPendingCount() );
+    }
+
+
+    public void testBarrierWaitsForAllKeys() throws InterruptedException
+    {
+        dispatcher.schedule( "a", new RecordingTask( "a", 100 ) );
+        dispatcher.schedule( "b", new RecordingTask( "b", 50 ) );
+        dispatcher.schedule( "c", new RecordingTask( "c", 0 ) );
+        awaitBarrier();
+
+        assertEquals( 4, runs.size() );
+        assertEquals( "barrier", runs.get( 3 ) );
+    }
+
+
+    public void testTerminate() throws InterruptedException
+    {
+        dispatcher.schedule( "a", new RecordingTask( "a", 50 ) );
+        dispatcher.terminate();
+        dispatcher.join();
+
+        dispatcher.schedule( "a", new RecordingTask( "late", 0 ) );
+        assertEquals( Collections.singletonList( "a" ), new ArrayList( runs ) );
+    }
+
+
+    // schedules a barrier task and waits for it to have run
+    private void awaitBarrier() throws InterruptedException
+    {
+        final Object lock = new Object();
+        final boolean[] done = new boolean[1];
+        dispatcher.schedule( new RecordingTask( "barrier", 0 )
+        {
+            public void run()
+            {
+                super.run();
+                synchronized ( lock )
+                {
+                    done[0] = true;
+                    lock.notifyAll();
+                }
+            }
+        } );
+
+        synchronized ( lock )
+        {
+            long end = System.currentTimeMillis() + 5000;
+            while ( !done[0] && System.currentTimeMillis() < end )
+            {
+                lock.wait( 100 );
+            }
+        }
+        assertTrue( "Barrier has not been run", done[0] );
+    }
+
+    private class RecordingTask implements Runnable
+    {
+        private final String name;
+
+        private final long sleep;
+
+
+        RecordingTask( String name, long sleep )
+        {
+            this.name = name;
+            this.sleep = sleep;
+        }
+
+
+        public void run()
+        {
+            if ( sleep > 0 )
+            {
+                try
+                {
+                    Thread.sleep( sleep );
+                }
+                catch ( InterruptedException ie )
+                {
+                    // don't care
+                }
+            }
+            runs.add( name );
+        }
+
+
+        public String toString()
+        {
+            return name;
+        }
+    }
+
+    private class SupersedableTask extends RecordingTask implements UpdateDispatcher.Supersedable
+    {
+
+        SupersedableTask( String name )
+        {
+            this( name, 0 );
+        }
+
+
+        SupersedableTask( String name, long sleep )
+        {
+            super( name, sleep );
+        }
+
+
+        public boolean supersede( Runnable newer )
+        {
+            return newer instanceof SupersedableTask;
+        }
+    }
+}
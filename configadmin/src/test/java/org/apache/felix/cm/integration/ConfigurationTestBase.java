@@ -179,11 +179,12 @@ public abstract class ConfigurationTestBase
                 caf.setAccessible( true );
                 Object cm = caf.get( ca );
 
-                Field cmf = cm.getClass().getDeclaredField( "updateThread" );
+                Field cmf = cm.getClass().getDeclaredField( "updateDispatcher" );
                 cmf.setAccessible( true );
                 Object ut = cmf.get( cm );
 
-                Method utm = ut.getClass().getDeclaredMethod( "schedule" );
+                Method utm = ut.getClass().getDeclaredMethod( "schedule", new Class[]
+                    { Runnable.class } );
                 utm.setAccessible( true );
 
                 UpdateThreadSignalTask signalTask = new UpdateThreadSignalTask();
@@ -23,17 +23,17 @@ import org.apache.felix.eventadmin.impl.adapter.FrameworkEventAdapter;
 import org.apache.felix.eventadmin.impl.adapter.LogEventAdapter;
 import org.apache.felix.eventadmin.impl.adapter.ServiceEventAdapter;
 import org.apache.felix.eventadmin.impl.dispatch.CacheThreadPool;
-import org.apache.felix.eventadmin.impl.dispatch.DelayScheduler;
 import org.apache.felix.eventadmin.impl.dispatch.Scheduler;
 import org.apache.felix.eventadmin.impl.dispatch.TaskHandler;
 import org.apache.felix.eventadmin.impl.dispatch.ThreadPool;
+import org.apache.felix.eventadmin.impl.dispatch.TimerWheelScheduler;
+import org.apache.felix.eventadmin.impl.handler.BlackList;
 import org.apache.felix.eventadmin.impl.handler.BlacklistingHandlerTasks;
 import org.apache.felix.eventadmin.impl.handler.CacheFilters;
-import org.apache.felix.eventadmin.impl.handler.CacheTopicHandlerFilters;
 import org.apache.felix.eventadmin.impl.handler.CleanBlackList;
 import org.apache.felix.eventadmin.impl.handler.Filters;
 import org.apache.felix.eventadmin.impl.handler.HandlerTasks;
-import org.apache.felix.eventadmin.impl.handler.TopicHandlerFilters;
+import org.apache.felix.eventadmin.impl.handler.TopicHandlerTrie;
 import org.apache.felix.eventadmin.impl.security.CacheTopicPermissions;
 import org.apache.felix.eventadmin.impl.security.SecureEventAdminFactory;
 import org.apache.felix.eventadmin.impl.security.TopicPermissions;
@@ -41,6 +41,7 @@ import org.apache.felix.eventadmin.impl.tasks.AsyncDeliverTasks;
 import org.apache.felix.eventadmin.impl.tasks.BlockTask;
 import org.apache.felix.eventadmin.impl.tasks.DeliverTasks;
 import org.apache.felix.eventadmin.impl.tasks.DispatchTask;
+import org.apache.felix.eventadmin.impl.tasks.ParallelAsyncDeliverTasks;
 import org.apache.felix.eventadmin.impl.tasks.SyncDeliverTasks;
 import org.apache.felix.eventadmin.impl.util.LeastRecentlyUsedCacheMap;
 import org.apache.felix.eventadmin.impl.util.LogWrapper;
@@ -108,9 +109,13 @@ public class Activator implements BundleActivator
     // The thread pool used - this is a member because we need to close it on stop
     private volatile ThreadPool m_pool;
 
-    // The asynchronous event queue - this is a member because we need to close it on
-    // stop
-    private volatile TaskHandler m_asyncQueue;
+    // The scheduler that blacklists handlers on timeout - this is a member because
+    // we need to close it on stop
+    private volatile Scheduler m_scheduler;
+
+    // The asynchronous event queues - this is a member because we need to close them
+    // on stop
+    private volatile TaskHandler[] m_asyncQueues;
 
     // The synchronous event queue - this is a member because we need to close it on
     // stop
@@ -125,6 +130,10 @@ public class Activator implements BundleActivator
     // The registration of the security decorator factory (i.e., the service)
     private volatile ServiceRegistration m_registration;
 
+    // The index of the event handlers - this is a member because we need to close
+    // it on stop
+    private volatile TopicHandlerTrie m_handlers;
+
     /**
      * Called upon starting of the bundle. Constructs and registers the EventAdmin
      * service with the framework. Note that the properties of the service are
@@ -145,10 +154,10 @@ public class Activator implements BundleActivator
         // independent of the org.osgi.service.log package)
         LogWrapper.setContext(context);
 
-        // The size of various internal caches. At the moment there are 4
+        // The size of various internal caches. At the moment there are 3
         // internal caches affected. Each will cache the determined amount of
         // small but frequently used objects (i.e., in case of the default value
-        // we end-up with a total of 120 small objects being cached). A value of less
+        // we end-up with a total of 90 small objects being cached). A value of less
         // then 10 triggers the default value.
         final int cacheSize = getIntProperty("org.apache.felix.eventadmin.CacheSize",
             context, 30, 10);
@@ -164,6 +173,15 @@ public class Activator implements BundleActivator
         final int threadPoolSize = getIntProperty(
             "org.apache.felix.eventadmin.ThreadPoolSize", context, 10, 2);
 
+        // The number of threads used to deliver asynchronous events. Each of them
+        // delivers the events of a fixed subset of the EventHandler hence, a handler
+        // receives the events in the order they have been posted while different
+        // handlers receive them in parallel. A value of less then 1 triggers the
+        // default value. A value of 1 delivers all asynchronous events one after
+        // the other.
+        final int asyncThreads = getIntProperty(
+            "org.apache.felix.eventadmin.AsyncThreads", context, 1, 1);
+
         // The timeout in milliseconds - A value of less then 100 turns timeouts off.
         // Any other value is the time in milliseconds granted to each EventHandler
         // before it gets blacklisted.
@@ -184,6 +202,9 @@ public class Activator implements BundleActivator
         LogWrapper.getLogger().log(LogWrapper.LOG_DEBUG,
             "org.apache.felix.eventadmin.ThreadPoolSize=" + threadPoolSize);
 
+        LogWrapper.getLogger().log(LogWrapper.LOG_DEBUG,
+            "org.apache.felix.eventadmin.AsyncThreads=" + asyncThreads);
+
         LogWrapper.getLogger().log(LogWrapper.LOG_DEBUG,
             "org.apache.felix.eventadmin.Timeout=" + timeout);
 
@@ -196,39 +217,49 @@ public class Activator implements BundleActivator
         final TopicPermissions subscribePermissions = new CacheTopicPermissions(
             new LeastRecentlyUsedCacheMap(cacheSize), TopicPermission.SUBSCRIBE);
 
-        final TopicHandlerFilters topicHandlerFilters =
-            new CacheTopicHandlerFilters(new LeastRecentlyUsedCacheMap(cacheSize),
-            requireTopic);
-
         final Filters filters = new CacheFilters(
             new LeastRecentlyUsedCacheMap(cacheSize), context);
 
+        final BlackList blackList = new CleanBlackList();
+
+        // The handlers object keeps track of the EventHandler services and indexes
+        // them by topic. Handlers with an invalid filter are added to the blacklist.
+        m_handlers = new TopicHandlerTrie(context, blackList, filters, requireTopic);
+
+        m_handlers.open();
+
         // The handlerTasks object is responsible to determine concerned EventHandler
         // for a given event. Additionally, it keeps a list of blacklisted handlers.
         // Note that blacklisting is deactivated by selecting a different scheduler
         // below (and not in this HandlerTasks object!)
         final HandlerTasks handlerTasks = new BlacklistingHandlerTasks(context,
-            new CleanBlackList(), topicHandlerFilters, filters,
-            subscribePermissions);
+            blackList, m_handlers, subscribePermissions);
 
         // Either we need a scheduler that will trigger EventHandler blacklisting
-        // (timeout >= 100) or a null object (timeout < 100)
-        final Scheduler scheduler = createScheduler(timeout);
+        // (timeout >= 100) or a null object (timeout < 100). The former tracks
+        // the timeouts of all handler invocations with a single watchdog thread.
+        m_scheduler = createScheduler(timeout);
 
         // Note that this uses a lazy thread pool that will create new threads on
         // demand - in case none of its cached threads is free - until threadPoolSize
         // is reached. Subsequently, a threadPoolSize of 2 effectively disables
-        // caching of threads.
-        m_pool = new CacheThreadPool(threadPoolSize);
+        // caching of threads. Each asynchronous delivery thread beyond the first
+        // one needs a pooled thread of its own.
+        m_pool = new CacheThreadPool(threadPoolSize + asyncThreads - 1);
 
-        m_asyncQueue = new TaskHandler();
+        m_asyncQueues = new TaskHandler[asyncThreads];
+
+        for (int i = 0; i < m_asyncQueues.length; i++)
+        {
+            m_asyncQueues[i] = new TaskHandler();
+        }
 
         m_syncQueue = new TaskHandler();
 
         m_admin = createEventAdmin(context,
             handlerTasks,
-            createAsyncExecuters(m_asyncQueue, m_syncQueue, scheduler, m_pool),
-            createSyncExecuters(m_syncQueue, scheduler, m_pool));
+            createAsyncExecuters(m_asyncQueues, m_syncQueue, m_scheduler, m_pool),
+            createSyncExecuters(m_syncQueue, m_scheduler, m_pool));
 
         // register the admin wrapped in a service factory (SecureEventAdminFactory)
         // that hands-out the m_admin object wrapped in a decorator that checks
@@ -259,19 +290,24 @@ public class Activator implements BundleActivator
         m_admin.stop();
 
         // This tasks will be unblocked once the queues are empty
-        final BlockTask asyncShutdownBlock = new BlockTask();
+        final BlockTask[] asyncShutdownBlocks = new BlockTask[m_asyncQueues.length];
 
         final BlockTask syncShutdownBlock = new BlockTask();
 
         // Now close the queues. Note that already added tasks will be delivered
         // The given shutdownTask will be executed once the queue is empty
-        m_asyncQueue.close(asyncShutdownBlock);
+        for (int i = 0; i < m_asyncQueues.length; i++)
+        {
+            asyncShutdownBlocks[i] = new BlockTask();
+
+            m_asyncQueues[i].close(asyncShutdownBlocks[i]);
+        }
 
         m_syncQueue.close(syncShutdownBlock);
 
         m_admin = null;
 
-        m_asyncQueue = null;
+        m_asyncQueues = null;
 
         m_syncQueue = null;
 
@@ -284,13 +320,26 @@ public class Activator implements BundleActivator
             task.handover();
         }
 
-        asyncShutdownBlock.block();
+        for (int i = 0; i < asyncShutdownBlocks.length; i++)
+        {
+            asyncShutdownBlocks[i].block();
+        }
 
         syncShutdownBlock.block();
 
+        // Release the handlers only after the queued events have been
+        // delivered to them
+        m_handlers.close();
+
+        m_handlers = null;
+
         m_pool.close();
 
         m_pool = null;
+
+        m_scheduler.close();
+
+        m_scheduler = null;
     }
 
 
@@ -311,23 +360,33 @@ public class Activator implements BundleActivator
     }
 
     /*
-     * Create an AsyncDeliverTasks object that is used to dispatch asynchronous
-     * events. Additionally, the asynchronous dispatch queue is initialized and
-     * activated (i.e., a thread is started via the given ThreadPool).
+     * Create an AsyncDeliverTasks object for each of the given queues that is used
+     * to dispatch asynchronous events. Additionally, the asynchronous dispatch
+     * queues are initialized and activated (i.e., a thread is started via the given
+     * ThreadPool for each). The handlers are distributed over the queues by a
+     * ParallelAsyncDeliverTasks object, which counts the deliveries to each handler
+     * even in case of a single queue.
      */
-    private DeliverTasks createAsyncExecuters(final TaskHandler handler,
+    private DeliverTasks createAsyncExecuters(final TaskHandler[] handlers,
         final TaskHandler handoverHandler, final Scheduler scheduler,
         final ThreadPool pool)
     {
-        // init the queue
-        final AsyncDeliverTasks result = new AsyncDeliverTasks(handler,
-            handoverHandler, pool);
+        final DeliverTasks[] lanes = new DeliverTasks[handlers.length];
 
-        // set-up the queue for asynchronous event delivery and activate it
-        // (i.e., a thread is started via the pool)
-        result.execute(new DispatchTask(handler, scheduler, result));
+        for (int i = 0; i < handlers.length; i++)
+        {
+            // init the queue
+            final AsyncDeliverTasks lane = new AsyncDeliverTasks(handlers[i],
+                handoverHandler, pool);
 
-        return result;
+            // set-up the queue for asynchronous event delivery and activate it
+            // (i.e., a thread is started via the pool)
+            lane.execute(new DispatchTask(handlers[i], scheduler, lane));
+
+            lanes[i] = lane;
+        }
+
+        return new ParallelAsyncDeliverTasks(lanes);
     }
 
     /*
@@ -349,7 +408,7 @@ public class Activator implements BundleActivator
     }
 
     /*
-     * Returns either a new DelayScheduler with a delay of timeout or the
+     * Returns either a new TimerWheelScheduler with a delay of timeout or the
      * Scheduler.NULL_SCHEDULER in case timeout is < 100 in which case timeout and
      * subsequently black-listing is disabled.
      */
@@ -360,7 +419,7 @@ public class Activator implements BundleActivator
             return Scheduler.NULL_SCHEDULER;
         }
 
-        return new DelayScheduler(timeout);
+        return new TimerWheelScheduler(timeout);
     }
 
     /*
@@ -0,0 +1,97 @@
+/* 
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.dispatch;
+
+/**
+ * A deadline that can be scheduled with a <tt>Scheduler</tt> and runs its task
+ * once it expires unless it is canceled before. A deadline is meant to be reused
+ * for consecutive timeouts (e.g., one per handler invocation) hence, scheduling
+ * and canceling it does not create any objects. It can be scheduled at most once
+ * at a time.
+ *
+ * @see org.apache.felix.eventadmin.impl.dispatch.Scheduler
+ *
+ * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
+ */
+public class Deadline
+{
+    // The deadline is neither scheduled nor expired
+    static final int IDLE = 0;
+
+    // The deadline is scheduled and has not expired yet
+    static final int SCHEDULED = 1;
+
+    // The deadline expired and its task is about to run or running
+    static final int EXPIRED = 2;
+
+    // The task to run once the deadline expires
+    private final Runnable m_task;
+
+    // The state of the deadline - only changed by the scheduler with its lock held
+    volatile int m_state = IDLE;
+
+    // The time in milliseconds at which the deadline expires
+    long m_expires;
+
+    // The slot of the scheduler the deadline is linked to
+    int m_slot;
+
+    // The previous deadline in the same slot of the scheduler
+    Deadline m_prev;
+
+    // The next deadline in the same slot of the scheduler
+    Deadline m_next;
+
+    /**
+     * The constructor of the deadline.
+     *
+     * @param task The task to run once the deadline expires
+     */
+    public Deadline(final Runnable task)
+    {
+        if(null == task)
+        {
+            throw new NullPointerException("Task may not be null");
+        }
+
+        m_task = task;
+    }
+
+    /**
+     * Did the deadline expire since it has been scheduled the last time? This is
+     * <tt>false</tt> again once the deadline is canceled or scheduled anew. Hence,
+     * the task can use this method while holding the lock it schedules and cancels
+     * the deadline with in order to ignore timeouts that raced with a cancel.
+     *
+     * @return <tt>true</tt> in case the deadline expired and neither has been
+     *      canceled nor scheduled since, <tt>false</tt> otherwise.
+     */
+    public boolean isExpired()
+    {
+        return EXPIRED == m_state;
+    }
+
+    /*
+     * The task to run once the deadline expires.
+     */
+    Runnable getTask()
+    {
+        return m_task;
+    }
+}
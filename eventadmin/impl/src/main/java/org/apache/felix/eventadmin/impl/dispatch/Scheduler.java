@@ -19,60 +19,94 @@
 package org.apache.felix.eventadmin.impl.dispatch;
 
 /**
- * A simple scheduler that accepts a task and schedules its for execution at 
- * its own discretion (i.e., the behavior of the actual implementor). The only 
- * possible hint is a nice value that should be subtracted from any fixed scheduling 
- * interval. Additionally, a null object is provided that can be used to disable 
- * scheduled execution. 
- *  
+ * A scheduler that tracks deadlines and runs the task of a deadline once it expires
+ * unless the deadline is canceled before. The delay of a deadline is determined by
+ * the actual implementor. The only possible hint is a nice value that should be
+ * subtracted from any fixed delay. Additionally, a null object is provided that
+ * can be used to disable scheduled execution.
+ *
+ * @see org.apache.felix.eventadmin.impl.dispatch.Deadline
+ *
  * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
  */
 public interface Scheduler
 {
     /**
-     * This is a null object that can be used in case no scheduling is needed. In 
-     * other words tasks given to this scheduler are never executed.
+     * This is a null object that can be used in case no scheduling is needed. In
+     * other words deadlines given to this scheduler never expire.
      */
     public final Scheduler NULL_SCHEDULER = new Scheduler(){
         /**
          * This is a null object hence, this method does nothing.
-         * 
-         * @param task A task that will never be run.
+         *
+         * @param deadline A deadline that will never expire.
          */
-        public void schedule(final Runnable task)
+        public void schedule(final Deadline deadline)
         {
             // This is a null object hence we don't do nothing.
         }
-        
+
         /**
          * This is a null object hence, this method does nothing.
-         * 
-         * @param task A task that will never be run.
+         *
+         * @param deadline A deadline that will never expire.
          * @param nice A nice value that will never be used.
          */
-        public void schedule(final Runnable task, final int nice)
+        public void schedule(final Deadline deadline, final int nice)
+        {
+            // This is a null object hence we don't do nothing.
+        }
+
+        /**
+         * This is a null object hence, this method does nothing.
+         *
+         * @param deadline A deadline that is not scheduled.
+         */
+        public void cancel(final Deadline deadline)
+        {
+            // This is a null object hence we don't do nothing.
+        }
+
+        /**
+         * This is a null object hence, this method does nothing.
+         */
+        public void close()
         {
             // This is a null object hence we don't do nothing.
         }
     };
-    
+
+    /**
+     * Schedule the given deadline based on the behavior of the actual implementor
+     * of this interface. Note that this may mean that the deadline never expires.
+     * A deadline that is already scheduled is rescheduled.
+     *
+     * @param deadline The deadline to schedule.
+     */
+    public void schedule(final Deadline deadline);
+
+    /**
+     * Schedule the given deadline based on the behavior of the actual implementor
+     * of this interface. Note that this may mean that the deadline never expires.
+     * The nice value should be subtracted from any fixed delay. A deadline that is
+     * already scheduled is rescheduled.
+     *
+     * @param deadline The deadline to schedule.
+     * @param nice A value to subtract from any fixed delay.
+     */
+    public void schedule(final Deadline deadline, final int nice);
+
     /**
-     * Schedule the given task for execution at a later time based on the behavior
-     * of the actual implementor of this interface. Note that this may mean that
-     * the task is never executed.
-     * 
-     * @param task The task to schedule for execution.
+     * Cancel the given deadline in case it is scheduled or expired but its task
+     * did not notice yet (see <tt>Deadline.isExpired()</tt>).
+     *
+     * @param deadline The deadline to cancel.
      */
-    public void schedule(final Runnable task);
-    
+    public void cancel(final Deadline deadline);
+
     /**
-     * Schedule the given task for execution at a later time based on the behavior
-     * of the actual implementor of this interface. Note that this may mean that
-     * the task is never executed. The nice value should be subtracted from any fixed 
-     * scheduling interval.
-     * 
-     * @param task The task to schedule for execution.
-     * @param nice A value to subtract from any fixed scheduling interval.
+     * Close the scheduler and release its resources. Deadlines that are still
+     * scheduled will not expire anymore.
      */
-    public void schedule(final Runnable task, final int nice);
+    public void close();
 }
@@ -0,0 +1,372 @@
+/* 
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.dispatch;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.felix.eventadmin.impl.util.LogWrapper;
+
+/**
+ * A scheduler that expires deadlines after a fixed delay minus possible nice
+ * values. The deadlines are kept in a hashed timer wheel, i.e., an array of slots
+ * where each slot holds a doubly linked list of the deadlines that expire within
+ * the same tick. Hence, scheduling and canceling a deadline is a constant time
+ * operation that only links or unlinks it and does not create any objects - which
+ * matters since a deadline is scheduled and canceled for each handler invocation.
+ * <p><tt>
+ * A single daemon thread advances the wheel one tick at a time and runs the tasks
+ * of the expired deadlines. The thread waits without ticking while no deadline is
+ * scheduled and goes away once the scheduler is closed. The length of a tick is a
+ * fraction of the delay so deadlines expire at most one tick late, and the wheel
+ * has enough slots that a deadline never has to stay for more than one turn.
+ * </tt></p>
+ * @see org.apache.felix.eventadmin.impl.dispatch.Scheduler
+ * @see org.apache.felix.eventadmin.impl.dispatch.Deadline
+ *
+ * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
+ */
+public class TimerWheelScheduler implements Scheduler
+{
+    // The shortest tick in milliseconds
+    private static final int MIN_TICK = 10;
+
+    // The number of ticks a delay is divided into
+    private static final int TICKS_PER_DELAY = 32;
+
+    // The internal lock for this object used instead synchronized(this)
+    private final Object m_lock = new Object();
+
+    // The delay in milliseconds before a deadline expires
+    private final int m_delay;
+
+    // The length of a tick in milliseconds
+    private final int m_tick;
+
+    // The slots of the wheel each holding the first deadline of its list
+    private final Deadline[] m_wheel;
+
+    // The mask to get the slot of a tick (the number of slots is a power of two)
+    private final int m_mask;
+
+    // The tick whose slot is processed next
+    private long m_current;
+
+    // The number of scheduled deadlines
+    private int m_count = 0;
+
+    // Is the watchdog waiting for a deadline to be scheduled?
+    private boolean m_idle = false;
+
+    // Are we closed?
+    private boolean m_closed = false;
+
+    /**
+     * The constructor of the scheduler. The scheduler will use the given delay to
+     * expire deadlines accordingly. This starts the watchdog thread of the
+     * scheduler that runs until the scheduler is closed.
+     *
+     * @param delay The delay in milliseconds before a deadline expires
+     */
+    public TimerWheelScheduler(final int delay)
+    {
+        m_delay = delay;
+
+        m_tick = Math.max(MIN_TICK, delay / TICKS_PER_DELAY);
+
+        // one turn of the wheel must cover the delay plus the tick being processed
+        int slots = 1;
+
+        while (slots < (delay / m_tick) + 2)
+        {
+            slots <<= 1;
+        }
+
+        m_wheel = new Deadline[slots];
+
+        m_mask = slots - 1;
+
+        m_current = System.currentTimeMillis() / m_tick;
+
+        new Watchdog();
+    }
+
+    /**
+     * Schedule the deadline to expire after the delay.
+     *
+     * @param deadline The deadline to schedule.
+     *
+     * @see org.apache.felix.eventadmin.impl.dispatch.Scheduler#schedule(Deadline)
+     */
+    public void schedule(final Deadline deadline)
+    {
+        schedule(deadline, 0);
+    }
+
+    /**
+     * Schedule the deadline to expire after the delay minus the nice.
+     *
+     * @param deadline The deadline to schedule.
+     * @param nice The time to subtract from the delay.
+     *
+     * @see org.apache.felix.eventadmin.impl.dispatch.Scheduler#schedule(Deadline, int)
+     */
+    public void schedule(final Deadline deadline, final int nice)
+    {
+        final long now = System.currentTimeMillis();
+
+        synchronized (m_lock)
+        {
+            if (Deadline.SCHEDULED == deadline.m_state)
+            {
+                unlink(deadline);
+            }
+            else if (0 == m_count)
+            {
+                // The wheel is empty hence, it may skip the ticks it didn't process
+                // while the watchdog was waiting
+                m_current = now / m_tick;
+            }
+
+            deadline.m_expires = now + m_delay - nice;
+
+            link(deadline, Math.max(m_current, deadline.m_expires / m_tick));
+
+            if (m_idle)
+            {
+                m_idle = false;
+
+                m_lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Cancel the deadline in case it is scheduled or expired.
+     *
+     * @param deadline The deadline to cancel.
+     *
+     * @see org.apache.felix.eventadmin.impl.dispatch.Scheduler#cancel(Deadline)
+     */
+    public void cancel(final Deadline deadline)
+    {
+        synchronized (m_lock)
+        {
+            if (Deadline.SCHEDULED == deadline.m_state)
+            {
+                unlink(deadline);
+            }
+
+            deadline.m_state = Deadline.IDLE;
+        }
+    }
+
+    /**
+     * Close the scheduler i.e., stop the watchdog thread. Deadlines that are still
+     * scheduled will not expire anymore.
+     *
+     * @see org.apache.felix.eventadmin.impl.dispatch.Scheduler#close()
+     */
+    public void close()
+    {
+        synchronized (m_lock)
+        {
+            m_closed = true;
+
+            m_lock.notifyAll();
+        }
+    }
+
+    /*
+     * Add the deadline to the slot of the given tick. Must be called with the lock
+     * held.
+     */
+    private void link(final Deadline deadline, final long tick)
+    {
+        final int slot = (int) (tick & m_mask);
+
+        deadline.m_slot = slot;
+
+        deadline.m_prev = null;
+
+        deadline.m_next = m_wheel[slot];
+
+        if (null != deadline.m_next)
+        {
+            deadline.m_next.m_prev = deadline;
+        }
+
+        m_wheel[slot] = deadline;
+
+        deadline.m_state = Deadline.SCHEDULED;
+
+        m_count++;
+    }
+
+    /*
+     * Remove the scheduled deadline from its slot. Must be called with the lock
+     * held.
+     */
+    private void unlink(final Deadline deadline)
+    {
+        if (null != deadline.m_prev)
+        {
+            deadline.m_prev.m_next = deadline.m_next;
+        }
+        else
+        {
+            m_wheel[deadline.m_slot] = deadline.m_next;
+        }
+
+        if (null != deadline.m_next)
+        {
+            deadline.m_next.m_prev = deadline.m_prev;
+        }
+
+        deadline.m_prev = null;
+
+        deadline.m_next = null;
+
+        m_count--;
+    }
+
+    /*
+     * Block until deadlines expire and add them to the given list. Returns false
+     * in case the scheduler is closed.
+     */
+    boolean awaitExpired(final List expired)
+    {
+        synchronized (m_lock)
+        {
+            while (!m_closed && expired.isEmpty())
+            {
+                if (0 == m_count)
+                {
+                    m_idle = true;
+
+                    waitForTick(0);
+
+                    continue;
+                }
+
+                final long now = System.currentTimeMillis();
+
+                // A tick is processed once it passed hence, no deadline expires early
+                while (m_current < now / m_tick)
+                {
+                    expire(m_current++, expired);
+                }
+
+                if (expired.isEmpty())
+                {
+                    waitForTick(((m_current + 1) * m_tick) - now);
+                }
+            }
+
+            return !m_closed;
+        }
+    }
+
+    /*
+     * Move the deadlines of the slot of the given tick that expire within the tick
+     * to the given list. Deadlines of a later turn stay in the slot. Must be called
+     * with the lock held.
+     */
+    private void expire(final long tick, final List expired)
+    {
+        Deadline deadline = m_wheel[(int) (tick & m_mask)];
+
+        while (null != deadline)
+        {
+            final Deadline next = deadline.m_next;
+
+            // a deadline that has been scheduled in the past is in the slot of
+            // the tick that was current at the time
+            if (deadline.m_expires / m_tick <= tick)
+            {
+                unlink(deadline);
+
+                deadline.m_state = Deadline.EXPIRED;
+
+                expired.add(deadline);
+            }
+
+            deadline = next;
+        }
+    }
+
+    /*
+     * Wait for the given time or until notified (0 means forever). Must be called
+     * with the lock held.
+     */
+    private void waitForTick(final long time)
+    {
+        try
+        {
+            m_lock.wait(time);
+        } catch (InterruptedException e)
+        {
+            // The watchdog is only stopped by closing the scheduler
+        }
+    }
+
+    /*
+     * The watchdog thread of the scheduler. It runs the tasks of the expired
+     * deadlines outside of the lock of the scheduler hence, tasks may schedule and
+     * cancel deadlines.
+     */
+    private class Watchdog extends Thread
+    {
+        /*
+         * This will set-up the thread as a daemon and start it too. No need to call
+         * its start method explicitly
+         */
+        Watchdog()
+        {
+            setDaemon(true);
+
+            start();
+        }
+
+        /**
+         * Run the tasks of expired deadlines until the scheduler is closed.
+         */
+        public void run()
+        {
+            final List expired = new ArrayList();
+
+            while (awaitExpired(expired))
+            {
+                for (int i = 0; i < expired.size(); i++)
+                {
+                    try
+                    {
+                        ((Deadline) expired.get(i)).getTask().run();
+                    } catch (Throwable t)
+                    {
+                        LogWrapper.getLogger().log(LogWrapper.LOG_WARNING,
+                            "Exception in timeout task", t);
+                    }
+                }
+
+                expired.clear();
+            }
+        }
+    }
+}
@@ -25,21 +25,19 @@ import org.apache.felix.eventadmin.impl.security.TopicPermissions;
 import org.apache.felix.eventadmin.impl.tasks.HandlerTask;
 import org.apache.felix.eventadmin.impl.tasks.HandlerTaskImpl;
 import org.apache.felix.eventadmin.impl.util.LogWrapper;
+import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
-import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.Filter;
 import org.osgi.framework.ServiceReference;
 import org.osgi.service.event.Event;
-import org.osgi.service.event.EventConstants;
 import org.osgi.service.event.EventHandler;
 
 /**
  * This class is an implementation of the HandlerTasks interface that does provide
- * blacklisting of event handlers. Furthermore, handlers are determined from the
- * framework on any call to <tt>createHandlerTasks()</tt> hence, there is no
- * book-keeping of <tt>EventHandler</tt> services while they come and go but a
- * query for each sent event. In order to do this, an ldap-filter is created that
- * will match applicable <tt>EventHandler</tt> references. In order to ease some of
- * the overhead pains of this approach some light caching is going on.
+ * blacklisting of event handlers. Furthermore, handlers are determined from a
+ * <tt>TopicHandlerTrie</tt> that keeps track of the <tt>EventHandler</tt> services
+ * while they come and go hence, there is no query of the framework and no
+ * ldap-filter parsing for each sent event.
  *
  * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
  */
@@ -51,13 +49,9 @@ public class BlacklistingHandlerTasks implements HandlerTasks
     // The context of the bundle used to get the actual event handler services
     private final BundleContext m_context;
 
-    // Used to create the filters that can determine applicable event handlers for
-    // a given event
-    private final TopicHandlerFilters m_topicHandlerFilters;
-
-    // Used to create the filters that are used to determine whether an applicable
-    // event handler is interested in a particular event
-    private final Filters m_filters;
+    // Used to determine the applicable event handlers and their filters for a
+    // given event
+    private final TopicHandlerTrie m_handlers;
 
     // Used to create and possibly cache topic permissions
     private final TopicPermissions m_topicPermissions;
@@ -67,28 +61,23 @@ public class BlacklistingHandlerTasks implements HandlerTasks
      *
      * @param context The context of the bundle
      * @param blackList The set to use for keeping track of blacklisted references
-     * @param topicHandlerFilters The factory for topic handler filters
-     * @param filters The factory for <tt>Filter</tt> objects
+     * @param handlers The index of the event handlers by topic
      * @param topicPermissions The factory for permission objects of type PUBLISH
      */
     public BlacklistingHandlerTasks(final BundleContext context,
-        final BlackList blackList,
-        final TopicHandlerFilters topicHandlerFilters, final Filters filters,
+        final BlackList blackList, final TopicHandlerTrie handlers,
         final TopicPermissions topicPermissions)
     {
         checkNull(context, "Context");
         checkNull(blackList, "BlackList");
-        checkNull(topicHandlerFilters, "TopicHandlerFilters");
-        checkNull(filters, "Filters");
+        checkNull(handlers, "Handlers");
         checkNull(topicPermissions, "TopicPermissions");
 
         m_context = context;
 
         m_blackList = blackList;
 
-        m_topicHandlerFilters = topicHandlerFilters;
-
-        m_filters = filters;
+        m_handlers = handlers;
 
         m_topicPermissions = topicPermissions;
     }
@@ -105,53 +94,48 @@ public class BlacklistingHandlerTasks implements HandlerTasks
      */
     public HandlerTask[] createHandlerTasks(final Event event)
     {
-        final List result = new ArrayList();
+        final TopicHandlerTrie.Registration[] registrations = m_handlers
+            .getRegistrations(event.getTopic());
 
-        ServiceReference[] handlerRefs = null;
+        final List result = new ArrayList(registrations.length);
 
-        try
-        {
-            handlerRefs = m_context.getServiceReferences(EventHandler.class
-                .getName(), m_topicHandlerFilters.createFilterForTopic(event
-                .getTopic()));
-        } catch (InvalidSyntaxException e)
-        {
-            LogWrapper.getLogger().log(LogWrapper.LOG_WARNING,
-                "Invalid EVENT_TOPIC [" + event.getTopic() + "]", e);
-        }
+        // Permissions need only be checked in case a security manager is installed
+        // as bundles have all permissions otherwise. The permission is the same for
+        // all handlers hence, it is created once.
+        final Object permission = (null == System.getSecurityManager()) ? null
+            : m_topicPermissions.createTopicPermission(event.getTopic());
 
-        if(null == handlerRefs)
-        {
-            handlerRefs = new ServiceReference[0];
-        }
+        // Handlers with the same EVENT_FILTER share the same Filter object hence,
+        // consecutive handlers with the same filter only match it once.
+        Filter lastFilter = Filters.TRUE_FILTER;
+
+        boolean lastMatch = true;
 
-        for (int i = 0; i < handlerRefs.length; i++)
+        for (int i = 0; i < registrations.length; i++)
         {
-            if (!m_blackList.contains(handlerRefs[i])
-                && handlerRefs[i].getBundle().hasPermission(
-                    m_topicPermissions.createTopicPermission(event.getTopic())))
+            final ServiceReference handlerRef = registrations[i].getReference();
+
+            // The bundle is null in case the handler has been unregistered
+            final Bundle bundle = handlerRef.getBundle();
+
+            if (null == bundle || m_blackList.contains(handlerRef)
+                || (null != permission && !bundle.hasPermission(permission)))
             {
-                try
-                {
-                    if (event.matches(m_filters.createFilter(
-                        (String) handlerRefs[i]
-                            .getProperty(EventConstants.EVENT_FILTER),
-                        Filters.TRUE_FILTER)))
-                    {
-                        result.add(new HandlerTaskImpl(handlerRefs[i],
-                            event, this));
-                    }
-                } catch (InvalidSyntaxException e)
-                {
-                    LogWrapper.getLogger().log(
-                        handlerRefs[i],
-                        LogWrapper.LOG_WARNING,
-                        "Invalid EVENT_FILTER - Blacklisting ServiceReference ["
-                            + handlerRefs[i] + " | Bundle("
-                            + handlerRefs[i].getBundle() + ")]", e);
-
-                    m_blackList.add(handlerRefs[i]);
-                }
+                continue;
+            }
+
+            final Filter filter = registrations[i].getFilter();
+
+            if (filter != lastFilter)
+            {
+                lastMatch = event.matches(filter);
+
+                lastFilter = filter;
+            }
+
+            if (lastMatch)
+            {
+                result.add(new HandlerTaskImpl(registrations[i], event, this));
             }
         }
 
@@ -160,19 +144,25 @@ public class BlacklistingHandlerTasks implements HandlerTasks
     }
 
     /**
-     * Blacklist the given service reference. This is a private method and only
-     * public due to its usage in a friend class.
+     * Blacklist the handler of the given registration. The statistics of the
+     * handler are logged along. This is a private method and only public due to
+     * its usage in a friend class.
      *
-     * @param handlerRef The service reference to blacklist
+     * @param registration The registration of the handler to blacklist
      */
-    public void blackList(final ServiceReference handlerRef)
+    public void blackList(final TopicHandlerTrie.Registration registration)
     {
+        final ServiceReference handlerRef = registration.getReference();
+
         m_blackList.add(handlerRef);
 
         LogWrapper.getLogger().log(
             LogWrapper.LOG_WARNING,
             "Blacklisting ServiceReference [" + handlerRef + " | Bundle("
-                + handlerRef.getBundle() + ")] due to timeout!");
+                + handlerRef.getBundle() + ")] due to timeout! Delivered("
+                + registration.getDeliveredCount() + ") | Pending("
+                + registration.getPendingCount() + ") | Latencies ["
+                + registration.getLatencyHistogram() + "]");
     }
 
     /**
@@ -181,46 +171,26 @@ public class BlacklistingHandlerTasks implements HandlerTasks
      * NullEventHandler object is returned otherwise. This is a private method and
      * only public due to its usage in a friend class.
      *
-     * @param handlerRef The service reference for which to get its service
+     * @param registration The registration of the handler for which to get its
+     *      service
      * @return The service of the reference or a null object if the service is
      *      unregistered
      */
-    public EventHandler getEventHandler(final ServiceReference handlerRef)
+    public EventHandler getEventHandler(
+        final TopicHandlerTrie.Registration registration)
     {
-        final Object result = (m_blackList.contains(handlerRef)) ? null
-            : m_context.getService(handlerRef);
+        final Object result = (m_blackList.contains(registration.getReference()))
+            ? null : registration.getService(m_context);
 
-        return (EventHandler) ((null != result) ? result : m_nullEventHandler);
+        return (EventHandler) ((null != result) ? result : NULL_EVENT_HANDLER);
     }
 
     /**
-     * Unget the service reference for the given event handler unless it is the
-     * NullEventHandler. This is a private method and only public due to
-     * its usage in a friend class.
-     *
-     * @param handler The event handler service to unget
-     * @param handlerRef The service reference to unget
-     */
-    public void ungetEventHandler(final EventHandler handler,
-            final ServiceReference handlerRef)
-    {
-            if(m_nullEventHandler != handler)
-            {
-                // Is the handler not unregistered or blacklisted?
-                if(!m_blackList.contains(handlerRef) && (null !=
-                    handlerRef.getBundle()))
-                {
-                    m_context.ungetService(handlerRef);
-                }
-            }
-    }
-
-    /*
      * This is a null object that is supposed to do nothing. This is used once an
      * EventHandler is requested for a service reference that is either stale
      * (i.e., unregistered) or blacklisted
      */
-    private final EventHandler m_nullEventHandler = new EventHandler()
+    public static final EventHandler NULL_EVENT_HANDLER = new EventHandler()
     {
         /**
          * This is a null object that is supposed to do nothing at this point.
@@ -0,0 +1,604 @@
+/* 
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.handler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.felix.eventadmin.impl.util.LatencyHistogram;
+import org.apache.felix.eventadmin.impl.util.LogWrapper;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+
+/**
+ * This class keeps track of the registered <tt>EventHandler</tt> services and
+ * indexes them by the topics they are interested in. The topics are kept in a
+ * trie of topic segments where each node holds the handlers registered for
+ * exactly its topic and the handlers registered for its topic followed by
+ * <tt>/*</tt>. Hence, the handlers for a given topic are determined by walking
+ * the segments of the topic without querying the framework or creating an
+ * ldap-filter. Additionally, the <tt>EVENT_FILTER</tt> of each handler is created
+ * once when the handler is registered or modified.
+ * <p>
+ * The trie is rebuilt whenever a handler comes and goes and replaced as a whole
+ * hence, lookups never have to synchronize with changes.
+ *
+ * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
+ */
+public class TopicHandlerTrie implements ServiceListener
+{
+    // The context of the bundle used to track the event handler services
+    private final BundleContext m_context;
+
+    // The blacklist to add handlers with an invalid EVENT_FILTER to
+    private final BlackList m_blackList;
+
+    // Used to create the filters of the handlers
+    private final Filters m_filters;
+
+    // Include handlers that do not provide a topic
+    private final boolean m_requireTopic;
+
+    // The registrations of the handlers by their service reference
+    private final Map m_registrations = new HashMap();
+
+    // The root of the current trie
+    private volatile Node m_root = new Node();
+
+    /**
+     * The constructor of the trie. Call <tt>open()</tt> to start tracking
+     * the event handler services.
+     *
+     * @param context The context of the bundle used to track the handlers
+     * @param blackList The set to add handlers with an invalid filter to
+     * @param filters The factory for <tt>Filter</tt> objects
+     * @param requireTopic Include handlers that do not provide a topic
+     */
+    public TopicHandlerTrie(final BundleContext context, final BlackList blackList,
+        final Filters filters, final boolean requireTopic)
+    {
+        checkNull(context, "Context");
+        checkNull(blackList, "BlackList");
+        checkNull(filters, "Filters");
+
+        m_context = context;
+
+        m_blackList = blackList;
+
+        m_filters = filters;
+
+        m_requireTopic = requireTopic;
+    }
+
+    /**
+     * Start tracking the event handler services. Handlers that are already
+     * registered are added to the trie.
+     */
+    public void open()
+    {
+        try
+        {
+            m_context.addServiceListener(this, "(" + Constants.OBJECTCLASS + "="
+                + EventHandler.class.getName() + ")");
+
+            final ServiceReference[] refs = m_context.getServiceReferences(
+                EventHandler.class.getName(), null);
+
+            synchronized (m_registrations)
+            {
+                for (int i = 0; (null != refs) && (i < refs.length); i++)
+                {
+                    register(refs[i]);
+                }
+
+                rebuild();
+            }
+        } catch (InvalidSyntaxException e)
+        {
+            // This can not happen as the filter is constant
+            LogWrapper.getLogger().log(LogWrapper.LOG_ERROR,
+                "Unable to track EventHandler services", e);
+        }
+    }
+
+    /**
+     * Stop tracking the event handler services.
+     */
+    public void close()
+    {
+        m_context.removeServiceListener(this);
+
+        synchronized (m_registrations)
+        {
+            for (Iterator iter = m_registrations.values().iterator(); iter.hasNext();)
+            {
+                ((Registration) iter.next()).release(m_context);
+            }
+
+            m_registrations.clear();
+
+            rebuild();
+        }
+    }
+
+    /**
+     * Update the trie for the event handler service that changed.
+     *
+     * @param event The service event of the event handler service
+     */
+    public void serviceChanged(final ServiceEvent event)
+    {
+        synchronized (m_registrations)
+        {
+            if (ServiceEvent.UNREGISTERING == event.getType())
+            {
+                unregister(event.getServiceReference());
+            }
+            else
+            {
+                register(event.getServiceReference());
+            }
+
+            rebuild();
+        }
+    }
+
+    /**
+     * Get the registrations of the handlers that are interested in the given
+     * topic. A handler with several topics matching the topic, e.g.,
+     * <tt>a/*</tt> and <tt>a/b/*</tt>, is only returned once.
+     *
+     * @param topic The topic of the event
+     *
+     * @return The registrations of the handlers interested in the topic
+     */
+    public Registration[] getRegistrations(final String topic)
+    {
+        final List result = new ArrayList();
+
+        // the registrations already in the result (registrations are only
+        // equal to themselves)
+        final Set added = new HashSet();
+
+        // the wildcard handlers of a node match any topic below it
+        Node node = m_root;
+        addAll(node.m_prefix, result, added);
+
+        int start = 0;
+        while (null != node)
+        {
+            final int end = topic.indexOf('/', start);
+
+            node = (Node) node.m_children.get((-1 == end) ? topic.substring(start)
+                : topic.substring(start, end));
+
+            if (null != node)
+            {
+                if (-1 == end)
+                {
+                    addAll(node.m_exact, result, added);
+                    break;
+                }
+
+                addAll(node.m_prefix, result, added);
+                start = end + 1;
+            }
+        }
+
+        return (Registration[]) result.toArray(new Registration[result.size()]);
+    }
+
+    /*
+     * Add the registrations that are not added yet to the result.
+     */
+    private static void addAll(final List registrations, final List result,
+        final Set added)
+    {
+        for (int i = 0; i < registrations.size(); i++)
+        {
+            final Object registration = registrations.get(i);
+
+            if (added.add(registration))
+            {
+                result.add(registration);
+            }
+        }
+    }
+
+    /**
+     * Get the latency histogram of the given handler.
+     *
+     * @param ref The service reference of the handler
+     *
+     * @return The latency histogram of the handler or <tt>null</tt> in case the
+     *      handler is not registered
+     */
+    public LatencyHistogram getLatencyHistogram(final ServiceReference ref)
+    {
+        synchronized (m_registrations)
+        {
+            final Registration registration = (Registration) m_registrations.get(ref);
+
+            return (null != registration) ? registration.getLatencyHistogram() : null;
+        }
+    }
+
+    /*
+     * Add or replace the registration of the given handler. Must be called
+     * with the registrations locked.
+     */
+    private void register(final ServiceReference ref)
+    {
+        final Object topics = ref.getProperty(EventConstants.EVENT_TOPIC);
+
+        String[] topicArray = null;
+
+        if (topics instanceof String)
+        {
+            topicArray = new String[]{(String) topics};
+        }
+        else if (topics instanceof String[])
+        {
+            topicArray = (String[]) topics;
+        }
+        else if (null == topics && !m_requireTopic)
+        {
+            // handlers without a topic receive all events
+            topicArray = new String[]{"*"};
+        }
+
+        Filter filter = null;
+
+        try
+        {
+            filter = m_filters.createFilter((String) ref.getProperty(
+                EventConstants.EVENT_FILTER), Filters.TRUE_FILTER);
+        } catch (InvalidSyntaxException e)
+        {
+            LogWrapper.getLogger().log(
+                ref,
+                LogWrapper.LOG_WARNING,
+                "Invalid EVENT_FILTER - Blacklisting ServiceReference ["
+                    + ref + " | Bundle(" + ref.getBundle() + ")]", e);
+
+            m_blackList.add(ref);
+        }
+
+        if ((null == topicArray) || (null == filter))
+        {
+            unregister(ref);
+        }
+        else
+        {
+            final Registration registration = (Registration) m_registrations.get(ref);
+
+            // keep the registration of a modified handler and its service object
+            // as pending deliveries may still refer to it
+            if (null != registration)
+            {
+                registration.update(filter, topicArray);
+            }
+            else
+            {
+                m_registrations.put(ref, new Registration(ref, filter, topicArray));
+            }
+        }
+    }
+
+    /*
+     * Remove the registration of the given handler and release its service
+     * object. The statistics of the handler are logged along. Must be called
+     * with the registrations locked.
+     */
+    private void unregister(final ServiceReference ref)
+    {
+        final Registration registration = (Registration) m_registrations.remove(ref);
+
+        if (null != registration)
+        {
+            registration.release(m_context);
+
+            LogWrapper.getLogger().log(ref, LogWrapper.LOG_DEBUG,
+                "EventHandler unregistered [" + ref + " | Delivered("
+                    + registration.getDeliveredCount() + ") | Pending("
+                    + registration.getPendingCount() + ") | Latencies ["
+                    + registration.getLatencyHistogram() + "]]");
+        }
+    }
+
+    /*
+     * Create a new trie from the registrations and replace the current one.
+     * Must be called with the registrations locked.
+     */
+    private void rebuild()
+    {
+        final Node root = new Node();
+
+        for (Iterator iter = m_registrations.values().iterator(); iter.hasNext();)
+        {
+            final Registration registration = (Registration) iter.next();
+
+            for (int i = 0; i < registration.m_topics.length; i++)
+            {
+                final String topic = registration.m_topics[i];
+
+                if (null == topic)
+                {
+                    continue;
+                }
+
+                final boolean prefix = topic.equals("*") || topic.endsWith("/*");
+
+                final String path = prefix ? topic.substring(0,
+                    Math.max(0, topic.length() - 2)) : topic;
+
+                Node node = root;
+
+                int start = 0;
+                while (start < path.length())
+                {
+                    int end = path.indexOf('/', start);
+
+                    if (-1 == end)
+                    {
+                        end = path.length();
+                    }
+
+                    final String segment = path.substring(start, end);
+
+                    Node child = (Node) node.m_children.get(segment);
+
+                    if (null == child)
+                    {
+                        child = new Node();
+
+                        node.m_children.put(segment, child);
+                    }
+
+                    node = child;
+                    start = end + 1;
+                }
+
+                final List list = prefix ? node.m_prefix : node.m_exact;
+
+                if (!list.contains(registration))
+                {
+                    list.add(registration);
+                }
+            }
+        }
+
+        m_root = root;
+    }
+
+    /*
+     * This is a utility method that will throw a <tt>NullPointerException</tt>
+     * in case that the given object is null. The message will be of the form name +
+     * may not be null.
+     */
+    private void checkNull(final Object object, final String name)
+    {
+        if(null == object)
+        {
+            throw new NullPointerException(name + " may not be null");
+        }
+    }
+
+    /**
+     * The registration of an event handler service, i.e., its reference, the
+     * filter created from its <tt>EVENT_FILTER</tt>, its service object, the
+     * number of asynchronous deliveries to it, and the latencies of the
+     * deliveries to it. The statistics go away together with the registration. The
+     * service object is obtained on the first delivery and held until the handler
+     * is unregistered instead of getting and ungetting it for each delivery.
+     */
+    public static final class Registration
+    {
+        // The reference of the handler
+        private final ServiceReference m_ref;
+
+        // The filter of the handler
+        private volatile Filter m_filter;
+
+        // The topics of the handler
+        private volatile String[] m_topics;
+
+        // The service object of the handler or null if not obtained yet
+        private Object m_service = null;
+
+        // Is the handler gone (i.e., must its service not be obtained anymore)?
+        private boolean m_released = false;
+
+        // The latencies of the deliveries to the handler
+        private final LatencyHistogram m_latency = new LatencyHistogram();
+
+        // The number of pending and delivered asynchronous events - this is
+        // used as a lock as well
+        private final long[] m_asyncCounts = new long[2];
+
+        /*
+         * Create a registration for the given handler.
+         */
+        Registration(final ServiceReference ref, final Filter filter,
+            final String[] topics)
+        {
+            m_ref = ref;
+
+            m_filter = filter;
+
+            m_topics = topics;
+        }
+
+        /**
+         * Get the service reference of the handler.
+         *
+         * @return The service reference of the handler
+         */
+        public ServiceReference getReference()
+        {
+            return m_ref;
+        }
+
+        /**
+         * Get the filter of the handler, which is <tt>Filters.TRUE_FILTER</tt> in
+         * case the handler does not have an <tt>EVENT_FILTER</tt>.
+         *
+         * @return The filter of the handler
+         */
+        public Filter getFilter()
+        {
+            return m_filter;
+        }
+
+        /**
+         * Get the histogram of the latencies of the deliveries to the handler.
+         *
+         * @return The latency histogram of the handler
+         */
+        public LatencyHistogram getLatencyHistogram()
+        {
+            return m_latency;
+        }
+
+        /**
+         * Get the number of asynchronous events that have been posted to the
+         * handler but not yet delivered.
+         *
+         * @return The number of pending events of the handler
+         */
+        public long getPendingCount()
+        {
+            synchronized (m_asyncCounts)
+            {
+                return m_asyncCounts[0];
+            }
+        }
+
+        /**
+         * Get the number of asynchronous events that have been delivered to
+         * the handler.
+         *
+         * @return The number of delivered events of the handler
+         */
+        public long getDeliveredCount()
+        {
+            synchronized (m_asyncCounts)
+            {
+                return m_asyncCounts[1];
+            }
+        }
+
+        /**
+         * Count an asynchronous event that has been posted to the handler. This
+         * is a private method and only public due to its usage in a friend class.
+         */
+        public void posted()
+        {
+            synchronized (m_asyncCounts)
+            {
+                m_asyncCounts[0]++;
+            }
+        }
+
+        /**
+         * Count a pending asynchronous event as delivered. This is a private
+         * method and only public due to its usage in a friend class.
+         */
+        public void delivered()
+        {
+            synchronized (m_asyncCounts)
+            {
+                m_asyncCounts[0]--;
+                m_asyncCounts[1]++;
+            }
+        }
+
+        /**
+         * Get the service object of the handler. It is obtained from the given
+         * context on the first call.
+         *
+         * @param context The context used to obtain the service object
+         *
+         * @return The service object of the handler or <tt>null</tt> in case the
+         *      handler is unregistered
+         */
+        public synchronized Object getService(final BundleContext context)
+        {
+            if (!m_released && null == m_service)
+            {
+                m_service = context.getService(m_ref);
+            }
+
+            return m_service;
+        }
+
+        /*
+         * Update the filter and topics of a modified handler.
+         */
+        void update(final Filter filter, final String[] topics)
+        {
+            m_filter = filter;
+
+            m_topics = topics;
+        }
+
+        /*
+         * Release the service object of the handler since it is gone.
+         */
+        synchronized void release(final BundleContext context)
+        {
+            if (null != m_service)
+            {
+                m_service = null;
+
+                context.ungetService(m_ref);
+            }
+
+            m_released = true;
+        }
+    }
+
+    /*
+     * A node of the trie, which corresponds to a topic made of the segments
+     * leading to it.
+     */
+    private static final class Node
+    {
+        // The child nodes by the following topic segment
+        final Map m_children = new HashMap();
+
+        // The handlers registered for the topic of this node
+        final List m_exact = new ArrayList();
+
+        // The handlers registered for the topic of this node followed by /*
+        final List m_prefix = new ArrayList();
+    }
+}
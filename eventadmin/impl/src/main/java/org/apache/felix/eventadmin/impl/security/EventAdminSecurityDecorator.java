@@ -144,7 +144,9 @@ public class EventAdminSecurityDecorator implements EventAdmin
      */
     private void checkPermission(final String topic)
     {
-        if(!m_bundle.hasPermission(m_topicPermissions.createTopicPermission(topic)))
+        // Bundles have all permissions in case no security manager is installed
+        if(null != System.getSecurityManager() &&
+            !m_bundle.hasPermission(m_topicPermissions.createTopicPermission(topic)))
         {
             throw new SecurityException("Bundle[" + m_bundle + 
                 "] has no PUBLISH permission for topic [" + topic + "]");
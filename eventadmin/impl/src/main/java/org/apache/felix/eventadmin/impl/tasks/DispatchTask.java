@@ -18,6 +18,7 @@
  */
 package org.apache.felix.eventadmin.impl.tasks;
 
+import org.apache.felix.eventadmin.impl.dispatch.Deadline;
 import org.apache.felix.eventadmin.impl.dispatch.Scheduler;
 import org.apache.felix.eventadmin.impl.dispatch.TaskProducer;
 
@@ -29,35 +30,6 @@ import org.apache.felix.eventadmin.impl.dispatch.TaskProducer;
  */
 public class DispatchTask implements Runnable
 {   
-    // A null scheduler object that does not schedule given tasks
-    private static final Scheduler NULL_SCHEDULER = new Scheduler()
-    {
-        /**
-         * This is a null object and will do nothing with the given task
-         * 
-         * @param task A task that is not used
-         * 
-         * @see org.apache.felix.eventadmin.impl.dispatch.Scheduler#schedule(java.lang.Runnable)
-         */
-        public void schedule(final Runnable task)
-        {
-            // This is a null object and will do nothing with the given task
-        }
-
-        /**
-         * This is a null object and will do nothing with the given task
-         * 
-         * @param task A task that is not used
-         * @parma nice A value that is not used
-         * 
-         * @see org.apache.felix.eventadmin.impl.dispatch.Scheduler#schedule(java.lang.Runnable, int)
-         */
-        public void schedule(final Runnable task, final int nice)
-        {
-            // This is a null object and will do nothing with the given task
-        }
-    };
-
     // A null producer object that will return null on any call to next()
     private static final TaskProducer NULL_PRODUCER = new TaskProducer()
     {
@@ -104,8 +76,16 @@ public class DispatchTask implements Runnable
     // be a null object if not needed anymore
     private HandoverTask m_handover;
 
-    // Used to blacklist on timeout
-    private BlackListTask m_blackListTask = null;
+    // The timeout of the current handler task. It is scheduled for each task and
+    // used to blacklist the handler of the task on timeout
+    private final Deadline m_deadline = new Deadline(new BlackListTask());
+
+    // The handler task that is currently executed
+    private HandlerTask m_manager = null;
+
+    // The time the current handler task has been started (minus the time it
+    // has been on hold)
+    private long m_start = 0;
 
     // Are we currently blocked (i.e., do not tick the timeout clock down)?
     private boolean m_isHolding = false;
@@ -150,9 +130,11 @@ public class DispatchTask implements Runnable
             synchronized (m_lock)
             {
                 // Set-up the timeout 
-                m_blackListTask = new BlackListTask(manager);
+                m_manager = manager;
+
+                m_start = System.currentTimeMillis();
 
-                m_scheduler.schedule(m_blackListTask);
+                m_scheduler.schedule(m_deadline);
             }
 
             // HandlerTask does catch exceptions hence, we don't need to do it.
@@ -161,7 +143,9 @@ public class DispatchTask implements Runnable
             synchronized (m_lock)
             {
                 // release the timeout 
-                m_blackListTask.cancel();
+                m_scheduler.cancel(m_deadline);
+
+                m_manager = null;
             }
         }
     }
@@ -175,7 +159,7 @@ public class DispatchTask implements Runnable
         synchronized (m_lock)
         {
             // release the timeout
-            m_blackListTask.cancel();
+            m_scheduler.cancel(m_deadline);
 
             // spin-off a new thread
             m_handover.execute(new DispatchTask(this));
@@ -192,13 +176,13 @@ public class DispatchTask implements Runnable
         synchronized (m_lock)
         {
             // release the timeout
-            m_blackListTask.cancel();
+            m_scheduler.cancel(m_deadline);
 
             m_handover = NULL_HANDOVER;
 
             m_producer = NULL_PRODUCER;
 
-            m_scheduler = NULL_SCHEDULER;
+            m_scheduler = Scheduler.NULL_SCHEDULER;
         }
     }
 
@@ -211,11 +195,10 @@ public class DispatchTask implements Runnable
         synchronized (m_lock)
         {
             // release the timeout
-            m_blackListTask.cancel();
+            m_scheduler.cancel(m_deadline);
 
             // record the time that we already used
-            int pastTime = (int) (System.currentTimeMillis() - m_blackListTask
-                .getTime());
+            int pastTime = (int) (System.currentTimeMillis() - m_start);
 
             // spin-off a new thread
             m_handover.execute(new DispatchTask(this));
@@ -234,10 +217,9 @@ public class DispatchTask implements Runnable
             }
 
             // restore the timeout
-            m_blackListTask = new BlackListTask(m_blackListTask, 
-                System.currentTimeMillis() - pastTime);
+            m_start = System.currentTimeMillis() - pastTime;
 
-            m_scheduler.schedule(m_blackListTask, pastTime);
+            m_scheduler.schedule(m_deadline, pastTime);
         }
     }
 
@@ -255,47 +237,15 @@ public class DispatchTask implements Runnable
     }
 
     /*
-     * This is the implementation of the timeout.
+     * This is the implementation of the timeout. It is run by the scheduler once
+     * the deadline of the current handler task expired.
      */
     private class BlackListTask implements Runnable
     {
-        // Are we canceled?
-        private boolean m_canceled = false;
-
-        // The time we have been started
-        private final long m_time;
-
-        // The task we will blacklist if we are triggered
-        private final HandlerTask m_manager;
-
-        BlackListTask(final HandlerTask manager)
-        {
-            this(manager, System.currentTimeMillis());
-        }
-        
-        BlackListTask(final HandlerTask manager, final long time)
-        {
-            m_manager = manager;
-            
-            m_time = time;
-        }
-
-        BlackListTask(final BlackListTask old, final long time)
-        {
-            this(old.m_manager, time);
-        }
-
-        /**
-         * @return The time we have been created.
-         */
-        public long getTime()
-        {
-            return m_time;
-        }
-
         /**
-         * We have been triggered hence, blacklist the handler except if we are 
-         * already canceled
+         * We have been triggered hence, blacklist the handler except if the
+         * deadline has been canceled or rescheduled in the meantime (i.e., the
+         * handler task finished just in time)
          * 
          * @see java.lang.Runnable#run()
          */
@@ -303,7 +253,7 @@ public class DispatchTask implements Runnable
         {
             synchronized (m_lock)
             {
-                if (!m_canceled)
+                if (m_deadline.isExpired())
                 {
                     m_manager.blackListHandler();
 
@@ -311,16 +261,5 @@ public class DispatchTask implements Runnable
                 }
             }
         }
-
-        /**
-         * Cancel the timeout
-         */
-        public void cancel()
-        {
-            synchronized (m_lock)
-            {
-                m_canceled = true;
-            }
-        }
     }
 }
@@ -19,6 +19,7 @@
 package org.apache.felix.eventadmin.impl.tasks;
 
 import org.apache.felix.eventadmin.impl.handler.BlacklistingHandlerTasks;
+import org.apache.felix.eventadmin.impl.handler.TopicHandlerTrie;
 import org.apache.felix.eventadmin.impl.util.LogWrapper;
 import org.osgi.framework.ServiceReference;
 import org.osgi.service.event.Event;
@@ -31,6 +32,9 @@ import org.osgi.service.event.EventHandler;
  */
 public class HandlerTaskImpl implements HandlerTask
 {
+    // The registration of the handler
+    private final TopicHandlerTrie.Registration m_registration;
+
     // The service reference of the handler
     private final ServiceReference m_eventHandlerRef;
 
@@ -43,21 +47,43 @@ public class HandlerTaskImpl implements HandlerTask
     /**
      * Construct a delivery task for the given service and event.
      * 
-     * @param eventHandlerRef The servicereference of the handler
+     * @param registration The registration of the handler
      * @param event The event to deliver
      * @param handlerTasks Used to blacklist the service or get the service object
      *      for the reference 
      */
-    public HandlerTaskImpl(final ServiceReference eventHandlerRef,
+    public HandlerTaskImpl(final TopicHandlerTrie.Registration registration,
         final Event event, final BlacklistingHandlerTasks handlerTasks)
     {
-        m_eventHandlerRef = eventHandlerRef;
+        m_registration = registration;
+
+        m_eventHandlerRef = registration.getReference();
 
         m_event = event;
 
         m_handlerTasks = handlerTasks;
     }
 
+    /**
+     * Get the registration of the handler the event is delivered to.
+     * 
+     * @return The registration of the handler
+     */
+    public TopicHandlerTrie.Registration getRegistration()
+    {
+        return m_registration;
+    }
+
+    /**
+     * Get the service reference of the handler the event is delivered to.
+     * 
+     * @return The service reference of the handler
+     */
+    public ServiceReference getEventHandlerRef()
+    {
+        return m_eventHandlerRef;
+    }
+
     /**
      * @see org.apache.felix.eventadmin.impl.tasks.HandlerTask#execute()
      */
@@ -65,7 +91,9 @@ public class HandlerTaskImpl implements HandlerTask
     {
         // Get the service object 
         final EventHandler handler = m_handlerTasks
-            .getEventHandler(m_eventHandlerRef);
+            .getEventHandler(m_registration);
+
+        final long start = System.currentTimeMillis();
 
         try
         {
@@ -80,8 +108,14 @@ public class HandlerTaskImpl implements HandlerTask
                     + m_eventHandlerRef + " | Bundle("
                     + m_eventHandlerRef.getBundle() + ")]", e);
         }
-        
-        m_handlerTasks.ungetEventHandler(handler, m_eventHandlerRef);
+
+        // A handler that overran its timeout is recorded once it returns while
+        // skipped deliveries to a blacklisted or stale handler are not
+        if (BlacklistingHandlerTasks.NULL_EVENT_HANDLER != handler)
+        {
+            m_registration.getLatencyHistogram().record(
+                System.currentTimeMillis() - start);
+        }
     }
 
     /**
@@ -89,6 +123,6 @@ public class HandlerTaskImpl implements HandlerTask
      */
     public void blackListHandler()
     {
-        m_handlerTasks.blackList(m_eventHandlerRef);
+        m_handlerTasks.blackList(m_registration);
     }
 }
@@ -0,0 +1,167 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.tasks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.felix.eventadmin.impl.handler.TopicHandlerTrie;
+
+/**
+ * This class distributes asynchronous event delivery over a number of lanes,
+ * each of which is an asynchronous event queue with its own dispatching thread
+ * (i.e., an <tt>AsyncDeliverTasks</tt>). The tasks of a given handler always go
+ * to the same lane hence, a handler receives the events in the order they have
+ * been posted while different handlers receive them in parallel.
+ * <p><tt>
+ * Additionally, the number of pending and delivered events is counted in the
+ * registration of each handler.
+ * </tt></p>
+ * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
+ */
+public class ParallelAsyncDeliverTasks implements DeliverTasks, DeliverTask
+{
+    // The lanes to distribute the tasks to
+    private final DeliverTasks[] m_lanes;
+
+    /**
+     * The constructor of the class that will distribute the tasks over the given
+     * lanes.
+     * 
+     * @param lanes The asynchronous event dispatchers to distribute the tasks to
+     */
+    public ParallelAsyncDeliverTasks(final DeliverTasks[] lanes)
+    {
+        if(null == lanes || 0 == lanes.length)
+        {
+            throw new IllegalArgumentException("Lanes may not be empty");
+        }
+
+        m_lanes = lanes;
+    }
+
+    /**
+     * Return a <tt>DeliverTask</tt> that can be used to execute asynchronous event
+     * dispatch.
+     * 
+     * @return A task that can be used to execute asynchronous event dispatch
+     * 
+     * @see org.apache.felix.eventadmin.impl.tasks.DeliverTasks#createTask()
+     */
+    public DeliverTask createTask()
+    {
+        return this;
+    }
+
+    /**
+     * Execute asynchronous event dispatch by appending the tasks to the lanes of
+     * their handlers while preserving their order.
+     * 
+     * @param tasks The event dispatch tasks to execute
+     * 
+     * @see org.apache.felix.eventadmin.impl.tasks.DeliverTask#execute(org.apache.felix.eventadmin.impl.tasks.HandlerTask[])
+     */
+    public void execute(final HandlerTask[] tasks)
+    {
+        final List[] laneTasks = new List[m_lanes.length];
+
+        for (int i = 0; i < tasks.length; i++)
+        {
+            final TopicHandlerTrie.Registration registration =
+                (tasks[i] instanceof HandlerTaskImpl) ?
+                ((HandlerTaskImpl) tasks[i]).getRegistration() : null;
+
+            final int lane = (null == registration) ? 0
+                : (registration.getReference().hashCode() & Integer.MAX_VALUE)
+                    % m_lanes.length;
+
+            if (null == laneTasks[lane])
+            {
+                laneTasks[lane] = new ArrayList(tasks.length);
+            }
+
+            if (null == registration)
+            {
+                laneTasks[lane].add(tasks[i]);
+            }
+            else
+            {
+                registration.posted();
+
+                laneTasks[lane].add(new CountingTask(tasks[i], registration));
+            }
+        }
+
+        for (int i = 0; i < laneTasks.length; i++)
+        {
+            if (null != laneTasks[i])
+            {
+                m_lanes[i].createTask().execute((HandlerTask[]) laneTasks[i]
+                    .toArray(new HandlerTask[laneTasks[i].size()]));
+            }
+        }
+    }
+
+    /*
+     * This task counts the delivery of the task it wraps.
+     */
+    private static class CountingTask implements HandlerTask
+    {
+        // The wrapped task
+        private final HandlerTask m_task;
+
+        // The registration of the handler of the task
+        private final TopicHandlerTrie.Registration m_registration;
+
+        CountingTask(final HandlerTask task,
+            final TopicHandlerTrie.Registration registration)
+        {
+            m_task = task;
+
+            m_registration = registration;
+        }
+
+        /**
+         * Deliver the event and count it as delivered.
+         * 
+         * @see org.apache.felix.eventadmin.impl.tasks.HandlerTask#execute()
+         */
+        public void execute()
+        {
+            try
+            {
+                m_task.execute();
+            }
+            finally
+            {
+                m_registration.delivered();
+            }
+        }
+
+        /**
+         * Blacklist the handler of the wrapped task.
+         * 
+         * @see org.apache.felix.eventadmin.impl.tasks.HandlerTask#blackListHandler()
+         */
+        public void blackListHandler()
+        {
+            m_task.blackListHandler();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/* 
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.util;
+
+/**
+ * A histogram of latencies in milliseconds. The latencies are counted in buckets
+ * of exponentially growing size, i.e., the first bucket counts latencies of less
+ * than a millisecond and bucket <tt>i</tt> counts latencies from
+ * <tt>2^(i-1)</tt> up to less than <tt>2^i</tt> milliseconds. The last bucket
+ * counts all latencies that exceed the others. Hence, recording a latency is cheap
+ * and does not create any objects while the histogram still allows to tell
+ * whether a handler is slow in general or only blocks once in a while.
+ *
+ * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
+ */
+public class LatencyHistogram
+{
+    // The number of buckets - the last one counts latencies of 2^20 ms and more
+    private static final int BUCKETS = 22;
+
+    // The counts of the buckets
+    private final long[] m_buckets = new long[BUCKETS];
+
+    // The number of recorded latencies
+    private long m_count = 0;
+
+    // The sum of the recorded latencies in milliseconds
+    private long m_total = 0;
+
+    // The highest recorded latency in milliseconds
+    private long m_max = 0;
+
+    /**
+     * Record a latency.
+     *
+     * @param latency The latency in milliseconds
+     */
+    public synchronized void record(final long latency)
+    {
+        int bucket = 0;
+
+        for (long rest = latency; (0 < rest) && (bucket < BUCKETS - 1); rest >>= 1)
+        {
+            bucket++;
+        }
+
+        m_buckets[bucket]++;
+
+        m_count++;
+
+        m_total += latency;
+
+        if (latency > m_max)
+        {
+            m_max = latency;
+        }
+    }
+
+    /**
+     * Get the number of recorded latencies.
+     *
+     * @return The number of recorded latencies
+     */
+    public synchronized long getCount()
+    {
+        return m_count;
+    }
+
+    /**
+     * Get the highest recorded latency.
+     *
+     * @return The highest recorded latency in milliseconds
+     */
+    public synchronized long getMax()
+    {
+        return m_max;
+    }
+
+    /**
+     * Get the average of the recorded latencies.
+     *
+     * @return The average of the recorded latencies in milliseconds or <tt>0</tt>
+     *      in case there are none
+     */
+    public synchronized long getMean()
+    {
+        return (0 == m_count) ? 0 : m_total / m_count;
+    }
+
+    /**
+     * Get a copy of the counts of the buckets.
+     *
+     * @return The counts of the buckets
+     */
+    public synchronized long[] getBuckets()
+    {
+        final long[] result = new long[BUCKETS];
+
+        System.arraycopy(m_buckets, 0, result, 0, BUCKETS);
+
+        return result;
+    }
+
+    /**
+     * Get an upper bound of the given percentile of the recorded latencies, i.e.,
+     * the upper bound of the bucket that contains the percentile.
+     *
+     * @param percent The percentile (e.g., 99)
+     *
+     * @return The upper bound of the percentile in milliseconds or <tt>0</tt> in
+     *      case there are no recorded latencies
+     */
+    public synchronized long getPercentile(final int percent)
+    {
+        final long rank = (m_count * percent + 99) / 100;
+
+        long seen = 0;
+
+        for (int i = 0; i < BUCKETS - 1; i++)
+        {
+            seen += m_buckets[i];
+
+            if ((0 < seen) && (seen >= rank))
+            {
+                return Math.min(1L << i, m_max);
+            }
+        }
+
+        return m_max;
+    }
+
+    /**
+     * Return a short summary of the histogram.
+     *
+     * @return A short summary of the histogram
+     */
+    public String toString()
+    {
+        return "count=" + getCount() + ", mean=" + getMean() + "ms, p50<="
+            + getPercentile(50) + "ms, p99<=" + getPercentile(99) + "ms, max="
+            + getMax() + "ms";
+    }
+}
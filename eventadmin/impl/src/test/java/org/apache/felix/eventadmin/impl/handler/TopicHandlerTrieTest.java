@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.handler;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Filter;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.event.EventConstants;
+
+public class TopicHandlerTrieTest extends TestCase
+{
+    private TopicHandlerTrie m_trie;
+
+    protected void setUp()
+    {
+        final BundleContext context = (BundleContext) EasyMock.createNiceMock(BundleContext.class);
+        final BlackList blackList = (BlackList) EasyMock.createNiceMock(BlackList.class);
+        EasyMock.replay(new Object[]{context, blackList});
+
+        m_trie = new TopicHandlerTrie(context, blackList, new Filters()
+        {
+            public Filter createFilter(final String filter, final Filter nullFilter)
+            {
+                return nullFilter;
+            }
+        }, false);
+    }
+
+    public void testExactAndPrefixTopics()
+    {
+        final ServiceReference exact = register(new String[]{"a/b"});
+        final ServiceReference prefix = register(new String[]{"a/*"});
+        final ServiceReference other = register(new String[]{"c/*"});
+
+        assertRegistrations(new ServiceReference[]{exact, prefix}, "a/b");
+        assertRegistrations(new ServiceReference[]{prefix}, "a/b/c");
+        assertRegistrations(new ServiceReference[]{prefix}, "a/c");
+        assertRegistrations(new ServiceReference[]{other}, "c/d");
+        assertRegistrations(new ServiceReference[0], "a");
+        assertRegistrations(new ServiceReference[0], "b");
+    }
+
+    public void testOverlappingPrefixTopicsDeliveredOnce()
+    {
+        final ServiceReference ref = register(new String[]{"a/*", "a/b/*"});
+
+        assertRegistrations(new ServiceReference[]{ref}, "a/b/c");
+        assertRegistrations(new ServiceReference[]{ref}, "a/c");
+    }
+
+    public void testOverlappingWildcardAndExactTopicDeliveredOnce()
+    {
+        final ServiceReference ref = register(new String[]{"*", "a/b"});
+        final ServiceReference other = register(new String[]{"a/b"});
+
+        assertRegistrations(new ServiceReference[]{ref, other}, "a/b");
+        assertRegistrations(new ServiceReference[]{ref}, "x");
+    }
+
+    public void testHandlerWithoutTopicReceivesAll()
+    {
+        final ServiceReference ref = register(null);
+
+        assertRegistrations(new ServiceReference[]{ref}, "a/b");
+        assertRegistrations(new ServiceReference[]{ref}, "x");
+    }
+
+    public void testUnregister()
+    {
+        final ServiceReference ref = register(new String[]{"a/*", "a/b"});
+
+        m_trie.serviceChanged(new ServiceEvent(ServiceEvent.UNREGISTERING, ref));
+
+        assertRegistrations(new ServiceReference[0], "a/b");
+        assertNull(m_trie.getLatencyHistogram(ref));
+    }
+
+    private ServiceReference register(final String[] topics)
+    {
+        final ServiceReference ref = (ServiceReference) EasyMock.createNiceMock(ServiceReference.class);
+        EasyMock.expect(ref.getProperty(EventConstants.EVENT_TOPIC)).andReturn(topics).anyTimes();
+        EasyMock.replay(ref);
+
+        m_trie.serviceChanged(new ServiceEvent(ServiceEvent.REGISTERED, ref));
+
+        return ref;
+    }
+
+    private void assertRegistrations(final ServiceReference[] expected, final String topic)
+    {
+        final TopicHandlerTrie.Registration[] registrations = m_trie.getRegistrations(topic);
+
+        assertEquals(topic, expected.length, registrations.length);
+
+        for (int i = 0; i < expected.length; i++)
+        {
+            boolean found = false;
+
+            for (int j = 0; j < registrations.length; j++)
+            {
+                found |= (expected[i] == registrations[j].getReference());
+            }
+
+            assertTrue(topic, found);
+        }
+    }
+}
@@ -99,7 +99,7 @@ class BundleContextImpl implements FelixBundleContext
     {
         checkValidity();
 
-        return FrameworkUtil.createFilter(expr);
+        return FilterImpl.newInstance(expr);
     }
 
     public Bundle installBundle(String location)
@@ -55,6 +55,8 @@ public class Felix extends BundleImpl implements Framework
     // MODULE FACTORY.
     private final FelixResolverState m_resolverState;
     private final FelixResolver m_felixResolver;
+    // Number of threads used to resolve independent bundles concurrently.
+    private final int m_resolverThreads;
 
     // Lock object used to determine if an individual bundle
     // lock or the global lock can be acquired.
@@ -295,6 +297,18 @@ public class Felix extends BundleImpl implements Framework
             new Resolver(m_logger,
                 (String) m_configMap.get(Constants.FRAMEWORK_EXECUTIONENVIRONMENT)),
             m_resolverState);
+        int resolverThreads = 0;
+        try
+        {
+            String s = (String) m_configMap.get(FelixConstants.RESOLVER_THREADS_PROP);
+            resolverThreads = (s == null) ? 0 : Integer.parseInt(s.trim());
+        }
+        catch (NumberFormatException ex)
+        {
+            m_logger.log(Logger.LOG_WARNING,
+                "Invalid number of resolver threads, using default.");
+        }
+        m_resolverThreads = resolverThreads;
 
         // Create the extension manager, which we will use as the module
         // definition for creating the system bundle module.
@@ -485,8 +499,21 @@ public class Felix extends BundleImpl implements Framework
                 m_activatorList = (List) m_configMutableMap.get(FelixConstants.SYSTEMBUNDLE_ACTIVATORS_PROP);
                 m_activatorList = (m_activatorList == null) ? new ArrayList() : new ArrayList(m_activatorList);
 
-                // Initialize event dispatcher.
-                m_dispatcher = EventDispatcher.start(m_logger);
+                // Initialize event dispatcher, using the configured number
+                // of dispatch threads, if any.
+                int dispatchThreads = 0;
+                try
+                {
+                    String s = (String) m_configMap.get(
+                        FelixConstants.EVENT_DISPATCH_THREADS_PROP);
+                    dispatchThreads = (s == null) ? 0 : Integer.parseInt(s.trim());
+                }
+                catch (NumberFormatException ex)
+                {
+                    m_logger.log(Logger.LOG_WARNING,
+                        "Invalid number of event dispatch threads, using default.");
+                }
+                m_dispatcher = EventDispatcher.start(m_logger, dispatchThreads);
 
                 // Create the bundle cache, if necessary, so that we can reload any
                 // installed bundles.
@@ -618,13 +645,16 @@ ex.printStackTrace();
                 // keep the max value.
                 m_nextId = Math.max(m_nextId, loadNextId());
 
-                // Create service registry.
+                // Create service registry, indexing any configured service
+                // properties in addition to the object class.
+                String indexProps = (String) m_configMap.get(
+                    FelixConstants.SERVICE_INDEX_PROPS_PROP);
                 m_registry = new ServiceRegistry(m_logger, new ServiceRegistryCallbacks() {
                     public void serviceChanged(ServiceEvent event, Dictionary oldProps)
                     {
                         fireServiceEvent(event, oldProps);
                     }
-                });
+                }, (indexProps == null) ? null : ManifestParser.parseDelimitedString(indexProps, ","));
                 m_dispatcher.setServiceRegistry(m_registry);
 
                 // The framework is now in its startup sequence.
@@ -644,7 +674,7 @@ ex.printStackTrace();
                 }
                 catch (Throwable ex)
                 {
-                    EventDispatcher.shutdown();
+                    m_dispatcher.stop();
                     m_logger.log(Logger.LOG_ERROR, "Unable to start system bundle.", ex);
                     throw new RuntimeException("Unable to start system bundle.");
                 }
@@ -907,6 +937,46 @@ ex.printStackTrace();
         return getSymbolicName() + " [" + getBundleId() +"]";
     }
 
+    /**
+     * Returns the number of class and resource requests for which the
+     * sources of the requested package were found in the lookup caches of
+     * the current modules of all installed bundles. This is intended for
+     * monitoring the class loading of the framework.
+     * @return The number of lookup cache hits.
+    **/
+    public long getLookupCacheHits()
+    {
+        return getLookupCacheStatistics()[0];
+    }
+
+    /**
+     * Returns the number of class and resource requests for which the
+     * sources of the requested package had to be determined by the current
+     * modules of all installed bundles. This is intended for monitoring the
+     * class loading of the framework.
+     * @return The number of lookup cache misses.
+    **/
+    public long getLookupCacheMisses()
+    {
+        return getLookupCacheStatistics()[1];
+    }
+
+    private long[] getLookupCacheStatistics()
+    {
+        long[] stats = new long[2];
+        Bundle[] bundles = getBundles();
+        for (int i = 0; (bundles != null) && (i < bundles.length); i++)
+        {
+            IModule module = ((BundleImpl) bundles[i]).getCurrentModule();
+            if (module instanceof ModuleImpl)
+            {
+                stats[0] += ((ModuleImpl) module).getLookupCacheHits();
+                stats[1] += ((ModuleImpl) module).getLookupCacheMisses();
+            }
+        }
+        return stats;
+    }
+
     /**
      * Returns the active start level of the framework; this method
      * implements functionality for the Start Level service.
@@ -2575,7 +2645,7 @@ ex.printStackTrace();
         throws InvalidSyntaxException
     {
         Filter oldFilter = m_dispatcher.addListener(
-            bundle, ServiceListener.class, l, (f == null) ? null : FrameworkUtil.createFilter(f));
+            bundle, ServiceListener.class, l, (f == null) ? null : FilterImpl.newInstance(f));
 
         List listenerHooks = m_registry.getListenerHooks();
         if (oldFilter != null)
@@ -2759,7 +2829,7 @@ ex.printStackTrace();
         Filter filter = null;
         if (expr != null)
         {
-            filter = FrameworkUtil.createFilter(expr);
+            filter = FilterImpl.newInstance(expr);
         }
 
         // Ask the service registry for all matching service references.
@@ -3223,20 +3293,46 @@ ex.printStackTrace();
             // Now resolve each target bundle.
             boolean result = true;
 
-            // If there are targets, then resolve each one.
-            for (int i = 0; (targets != null) && (i < targets.length); i++)
+            // If there are several targets and more than one resolver
+            // thread is configured, then resolve independent targets
+            // concurrently.
+            if ((targets != null) && (targets.length > 1) && (m_resolverThreads > 1))
             {
-                try
+                IModule[] modules = new IModule[targets.length];
+                for (int i = 0; i < targets.length; i++)
                 {
-                    resolveBundle((BundleImpl) targets[i]);
+                    modules[i] = ((BundleImpl) targets[i]).getCurrentModule();
                 }
-                catch (BundleException ex)
+                ResolveException[] errors = m_felixResolver.resolve(modules, m_resolverThreads);
+                for (int i = 0; i < errors.length; i++)
                 {
-                    result = false;
-                    m_logger.log(
-                        Logger.LOG_WARNING,
-                        "Unable to resolve bundle " + targets[i].getBundleId(),
-                        ex);
+                    if (errors[i] != null)
+                    {
+                        result = false;
+                        m_logger.log(
+                            Logger.LOG_WARNING,
+                            "Unable to resolve bundle " + targets[i].getBundleId(),
+                            createBundleException(errors[i]));
+                    }
+                }
+            }
+            else
+            {
+                // If there are targets, then resolve each one.
+                for (int i = 0; (targets != null) && (i < targets.length); i++)
+                {
+                    try
+                    {
+                        resolveBundle((BundleImpl) targets[i]);
+                    }
+                    catch (BundleException ex)
+                    {
+                        result = false;
+                        m_logger.log(
+                            Logger.LOG_WARNING,
+                            "Unable to resolve bundle " + targets[i].getBundleId(),
+                            ex);
+                    }
                 }
             }
 
@@ -3257,18 +3353,23 @@ ex.printStackTrace();
         }
         catch (ResolveException ex)
         {
-            if (ex.getModule() != null)
-            {
-                Bundle b = ((ModuleImpl) ex.getModule()).getBundle();
-                throw new BundleException(
-                    "Unresolved constraint in bundle " + b + ": "
-                    + ((ex.getRequirement() == null)
-                        ? ex.getMessage() : ex.getRequirement().toString()));
-            }
-            else
-            {
-                throw new BundleException(ex.getMessage());
-            }
+            throw createBundleException(ex);
+        }
+    }
+
+    private static BundleException createBundleException(ResolveException ex)
+    {
+        if (ex.getModule() != null)
+        {
+            Bundle b = ((ModuleImpl) ex.getModule()).getBundle();
+            return new BundleException(
+                "Unresolved constraint in bundle " + b + ": "
+                + ((ex.getRequirement() == null)
+                    ? ex.getMessage() : ex.getRequirement().toString()));
+        }
+        else
+        {
+            return new BundleException(ex.getMessage());
         }
     }
 
@@ -3810,49 +3911,7 @@ ex.printStackTrace();
                     // to import the necessary packages.
                     if (System.getSecurityManager() != null)
                     {
-                        BundleProtectionDomain pd = (BundleProtectionDomain)
-                            bundle.getProtectionDomain();
-
-/*
- TODO: SECURITY - We need to fix this import check by looking at the wire
-            associated with it, not the import since we don't know the
-            package name associated with the import since it is a filter.
-
-                    IRequirement[] imports = bundle.getInfo().getCurrentModule().getRequirements();
-                    for (int i = 0; i < imports.length; i++)
-                    {
-                        if (imports[i].getNamespace().equals(ICapability.PACKAGE_NAMESPACE))
-                        {
-                            PackagePermission perm = new PackagePermission(
-                                imports[i].???,
-                                PackagePermission.IMPORT);
-
-                            if (!pd.impliesDirect(perm))
-                            {
-                                throw new java.security.AccessControlException(
-                                    "PackagePermission.IMPORT denied for import: " +
-                                    imports[i].getName(), perm);
-                            }
-                        }
-                    }
-*/
-                        // Check export permission for all exports of the current module.
-                        ICapability[] exports = rootModule.getCapabilities();
-                        for (int i = 0; i < exports.length; i++)
-                        {
-                            if (exports[i].getNamespace().equals(ICapability.PACKAGE_NAMESPACE))
-                            {
-                                PackagePermission perm = new PackagePermission(
-                                    (String) exports[i].getProperties().get(ICapability.PACKAGE_PROPERTY), PackagePermission.EXPORT);
-
-                                if (!pd.impliesDirect(perm))
-                                {
-                                    throw new java.security.AccessControlException(
-                                        "PackagePermission.EXPORT denied for export: " +
-                                        exports[i].getProperties().get(ICapability.PACKAGE_PROPERTY), perm);
-                                }
-                            }
-                        }
+                        checkExportPermissions(bundle, rootModule);
                     }
 
                     // If the root module to resolve is a fragment, then we
@@ -3877,6 +3936,144 @@ ex.printStackTrace();
             }
         }
 
+        /**
+         * Resolves the specified root modules, resolving root modules that
+         * do not depend on each other concurrently. The root modules are
+         * partitioned into independent groups and each group is resolved
+         * by one of the resolver threads, one root module after the other.
+         * The wires of each root module are committed to the resolver state
+         * as a whole once they are calculated, while the resulting bundle
+         * state changes and events happen on the calling thread afterwards,
+         * in the order of the specified root modules.
+         * @param rootModules the root modules to resolve.
+         * @param threadCount the maximum number of resolver threads to use.
+         * @return an array containing the resolve exception for each root
+         *         module that could not be resolved or <tt>null</tt>.
+        **/
+        public ResolveException[] resolve(IModule[] rootModules, int threadCount)
+        {
+            ResolveException[] errors = new ResolveException[rootModules.length];
+
+            // Acquire global lock.
+            boolean locked = acquireGlobalLock();
+            if (!locked)
+            {
+                for (int i = 0; i < rootModules.length; i++)
+                {
+                    errors[i] = new ResolveException(
+                        "Unable to acquire global lock for resolve.", rootModules[i], null);
+                }
+                return errors;
+            }
+
+            try
+            {
+                // Determine the module to actually resolve for each root
+                // module, which is the host in case of a fragment.
+                IModule[] hostModules = new IModule[rootModules.length];
+                for (int i = 0; i < rootModules.length; i++)
+                {
+                    BundleImpl bundle = (BundleImpl) rootModules[i].getBundle();
+                    if (rootModules[i].isResolved() || bundle.isExtension())
+                    {
+                        continue;
+                    }
+
+                    if (System.getSecurityManager() != null)
+                    {
+                        checkExportPermissions(bundle, rootModules[i]);
+                    }
+
+                    try
+                    {
+                        IModule newRootModule = m_resolverState.findHost(rootModules[i]);
+                        if (!Util.isFragment(newRootModule))
+                        {
+                            hostModules[i] = newRootModule;
+                        }
+                    }
+                    catch (ResolveException ex)
+                    {
+                        errors[i] = ex;
+                    }
+                }
+
+                // Resolve the independent groups of modules concurrently.
+                ResolverBatch batch = new ResolverBatch(
+                    Resolver.partitionRootModules(m_resolverState, hostModules));
+                batch.resolve(threadCount);
+
+                // Mark the bundles of all resolved modules as resolved;
+                // a module may be the host of more than one root module.
+                Set markedSet = new HashSet();
+                for (int i = 0; i < hostModules.length; i++)
+                {
+                    if ((hostModules[i] != null) && markedSet.add(hostModules[i]))
+                    {
+                        markResolvedBundles((Map) batch.m_wireMaps.get(hostModules[i]));
+                    }
+                    if ((hostModules[i] != null) && (errors[i] == null))
+                    {
+                        errors[i] = (ResolveException) batch.m_errors.get(hostModules[i]);
+                    }
+                }
+            }
+            finally
+            {
+                // Always release the global lock.
+                releaseGlobalLock();
+            }
+
+            return errors;
+        }
+
+        private void checkExportPermissions(BundleImpl bundle, IModule rootModule)
+        {
+            BundleProtectionDomain pd = (BundleProtectionDomain)
+                bundle.getProtectionDomain();
+
+/*
+ TODO: SECURITY - We need to fix this import check by looking at the wire
+    associated with it, not the import since we don't know the
+    package name associated with the import since it is a filter.
+
+            IRequirement[] imports = bundle.getInfo().getCurrentModule().getRequirements();
+            for (int i = 0; i < imports.length; i++)
+            {
+                if (imports[i].getNamespace().equals(ICapability.PACKAGE_NAMESPACE))
+                {
+                    PackagePermission perm = new PackagePermission(
+                        imports[i].???,
+                        PackagePermission.IMPORT);
+
+                    if (!pd.impliesDirect(perm))
+                    {
+                        throw new java.security.AccessControlException(
+                            "PackagePermission.IMPORT denied for import: " +
+                            imports[i].getName(), perm);
+                    }
+                }
+            }
+*/
+            // Check export permission for all exports of the current module.
+            ICapability[] exports = rootModule.getCapabilities();
+            for (int i = 0; i < exports.length; i++)
+            {
+                if (exports[i].getNamespace().equals(ICapability.PACKAGE_NAMESPACE))
+                {
+                    PackagePermission perm = new PackagePermission(
+                        (String) exports[i].getProperties().get(ICapability.PACKAGE_PROPERTY), PackagePermission.EXPORT);
+
+                    if (!pd.impliesDirect(perm))
+                    {
+                        throw new java.security.AccessControlException(
+                            "PackagePermission.EXPORT denied for export: " +
+                            exports[i].getProperties().get(ICapability.PACKAGE_PROPERTY), perm);
+                    }
+                }
+            }
+        }
+
         public IWire resolveDynamicImport(IModule importer, String pkgName) throws ResolveException
         {
             IWire candidateWire = null;
@@ -3963,51 +4160,80 @@ m_logger.log(Logger.LOG_DEBUG, "DYNAMIC WIRE: " + newWires[newWires.length - 1])
         }
 
         private void markResolvedModules(Map resolvedModuleWireMap)
+        {
+            commitResolvedModules(resolvedModuleWireMap);
+            markResolvedBundles(resolvedModuleWireMap);
+        }
+
+        private void commitResolvedModules(Map resolvedModuleWireMap)
         {
             if (resolvedModuleWireMap != null)
             {
-                Iterator iter = resolvedModuleWireMap.entrySet().iterator();
-                // Iterate over the map to mark the modules as resolved and
-                // update our resolver data structures.
-                List wireList = new ArrayList();
-                while (iter.hasNext())
+                // Synchronize on the resolver state, so that concurrent
+                // resolves see either all or none of the modules as resolved.
+                synchronized (m_resolverState)
                 {
-                    wireList.clear();
+                    Iterator iter = resolvedModuleWireMap.entrySet().iterator();
+                    // Iterate over the map to mark the modules as resolved and
+                    // update our resolver data structures.
+                    List wireList = new ArrayList();
+                    while (iter.hasNext())
+                    {
+                        wireList.clear();
 
-                    Map.Entry entry = (Map.Entry) iter.next();
-                    IModule module = (IModule) entry.getKey();
-                    IWire[] wires = (IWire[]) entry.getValue();
+                        Map.Entry entry = (Map.Entry) iter.next();
+                        IModule module = (IModule) entry.getKey();
+                        IWire[] wires = (IWire[]) entry.getValue();
 
-                    // Only add wires attribute if some exist; export
-                    // only modules may not have wires.
+                        // Only add wires attribute if some exist; export
+                        // only modules may not have wires.
 // TODO: RESOLVER - Seems stupid that we package these up as wires to tear them apart.
-                    if (wires.length > 0)
-                    {
-                        for (int wireIdx = 0; wireIdx < wires.length; wireIdx++)
+                        if (wires.length > 0)
                         {
-                            wireList.add(wires[wireIdx]);
+                            for (int wireIdx = 0; wireIdx < wires.length; wireIdx++)
+                            {
+                                wireList.add(wires[wireIdx]);
+                                m_logger.log(
+                                    Logger.LOG_DEBUG,
+                                    "WIRE: " + wires[wireIdx]);
+                            }
+                            wires = (IWire[]) wireList.toArray(new IWire[wireList.size()]);
+                            ((ModuleImpl) module).setWires(wires);
+                        }
+
+                        // Resolve all attached fragments.
+                        IModule[] fragments = ((ModuleImpl) module).getFragments();
+                        for (int i = 0; (fragments != null) && (i < fragments.length); i++)
+                        {
+                            ((ModuleImpl) fragments[i]).setResolved();
                             m_logger.log(
                                 Logger.LOG_DEBUG,
-                                "WIRE: " + wires[wireIdx]);
+                                "FRAGMENT WIRE: " + fragments[i] + " -> hosted by -> " + module);
                         }
-                        wires = (IWire[]) wireList.toArray(new IWire[wireList.size()]);
-                        ((ModuleImpl) module).setWires(wires);
+                        // Update the resolver state to show the module as resolved.
+                        ((ModuleImpl) module).setResolved();
+                        m_resolverState.moduleResolved(module);
                     }
+                }
+            }
+        }
 
-                    // Resolve all attached fragments.
+        private void markResolvedBundles(Map resolvedModuleWireMap)
+        {
+            if (resolvedModuleWireMap != null)
+            {
+                Iterator iter = resolvedModuleWireMap.keySet().iterator();
+                while (iter.hasNext())
+                {
+                    IModule module = (IModule) iter.next();
+
+                    // Update the state of the bundles of all attached
+                    // fragments to resolved.
                     IModule[] fragments = ((ModuleImpl) module).getFragments();
                     for (int i = 0; (fragments != null) && (i < fragments.length); i++)
                     {
-                        ((ModuleImpl) fragments[i]).setResolved();
-                        // Update the state of the module's bundle to resolved as well.
                         markBundleResolved(fragments[i]);
-                        m_logger.log(
-                            Logger.LOG_DEBUG,
-                            "FRAGMENT WIRE: " + fragments[i] + " -> hosted by -> " + module);
                     }
-                    // Update the resolver state to show the module as resolved.
-                    ((ModuleImpl) module).setResolved();
-                    m_resolverState.moduleResolved(module);
                     // Update the state of the module's bundle to resolved as well.
                     markBundleResolved(module);
                 }
@@ -4056,6 +4282,108 @@ m_logger.log(Logger.LOG_DEBUG, "DYNAMIC WIRE: " + newWires[newWires.length - 1])
                 releaseBundleLock(bundle);
             }
         }
+        /**
+         * Resolves independent groups of root modules using multiple threads,
+         * where each group is resolved by a single thread. Every thread uses
+         * its own resolver instance, since a resolver keeps state while it
+         * is searching for a consistent class space.
+        **/
+        private class ResolverBatch implements Runnable
+        {
+            private final List m_groups;
+            private int m_nextGroupIdx = 0;
+            // Written by the resolver threads and read after they are joined.
+            private final Map m_wireMaps = new HashMap();
+            private final Map m_errors = new HashMap();
+
+            ResolverBatch(List groups)
+            {
+                m_groups = groups;
+            }
+
+            public void resolve(int threadCount)
+            {
+                // The calling thread resolves groups as well.
+                int count = Math.min(threadCount, m_groups.size()) - 1;
+                Thread[] threads = new Thread[(count > 0) ? count : 0];
+                for (int i = 0; i < threads.length; i++)
+                {
+                    threads[i] = new Thread(this, "FelixResolver-" + (i + 1));
+                    threads[i].setDaemon(true);
+                    threads[i].start();
+                }
+
+                run();
+
+                boolean interrupted = false;
+                for (int i = 0; i < threads.length; i++)
+                {
+                    while (threads[i].isAlive())
+                    {
+                        try
+                        {
+                            threads[i].join();
+                        }
+                        catch (InterruptedException ex)
+                        {
+                            // We have to wait for the wires to be committed.
+                            interrupted = true;
+                        }
+                    }
+                }
+                if (interrupted)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            public void run()
+            {
+                Resolver resolver = new Resolver(m_logger,
+                    (String) m_configMap.get(Constants.FRAMEWORK_EXECUTIONENVIRONMENT));
+                IModule[] group;
+                while ((group = nextGroup()) != null)
+                {
+                    for (int i = 0; i < group.length; i++)
+                    {
+                        try
+                        {
+                            Map resolvedModuleWireMap =
+                                resolver.resolve(m_resolverState, group[i]);
+                            // Commit the wires before resolving the next root
+                            // module, which may depend on the modules resolved.
+                            commitResolvedModules(resolvedModuleWireMap);
+                            setResult(m_wireMaps, group[i], resolvedModuleWireMap);
+                        }
+                        catch (ResolveException ex)
+                        {
+                            setResult(m_errors, group[i], ex);
+                        }
+                        catch (RuntimeException ex)
+                        {
+                            m_logger.log(Logger.LOG_ERROR,
+                                "Unexpected error resolving " + group[i], ex);
+                            setResult(m_errors, group[i],
+                                new ResolveException(ex.toString(), group[i], null));
+                        }
+                    }
+                }
+            }
+
+            private synchronized IModule[] nextGroup()
+            {
+                return (m_nextGroupIdx < m_groups.size())
+                    ? (IModule[]) m_groups.get(m_nextGroupIdx++) : null;
+            }
+
+            private synchronized void setResult(Map map, IModule module, Object result)
+            {
+                if (result != null)
+                {
+                    map.put(module, result);
+                }
+            }
+        }
     }
 
     class SystemBundleActivator implements BundleActivator, Runnable
@@ -4114,7 +4442,7 @@ m_logger.log(Logger.LOG_DEBUG, "DYNAMIC WIRE: " + newWires[newWires.length - 1])
             }
 
             // Shutdown event dispatching queue.
-            EventDispatcher.shutdown();
+            m_dispatcher.stop();
 
             // Since there may be updated and uninstalled bundles that
             // have not been refreshed, we will take care of refreshing
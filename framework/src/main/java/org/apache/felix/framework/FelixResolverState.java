@@ -21,10 +21,13 @@ package org.apache.felix.framework;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import org.apache.felix.framework.searchpolicy.ResolveException;
 import org.apache.felix.framework.searchpolicy.Resolver;
 import org.apache.felix.framework.util.Util;
@@ -44,6 +47,10 @@ public class FelixResolverState implements Resolver.ResolverState
     private final Logger m_logger;
     // List of all modules.
     private final List m_moduleList = new ArrayList();
+    // Maps a host module to its position in installation order.
+    private final Map m_moduleOrder = new HashMap();
+    // The installation position of the next added host module.
+    private long m_nextModuleOrder = 0;
     // Map of fragment symbolic names to list of fragment modules sorted by version.
     private final Map m_fragmentMap = new HashMap();
     // Maps a package name to a list of exporting capabilities.
@@ -52,6 +59,10 @@ public class FelixResolverState implements Resolver.ResolverState
     private final Map m_resolvedPkgIndex = new HashMap();
     // Maps a module to a list of capabilities.
     private final Map m_resolvedCapMap = new HashMap();
+    // Indexes the capabilities of unresolved host modules.
+    private final CapabilityIndex m_unresolvedCapIndex = new CapabilityIndex();
+    // Indexes the capabilities in the resolved capability map.
+    private final CapabilityIndex m_resolvedCapIndex = new CapabilityIndex();
 
     public FelixResolverState(Logger logger)
     {
@@ -139,23 +150,8 @@ public class FelixResolverState implements Resolver.ResolverState
                 fragmentList.add(
                     (index < 0) ? fragmentList.size() : index, bestFragment);
 
-                // Remove host's existing exported packages from index.
-                ICapability[] caps = host.getCapabilities();
-                for (int i = 0; (caps != null) && (i < caps.length); i++)
-                {
-                    if (caps[i].getNamespace().equals(ICapability.PACKAGE_NAMESPACE))
-                    {
-                        // Get package name.
-                        String pkgName = (String)
-                            caps[i].getProperties().get(ICapability.PACKAGE_PROPERTY);
-                        // Remove from "unresolved" package map.
-                        List capList = (List) m_unresolvedPkgIndex.get(pkgName);
-                        if (capList != null)
-                        {
-                            capList.remove(caps[i]);
-                        }
-                    }
-                }
+                // Remove host's existing capabilities from the indexes.
+                unindexUnresolvedCapabilities(host);
 
                 // Check if fragment conflicts with existing metadata.
                 checkForConflicts(host, fragmentList);
@@ -182,15 +178,8 @@ public class FelixResolverState implements Resolver.ResolverState
                         "Serious error attaching fragments.", ex);
                 }
 
-                // Reindex the host's exported packages.
-                caps = host.getCapabilities();
-                for (int i = 0; (caps != null) && (i < caps.length); i++)
-                {
-                    if (caps[i].getNamespace().equals(ICapability.PACKAGE_NAMESPACE))
-                    {
-                        indexPackageCapability(m_unresolvedPkgIndex, caps[i]);
-                    }
-                }
+                // Reindex the host's capabilities.
+                indexUnresolvedCapabilities(host);
             }
         }
     }
@@ -229,23 +218,8 @@ public class FelixResolverState implements Resolver.ResolverState
                     {
                         List fragmentList = getMatchingFragments(host);
 
-                        // Remove host's existing exported packages from index.
-                        ICapability[] caps = host.getCapabilities();
-                        for (int i = 0; (caps != null) && (i < caps.length); i++)
-                        {
-                            if (caps[i].getNamespace().equals(ICapability.PACKAGE_NAMESPACE))
-                            {
-                                // Get package name.
-                                String pkgName = (String)
-                                    caps[i].getProperties().get(ICapability.PACKAGE_PROPERTY);
-                                // Remove from "unresolved" package map.
-                                List capList = (List) m_unresolvedPkgIndex.get(pkgName);
-                                if (capList != null)
-                                {
-                                    capList.remove(caps[i]);
-                                }
-                            }
-                        }
+                        // Remove host's existing capabilities from the indexes.
+                        unindexUnresolvedCapabilities(host);
 
                         // Check if fragment conflicts with existing metadata.
                         checkForConflicts(host, fragmentList);
@@ -272,15 +246,8 @@ public class FelixResolverState implements Resolver.ResolverState
                                 "Serious error attaching fragments.", ex);
                         }
 
-                        // Reindex the host's exported packages.
-                        caps = host.getCapabilities();
-                        for (int i = 0; (caps != null) && (i < caps.length); i++)
-                        {
-                            if (caps[i].getNamespace().equals(ICapability.PACKAGE_NAMESPACE))
-                            {
-                                indexPackageCapability(m_unresolvedPkgIndex, caps[i]);
-                            }
-                        }
+                        // Reindex the host's capabilities.
+                        indexUnresolvedCapabilities(host);
                     }
                 }
             }
@@ -292,32 +259,30 @@ public class FelixResolverState implements Resolver.ResolverState
         // Find the fragment's host requirement.
         IRequirement hostReq = getFragmentHostRequirement(fragment);
 
-        // Create a list of all matching hosts for this fragment.
-        List matchingHosts = new ArrayList();
-        for (int hostIdx = 0; (hostReq != null) && (hostIdx < m_moduleList.size()); hostIdx++)
+        // Create a list of all matching hosts for this fragment. Only look
+        // at unresolved hosts, since we don't support dynamic attachment of
+        // fragments, so the unresolved capability index has all candidates.
+        List matchingHosts = (hostReq == null)
+            ? new ArrayList() : getSatisfyingUnresolvedCapabilities(hostReq);
+        for (Iterator it = matchingHosts.iterator(); it.hasNext(); )
         {
-            IModule host = (IModule) m_moduleList.get(hostIdx);
-            // Only look at unresolved hosts, since we don't support
-            // dynamic attachment of fragments.
-            if (host.isResolved()
-                || ((BundleImpl) host.getBundle()).isStale()
+            IModule host = ((ICapability) it.next()).getModule();
+            if (((BundleImpl) host.getBundle()).isStale()
                 || ((BundleImpl) host.getBundle()).isRemovalPending())
             {
-                continue;
+                it.remove();
             }
+        }
 
-            // Find the host capability for the current host.
-            ICapability hostCap = Util.getSatisfyingCapability(host, hostReq);
-
-            // If there is no host capability in the current module,
-            // then just ignore it.
-            if (hostCap == null)
+        // Keep the hosts in installation order.
+        Collections.sort(matchingHosts, new Comparator() {
+            public int compare(Object o1, Object o2)
             {
-                continue;
+                long l1 = ((Long) m_moduleOrder.get(((ICapability) o1).getModule())).longValue();
+                long l2 = ((Long) m_moduleOrder.get(((ICapability) o2).getModule())).longValue();
+                return (l1 < l2) ? -1 : ((l1 == l2) ? 0 : 1);
             }
-
-            matchingHosts.add(hostCap);
-        }
+        });
 
         return matchingHosts;
     }
@@ -526,6 +491,7 @@ public class FelixResolverState implements Resolver.ResolverState
         // into the host and then second create an aggregated list of unresolved
         // capabilities to simplify later processing when resolving bundles.
         m_moduleList.add(host);
+        m_moduleOrder.put(host, new Long(m_nextModuleOrder++));
 
         //
         // First, merge applicable fragments.
@@ -565,16 +531,7 @@ public class FelixResolverState implements Resolver.ResolverState
         // Second, index module's capabilities.
         //
 
-        ICapability[] caps = host.getCapabilities();
-
-        // Add exports to unresolved package map.
-        for (int i = 0; (caps != null) && (i < caps.length); i++)
-        {
-            if (caps[i].getNamespace().equals(ICapability.PACKAGE_NAMESPACE))
-            {
-                indexPackageCapability(m_unresolvedPkgIndex, caps[i]);
-            }
-        }
+        indexUnresolvedCapabilities(host);
     }
 
     private void removeHost(IModule host)
@@ -583,8 +540,10 @@ public class FelixResolverState implements Resolver.ResolverState
         // "unresolved" package maps, remove its dependencies on fragments
         // and exporters, and remove it from the module list.
         m_moduleList.remove(host);
+        m_moduleOrder.remove(host);
 
-        // Remove exports from package maps.
+        // Remove exports from package maps and capability indexes.
+        unindexUnresolvedCapabilities(host);
         ICapability[] caps = host.getCapabilities();
         for (int i = 0; (caps != null) && (i < caps.length); i++)
         {
@@ -593,15 +552,8 @@ public class FelixResolverState implements Resolver.ResolverState
                 // Get package name.
                 String pkgName = (String)
                     caps[i].getProperties().get(ICapability.PACKAGE_PROPERTY);
-                // Remove from "unresolved" package map.
-                List capList = (List) m_unresolvedPkgIndex.get(pkgName);
-                if (capList != null)
-                {
-                    capList.remove(caps[i]);
-                }
-
                 // Remove from "resolved" package map.
-                capList = (List) m_resolvedPkgIndex.get(pkgName);
+                List capList = (List) m_resolvedPkgIndex.get(pkgName);
                 if (capList != null)
                 {
                     capList.remove(caps[i]);
@@ -610,7 +562,11 @@ public class FelixResolverState implements Resolver.ResolverState
         }
 
         // Remove the module from the "resolved" map.
-        m_resolvedCapMap.remove(host);
+        List resolvedCaps = (List) m_resolvedCapMap.remove(host);
+        for (int i = 0; (resolvedCaps != null) && (i < resolvedCaps.size()); i++)
+        {
+            m_resolvedCapIndex.remove((ICapability) resolvedCaps.get(i));
+        }
 
         // Set fragments to null, which will remove the module from all
         // of its dependent fragment modules.
@@ -750,6 +706,7 @@ public class FelixResolverState implements Resolver.ResolverState
             if (!resolvedCaps.contains(caps[i]))
             {
                 resolvedCaps.add(caps[i]);
+                m_resolvedCapIndex.add(caps[i]);
             }
 
             // If the capability is a package, then add the exporter module
@@ -802,19 +759,9 @@ public class FelixResolverState implements Resolver.ResolverState
             // decided to honor the import and discard the export.
             ICapability[] caps = module.getCapabilities();
 
-            // First remove all existing capabilities from the "unresolved" map.
-            for (int capIdx = 0; (caps != null) && (capIdx < caps.length); capIdx++)
-            {
-                if (caps[capIdx].getNamespace().equals(ICapability.PACKAGE_NAMESPACE))
-                {
-                    // Get package name.
-                    String pkgName = (String)
-                        caps[capIdx].getProperties().get(ICapability.PACKAGE_PROPERTY);
-                    // Remove the module's capability for the package.
-                    List capList = (List) m_unresolvedPkgIndex.get(pkgName);
-                    capList.remove(caps[capIdx]);
-                }
-            }
+            // First remove all existing capabilities from the "unresolved"
+            // package map and capability index.
+            unindexUnresolvedCapabilities(module);
 
             // Next create a copy of the module's capabilities so we can
             // null out any capabilities that should be ignored.
@@ -863,6 +810,7 @@ public class FelixResolverState implements Resolver.ResolverState
                     if (!resolvedCaps.contains(capsCopy[capIdx]))
                     {
                         resolvedCaps.add(capsCopy[capIdx]);
+                        m_resolvedCapIndex.add(capsCopy[capIdx]);
                     }
 
                     // If the capability is a package, then add the exporter module
@@ -918,34 +866,31 @@ public class FelixResolverState implements Resolver.ResolverState
         }
         else
         {
-            Iterator i = m_resolvedCapMap.entrySet().iterator();
-            while (i.hasNext())
+            // Only look at the indexed capabilities that can possibly
+            // satisfy the requirement.
+            List caps = m_resolvedCapIndex.getCandidates(req);
+            for (int capIdx = 0; capIdx < caps.size(); capIdx++)
             {
-                Map.Entry entry = (Map.Entry) i.next();
-                IModule module = (IModule) entry.getKey();
-                List caps = (List) entry.getValue();
-                for (int capIdx = 0; (caps != null) && (capIdx < caps.size()); capIdx++)
+                ICapability cap = (ICapability) caps.get(capIdx);
+                IModule module = cap.getModule();
+                if (req.isSatisfied(cap))
                 {
-                    ICapability cap = (ICapability) caps.get(capIdx);
-                    if (req.isSatisfied(cap))
-                    {
 // TODO: RB - Is this permission check correct.
-                        if (cap.getNamespace().equals(ICapability.PACKAGE_NAMESPACE) &&
-                            (System.getSecurityManager() != null) &&
-                            !((BundleProtectionDomain) module.getSecurityContext()).impliesDirect(
-                                new PackagePermission(
-                                    (String) cap.getProperties().get(ICapability.PACKAGE_PROPERTY),
-                                    PackagePermission.EXPORT)))
-                        {
-                            m_logger.log(Logger.LOG_DEBUG,
-                                "PackagePermission.EXPORT denied for "
-                                + cap.getProperties().get(ICapability.PACKAGE_PROPERTY)
-                                + "from " + module.getId());
-                        }
-                        else
-                        {
-                            candidates.add(cap);
-                        }
+                    if (cap.getNamespace().equals(ICapability.PACKAGE_NAMESPACE) &&
+                        (System.getSecurityManager() != null) &&
+                        !((BundleProtectionDomain) module.getSecurityContext()).impliesDirect(
+                            new PackagePermission(
+                                (String) cap.getProperties().get(ICapability.PACKAGE_PROPERTY),
+                                PackagePermission.EXPORT)))
+                    {
+                        m_logger.log(Logger.LOG_DEBUG,
+                            "PackagePermission.EXPORT denied for "
+                            + cap.getProperties().get(ICapability.PACKAGE_PROPERTY)
+                            + "from " + module.getId());
+                    }
+                    else
+                    {
+                        candidates.add(cap);
                     }
                 }
             }
@@ -974,18 +919,7 @@ public class FelixResolverState implements Resolver.ResolverState
         }
         else
         {
-            IModule[] modules = getModules();
-            for (int modIdx = 0; (modules != null) && (modIdx < modules.length); modIdx++)
-            {
-                // Get the module's export package for the target package.
-                ICapability cap = Util.getSatisfyingCapability(modules[modIdx], req);
-                // If compatible and it is not currently resolved, then add
-                // the unresolved candidate to the list.
-                if ((cap != null) && !modules[modIdx].isResolved())
-                {
-                    candidates.add(cap);
-                }
-            }
+            candidates = getSatisfyingUnresolvedCapabilities(req);
         }
 
         // Create list of compatible providers.
@@ -997,6 +931,69 @@ public class FelixResolverState implements Resolver.ResolverState
     // Utility methods.
     //
 
+    /**
+     * Returns the first capability of each unresolved module that satisfies
+     * the specified requirement, using the unresolved capability index to
+     * only look at the capabilities that can possibly satisfy it.
+     * @param req the requirement to satisfy.
+     * @return a list of satisfying capabilities.
+    **/
+    private List getSatisfyingUnresolvedCapabilities(IRequirement req)
+    {
+        List candidates = new ArrayList();
+        Set modules = new HashSet();
+        List caps = m_unresolvedCapIndex.getCandidates(req);
+        for (int capIdx = 0; capIdx < caps.size(); capIdx++)
+        {
+            ICapability cap = (ICapability) caps.get(capIdx);
+            // If compatible and it is not currently resolved, then add
+            // the unresolved candidate to the list.
+            if (!cap.getModule().isResolved()
+                && !modules.contains(cap.getModule())
+                && req.isSatisfied(cap))
+            {
+                modules.add(cap.getModule());
+                candidates.add(cap);
+            }
+        }
+        return candidates;
+    }
+
+    private void indexUnresolvedCapabilities(IModule host)
+    {
+        ICapability[] caps = host.getCapabilities();
+        for (int i = 0; (caps != null) && (i < caps.length); i++)
+        {
+            // Add exports to unresolved package map.
+            if (caps[i].getNamespace().equals(ICapability.PACKAGE_NAMESPACE))
+            {
+                indexPackageCapability(m_unresolvedPkgIndex, caps[i]);
+            }
+            m_unresolvedCapIndex.add(caps[i]);
+        }
+    }
+
+    private void unindexUnresolvedCapabilities(IModule host)
+    {
+        ICapability[] caps = host.getCapabilities();
+        for (int i = 0; (caps != null) && (i < caps.length); i++)
+        {
+            if (caps[i].getNamespace().equals(ICapability.PACKAGE_NAMESPACE))
+            {
+                // Get package name.
+                String pkgName = (String)
+                    caps[i].getProperties().get(ICapability.PACKAGE_PROPERTY);
+                // Remove from "unresolved" package map.
+                List capList = (List) m_unresolvedPkgIndex.get(pkgName);
+                if (capList != null)
+                {
+                    capList.remove(caps[i]);
+                }
+            }
+            m_unresolvedCapIndex.remove(caps[i]);
+        }
+    }
+
     private void indexPackageCapability(Map map, ICapability capability)
     {
         if (capability.getNamespace().equals(ICapability.PACKAGE_NAMESPACE))
@@ -1122,4 +1119,209 @@ public class FelixResolverState implements Resolver.ResolverState
 
         return (IModule) modules.get(0);
     }
-}
\ No newline at end of file
+
+    /**
+     * An index of capabilities by namespace and attribute value, which is
+     * used to find the capabilities that can possibly satisfy a requirement
+     * without looking at every capability. A requirement's target name or
+     * the equality comparisons required by its filter are looked up in the
+     * index for the requirement's namespace. Attribute names are lower-cased,
+     * since filters match attribute names case-insensitively. Only string
+     * values are indexed, so an attribute that has a non-string value for
+     * any capability of a namespace cannot be used for lookups in that
+     * namespace. The returned candidates still have to be checked against
+     * the requirement.
+    **/
+    static class CapabilityIndex
+    {
+        // Maps namespace to a map of module to its list of capabilities.
+        private final Map m_moduleCaps = new HashMap();
+        // Maps namespace to a map of lower-cased attribute name to a map of
+        // string value to list of capabilities.
+        private final Map m_attrIndex = new HashMap();
+        // Maps namespace to a map of lower-cased attribute name to the
+        // number of capabilities with a non-string value for it.
+        private final Map m_nonStringCounts = new HashMap();
+
+        void add(ICapability cap)
+        {
+            List caps = (List) getMap(m_moduleCaps, cap.getNamespace()).get(cap.getModule());
+            if (caps == null)
+            {
+                caps = new ArrayList();
+                getMap(m_moduleCaps, cap.getNamespace()).put(cap.getModule(), caps);
+            }
+            else if (caps.contains(cap))
+            {
+                return;
+            }
+            caps.add(cap);
+
+            Map attrIndex = getMap(m_attrIndex, cap.getNamespace());
+            Map nonStringCounts = getMap(m_nonStringCounts, cap.getNamespace());
+            Map props = cap.getProperties();
+            for (Iterator it = props.keySet().iterator(); it.hasNext(); )
+            {
+                String key = (String) it.next();
+                Object value = props.get(key);
+                if (value instanceof String)
+                {
+                    Map valueIndex = getMap(attrIndex, key.toLowerCase());
+                    List list = (List) valueIndex.get(value);
+                    if (list == null)
+                    {
+                        list = new ArrayList();
+                        valueIndex.put(value, list);
+                    }
+                    list.add(cap);
+                }
+                else if (value != null)
+                {
+                    int[] count = (int[]) nonStringCounts.get(key.toLowerCase());
+                    if (count == null)
+                    {
+                        nonStringCounts.put(key.toLowerCase(), count = new int[1]);
+                    }
+                    count[0]++;
+                }
+            }
+        }
+
+        void remove(ICapability cap)
+        {
+            Map moduleCaps = (Map) m_moduleCaps.get(cap.getNamespace());
+            List caps = (moduleCaps == null) ? null : (List) moduleCaps.get(cap.getModule());
+            if ((caps == null) || !caps.remove(cap))
+            {
+                return;
+            }
+            if (caps.isEmpty())
+            {
+                moduleCaps.remove(cap.getModule());
+            }
+
+            Map attrIndex = getMap(m_attrIndex, cap.getNamespace());
+            Map nonStringCounts = getMap(m_nonStringCounts, cap.getNamespace());
+            Map props = cap.getProperties();
+            for (Iterator it = props.keySet().iterator(); it.hasNext(); )
+            {
+                String key = (String) it.next();
+                Object value = props.get(key);
+                if (value instanceof String)
+                {
+                    Map valueIndex = getMap(attrIndex, key.toLowerCase());
+                    List list = (List) valueIndex.get(value);
+                    if (list != null)
+                    {
+                        list.remove(cap);
+                        if (list.isEmpty())
+                        {
+                            valueIndex.remove(value);
+                        }
+                    }
+                }
+                else if (value != null)
+                {
+                    int[] count = (int[]) nonStringCounts.get(key.toLowerCase());
+                    if ((count != null) && (--count[0] == 0))
+                    {
+                        nonStringCounts.remove(key.toLowerCase());
+                    }
+                }
+            }
+        }
+
+        /**
+         * Returns the indexed capabilities that can possibly satisfy the
+         * specified requirement.
+         * @param req the requirement to satisfy.
+         * @return a list of candidate capabilities.
+        **/
+        List getCandidates(IRequirement req)
+        {
+            // Determine the attribute values required by the requirement.
+            Map terms = new HashMap();
+            if (req instanceof Requirement)
+            {
+                Requirement r = (Requirement) req;
+                if (r.getTargetName() != null)
+                {
+                    terms.put(getTargetAttribute(req.getNamespace()), r.getTargetName());
+                }
+                else if (r.getAttributes() == null)
+                {
+                    getEqualityTerms(req, terms);
+                }
+            }
+            else
+            {
+                getEqualityTerms(req, terms);
+            }
+
+            // Use the smallest matching list of capabilities, if any.
+            Map attrIndex = getMap(m_attrIndex, req.getNamespace());
+            Map nonStringCounts = getMap(m_nonStringCounts, req.getNamespace());
+            List candidates = null;
+            for (Iterator it = terms.entrySet().iterator(); it.hasNext(); )
+            {
+                Map.Entry entry = (Map.Entry) it.next();
+                String key = ((String) entry.getKey()).toLowerCase();
+                if (!(entry.getValue() instanceof String)
+                    || (nonStringCounts.get(key) != null))
+                {
+                    continue;
+                }
+                Map valueIndex = (Map) attrIndex.get(key);
+                List list = (valueIndex == null) ? null : (List) valueIndex.get(entry.getValue());
+                if (list == null)
+                {
+                    return new ArrayList();
+                }
+                else if ((candidates == null) || (list.size() < candidates.size()))
+                {
+                    candidates = list;
+                }
+            }
+            if (candidates != null)
+            {
+                return new ArrayList(candidates);
+            }
+
+            // Otherwise, return all capabilities of the namespace.
+            candidates = new ArrayList();
+            Map moduleCaps = getMap(m_moduleCaps, req.getNamespace());
+            for (Iterator it = moduleCaps.values().iterator(); it.hasNext(); )
+            {
+                candidates.addAll((List) it.next());
+            }
+            return candidates;
+        }
+
+        private static String getTargetAttribute(String namespace)
+        {
+            return namespace.equals(ICapability.PACKAGE_NAMESPACE)
+                ? ICapability.PACKAGE_PROPERTY
+                : Constants.BUNDLE_SYMBOLICNAME_ATTRIBUTE;
+        }
+
+        private static void getEqualityTerms(IRequirement req, Map terms)
+        {
+            Object filter = req.getFilter();
+            if (filter instanceof FilterImpl)
+            {
+                ((FilterImpl) filter).getEqualityTerms(terms);
+            }
+        }
+
+        private static Map getMap(Map map, Object key)
+        {
+            Map value = (Map) map.get(key);
+            if (value == null)
+            {
+                value = new HashMap();
+                map.put(key, value);
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,1081 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.lang.reflect.Constructor;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.*;
+
+import org.apache.felix.framework.util.StringMap;
+import org.osgi.framework.Filter;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * This class is the framework's implementation of <tt>Filter</tt>. A filter
+ * expression is parsed once into a tree of nodes whose operands are coerced
+ * to every primitive type they may be compared against at parse time, so
+ * matching a filter does not parse strings or allocate for the common
+ * property types. Attribute names are interned and looked up directly in
+ * the case-insensitive property maps used for services; only dictionaries
+ * which are not case-insensitive fall back to scanning their keys. Parsed
+ * filters are immutable and are cached by their filter string.
+ * <p>
+ * Unlike the generic OSGi implementation, comparing a property against an
+ * operand that cannot be converted to the property's type results in
+ * <tt>false</tt> rather than a runtime exception.
+**/
+public class FilterImpl implements Filter
+{
+    // Filter operators.
+    private static final int EQUAL = 1;
+    private static final int APPROX = 2;
+    private static final int GREATER = 3;
+    private static final int LESS = 4;
+    private static final int PRESENT = 5;
+    private static final int SUBSTRING = 6;
+    private static final int AND = 7;
+    private static final int OR = 8;
+    private static final int NOT = 9;
+
+    // Maximum number of parsed filters kept in the cache.
+    private static final int CACHE_SIZE = 1024;
+    // Maps filter string to parsed filter.
+    private static final Map m_cache = new HashMap();
+
+    private static final Class[] STRING_CLASS = new Class[] { String.class };
+
+    private final int m_op;
+    // Interned attribute name or null for AND, OR, and NOT.
+    private final String m_attr;
+    // Operand string, substring array, or child filter array.
+    private final Object m_value;
+
+    // Operand coerced to the primitive types, computed at parse time.
+    private boolean m_isLong = false;
+    private long m_long;
+    private boolean m_isDouble = false;
+    private double m_double;
+    private boolean m_isFloat = false;
+    private float m_float;
+    private boolean m_boolean;
+    private boolean m_isChar = false;
+    private char m_char;
+    private String m_approx;
+
+    // Operand converted to the last non-primitive property type seen.
+    private volatile Object[] m_converted;
+
+    // Normalized filter string.
+    private volatile String m_filterStr;
+
+    /**
+     * Returns a filter for the specified filter expression, which is either
+     * parsed or retrieved from the cache of previously parsed filters.
+     * @param expr the filter expression.
+     * @return the parsed filter.
+     * @throws InvalidSyntaxException if the expression is not valid.
+    **/
+    public static FilterImpl newInstance(String expr) throws InvalidSyntaxException
+    {
+        if (expr == null)
+        {
+            throw new NullPointerException("Filter cannot be null.");
+        }
+
+        FilterImpl filter;
+        synchronized (m_cache)
+        {
+            filter = (FilterImpl) m_cache.get(expr);
+        }
+
+        if (filter == null)
+        {
+            filter = new Parser(expr).parse();
+            synchronized (m_cache)
+            {
+                // Just start over once the cache is full rather than
+                // tracking usage, since most applications only use a
+                // small set of distinct filters.
+                if (m_cache.size() >= CACHE_SIZE)
+                {
+                    m_cache.clear();
+                }
+                m_cache.put(expr, filter);
+            }
+        }
+
+        return filter;
+    }
+
+    private FilterImpl(int op, String attr, Object value)
+    {
+        m_op = op;
+        m_attr = (attr == null) ? null : attr.intern();
+        m_value = value;
+
+        if ((op == EQUAL) || (op == APPROX) || (op == GREATER) || (op == LESS))
+        {
+            coerceOperand((String) value);
+        }
+    }
+
+    private void coerceOperand(String value)
+    {
+        String trimmed = value.trim();
+        try
+        {
+            m_long = Long.parseLong(trimmed);
+            m_isLong = true;
+        }
+        catch (NumberFormatException ex)
+        {
+            // Not comparable to integral types.
+        }
+        try
+        {
+            m_double = Double.parseDouble(trimmed);
+            m_isDouble = true;
+        }
+        catch (NumberFormatException ex)
+        {
+            // Not comparable to double.
+        }
+        try
+        {
+            m_float = Float.parseFloat(trimmed);
+            m_isFloat = true;
+        }
+        catch (NumberFormatException ex)
+        {
+            // Not comparable to float.
+        }
+        m_boolean = Boolean.valueOf(trimmed).booleanValue();
+        if (trimmed.length() > 0)
+        {
+            m_char = trimmed.charAt(0);
+            m_isChar = true;
+        }
+        m_approx = approxString(value);
+    }
+
+    /**
+     * Filter using a service's properties. The service properties are
+     * accessed directly through the service reference, which performs
+     * case-insensitive key lookup.
+     * @param ref the service reference to match.
+     * @return <tt>true</tt> if the service's properties match this filter.
+    **/
+    public boolean match(ServiceReference ref)
+    {
+        return match0(ref, null, null, false);
+    }
+
+    /**
+     * Filter using a dictionary. The keys are case insensitively matched
+     * with this filter.
+     * @param dict the dictionary to match.
+     * @return <tt>true</tt> if the dictionary matches this filter.
+    **/
+    public boolean match(Dictionary dict)
+    {
+        return match0(null, dict, null, false);
+    }
+
+    /**
+     * Filter using a dictionary. The keys are case sensitively matched
+     * with this filter.
+     * @param dict the dictionary to match.
+     * @return <tt>true</tt> if the dictionary matches this filter.
+    **/
+    public boolean matchCase(Dictionary dict)
+    {
+        return match0(null, dict, null, true);
+    }
+
+    /**
+     * Filter using a map. The keys are case insensitively matched with this
+     * filter; if the map is a case-insensitive <tt>StringMap</tt>, then the
+     * keys are looked up directly.
+     * @param map the map to match.
+     * @return <tt>true</tt> if the map matches this filter.
+    **/
+    public boolean matchMap(Map map)
+    {
+        return match0(null, null, map, false);
+    }
+
+    public String toString()
+    {
+        String s = m_filterStr;
+        if (s == null)
+        {
+            StringBuffer sb = new StringBuffer();
+            normalize(sb);
+            m_filterStr = s = sb.toString();
+        }
+        return s;
+    }
+
+    public boolean equals(Object obj)
+    {
+        if (obj == this)
+        {
+            return true;
+        }
+        if (!(obj instanceof Filter))
+        {
+            return false;
+        }
+        return toString().equals(obj.toString());
+    }
+
+    public int hashCode()
+    {
+        return toString().hashCode();
+    }
+
+    /**
+     * Adds the equality comparisons that must all be satisfied for this
+     * filter to match to the specified map, which are either this filter
+     * itself or the operands of a top-level conjunction. The attribute names
+     * are lower-cased; substring and presence comparisons are ignored.
+     * @param terms the map of attribute name to required value.
+    **/
+    public void getEqualityTerms(Map terms)
+    {
+        if (m_op == AND)
+        {
+            FilterImpl[] filters = (FilterImpl[]) m_value;
+            for (int i = 0; i < filters.length; i++)
+            {
+                if (filters[i].m_op == EQUAL)
+                {
+                    terms.put(filters[i].m_attr.toLowerCase(), filters[i].m_value);
+                }
+            }
+        }
+        else if (m_op == EQUAL)
+        {
+            terms.put(m_attr.toLowerCase(), m_value);
+        }
+    }
+
+    private boolean match0(
+        ServiceReference ref, Dictionary dict, Map map, boolean caseSensitive)
+    {
+        switch (m_op)
+        {
+            case AND:
+            {
+                FilterImpl[] filters = (FilterImpl[]) m_value;
+                for (int i = 0; i < filters.length; i++)
+                {
+                    if (!filters[i].match0(ref, dict, map, caseSensitive))
+                    {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            case OR:
+            {
+                FilterImpl[] filters = (FilterImpl[]) m_value;
+                for (int i = 0; i < filters.length; i++)
+                {
+                    if (filters[i].match0(ref, dict, map, caseSensitive))
+                    {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            case NOT:
+                return !((FilterImpl) m_value).match0(ref, dict, map, caseSensitive);
+            case PRESENT:
+                return getProperty(ref, dict, map, caseSensitive) != null;
+            default:
+                return compare(getProperty(ref, dict, map, caseSensitive));
+        }
+    }
+
+    private Object getProperty(
+        ServiceReference ref, Dictionary dict, Map map, boolean caseSensitive)
+    {
+        if (ref != null)
+        {
+            return ref.getProperty(m_attr);
+        }
+        else if (dict != null)
+        {
+            Object value = dict.get(m_attr);
+            if ((value == null) && !caseSensitive)
+            {
+                for (Enumeration e = dict.keys(); e.hasMoreElements(); )
+                {
+                    Object key = e.nextElement();
+                    if ((key instanceof String) && m_attr.equalsIgnoreCase((String) key))
+                    {
+                        return dict.get(key);
+                    }
+                }
+            }
+            return value;
+        }
+        else if (map != null)
+        {
+            Object value = map.get(m_attr);
+            if ((value == null)
+                && !((map instanceof StringMap) && !((StringMap) map).isCaseSensitive()))
+            {
+                for (Iterator it = map.keySet().iterator(); it.hasNext(); )
+                {
+                    Object key = it.next();
+                    if ((key instanceof String) && m_attr.equalsIgnoreCase((String) key))
+                    {
+                        return map.get(key);
+                    }
+                }
+            }
+            return value;
+        }
+        return null;
+    }
+
+    private boolean compare(Object prop)
+    {
+        if (prop == null)
+        {
+            return false;
+        }
+        else if (prop instanceof String)
+        {
+            return compareString((String) prop);
+        }
+        else if (prop instanceof Object[])
+        {
+            Object[] array = (Object[]) prop;
+            for (int i = 0; i < array.length; i++)
+            {
+                if (compare(array[i]))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+        else if (prop instanceof Collection)
+        {
+            for (Iterator it = ((Collection) prop).iterator(); it.hasNext(); )
+            {
+                if (compare(it.next()))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+        else if (prop.getClass().isArray())
+        {
+            return comparePrimitiveArray(prop);
+        }
+        else if (m_op == SUBSTRING)
+        {
+            return false;
+        }
+        else if ((prop instanceof Integer) || (prop instanceof Long)
+            || (prop instanceof Short) || (prop instanceof Byte))
+        {
+            return compareLong(prop, ((Number) prop).longValue());
+        }
+        else if (prop instanceof Double)
+        {
+            return m_isDouble && compareDouble(((Double) prop).doubleValue());
+        }
+        else if (prop instanceof Float)
+        {
+            return m_isFloat && compareFloat(((Float) prop).floatValue());
+        }
+        else if (prop instanceof Character)
+        {
+            return compareChar(((Character) prop).charValue());
+        }
+        else if (prop instanceof Boolean)
+        {
+            return ((Boolean) prop).booleanValue() == m_boolean;
+        }
+        return compareObject(prop);
+    }
+
+    private boolean comparePrimitiveArray(Object array)
+    {
+        if (m_op == SUBSTRING)
+        {
+            return false;
+        }
+        if (array instanceof int[])
+        {
+            int[] a = (int[]) array;
+            for (int i = 0; i < a.length; i++)
+            {
+                if (compareLong(a, a[i])) return true;
+            }
+        }
+        else if (array instanceof long[])
+        {
+            long[] a = (long[]) array;
+            for (int i = 0; i < a.length; i++)
+            {
+                if (compareLong(a, a[i])) return true;
+            }
+        }
+        else if (array instanceof short[])
+        {
+            short[] a = (short[]) array;
+            for (int i = 0; i < a.length; i++)
+            {
+                if (compareLong(a, a[i])) return true;
+            }
+        }
+        else if (array instanceof byte[])
+        {
+            byte[] a = (byte[]) array;
+            for (int i = 0; i < a.length; i++)
+            {
+                if (compareLong(a, a[i])) return true;
+            }
+        }
+        else if (array instanceof double[])
+        {
+            double[] a = (double[]) array;
+            for (int i = 0; i < a.length; i++)
+            {
+                if (m_isDouble && compareDouble(a[i])) return true;
+            }
+        }
+        else if (array instanceof float[])
+        {
+            float[] a = (float[]) array;
+            for (int i = 0; i < a.length; i++)
+            {
+                if (m_isFloat && compareFloat(a[i])) return true;
+            }
+        }
+        else if (array instanceof char[])
+        {
+            char[] a = (char[]) array;
+            for (int i = 0; i < a.length; i++)
+            {
+                if (compareChar(a[i])) return true;
+            }
+        }
+        else if (array instanceof boolean[])
+        {
+            boolean[] a = (boolean[]) array;
+            for (int i = 0; i < a.length; i++)
+            {
+                if (a[i] == m_boolean) return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean compareString(String s)
+    {
+        switch (m_op)
+        {
+            case EQUAL:
+                return s.equals(m_value);
+            case APPROX:
+                return approxString(s).equalsIgnoreCase(m_approx);
+            case GREATER:
+                return s.compareTo((String) m_value) >= 0;
+            case LESS:
+                return s.compareTo((String) m_value) <= 0;
+            case SUBSTRING:
+                return compareSubstring(s, (String[]) m_value);
+        }
+        return false;
+    }
+
+    /**
+     * Compares an integral property value against the operand; the type
+     * argument is only used to select the valid range of the operand.
+    **/
+    private boolean compareLong(Object type, long value)
+    {
+        if (!m_isLong || !isInRange(type))
+        {
+            return false;
+        }
+        return compareSign((value < m_long) ? -1 : ((value == m_long) ? 0 : 1));
+    }
+
+    /**
+     * Compares a double property value against the operand with the ordering
+     * of <tt>Double.compareTo()</tt>, i.e. <tt>-0.0</tt> is less than
+     * <tt>0.0</tt> and <tt>NaN</tt> is equal to itself and greater than any
+     * other value.
+    **/
+    private boolean compareDouble(double value)
+    {
+        if (value < m_double)
+        {
+            return compareSign(-1);
+        }
+        else if (value > m_double)
+        {
+            return compareSign(1);
+        }
+        long bits = Double.doubleToLongBits(value);
+        long operandBits = Double.doubleToLongBits(m_double);
+        return compareSign((bits < operandBits) ? -1 : ((bits == operandBits) ? 0 : 1));
+    }
+
+    /**
+     * Compares a float property value against the operand with the ordering
+     * of <tt>Float.compareTo()</tt>.
+    **/
+    private boolean compareFloat(float value)
+    {
+        if (value < m_float)
+        {
+            return compareSign(-1);
+        }
+        else if (value > m_float)
+        {
+            return compareSign(1);
+        }
+        int bits = Float.floatToIntBits(value);
+        int operandBits = Float.floatToIntBits(m_float);
+        return compareSign((bits < operandBits) ? -1 : ((bits == operandBits) ? 0 : 1));
+    }
+
+    private boolean isInRange(Object type)
+    {
+        if ((type instanceof Integer) || (type instanceof int[]))
+        {
+            return (m_long >= Integer.MIN_VALUE) && (m_long <= Integer.MAX_VALUE);
+        }
+        else if ((type instanceof Short) || (type instanceof short[]))
+        {
+            return (m_long >= Short.MIN_VALUE) && (m_long <= Short.MAX_VALUE);
+        }
+        else if ((type instanceof Byte) || (type instanceof byte[]))
+        {
+            return (m_long >= Byte.MIN_VALUE) && (m_long <= Byte.MAX_VALUE);
+        }
+        return true;
+    }
+
+    private boolean compareChar(char c)
+    {
+        if (!m_isChar)
+        {
+            return false;
+        }
+        switch (m_op)
+        {
+            case EQUAL:
+                return c == m_char;
+            case APPROX:
+                return (c == m_char)
+                    || (Character.toUpperCase(c) == Character.toUpperCase(m_char))
+                    || (Character.toLowerCase(c) == Character.toLowerCase(m_char));
+            case GREATER:
+                return c >= m_char;
+            case LESS:
+                return c <= m_char;
+        }
+        return false;
+    }
+
+    private boolean compareSign(int result)
+    {
+        switch (m_op)
+        {
+            case APPROX:
+            case EQUAL:
+                return result == 0;
+            case GREATER:
+                return result >= 0;
+            case LESS:
+                return result <= 0;
+        }
+        return false;
+    }
+
+    private boolean compareObject(Object prop)
+    {
+        // Convert the operand to the property's type using its string
+        // constructor and remember the result for the next comparison.
+        Object[] converted = m_converted;
+        if ((converted == null) || (converted[0] != prop.getClass()))
+        {
+            Object value = convertOperand(prop.getClass());
+            if (value == null)
+            {
+                return false;
+            }
+            converted = new Object[] { prop.getClass(), value };
+            m_converted = converted;
+        }
+
+        if (prop instanceof Comparable)
+        {
+            return compareSign(((Comparable) prop).compareTo(converted[1]));
+        }
+        return prop.equals(converted[1]);
+    }
+
+    private Object convertOperand(Class clazz)
+    {
+        try
+        {
+            final Constructor ctor = clazz.getConstructor(STRING_CLASS);
+            if (!ctor.isAccessible())
+            {
+                AccessController.doPrivileged(new PrivilegedAction() {
+                    public Object run()
+                    {
+                        ctor.setAccessible(true);
+                        return null;
+                    }
+                });
+            }
+            return ctor.newInstance(new Object[] { ((String) m_value).trim() });
+        }
+        catch (Exception ex)
+        {
+            return null;
+        }
+    }
+
+    private static boolean compareSubstring(String s, String[] substrings)
+    {
+        int pos = 0;
+        for (int i = 0, size = substrings.length; i < size; i++)
+        {
+            String substr = substrings[i];
+            // If this is not the last substring.
+            if (i + 1 < size)
+            {
+                if (substr == null)
+                {
+                    String substr2 = substrings[i + 1];
+                    // Ignore the first of two consecutive stars.
+                    if (substr2 == null)
+                    {
+                        continue;
+                    }
+                    int index = s.indexOf(substr2, pos);
+                    if (index == -1)
+                    {
+                        return false;
+                    }
+                    pos = index + substr2.length();
+                    // If there are more substrings, skip the one we just
+                    // matched; otherwise the last substring check is needed.
+                    if (i + 2 < size)
+                    {
+                        i++;
+                    }
+                }
+                else
+                {
+                    int len = substr.length();
+                    if (s.regionMatches(pos, substr, 0, len))
+                    {
+                        pos += len;
+                    }
+                    else
+                    {
+                        return false;
+                    }
+                }
+            }
+            else
+            {
+                return (substr == null) || s.endsWith(substr);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Maps a string for an approximate comparison by removing all white
+     * space, which is the minimum required by the specification.
+    **/
+    private static String approxString(String input)
+    {
+        boolean changed = false;
+        char[] output = input.toCharArray();
+        int cursor = 0;
+        for (int i = 0; i < output.length; i++)
+        {
+            char c = output[i];
+            if (Character.isWhitespace(c))
+            {
+                changed = true;
+                continue;
+            }
+            output[cursor++] = c;
+        }
+        return changed ? new String(output, 0, cursor) : input;
+    }
+
+    private void normalize(StringBuffer sb)
+    {
+        sb.append('(');
+        switch (m_op)
+        {
+            case AND:
+            case OR:
+            {
+                sb.append((m_op == AND) ? '&' : '|');
+                FilterImpl[] filters = (FilterImpl[]) m_value;
+                for (int i = 0; i < filters.length; i++)
+                {
+                    filters[i].normalize(sb);
+                }
+                break;
+            }
+            case NOT:
+                sb.append('!');
+                ((FilterImpl) m_value).normalize(sb);
+                break;
+            case SUBSTRING:
+            {
+                sb.append(m_attr).append('=');
+                String[] substrings = (String[]) m_value;
+                for (int i = 0; i < substrings.length; i++)
+                {
+                    if (substrings[i] == null)
+                    {
+                        sb.append('*');
+                    }
+                    else
+                    {
+                        encodeValue(sb, substrings[i]);
+                    }
+                }
+                break;
+            }
+            case EQUAL:
+                sb.append(m_attr).append('=');
+                encodeValue(sb, (String) m_value);
+                break;
+            case GREATER:
+                sb.append(m_attr).append(">=");
+                encodeValue(sb, (String) m_value);
+                break;
+            case LESS:
+                sb.append(m_attr).append("<=");
+                encodeValue(sb, (String) m_value);
+                break;
+            case APPROX:
+                sb.append(m_attr).append("~=");
+                encodeValue(sb, m_approx);
+                break;
+            case PRESENT:
+                sb.append(m_attr).append("=*");
+                break;
+        }
+        sb.append(')');
+    }
+
+    private static void encodeValue(StringBuffer sb, String value)
+    {
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            if ((c == '(') || (c == '*') || (c == ')') || (c == '\\'))
+            {
+                sb.append('\\');
+            }
+            sb.append(c);
+        }
+    }
+
+    /**
+     * Parser for OSGi filter strings, which builds a tree of filter nodes.
+    **/
+    private static class Parser
+    {
+        private final String m_filterStr;
+        private final char[] m_chars;
+        private int m_pos = 0;
+
+        Parser(String filterStr)
+        {
+            m_filterStr = filterStr;
+            m_chars = filterStr.toCharArray();
+        }
+
+        FilterImpl parse() throws InvalidSyntaxException
+        {
+            FilterImpl filter;
+            try
+            {
+                filter = parseFilter();
+            }
+            catch (ArrayIndexOutOfBoundsException ex)
+            {
+                throw new InvalidSyntaxException("Filter ended abruptly", m_filterStr);
+            }
+
+            if (m_pos != m_chars.length)
+            {
+                throw new InvalidSyntaxException(
+                    "Extraneous trailing characters: " + m_filterStr.substring(m_pos),
+                    m_filterStr);
+            }
+            return filter;
+        }
+
+        private FilterImpl parseFilter() throws InvalidSyntaxException
+        {
+            skipWhiteSpace();
+            expect('(');
+            m_pos++;
+
+            FilterImpl filter = parseFilterComp();
+
+            skipWhiteSpace();
+            expect(')');
+            m_pos++;
+            skipWhiteSpace();
+
+            return filter;
+        }
+
+        private FilterImpl parseFilterComp() throws InvalidSyntaxException
+        {
+            skipWhiteSpace();
+
+            switch (m_chars[m_pos])
+            {
+                case '&':
+                    m_pos++;
+                    return new FilterImpl(AND, null, parseFilterList());
+                case '|':
+                    m_pos++;
+                    return new FilterImpl(OR, null, parseFilterList());
+                case '!':
+                    m_pos++;
+                    skipWhiteSpace();
+                    expect('(');
+                    return new FilterImpl(NOT, null, parseFilter());
+            }
+            return parseItem();
+        }
+
+        private FilterImpl[] parseFilterList() throws InvalidSyntaxException
+        {
+            skipWhiteSpace();
+            expect('(');
+
+            List operands = new ArrayList();
+            while (m_chars[m_pos] == '(')
+            {
+                operands.add(parseFilter());
+            }
+            return (FilterImpl[]) operands.toArray(new FilterImpl[operands.size()]);
+        }
+
+        private FilterImpl parseItem() throws InvalidSyntaxException
+        {
+            String attr = parseAttr();
+
+            skipWhiteSpace();
+
+            switch (m_chars[m_pos])
+            {
+                case '~':
+                    if (m_chars[m_pos + 1] == '=')
+                    {
+                        m_pos += 2;
+                        return new FilterImpl(APPROX, attr, parseValue());
+                    }
+                    break;
+                case '>':
+                    if (m_chars[m_pos + 1] == '=')
+                    {
+                        m_pos += 2;
+                        return new FilterImpl(GREATER, attr, parseValue());
+                    }
+                    break;
+                case '<':
+                    if (m_chars[m_pos + 1] == '=')
+                    {
+                        m_pos += 2;
+                        return new FilterImpl(LESS, attr, parseValue());
+                    }
+                    break;
+                case '=':
+                    if (m_chars[m_pos + 1] == '*')
+                    {
+                        int oldPos = m_pos;
+                        m_pos += 2;
+                        skipWhiteSpace();
+                        if (m_chars[m_pos] == ')')
+                        {
+                            return new FilterImpl(PRESENT, attr, null);
+                        }
+                        m_pos = oldPos;
+                    }
+
+                    m_pos++;
+                    Object value = parseSubstring();
+                    return (value instanceof String)
+                        ? new FilterImpl(EQUAL, attr, value)
+                        : new FilterImpl(SUBSTRING, attr, value);
+            }
+
+            throw new InvalidSyntaxException(
+                "Invalid operator: " + m_filterStr.substring(m_pos), m_filterStr);
+        }
+
+        private String parseAttr() throws InvalidSyntaxException
+        {
+            skipWhiteSpace();
+
+            int begin = m_pos;
+            int end = m_pos;
+
+            char c = m_chars[m_pos];
+            while ((c != '~') && (c != '<') && (c != '>') && (c != '=')
+                && (c != '(') && (c != ')'))
+            {
+                m_pos++;
+                if (!Character.isWhitespace(c))
+                {
+                    end = m_pos;
+                }
+                c = m_chars[m_pos];
+            }
+
+            if (end == begin)
+            {
+                throw new InvalidSyntaxException(
+                    "Missing attr: " + m_filterStr.substring(m_pos), m_filterStr);
+            }
+
+            return new String(m_chars, begin, end - begin);
+        }
+
+        private String parseValue() throws InvalidSyntaxException
+        {
+            StringBuffer sb = new StringBuffer(m_chars.length - m_pos);
+
+            while (m_chars[m_pos] != ')')
+            {
+                char c = m_chars[m_pos];
+                if (c == '(')
+                {
+                    throw new InvalidSyntaxException(
+                        "Invalid value: " + m_filterStr.substring(m_pos), m_filterStr);
+                }
+                else if (c == '\\')
+                {
+                    m_pos++;
+                    c = m_chars[m_pos];
+                }
+                sb.append(c);
+                m_pos++;
+            }
+
+            if (sb.length() == 0)
+            {
+                throw new InvalidSyntaxException(
+                    "Missing value: " + m_filterStr.substring(m_pos), m_filterStr);
+            }
+
+            return sb.toString();
+        }
+
+        private Object parseSubstring() throws InvalidSyntaxException
+        {
+            StringBuffer sb = new StringBuffer(m_chars.length - m_pos);
+            List operands = new ArrayList();
+
+            while (m_chars[m_pos] != ')')
+            {
+                char c = m_chars[m_pos];
+                if (c == '(')
+                {
+                    throw new InvalidSyntaxException(
+                        "Invalid value: " + m_filterStr.substring(m_pos), m_filterStr);
+                }
+                else if (c == '*')
+                {
+                    if (sb.length() > 0)
+                    {
+                        operands.add(sb.toString());
+                    }
+                    sb.setLength(0);
+                    // A null operand represents a wildcard.
+                    operands.add(null);
+                    m_pos++;
+                    continue;
+                }
+                else if (c == '\\')
+                {
+                    m_pos++;
+                    c = m_chars[m_pos];
+                }
+                sb.append(c);
+                m_pos++;
+            }
+            if (sb.length() > 0)
+            {
+                operands.add(sb.toString());
+            }
+
+            if (operands.size() == 0)
+            {
+                throw new InvalidSyntaxException(
+                    "Missing value: " + m_filterStr.substring(m_pos), m_filterStr);
+            }
+            else if ((operands.size() == 1) && (operands.get(0) != null))
+            {
+                return operands.get(0);
+            }
+            return (String[]) operands.toArray(new String[operands.size()]);
+        }
+
+        private void expect(char c) throws InvalidSyntaxException
+        {
+            if (m_chars[m_pos] != c)
+            {
+                throw new InvalidSyntaxException(
+                    "Missing '" + c + "': " + m_filterStr.substring(m_pos), m_filterStr);
+            }
+        }
+
+        private void skipWhiteSpace()
+        {
+            while ((m_pos < m_chars.length) && Character.isWhitespace(m_chars[m_pos]))
+            {
+                m_pos++;
+            }
+        }
+    }
+}
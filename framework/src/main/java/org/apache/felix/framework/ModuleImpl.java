@@ -96,7 +96,7 @@ public class ModuleImpl implements IModule
     private IContent[] m_contentPath;
     private IContent[] m_fragmentContents = null;
     private ModuleClassLoader m_classLoader;
-    private boolean m_isActivationTriggered = false;
+    private volatile boolean m_isActivationTriggered = false;
     private ProtectionDomain m_protectionDomain = null;
     private static SecureAction m_secureAction = new SecureAction();
     // Class load to be used for boot delegation.
@@ -136,6 +136,23 @@ public class ModuleImpl implements IModule
     // Thread local to detect class loading cycles.
     private final ThreadLocal m_cycleCheck = new ThreadLocal();
 
+    // Maps package names to the sources to search for classes and resources
+    // of the package; also used as the lock for the cache and its counters.
+    private final Map m_lookupCache = new HashMap();
+    private final int m_lookupCacheSize;
+    // Incremented whenever the cache is cleared to avoid caching stale sources.
+    private int m_lookupCacheGeneration = 0;
+    private long m_lookupCacheHits = 0;
+    private long m_lookupCacheMisses = 0;
+
+    // Flag to indicate whether the class loader locks per class name
+    // rather than the class loader itself when loading classes.
+    private final boolean m_parallelClassLoading;
+    // Whether the module class loader class is registered as parallel capable,
+    // so that the VM does not lock class loader instances while loading
+    // classes; null until registration is attempted.
+    private static Boolean m_parallelCapable = null;
+
     // Thread local to keep track of deferred activation.
     private static final ThreadLocal m_deferredActivation = new ThreadLocal();
 
@@ -175,6 +192,8 @@ public class ModuleImpl implements IModule
         m_activationExcludes = null;
         m_activationIncludes = null;
         m_implicitBootDelegation = false;
+        m_lookupCacheSize = FelixConstants.MODULE_LOOKUP_CACHE_SIZE_DEFAULT;
+        m_parallelClassLoading = false;
     }
 
     public ModuleImpl(
@@ -201,6 +220,23 @@ public class ModuleImpl implements IModule
                 (String) m_configMap.get(
                     FelixConstants.IMPLICIT_BOOT_DELEGATION_PROP)).booleanValue();
 
+        int lookupCacheSize = FelixConstants.MODULE_LOOKUP_CACHE_SIZE_DEFAULT;
+        try
+        {
+            String s = (String) m_configMap.get(FelixConstants.MODULE_LOOKUP_CACHE_SIZE_PROP);
+            lookupCacheSize = (s == null)
+                ? FelixConstants.MODULE_LOOKUP_CACHE_SIZE_DEFAULT : Integer.parseInt(s.trim());
+        }
+        catch (NumberFormatException ex)
+        {
+            m_logger.log(Logger.LOG_WARNING,
+                "Invalid module lookup cache size, using default.");
+        }
+        m_lookupCacheSize = lookupCacheSize;
+
+        m_parallelClassLoading = Boolean.valueOf(
+            (String) m_configMap.get(FelixConstants.CLASSLOADER_PARALLEL_PROP)).booleanValue();
+
         ManifestParser mp = new ManifestParser(m_logger, m_configMap, this, m_headerMap);
 
         // Record some of the parsed metadata. Note, if this is an extension
@@ -451,6 +487,9 @@ public class ModuleImpl implements IModule
 
         m_wires = wires;
 
+        // The sources of packages depend on the wires.
+        clearLookupCache();
+
         // Add ourself as a dependent to the new wires' modules.
         for (int i = 0; (m_wires != null) && (i < m_wires.length); i++)
         {
@@ -646,54 +685,70 @@ public class ModuleImpl implements IModule
                     ? Util.getClassPackage(name)
                     : Util.getResourcePackage(name);
 
-                // Delegate any packages listed in the boot delegation
-                // property to the parent class loader.
-                if (shouldBootDelegate(pkgName))
+                // Get the sources to search for the package, which avoids
+                // walking all of the module's wires for every request.
+                PackageSource source = getPackageSource(pkgName);
+
+                // Only search the static sources if the class/resource was
+                // not already found to be missing from them.
+                if (!isKnownMissing(source, name))
                 {
-                    try
+                    // Delegate any packages listed in the boot delegation
+                    // property to the parent class loader.
+                    if (source.m_bootDelegate)
                     {
-                        // Get the appropriate class loader for delegation.
-                        ClassLoader parent = (m_classLoader == null)
-                            ? determineParentClassLoader() : m_classLoader.getParent();
-                        parent = (parent == null) ? m_bootClassLoader : parent;
-                        result = (isClass)
-                            ? (Object) parent.loadClass(name)
-                            : (Object) parent.getResource(name);
-                        // If this is a java.* package, then always terminate the
-                        // search; otherwise, continue to look locally if not found.
-                        if (pkgName.startsWith("java.") || (result != null))
+                        try
                         {
-                            return result;
+                            // Get the appropriate class loader for delegation.
+                            ClassLoader parent = (m_classLoader == null)
+                                ? determineParentClassLoader() : m_classLoader.getParent();
+                            parent = (parent == null) ? m_bootClassLoader : parent;
+                            result = (isClass)
+                                ? (Object) parent.loadClass(name)
+                                : (Object) parent.getResource(name);
+                            // If this is a java.* package, then always terminate the
+                            // search; otherwise, continue to look locally if not found.
+                            if (pkgName.startsWith("java.") || (result != null))
+                            {
+                                return result;
+                            }
+                        }
+                        catch (ClassNotFoundException ex)
+                        {
+                            // If this is a java.* package, then always terminate the
+                            // search; otherwise, continue to look locally if not found.
+                            if (pkgName.startsWith("java."))
+                            {
+                                throw ex;
+                            }
                         }
                     }
-                    catch (ClassNotFoundException ex)
+
+                    // Look in the module's imports. Note that the search may
+                    // be aborted if this method throws an exception, otherwise
+                    // it continues if a null is returned.
+                    result = searchImports(source.m_wires, name, isClass);
+
+                    // If not found, try the module's own class path.
+                    if (result == null)
                     {
-                        // If this is a java.* package, then always terminate the
-                        // search; otherwise, continue to look locally if not found.
-                        if (pkgName.startsWith("java."))
+                        result = (isClass)
+                            ? (Object) getClassLoader().findClass(name)
+                            : (Object) getResourceLocal(name);
+
+                        // Remember that the class/resource is not available
+                        // from the static sources.
+                        if (result == null)
                         {
-                            throw ex;
+                            addKnownMissing(source, name);
                         }
                     }
                 }
 
-                // Look in the module's imports. Note that the search may
-                // be aborted if this method throws an exception, otherwise
-                // it continues if a null is returned.
-                result = searchImports(name, isClass);
-
-                // If not found, try the module's own class path.
+                // If still not found, then try the module's dynamic imports.
                 if (result == null)
                 {
-                    result = (isClass)
-                        ? (Object) getClassLoader().findClass(name)
-                        : (Object) getResourceLocal(name);
-
-                    // If still not found, then try the module's dynamic imports.
-                    if (result == null)
-                    {
-                        result = searchDynamicImports(name, pkgName, isClass);
-                    }
+                    result = searchDynamicImports(name, pkgName, isClass);
                 }
             }
             catch (ResolveException ex)
@@ -830,10 +885,11 @@ public class ModuleImpl implements IModule
 
         // Get the package of the target class/resource.
         String pkgName = Util.getResourcePackage(name);
+        PackageSource source = getPackageSource(pkgName);
 
         // Delegate any packages listed in the boot delegation
         // property to the parent class loader.
-        if (shouldBootDelegate(pkgName))
+        if (source.m_bootDelegate)
         {
             try
             {
@@ -866,7 +922,7 @@ public class ModuleImpl implements IModule
 
         // Note that the search may be aborted if this method throws an
         // exception, otherwise it continues if a null is returned.
-        IWire[] wires = getWires();
+        IWire[] wires = source.m_wires;
         for (int i = 0; (wires != null) && (i < wires.length); i++)
         {
             if (wires[i] instanceof R4Wire)
@@ -1126,6 +1182,10 @@ public class ModuleImpl implements IModule
             // Now attach the fragment contents to our content loader.
             attachFragmentContents(fragmentContents);
         }
+
+        // The content of the module has changed, so forget any names
+        // that were not found in it.
+        clearLookupCache();
     }
 
     // This must be called holding the object lock.
@@ -1281,6 +1341,7 @@ public class ModuleImpl implements IModule
             m_fragmentContents[i].close();
         }
         m_classLoader = null;
+        clearLookupCache();
     }
 
     public synchronized void setSecurityContext(Object securityContext)
@@ -1302,27 +1363,64 @@ public class ModuleImpl implements IModule
     {
         if (m_classLoader == null)
         {
-            if (System.getSecurityManager() != null)
+            // The class loader class must be registered as parallel capable
+            // before its instances are created to load classes in parallel.
+            if (m_parallelClassLoading)
             {
-                try
-                {
-                    Constructor ctor = (Constructor) m_secureAction.getConstructor(
-                        ModuleClassLoader.class, new Class[] { ModuleImpl.class, ClassLoader.class });
-                    m_classLoader = (ModuleClassLoader)
-                        m_secureAction.invoke(ctor, new Object[] { this, determineParentClassLoader() });
-                }
-                catch (Exception ex)
-                {
-                    throw new RuntimeException("Unable to create module class loader: "
-                        + ex.getMessage() + " [" + ex.getClass().getName() + "]");
-                }
+                registerParallelCapable();
             }
-            else
+
+            m_classLoader = createClassLoader(determineParentClassLoader());
+        }
+        return m_classLoader;
+    }
+
+    private ModuleClassLoader createClassLoader(ClassLoader parent)
+    {
+        if (System.getSecurityManager() != null)
+        {
+            try
             {
-                m_classLoader = new ModuleClassLoader(determineParentClassLoader());
+                Constructor ctor = (Constructor) m_secureAction.getConstructor(
+                    ModuleClassLoader.class, new Class[] { ModuleImpl.class, ClassLoader.class });
+                return (ModuleClassLoader)
+                    m_secureAction.invoke(ctor, new Object[] { this, parent });
+            }
+            catch (Exception ex)
+            {
+                throw new RuntimeException("Unable to create module class loader: "
+                    + ex.getMessage() + " [" + ex.getClass().getName() + "]");
+            }
+        }
+        return new ModuleClassLoader(parent);
+    }
+
+    private void registerParallelCapable()
+    {
+        synchronized (ModuleImpl.class)
+        {
+            if (m_parallelCapable == null)
+            {
+                // Registration must be requested by the class loader class
+                // itself, so we need an instance of it to do so; this instance
+                // is not parallel capable, but all subsequent ones are.
+                m_parallelCapable = createClassLoader(null).registerParallelCapable()
+                    ? Boolean.TRUE : Boolean.FALSE;
+                if (!m_parallelCapable.booleanValue())
+                {
+                    m_logger.log(Logger.LOG_WARNING,
+                        "Parallel class loading is not supported by the JVM.");
+                }
             }
         }
-        return m_classLoader;
+    }
+
+    private static boolean isParallelCapable()
+    {
+        synchronized (ModuleImpl.class)
+        {
+            return (m_parallelCapable != null) && m_parallelCapable.booleanValue();
+        }
     }
 
     private ClassLoader determineParentClassLoader()
@@ -1359,11 +1457,10 @@ public class ModuleImpl implements IModule
         return parent;
     }
 
-    private Object searchImports(String name, boolean isClass)
+    private Object searchImports(IWire[] wires, String name, boolean isClass)
         throws ClassNotFoundException, ResourceNotFoundException
     {
         // We delegate to the module's wires to find the class or resource.
-        IWire[] wires = getWires();
         for (int i = 0; (wires != null) && (i < wires.length); i++)
         {
             // If we find the class or resource, then return it.
@@ -1537,6 +1634,114 @@ public class ModuleImpl implements IModule
         return clazz;
     }
 
+    /**
+     * Returns the number of class and resource requests for which the sources
+     * of the requested package were found in the lookup cache.
+     * @return the number of lookup cache hits.
+    **/
+    long getLookupCacheHits()
+    {
+        synchronized (m_lookupCache)
+        {
+            return m_lookupCacheHits;
+        }
+    }
+
+    /**
+     * Returns the number of class and resource requests for which the sources
+     * of the requested package had to be determined.
+     * @return the number of lookup cache misses.
+    **/
+    long getLookupCacheMisses()
+    {
+        synchronized (m_lookupCache)
+        {
+            return m_lookupCacheMisses;
+        }
+    }
+
+    private void clearLookupCache()
+    {
+        synchronized (m_lookupCache)
+        {
+            m_lookupCache.clear();
+            m_lookupCacheGeneration++;
+        }
+    }
+
+    private PackageSource getPackageSource(String pkgName)
+    {
+        int generation;
+        synchronized (m_lookupCache)
+        {
+            PackageSource source = (PackageSource) m_lookupCache.get(pkgName);
+            if (source != null)
+            {
+                m_lookupCacheHits++;
+                return source;
+            }
+            m_lookupCacheMisses++;
+            generation = m_lookupCacheGeneration;
+        }
+
+        // Only keep the wires that can provide the package, which
+        // are the only ones that can return a class or resource for it.
+        IWire[] wires = getWires();
+        List wireList = new ArrayList();
+        for (int i = 0; (wires != null) && (i < wires.length); i++)
+        {
+            if (wires[i].hasPackage(pkgName))
+            {
+                wireList.add(wires[i]);
+            }
+        }
+        PackageSource source = new PackageSource(
+            pkgName, shouldBootDelegate(pkgName),
+            (IWire[]) wireList.toArray(new IWire[wireList.size()]));
+
+        synchronized (m_lookupCache)
+        {
+            // Do not cache the source if the wires or content changed
+            // in the meantime or if caching is disabled.
+            if ((generation == m_lookupCacheGeneration) && (m_lookupCacheSize > 0))
+            {
+                // Just start over once the cache is full rather than
+                // tracking usage, like the filter cache does.
+                if (m_lookupCache.size() >= m_lookupCacheSize)
+                {
+                    m_lookupCache.clear();
+                }
+                m_lookupCache.put(pkgName, source);
+            }
+        }
+
+        return source;
+    }
+
+    private boolean isKnownMissing(PackageSource source, String name)
+    {
+        synchronized (m_lookupCache)
+        {
+            return source.m_missing.contains(name);
+        }
+    }
+
+    private void addKnownMissing(PackageSource source, String name)
+    {
+        synchronized (m_lookupCache)
+        {
+            // Only remember missing names for cached sources.
+            if (m_lookupCache.get(source.m_pkgName) == source)
+            {
+                if (source.m_missing.size() >= m_lookupCacheSize)
+                {
+                    source.m_missing.clear();
+                }
+                source.m_missing.add(name);
+            }
+        }
+    }
+
     private boolean shouldBootDelegate(String pkgName)
     {
         boolean result = false;
@@ -1567,6 +1772,40 @@ public class ModuleImpl implements IModule
         return result;
     }
 
+    /**
+     * Records the sources that a module searches for the classes and
+     * resources of a package, together with the names that are known
+     * not to be available from them. The sources only change when the
+     * wires or the content of the module change.
+    **/
+    private static class PackageSource
+    {
+        private final String m_pkgName;
+        private final boolean m_bootDelegate;
+        // The wires that can provide the package, in search order.
+        private final IWire[] m_wires;
+        // Names not found through boot delegation, wires, or the module's
+        // content; guarded by the module's lookup cache.
+        private final Set m_missing = new HashSet();
+
+        PackageSource(String pkgName, boolean bootDelegate, IWire[] wires)
+        {
+            m_pkgName = pkgName;
+            m_bootDelegate = bootDelegate;
+            m_wires = wires;
+        }
+    }
+
+    /**
+     * Lock shared by the threads defining the same class when parallel class
+     * loading is enabled; the count is guarded by the class loader's map
+     * of class locks.
+    **/
+    private static class ClassLock
+    {
+        private int m_count = 0;
+    }
+
     private static final Constructor m_dexFileClassConstructor;
     private static final Method m_dexFileClassLoadDex;
     private static final Method m_dexFileClassLoadClass;
@@ -1617,12 +1856,18 @@ public class ModuleImpl implements IModule
     {
         private final Map m_jarContentToDexFile;
         private Object[][] m_cachedLibs = new Object[0][];
+        // Flag to indicate whether this class loader loads classes in parallel.
+        private final boolean m_isParallel;
+        // Maps the names of classes currently being defined in parallel
+        // class loading mode to their locks.
+        private final Map m_classLockMap = new HashMap();
         private static final int LIBNAME_IDX = 0;
         private static final int LIBPATH_IDX = 1;
 
         public ModuleClassLoader(ClassLoader parent)
         {
             super(parent);
+            m_isParallel = m_parallelClassLoading && isParallelCapable();
             if (m_dexFileClassLoadClass != null)
             {
                 m_jarContentToDexFile = new HashMap();
@@ -1643,11 +1888,19 @@ public class ModuleImpl implements IModule
         {
             Class clazz = null;
 
-            // Make sure the class was not already loaded.
-            synchronized (this)
+            // Make sure the class was not already loaded. There is no need
+            // to hold the class loader lock to check in parallel mode.
+            if (m_isParallel)
             {
                 clazz = findLoadedClass(name);
             }
+            else
+            {
+                synchronized (this)
+                {
+                    clazz = findLoadedClass(name);
+                }
+            }
 
             if (clazz == null)
             {
@@ -1709,104 +1962,117 @@ public class ModuleImpl implements IModule
                     String pkgName = Util.getClassPackage(name);
 
                     // Before we actually attempt to define the class, grab
-                    // the lock for this class loader and make sure than no
-                    // other thread has defined this class in the meantime.
-                    synchronized (this)
+                    // the lock for this class loader, or only for this class
+                    // in parallel mode, and make sure than no other thread
+                    // has defined this class in the meantime.
+                    Object classLock = acquireClassLock(name);
+                    try
                     {
-                        clazz = findLoadedClass(name);
-
-                        if (clazz == null)
+                        synchronized (classLock)
                         {
-                            int activationPolicy = 
-                                ((BundleImpl) getBundle()).isDeclaredActivationPolicyUsed()
-                                ? ((BundleImpl) getBundle()).getCurrentModule().getDeclaredActivationPolicy()
-                                : IModule.EAGER_ACTIVATION;
-
-                            // If the module is using deferred activation, then if
-                            // we load this class from this module we need to activate
-                            // the module before returning the class. We will short
-                            // circuit the trigger matching if the trigger is already
-                            // tripped.
-                            boolean isTriggerClass = m_isActivationTriggered
-                                ? false : isActivationTrigger(pkgName);
-                            if (!m_isActivationTriggered
-                                && isTriggerClass
-                                && (activationPolicy == IModule.LAZY_ACTIVATION)
-                                && (getBundle().getState() == Bundle.STARTING))
-                            {
-                                List deferredList = (List) m_deferredActivation.get();
-                                if (deferredList == null)
-                                {
-                                    deferredList = new ArrayList();
-                                    m_deferredActivation.set(deferredList);
-                                }
-                                deferredList.add(new Object[] { name, getBundle() });
-                            }
-                            // We need to try to define a Package object for the class
-                            // before we call defineClass() if we haven't already
-                            // created it.
-                            if (pkgName.length() > 0)
+                            clazz = findLoadedClass(name);
+
+                            if (clazz == null)
                             {
-                                if (getPackage(pkgName) == null)
+                                int activationPolicy = 
+                                    ((BundleImpl) getBundle()).isDeclaredActivationPolicyUsed()
+                                    ? ((BundleImpl) getBundle()).getCurrentModule().getDeclaredActivationPolicy()
+                                    : IModule.EAGER_ACTIVATION;
+
+                                // If the module is using deferred activation, then if
+                                // we load this class from this module we need to activate
+                                // the module before returning the class. We will short
+                                // circuit the trigger matching if the trigger is already
+                                // tripped.
+                                boolean isTriggerClass = m_isActivationTriggered
+                                    ? false : isActivationTrigger(pkgName);
+                                if (!m_isActivationTriggered
+                                    && isTriggerClass
+                                    && (activationPolicy == IModule.LAZY_ACTIVATION)
+                                    && (getBundle().getState() == Bundle.STARTING))
                                 {
-                                    Object[] params = definePackage(pkgName);
-                                    if (params != null)
+                                    List deferredList = (List) m_deferredActivation.get();
+                                    if (deferredList == null)
                                     {
-                                        definePackage(
-                                            pkgName,
-                                            (String) params[0],
-                                            (String) params[1],
-                                            (String) params[2],
-                                            (String) params[3],
-                                            (String) params[4],
-                                            (String) params[5],
-                                            null);
+                                        deferredList = new ArrayList();
+                                        m_deferredActivation.set(deferredList);
                                     }
-                                    else
+                                    deferredList.add(new Object[] { name, getBundle() });
+                                }
+                                // We need to try to define a Package object for the class
+                                // before we call defineClass() if we haven't already
+                                // created it. This is done holding the class loader lock,
+                                // since classes of a package may be defined in parallel.
+                                if (pkgName.length() > 0)
+                                {
+                                    synchronized (this)
                                     {
-                                        definePackage(pkgName, null, null,
-                                            null, null, null, null, null);
+                                        if (getPackage(pkgName) == null)
+                                        {
+                                            Object[] params = definePackage(pkgName);
+                                            if (params != null)
+                                            {
+                                                definePackage(
+                                                    pkgName,
+                                                    (String) params[0],
+                                                    (String) params[1],
+                                                    (String) params[2],
+                                                    (String) params[3],
+                                                    (String) params[4],
+                                                    (String) params[5],
+                                                    null);
+                                            }
+                                            else
+                                            {
+                                                definePackage(pkgName, null, null,
+                                                    null, null, null, null, null);
+                                            }
+                                        }
                                     }
                                 }
-                            }
 
-                            // If we can load the class from a dex file do so
-                            if (content instanceof JarContent)
-                            {
-                                try
+                                // If we can load the class from a dex file do so
+                                if (content instanceof JarContent)
                                 {
-                                    clazz = getDexFileClass((JarContent) content, name, this);
-                                }
-                                catch (Exception ex)
-                                {
-                                    // Looks like we can't
+                                    try
+                                    {
+                                        clazz = getDexFileClass((JarContent) content, name, this);
+                                    }
+                                    catch (Exception ex)
+                                    {
+                                        // Looks like we can't
+                                    }
                                 }
-                            }
 
-                            if (clazz == null)
-                            {
-                                // If we have a security context, then use it to
-                                // define the class with it for security purposes,
-                                // otherwise define the class without a protection domain.
-                                if (m_protectionDomain != null)
+                                if (clazz == null)
                                 {
-                                    clazz = defineClass(name, bytes, 0, bytes.length,
-                                        m_protectionDomain);
+                                    // If we have a security context, then use it to
+                                    // define the class with it for security purposes,
+                                    // otherwise define the class without a protection domain.
+                                    if (m_protectionDomain != null)
+                                    {
+                                        clazz = defineClass(name, bytes, 0, bytes.length,
+                                            m_protectionDomain);
+                                    }
+                                    else
+                                    {
+                                        clazz = defineClass(name, bytes, 0, bytes.length);
+                                    }
                                 }
-                                else
+
+                                // At this point if we have a trigger class, then the deferred
+                                // activation trigger has tripped.
+                                if (!m_isActivationTriggered && isTriggerClass && (clazz != null))
                                 {
-                                    clazz = defineClass(name, bytes, 0, bytes.length);
+                                    m_isActivationTriggered = true;
                                 }
                             }
-
-                            // At this point if we have a trigger class, then the deferred
-                            // activation trigger has tripped.
-                            if (!m_isActivationTriggered && isTriggerClass && (clazz != null))
-                            {
-                                m_isActivationTriggered = true;
-                            }
                         }
                     }
+                    finally
+                    {
+                        releaseClassLock(name, classLock);
+                    }
 
                     // Perform deferred activation without holding the class loader lock,
                     // if the class we are returning is the instigating class.
@@ -1867,31 +2133,34 @@ public class ModuleImpl implements IModule
 
             Object dexFile = null;
 
-            if (!m_jarContentToDexFile.containsKey(content))
+            synchronized (m_jarContentToDexFile)
             {
-                try
+                if (!m_jarContentToDexFile.containsKey(content))
                 {
-                    if (m_dexFileClassLoadDex != null)
+                    try
                     {
-                        dexFile = m_dexFileClassLoadDex.invoke(null, 
-                            new Object[]{content.getFile().getAbsolutePath(), 
-                                content.getFile().getAbsolutePath() + ".dex", new Integer(0)});
+                        if (m_dexFileClassLoadDex != null)
+                        {
+                            dexFile = m_dexFileClassLoadDex.invoke(null, 
+                                new Object[]{content.getFile().getAbsolutePath(), 
+                                    content.getFile().getAbsolutePath() + ".dex", new Integer(0)});
+                        }
+                        else
+                        {
+                            dexFile = m_dexFileClassConstructor.newInstance(
+                                new Object[] { content.getFile() });
+                        }
                     }
-                    else
+                    finally
                     {
-                        dexFile = m_dexFileClassConstructor.newInstance(
-                            new Object[] { content.getFile() });
+                        m_jarContentToDexFile.put(content, dexFile);
                     }
                 }
-                finally
+                else
                 {
-                    m_jarContentToDexFile.put(content, dexFile);
+                    dexFile = m_jarContentToDexFile.get(content);
                 }
             }
-            else
-            {
-                dexFile = m_jarContentToDexFile.get(content);
-            }
 
             if (dexFile != null)
             {
@@ -1906,6 +2175,70 @@ public class ModuleImpl implements IModule
             return ModuleImpl.this.getResourceByDelegation(name);
         }
 
+        /**
+         * Registers this class loader class as parallel capable, which is
+         * only supported on Java 7 and later.
+         * @return <tt>true</tt> if the class is registered as parallel
+         *         capable, <tt>false</tt> otherwise.
+        **/
+        boolean registerParallelCapable()
+        {
+            try
+            {
+                // This has to be invoked from the class loader class itself.
+                Method m = ClassLoader.class.getDeclaredMethod(
+                    "registerAsParallelCapable", null);
+                return ((Boolean) m.invoke(null, null)).booleanValue();
+            }
+            catch (Throwable ex)
+            {
+                return false;
+            }
+        }
+
+        /**
+         * Returns the lock to hold while defining the specified class, which
+         * is the class loader itself unless parallel class loading is enabled,
+         * in which case it is a lock shared only by the threads defining the
+         * same class. Each call must be followed by a call to
+         * <tt>releaseClassLock()</tt>.
+         * @param name the name of the class to define.
+         * @return the lock to hold.
+        **/
+        private Object acquireClassLock(String name)
+        {
+            if (!m_isParallel)
+            {
+                return this;
+            }
+            synchronized (m_classLockMap)
+            {
+                ClassLock lock = (ClassLock) m_classLockMap.get(name);
+                if (lock == null)
+                {
+                    lock = new ClassLock();
+                    m_classLockMap.put(name, lock);
+                }
+                lock.m_count++;
+                return lock;
+            }
+        }
+
+        private void releaseClassLock(String name, Object lock)
+        {
+            if (lock instanceof ClassLock)
+            {
+                synchronized (m_classLockMap)
+                {
+                    // Forget the lock once no thread is using it anymore.
+                    if (--((ClassLock) lock).m_count == 0)
+                    {
+                        m_classLockMap.remove(name);
+                    }
+                }
+            }
+        }
+
         protected URL findResource(String name)
         {
             return getResourceLocal(name);
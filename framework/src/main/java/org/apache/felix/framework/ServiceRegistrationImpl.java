@@ -51,6 +51,13 @@ class ServiceRegistrationImpl implements ServiceRegistration
     private final ServiceReferenceImpl m_ref;
     // Flag indicating that we are unregistering.
     private volatile boolean m_isUnregistering = false;
+    // Lock serializing the registry's get and unget operations for this
+    // registration and the thread currently holding it, if any.
+    private final Object m_usageLock = new Object();
+    private Thread m_usageLockOwner = null;
+    // Flag indicating that no new usages of the service are allowed because
+    // it is being ungotten from its clients; guarded by the usage lock.
+    private boolean m_isUsageClosed = false;
 
     public ServiceRegistrationImpl(
         ServiceRegistry registry, Bundle bundle,
@@ -85,6 +92,87 @@ class ServiceRegistrationImpl implements ServiceRegistration
         m_svcObj = null;
     }
 
+    /**
+     * Locks this registration so that the calling thread can get or unget
+     * its service object, waiting while another thread holds the lock.
+     * Only the registration itself is locked, so operations on different
+     * registrations can proceed in parallel.
+     * @param method the service factory method name used in the cycle error.
+     * @throws IllegalStateException if the calling thread already holds the
+     *         lock, which means the service factory resulted in a cycle.
+    **/
+    void lockUsage(String method)
+    {
+        synchronized (m_usageLock)
+        {
+            while (m_usageLockOwner != null)
+            {
+                // We don't allow cycles when we call out to the service factory.
+                if (m_usageLockOwner == Thread.currentThread())
+                {
+                    throw new IllegalStateException(
+                        "ServiceFactory." + method + "() resulted in a cycle.");
+                }
+
+                // Otherwise, wait for it to be freed.
+                try
+                {
+                    m_usageLock.wait();
+                }
+                catch (InterruptedException ex)
+                {
+                }
+            }
+            m_usageLockOwner = Thread.currentThread();
+        }
+    }
+
+    /**
+     * Releases the lock acquired by <tt>lockUsage()</tt> so that any
+     * threads waiting for it can continue.
+    **/
+    void unlockUsage()
+    {
+        synchronized (m_usageLock)
+        {
+            m_usageLockOwner = null;
+            m_usageLock.notifyAll();
+        }
+    }
+
+    /**
+     * Refuses any new usages of the service object while the registry
+     * ungets it from its clients during unregistration. Since this waits
+     * for the usage lock, any get operation in progress completes first and
+     * its usage count is visible to the registry afterwards.
+    **/
+    void closeUsage()
+    {
+        lockUsage("unregister");
+        try
+        {
+            m_isUsageClosed = true;
+        }
+        finally
+        {
+            unlockUsage();
+        }
+    }
+
+    /**
+     * Returns whether new usages of the service object are refused. Must be
+     * called while holding the usage lock.
+    **/
+    boolean isUsageClosed()
+    {
+        return m_isUsageClosed;
+    }
+
+    boolean isUnregistering()
+    {
+        return m_isUnregistering;
+    }
+
     public synchronized ServiceReference getReference()
     {
         // Make sure registration is valid.
@@ -31,12 +31,15 @@ public class ServiceRegistry
     private long m_currentServiceId = 1L;
     // Maps bundle to an array of service registrations.
     private final Map m_serviceRegsMap = Collections.synchronizedMap(new HashMap());
-    // Maps registration to thread to keep track when a
-    // registration is in use, which will cause other
-    // threads to wait.
-    private Map m_lockedRegsMap = new HashMap();
-    // Maps bundle to an array of usage counts.
-    private Map m_inUseMap = new HashMap();
+    // Maps bundle to an array of usage counts; bundles are striped over
+    // several maps, each guarded by itself, so that bundles can get and
+    // unget services in parallel. The usage counts of a registration are
+    // only modified while holding the registration's usage lock.
+    private final Map[] m_inUseMaps = new Map[IN_USE_STRIPES];
+    // Maps lower-cased indexed property key to a map of property value
+    // to an array of service registrations; the object class property is
+    // always indexed.
+    private final Map m_indexMap = new HashMap();
 
     private final ServiceRegistryCallbacks m_callbacks;
 
@@ -44,10 +47,49 @@ public class ServiceRegistry
     private final Set m_findHooks = new TreeSet(Collections.reverseOrder());
     private final Set m_listenerHooks = new TreeSet(Collections.reverseOrder());
 
+    // Bucket key used for registrations whose indexed property has
+    // a non-string value, which cannot be matched by string equality.
+    private static final Object NON_STRING_VALUE = new Object();
+
+    // Number of maps over which the bundle usage counts are striped.
+    private static final int IN_USE_STRIPES = 16;
+
     public ServiceRegistry(Logger logger, ServiceRegistryCallbacks callbacks)
+    {
+        this(logger, callbacks, null);
+    }
+
+    /**
+     * Creates a service registry that maintains lookup indexes for the
+     * object class property and the specified additional service
+     * properties. Lookups with a filter that requires an exact value for
+     * one of the indexed properties only have to consider the services
+     * with that value, rather than every registered service.
+     * @param logger the framework logger.
+     * @param callbacks the callbacks notified about service events.
+     * @param indexedProps additional service property keys to index or
+     *        <tt>null</tt> if only the object class should be indexed.
+    **/
+    public ServiceRegistry(
+        Logger logger, ServiceRegistryCallbacks callbacks, String[] indexedProps)
     {
         m_logger = logger;
         m_callbacks = callbacks;
+
+        for (int i = 0; i < m_inUseMaps.length; i++)
+        {
+            m_inUseMaps[i] = new HashMap();
+        }
+
+        m_indexMap.put(FelixConstants.OBJECTCLASS.toLowerCase(), new HashMap());
+        for (int i = 0; (indexedProps != null) && (i < indexedProps.length); i++)
+        {
+            String key = indexedProps[i].trim().toLowerCase();
+            if ((key.length() > 0) && (m_indexMap.get(key) == null))
+            {
+                m_indexMap.put(key, new HashMap());
+            }
+        }
     }
 
     public ServiceReference[] getRegisteredServices(Bundle bundle)
@@ -89,6 +131,9 @@ public class ServiceRegistry
             // Get the bundles current registered services.
             ServiceRegistration[] regs = (ServiceRegistration[]) m_serviceRegsMap.get(bundle);
             m_serviceRegsMap.put(bundle, addServiceRegistration(regs, reg));
+
+            // Add the registration to the lookup indexes.
+            indexRegistration((ServiceRegistrationImpl) reg);
         }
 
         // Notify callback objects about registered service.
@@ -108,7 +153,7 @@ public class ServiceRegistry
         synchronized (this)
         {
             // Note that we don't lock the service registration here using
-            // the m_lockedRegsMap because we want to allow bundles to get
+            // its usage lock because we want to allow bundles to get
             // the service during the unregistration process. However, since
             // we do remove the registration from the service registry, no
             // new bundles will be able to look up the service.
@@ -116,6 +161,9 @@ public class ServiceRegistry
             // Now remove the registered service.
             ServiceRegistration[] regs = (ServiceRegistration[]) m_serviceRegsMap.get(bundle);
             m_serviceRegsMap.put(bundle, removeServiceRegistration(regs, reg));
+
+            // Remove the registration from the lookup indexes.
+            unindexRegistration((ServiceRegistrationImpl) reg, null);
         }
 
         // Notify callback objects about unregistering service.
@@ -125,17 +173,21 @@ public class ServiceRegistry
                 new ServiceEvent(ServiceEvent.UNREGISTERING, reg.getReference()), null);
         }
 
+        // Refuse new usages of the service object from now on, so that no
+        // client can get the service after its usages have been collected.
+        ((ServiceRegistrationImpl) reg).closeUsage();
+
         // Now forcibly unget the service object for all stubborn clients.
-        synchronized (this)
+        // We must not hold the registry lock here, since a client might
+        // currently hold the registration's usage lock while calling out
+        // to a service factory that calls back into the registry.
+        Bundle[] clients = getUsingBundles(reg.getReference());
+        for (int i = 0; (clients != null) && (i < clients.length); i++)
         {
-            Bundle[] clients = getUsingBundles(reg.getReference());
-            for (int i = 0; (clients != null) && (i < clients.length); i++)
-            {
-                while (ungetService(clients[i], reg.getReference()))
-                    ; // Keep removing until it is no longer possible
-            }
-            ((ServiceRegistrationImpl) reg).invalidate();
+            while (ungetService(clients[i], reg.getReference()))
+                ; // Keep removing until it is no longer possible
         }
+        ((ServiceRegistrationImpl) reg).invalidate();
     }
 
     /**
@@ -180,69 +232,64 @@ public class ServiceRegistry
         // Create a filtered list of service references.
         List list = new ArrayList();
 
-        Object[] registrations = m_serviceRegsMap.values().toArray();
-        
-        // Iterator over all service registrations.
-        for (int i = 0; i < registrations.length; i++)
-        {
-            ServiceRegistration[] regs = (ServiceRegistration[]) registrations[i];
+        // Use the lookup indexes to get the smallest set of registrations
+        // that can possibly match the search criteria.
+        ServiceRegistration[] regs = getCandidateRegistrations(className, filter);
 
-            for (int regIdx = 0;
-                (regs != null) && (regIdx < regs.length);
-                regIdx++)
+        // Iterator over all candidate service registrations.
+        for (int regIdx = 0; regIdx < regs.length; regIdx++)
+        {
+            try
             {
-                try
-                {
-                    // Determine if the registered services matches
-                    // the search criteria.
-                    boolean matched = false;
+                // Determine if the registered services matches
+                // the search criteria.
+                boolean matched = false;
 
-                    // If className is null, then look at filter only.
-                    if ((className == null) &&
-                        ((filter == null) || filter.match(regs[regIdx].getReference())))
-                    {
-                        matched = true;
-                    }
-                    // If className is not null, then first match the
-                    // objectClass property before looking at the
-                    // filter.
-                    else if (className != null)
+                // If className is null, then look at filter only.
+                if ((className == null) &&
+                    ((filter == null) || filter.match(regs[regIdx].getReference())))
+                {
+                    matched = true;
+                }
+                // If className is not null, then first match the
+                // objectClass property before looking at the
+                // filter.
+                else if (className != null)
+                {
+                    String[] objectClass = (String[])
+                        ((ServiceRegistrationImpl) regs[regIdx])
+                            .getProperty(FelixConstants.OBJECTCLASS);
+                    for (int classIdx = 0;
+                        classIdx < objectClass.length;
+                        classIdx++)
                     {
-                        String[] objectClass = (String[])
-                            ((ServiceRegistrationImpl) regs[regIdx])
-                                .getProperty(FelixConstants.OBJECTCLASS);
-                        for (int classIdx = 0;
-                            classIdx < objectClass.length;
-                            classIdx++)
+                        if (objectClass[classIdx].equals(className) &&
+                            ((filter == null) || filter.match(regs[regIdx].getReference())))
                         {
-                            if (objectClass[classIdx].equals(className) &&
-                                ((filter == null) || filter.match(regs[regIdx].getReference())))
-                            {
-                                matched = true;
-                                break;
-                            }
+                            matched = true;
+                            break;
                         }
                     }
-
-                    // Add reference if it was a match.
-                    if (matched)
-                    {
-                        list.add(regs[regIdx].getReference());
-                    }
                 }
-                catch (IllegalStateException ex)
+
+                // Add reference if it was a match.
+                if (matched)
                 {
-                    // Don't include the reference as it is not valid anymore
+                    list.add(regs[regIdx].getReference());
                 }
             }
+            catch (IllegalStateException ex)
+            {
+                // Don't include the reference as it is not valid anymore
+            }
         }
 
         return list;
     }
 
-    public synchronized ServiceReference[] getServicesInUse(Bundle bundle)
+    public ServiceReference[] getServicesInUse(Bundle bundle)
     {
-        UsageCount[] usages = (UsageCount[]) m_inUseMap.get(bundle);
+        UsageCount[] usages = getUsageCounts(bundle);
         if (usages != null)
         {
             ServiceReference[] refs = new ServiceReference[usages.length];
@@ -264,34 +311,16 @@ public class ServiceRegistry
         ServiceRegistrationImpl reg =
             ((ServiceRegistrationImpl.ServiceReferenceImpl) ref).getRegistration();
 
-        synchronized (this)
-        {
-            // First make sure that no existing operation is currently
-            // being performed by another thread on the service registration.
-            for (Object o = m_lockedRegsMap.get(reg); (o != null); o = m_lockedRegsMap.get(reg))
-            {
-                // We don't allow cycles when we call out to the service factory.
-                if (o.equals(Thread.currentThread()))
-                {
-                    throw new IllegalStateException(
-                        "ServiceFactory.getService() resulted in a cycle.");
-                }
+        // First make sure that no existing operation is currently being
+        // performed by another thread on the service registration and
+        // lock it, which also guards its usage counts.
+        reg.lockUsage("getService");
 
-                // Otherwise, wait for it to be freed.
-                try
-                {
-                    wait();
-                }
-                catch (InterruptedException ex)
-                {
-                }
-            }
-
-            // Lock the service registration.
-            m_lockedRegsMap.put(reg, Thread.currentThread());
-
-            // Make sure the service registration is still valid.
-            if (reg.isValid())
+        try
+        {
+            // Make sure the service registration is still valid and
+            // is not being ungotten from its clients.
+            if (reg.isValid() && !reg.isUsageClosed())
             {
                 // Get the usage count, if any.
                 usage = getUsageCount(bundle, ref);
@@ -309,14 +338,11 @@ public class ServiceRegistry
                 usage.m_count++;
                 svcObj = usage.m_svcObj;
             }
-        }
 
-        // If we have a usage count, but no service object, then we haven't
-        // cached the service object yet, so we need to create one now without
-        // holding the lock, since we will potentially call out to a service
-        // factory.
-        try
-        {
+            // If we have a usage count, but no service object, then we haven't
+            // cached the service object yet, so we need to create one now;
+            // we only hold the registration's lock, since we will potentially
+            // call out to a service factory.
             if ((usage != null) && (svcObj == null))
             {
                 svcObj = reg.getService(bundle);
@@ -328,11 +354,11 @@ public class ServiceRegistry
             // cache it in the usage count. If not, we should flush the usage
             // count. Either way, we need to unlock the service registration
             // so that any threads waiting for it can continue.
-            synchronized (this)
+            if (usage != null)
             {
                 // Before caching the service object, double check to see if
                 // the registration is still valid, since it may have been
-                // unregistered while we didn't hold the lock.
+                // unregistered in the meantime.
                 if (!reg.isValid() || (svcObj == null))
                 {
                     flushUsageCount(bundle, ref);
@@ -341,9 +367,8 @@ public class ServiceRegistry
                 {
                     usage.m_svcObj = svcObj;
                 }
-                m_lockedRegsMap.remove(reg);
-                notifyAll();
             }
+            reg.unlockUsage();
         }
 
         return svcObj;
@@ -355,29 +380,13 @@ public class ServiceRegistry
         ServiceRegistrationImpl reg =
             ((ServiceRegistrationImpl.ServiceReferenceImpl) ref).getRegistration();
 
-        synchronized (this)
-        {
-            // First make sure that no existing operation is currently
-            // being performed by another thread on the service registration.
-            for (Object o = m_lockedRegsMap.get(reg); (o != null); o = m_lockedRegsMap.get(reg))
-            {
-                // We don't allow cycles when we call out to the service factory.
-                if (o.equals(Thread.currentThread()))
-                {
-                    throw new IllegalStateException(
-                        "ServiceFactory.ungetService() resulted in a cycle.");
-                }
-
-                // Otherwise, wait for it to be freed.
-                try
-                {
-                    wait();
-                }
-                catch (InterruptedException ex)
-                {
-                }
-            }
+        // First make sure that no existing operation is currently being
+        // performed by another thread on the service registration and
+        // lock it, which also guards its usage counts.
+        reg.lockUsage("ungetService");
 
+        try
+        {
             // Get the usage count.
             usage = getUsageCount(bundle, ref);
             // If there is no cached services, then just return immediately.
@@ -386,29 +395,22 @@ public class ServiceRegistry
                 return false;
             }
 
-            // Lock the service registration.
-            m_lockedRegsMap.put(reg, Thread.currentThread());
-        }
-
-        // If usage count will go to zero, then unget the service
-        // from the registration; we do this outside the lock
-        // since this might call out to the service factory.
-        try
-        {
+            // If usage count will go to zero, then unget the service
+            // from the registration; we only hold the registration's lock,
+            // since this might call out to the service factory.
             if (usage.m_count == 1)
             {
                 // Remove reference from usages array.
-                ((ServiceRegistrationImpl.ServiceReferenceImpl) ref)
-                    .getRegistration().ungetService(bundle, usage.m_svcObj);
+                reg.ungetService(bundle, usage.m_svcObj);
             }
         }
         finally
         {
             // Finally, decrement usage count and flush if it goes to zero or
-            // the registration became invalid while we were not holding the
-            // lock. Either way, unlock the service registration so that any
-            // threads waiting for it can continue.
-            synchronized (this)
+            // the registration became invalid in the meantime. Either way,
+            // unlock the service registration so that any threads waiting
+            // for it can continue.
+            if (usage != null)
             {
                 // Decrement usage count, which spec says should happen after
                 // ungetting the service object.
@@ -421,18 +423,13 @@ public class ServiceRegistry
                     usage.m_svcObj = null;
                     flushUsageCount(bundle, ref);
                 }
-
-                // Release the registration lock so any waiting threads can
-                // continue.
-                m_lockedRegsMap.remove(reg);
-                notifyAll();
             }
+            reg.unlockUsage();
         }
 
         return true;
     }
 
-
     /**
      * This is a utility method to release all services being
      * used by the specified bundle.
@@ -440,11 +437,7 @@ public class ServiceRegistry
     **/
     public void ungetServices(Bundle bundle)
     {
-        UsageCount[] usages;
-        synchronized (this)
-        {
-            usages = (UsageCount[]) m_inUseMap.get(bundle);
-        }
+        UsageCount[] usages = getUsageCounts(bundle);
 
         if (usages == null)
         {
@@ -468,29 +461,35 @@ public class ServiceRegistry
         }
     }
 
-    public synchronized Bundle[] getUsingBundles(ServiceReference ref)
-    {        
+    public Bundle[] getUsingBundles(ServiceReference ref)
+    {
         Bundle[] bundles = null;
-        for (Iterator iter = m_inUseMap.entrySet().iterator(); iter.hasNext(); )
+        for (int stripe = 0; stripe < m_inUseMaps.length; stripe++)
         {
-            Map.Entry entry = (Map.Entry) iter.next();
-            Bundle bundle = (Bundle) entry.getKey();
-            UsageCount[] usages = (UsageCount[]) entry.getValue();
-            for (int useIdx = 0; useIdx < usages.length; useIdx++)
+            synchronized (m_inUseMaps[stripe])
             {
-                if (usages[useIdx].m_ref.equals(ref))
+                for (Iterator iter = m_inUseMaps[stripe].entrySet().iterator(); iter.hasNext(); )
                 {
-                    // Add the bundle to the array to be returned.
-                    if (bundles == null)
+                    Map.Entry entry = (Map.Entry) iter.next();
+                    Bundle bundle = (Bundle) entry.getKey();
+                    UsageCount[] usages = (UsageCount[]) entry.getValue();
+                    for (int useIdx = 0; useIdx < usages.length; useIdx++)
                     {
-                        bundles = new Bundle[] { bundle };
-                    }
-                    else
-                    {
-                        Bundle[] nbs = new Bundle[bundles.length + 1];
-                        System.arraycopy(bundles, 0, nbs, 0, bundles.length);
-                        nbs[bundles.length] = bundle;
-                        bundles = nbs;
+                        if (usages[useIdx].m_ref.equals(ref))
+                        {
+                            // Add the bundle to the array to be returned.
+                            if (bundles == null)
+                            {
+                                bundles = new Bundle[] { bundle };
+                            }
+                            else
+                            {
+                                Bundle[] nbs = new Bundle[bundles.length + 1];
+                                System.arraycopy(bundles, 0, nbs, 0, bundles.length);
+                                nbs[bundles.length] = bundle;
+                                bundles = nbs;
+                            }
+                        }
                     }
                 }
             }
@@ -500,6 +499,19 @@ public class ServiceRegistry
 
     void servicePropertiesModified(ServiceRegistration reg, Dictionary oldProps)
     {
+        // Update the lookup indexes for the modified properties.
+        synchronized (this)
+        {
+            ServiceRegistrationImpl regImpl = (ServiceRegistrationImpl) reg;
+            unindexRegistration(regImpl, oldProps);
+            // Do not re-index a registration that is being unregistered,
+            // since it has already been removed from the indexes.
+            if (regImpl.isValid() && !regImpl.isUnregistering())
+            {
+                indexRegistration(regImpl);
+            }
+        }
+
         if (m_callbacks != null)
         {
             m_callbacks.serviceChanged(
@@ -558,6 +570,284 @@ public class ServiceRegistry
         return regs;
     }
 
+    /**
+     * Returns the registrations that can possibly match the specified
+     * class name and filter. If the class name is specified or the filter
+     * requires an exact value for an indexed property, then the smallest
+     * matching index bucket is returned; otherwise, all registrations are
+     * returned. The returned registrations still need to be matched against
+     * the search criteria.
+     * @param className the service class name or <tt>null</tt>.
+     * @param filter the service filter or <tt>null</tt>.
+     * @return an array of candidate registrations, never <tt>null</tt>.
+    **/
+    private ServiceRegistration[] getCandidateRegistrations(
+        String className, Filter filter)
+    {
+        Map terms = (filter == null) ? new HashMap() : getEqualityTerms(filter);
+        if (className != null)
+        {
+            terms.put(FelixConstants.OBJECTCLASS.toLowerCase(), className);
+        }
+
+        if (terms.size() > 0)
+        {
+            ServiceRegistration[] candidates = null;
+            synchronized (m_indexMap)
+            {
+                for (Iterator it = terms.entrySet().iterator(); it.hasNext(); )
+                {
+                    Map.Entry entry = (Map.Entry) it.next();
+                    Map valueMap = (Map) m_indexMap.get(entry.getKey());
+                    if (valueMap != null)
+                    {
+                        ServiceRegistration[] regs = concatServiceRegistrations(
+                            (ServiceRegistration[]) valueMap.get(entry.getValue()),
+                            (ServiceRegistration[]) valueMap.get(NON_STRING_VALUE));
+                        if ((candidates == null) || (regs.length < candidates.length))
+                        {
+                            candidates = regs;
+                        }
+                    }
+                }
+            }
+            if (candidates != null)
+            {
+                return candidates;
+            }
+        }
+
+        // No index applies, so consider all registrations.
+        List list = new ArrayList();
+        Object[] registrations = m_serviceRegsMap.values().toArray();
+        for (int i = 0; i < registrations.length; i++)
+        {
+            ServiceRegistration[] regs = (ServiceRegistration[]) registrations[i];
+            for (int regIdx = 0; (regs != null) && (regIdx < regs.length); regIdx++)
+            {
+                list.add(regs[regIdx]);
+            }
+        }
+        return (ServiceRegistration[]) list.toArray(new ServiceRegistration[list.size()]);
+    }
+
+    /**
+     * Adds the specified registration to the lookup indexes using its
+     * current property values.
+     * @param reg the registration to index.
+    **/
+    private void indexRegistration(ServiceRegistrationImpl reg)
+    {
+        synchronized (m_indexMap)
+        {
+            for (Iterator it = m_indexMap.entrySet().iterator(); it.hasNext(); )
+            {
+                Map.Entry entry = (Map.Entry) it.next();
+                Map valueMap = (Map) entry.getValue();
+                Object[] values = getIndexValues(reg.getProperty((String) entry.getKey()));
+                for (int i = 0; i < values.length; i++)
+                {
+                    ServiceRegistration[] regs = (ServiceRegistration[]) valueMap.get(values[i]);
+                    if (!containsServiceRegistration(regs, reg))
+                    {
+                        valueMap.put(values[i], addServiceRegistration(regs, reg));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the specified registration from the lookup indexes.
+     * @param reg the registration to remove.
+     * @param props the properties under which the registration was indexed
+     *        or <tt>null</tt> to use its current properties.
+    **/
+    private void unindexRegistration(ServiceRegistrationImpl reg, Dictionary props)
+    {
+        synchronized (m_indexMap)
+        {
+            for (Iterator it = m_indexMap.entrySet().iterator(); it.hasNext(); )
+            {
+                Map.Entry entry = (Map.Entry) it.next();
+                Map valueMap = (Map) entry.getValue();
+                String key = (String) entry.getKey();
+                Object[] values = getIndexValues(
+                    (props == null) ? reg.getProperty(key) : props.get(key));
+                for (int i = 0; i < values.length; i++)
+                {
+                    ServiceRegistration[] regs = removeServiceRegistration(
+                        (ServiceRegistration[]) valueMap.get(values[i]), reg);
+                    if ((regs == null) || (regs.length == 0))
+                    {
+                        valueMap.remove(values[i]);
+                    }
+                    else
+                    {
+                        valueMap.put(values[i], regs);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the index bucket keys for the specified property value. String
+     * values and string arrays or collections are indexed by each string;
+     * any other value is indexed under a single bucket that is included
+     * in every lookup for the property.
+     * @param value the property value, may be <tt>null</tt>.
+     * @return the bucket keys for the value, never <tt>null</tt>.
+    **/
+    private static Object[] getIndexValues(Object value)
+    {
+        if (value == null)
+        {
+            return new Object[0];
+        }
+        else if (value instanceof String)
+        {
+            return new Object[] { value };
+        }
+        else if (value instanceof String[])
+        {
+            return (String[]) value;
+        }
+        else if (value instanceof Collection)
+        {
+            Object[] values = ((Collection) value).toArray();
+            for (int i = 0; i < values.length; i++)
+            {
+                if (!(values[i] instanceof String))
+                {
+                    return new Object[] { NON_STRING_VALUE };
+                }
+            }
+            return values;
+        }
+        return new Object[] { NON_STRING_VALUE };
+    }
+
+    /**
+     * Returns the top-level "attr=value" terms of the specified filter
+     * that must all be satisfied for the filter to match, which is either
+     * the filter itself or the operands of a top-level conjunction. The
+     * attribute names are lower-cased and the values are unescaped.
+     * Filters that do not have this form result in an empty map.
+     * @param filter the filter to analyze.
+     * @return a map of attribute name to required value.
+    **/
+    private static Map getEqualityTerms(Filter filter)
+    {
+        Map terms = new HashMap();
+        // The framework's filters can be analyzed directly, other filters
+        // have to be analyzed using their filter string.
+        if (filter instanceof FilterImpl)
+        {
+            ((FilterImpl) filter).getEqualityTerms(terms);
+            return terms;
+        }
+        String s = filter.toString();
+        if (s.startsWith("(&") && s.endsWith(")"))
+        {
+            int depth = 0;
+            int start = -1;
+            for (int i = 2; i < s.length() - 1; i++)
+            {
+                char c = s.charAt(i);
+                if (c == '\\')
+                {
+                    i++;
+                }
+                else if (c == '(')
+                {
+                    if (depth == 0)
+                    {
+                        start = i;
+                    }
+                    depth++;
+                }
+                else if (c == ')')
+                {
+                    depth--;
+                    if ((depth == 0) && (start >= 0))
+                    {
+                        addEqualityTerm(terms, s.substring(start + 1, i));
+                    }
+                }
+            }
+        }
+        else if (s.startsWith("(") && s.endsWith(")"))
+        {
+            addEqualityTerm(terms, s.substring(1, s.length() - 1));
+        }
+        return terms;
+    }
+
+    private static void addEqualityTerm(Map terms, String term)
+    {
+        // Ignore nested expressions.
+        if ((term.length() == 0) || ("&|!(".indexOf(term.charAt(0)) >= 0))
+        {
+            return;
+        }
+        // Ignore approximate, greater, and less than comparisons.
+        int idx = term.indexOf('=');
+        if ((idx <= 0) || ("~<>".indexOf(term.charAt(idx - 1)) >= 0))
+        {
+            return;
+        }
+        StringBuffer sb = new StringBuffer();
+        for (int i = idx + 1; i < term.length(); i++)
+        {
+            char c = term.charAt(i);
+            if ((c == '\\') && (i + 1 < term.length()))
+            {
+                sb.append(term.charAt(++i));
+            }
+            // Ignore presence and substring comparisons.
+            else if (c == '*')
+            {
+                return;
+            }
+            else
+            {
+                sb.append(c);
+            }
+        }
+        terms.put(term.substring(0, idx).trim().toLowerCase(), sb.toString());
+    }
+
+    private static boolean containsServiceRegistration(
+        ServiceRegistration[] regs, ServiceRegistration reg)
+    {
+        for (int i = 0; (regs != null) && (i < regs.length); i++)
+        {
+            if (regs[i] == reg)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static ServiceRegistration[] concatServiceRegistrations(
+        ServiceRegistration[] regs1, ServiceRegistration[] regs2)
+    {
+        if (regs1 == null)
+        {
+            return (regs2 == null) ? new ServiceRegistration[0] : regs2;
+        }
+        else if (regs2 == null)
+        {
+            return regs1;
+        }
+        ServiceRegistration[] regs = new ServiceRegistration[regs1.length + regs2.length];
+        System.arraycopy(regs1, 0, regs, 0, regs1.length);
+        System.arraycopy(regs2, 0, regs, regs1.length, regs2.length);
+        return regs;
+    }
+
     /**
      * Utility method to retrieve the specified bundle's usage count for the
      * specified service reference.
@@ -567,7 +857,7 @@ public class ServiceRegistry
     **/
     private UsageCount getUsageCount(Bundle bundle, ServiceReference ref)
     {
-        UsageCount[] usages = (UsageCount[]) m_inUseMap.get(bundle);
+        UsageCount[] usages = getUsageCounts(bundle);
         for (int i = 0; (usages != null) && (i < usages.length); i++)
         {
             if (usages[i].m_ref.equals(ref))
@@ -590,24 +880,28 @@ public class ServiceRegistry
     **/
     private UsageCount addUsageCount(Bundle bundle, ServiceReference ref)
     {
-        UsageCount[] usages = (UsageCount[]) m_inUseMap.get(bundle);
-
         UsageCount usage = new UsageCount();
         usage.m_ref = ref;
 
-        if (usages == null)
-        {
-            usages = new UsageCount[] { usage };
-        }
-        else
+        Map inUseMap = getInUseMap(bundle);
+        synchronized (inUseMap)
         {
-            UsageCount[] newUsages = new UsageCount[usages.length + 1];
-            System.arraycopy(usages, 0, newUsages, 0, usages.length);
-            newUsages[usages.length] = usage;
-            usages = newUsages;
-        }
+            UsageCount[] usages = (UsageCount[]) inUseMap.get(bundle);
 
-        m_inUseMap.put(bundle, usages);
+            if (usages == null)
+            {
+                usages = new UsageCount[] { usage };
+            }
+            else
+            {
+                UsageCount[] newUsages = new UsageCount[usages.length + 1];
+                System.arraycopy(usages, 0, newUsages, 0, usages.length);
+                newUsages[usages.length] = usage;
+                usages = newUsages;
+            }
+
+            inUseMap.put(bundle, usages);
+        }
 
         return usage;
     }
@@ -626,38 +920,70 @@ public class ServiceRegistry
     **/
     private void flushUsageCount(Bundle bundle, ServiceReference ref)
     {
-        UsageCount[] usages = (UsageCount[]) m_inUseMap.get(bundle);
-        for (int i = 0; (usages != null) && (i < usages.length); i++)
+        Map inUseMap = getInUseMap(bundle);
+        synchronized (inUseMap)
         {
-            if (usages[i].m_ref.equals(ref))
+            UsageCount[] usages = (UsageCount[]) inUseMap.get(bundle);
+            for (int i = 0; (usages != null) && (i < usages.length); i++)
             {
-                // If this is the only usage, then point to empty list.
-                if ((usages.length - 1) == 0)
+                if (usages[i].m_ref.equals(ref))
                 {
-                    usages = null;
-                }
-                // Otherwise, we need to do some array copying.
-                else
-                {
-                    UsageCount[] newUsages = new UsageCount[usages.length - 1];
-                    System.arraycopy(usages, 0, newUsages, 0, i);
-                    if (i < newUsages.length)
+                    // If this is the only usage, then point to empty list.
+                    if ((usages.length - 1) == 0)
                     {
-                        System.arraycopy(
-                            usages, i + 1, newUsages, i, newUsages.length - i);
+                        usages = null;
+                    }
+                    // Otherwise, we need to do some array copying.
+                    else
+                    {
+                        UsageCount[] newUsages = new UsageCount[usages.length - 1];
+                        System.arraycopy(usages, 0, newUsages, 0, i);
+                        if (i < newUsages.length)
+                        {
+                            System.arraycopy(
+                                usages, i + 1, newUsages, i, newUsages.length - i);
+                        }
+                        usages = newUsages;
                     }
-                    usages = newUsages;
                 }
             }
-        }
 
-        if (usages != null)
-        {
-            m_inUseMap.put(bundle, usages);
+            if (usages != null)
+            {
+                inUseMap.put(bundle, usages);
+            }
+            else
+            {
+                inUseMap.remove(bundle);
+            }
         }
-        else
+    }
+
+    /**
+     * Returns the map holding the usage counts of the specified bundle.
+     * @param bundle The bundle whose usage count map should be returned.
+     * @return The usage count map stripe of the bundle.
+    **/
+    private Map getInUseMap(Bundle bundle)
+    {
+        int hash = bundle.hashCode();
+        hash ^= (hash >>> 16);
+        return m_inUseMaps[(hash & 0x7fffffff) % m_inUseMaps.length];
+    }
+
+    /**
+     * Returns the current usage count array of the specified bundle. The
+     * returned array is never modified, since usage count arrays are
+     * replaced rather than modified when usage counts are added or removed.
+     * @param bundle The bundle whose usage counts should be returned.
+     * @return The bundle's usage counts or null if it uses no services.
+    **/
+    private UsageCount[] getUsageCounts(Bundle bundle)
+    {
+        Map inUseMap = getInUseMap(bundle);
+        synchronized (inUseMap)
         {
-            m_inUseMap.remove(bundle);
+            return (UsageCount[]) inUseMap.get(bundle);
         }
     }
 
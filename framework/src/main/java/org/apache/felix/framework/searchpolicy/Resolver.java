@@ -204,6 +204,134 @@ public class Resolver
         return null;
     }
 
+    /**
+     * Partitions the specified root modules into groups that can be resolved
+     * independently of each other. Two root modules end up in the same group
+     * if the unresolved modules transitively reachable from their requirements
+     * overlap or if they reach different versions of the same singleton, since
+     * only then can the outcome of resolving one of them influence the other.
+     * The resulting groups and the root modules within each group retain
+     * the order of the specified root modules.
+     * @param state the resolver state used to find unresolved candidates.
+     * @param rootModules the root modules to partition; <tt>null</tt> entries
+     *        and already resolved modules are ignored.
+     * @return a list of <tt>IModule[]</tt> groups.
+    **/
+    public static List partitionRootModules(ResolverState state, IModule[] rootModules)
+    {
+        // Maps each reachable unresolved module to its parent module in
+        // the union-find forest used to merge dependent modules.
+        Map parentMap = new HashMap();
+        // Maps singleton symbolic names to the first module found for them.
+        Map singletonMap = new HashMap();
+        List queue = new ArrayList();
+
+        for (int rootIdx = 0; rootIdx < rootModules.length; rootIdx++)
+        {
+            IModule rootModule = rootModules[rootIdx];
+            if ((rootModule == null) || rootModule.isResolved()
+                || parentMap.containsKey(rootModule))
+            {
+                continue;
+            }
+
+            parentMap.put(rootModule, rootModule);
+            queue.add(rootModule);
+            while (queue.size() > 0)
+            {
+                IModule module = (IModule) queue.remove(queue.size() - 1);
+
+                if (isSingleton(module))
+                {
+                    IModule other = (IModule) singletonMap.get(module.getSymbolicName());
+                    if (other == null)
+                    {
+                        singletonMap.put(module.getSymbolicName(), module);
+                    }
+                    else
+                    {
+                        union(parentMap, module, other);
+                    }
+                }
+
+                IRequirement[] reqs = module.getRequirements();
+                for (int reqIdx = 0; (reqs != null) && (reqIdx < reqs.length); reqIdx++)
+                {
+                    List candidates = state.getUnresolvedCandidates(reqs[reqIdx]);
+                    for (int candIdx = 0; candIdx < candidates.size(); candIdx++)
+                    {
+                        IModule provider = ((ICapability) candidates.get(candIdx)).getModule();
+                        if (!parentMap.containsKey(provider))
+                        {
+                            parentMap.put(provider, provider);
+                            queue.add(provider);
+                        }
+                        union(parentMap, module, provider);
+                    }
+                }
+            }
+        }
+
+        // Collect the root modules of each group in order.
+        Map groupMap = new HashMap();
+        List groupList = new ArrayList();
+        for (int rootIdx = 0; rootIdx < rootModules.length; rootIdx++)
+        {
+            IModule rootModule = rootModules[rootIdx];
+            if ((rootModule == null) || !parentMap.containsKey(rootModule))
+            {
+                continue;
+            }
+            Object key = find(parentMap, rootModule);
+            List group = (List) groupMap.get(key);
+            if (group == null)
+            {
+                group = new ArrayList();
+                groupMap.put(key, group);
+                groupList.add(group);
+            }
+            if (!group.contains(rootModule))
+            {
+                group.add(rootModule);
+            }
+        }
+
+        for (int i = 0; i < groupList.size(); i++)
+        {
+            List group = (List) groupList.get(i);
+            groupList.set(i, group.toArray(new IModule[group.size()]));
+        }
+
+        return groupList;
+    }
+
+    private static Object find(Map parentMap, Object module)
+    {
+        Object root = module;
+        while (parentMap.get(root) != root)
+        {
+            root = parentMap.get(root);
+        }
+        // Compress the path to the root.
+        while (module != root)
+        {
+            Object parent = parentMap.get(module);
+            parentMap.put(module, root);
+            module = parent;
+        }
+        return root;
+    }
+
+    private static void union(Map parentMap, Object module1, Object module2)
+    {
+        Object root1 = find(parentMap, module1);
+        Object root2 = find(parentMap, module2);
+        if (root1 != root2)
+        {
+            parentMap.put(root2, root1);
+        }
+    }
+
     public static IRequirement findAllowedDynamicImport(IModule importer, String pkgName)
     {
         // If any of the module exports this package, then we cannot
@@ -530,7 +658,9 @@ public class Resolver
         // resolved packages that are accessible by the given
         // module. The set of resolved packages is calculated
         // from the current candidates of the candidates map
-        // and the module's metadata.
+        // and the module's metadata. It is kept across candidate
+        // permutations and only entries affected by the changed
+        // candidates are recalculated.
         Map moduleMap = new HashMap();
 
         // Reusable map used to test for cycles.
@@ -605,8 +735,9 @@ public class Resolver
                 m_candidatesRotated = false;
             }
 
-            // Clear the module map.
-            moduleMap.clear();
+            // Remove the package spaces from the module map that depend
+            // on candidates that are no longer selected.
+            invalidateModulePackages(moduleMap);
 
             // Clear the cycle map.
             cycleMap.clear();
@@ -907,6 +1038,25 @@ public class Resolver
         throws ResolveException
     {
 //System.out.println("calculateUsesConstraints("+targetModule+")");
+        // Get all packages accessible by the target module.
+        ModulePackages target = getModulePackagesEntry(moduleMap, targetModule, candidatesMap);
+        Map pkgMap = target.m_pkgMap;
+
+        // If the uses constraints were calculated from package spaces that
+        // are all still current, then they are still valid too.
+        if (target.m_usesMap != null)
+        {
+            boolean valid = true;
+            for (int i = 0; valid && (i < target.m_usesDeps.length); i++)
+            {
+                valid = (moduleMap.get(target.m_usesDeps[i].m_module) == target.m_usesDeps[i]);
+            }
+            if (valid)
+            {
+                return target.m_usesMap;
+            }
+        }
+
         // Map to store calculated uses constraints. This maps a
         // package name to a list of resolved packages, where each
         // resolved package represents a constraint on anyone
@@ -917,9 +1067,6 @@ public class Resolver
         // Re-usable map to detect cycles.
         Map cycleMap = new HashMap();
 
-        // Get all packages accessible by the target module.
-        Map pkgMap = getModulePackages(moduleMap, targetModule, candidatesMap);
-
         // Each package accessible from the target module is potentially
         // comprised of one or more capabilities. The "uses" constraints
         // implied by all capabilities must be calculated and combined to
@@ -936,6 +1083,18 @@ public class Resolver
                     moduleMap, usesMap, cycleMap, candidatesMap);
             }
         }
+
+        // Remember the uses constraints along with the package spaces they
+        // were calculated from, which are the package spaces of the modules
+        // of all visited capabilities.
+        Set deps = new HashSet();
+        for (Iterator iter = cycleMap.keySet().iterator(); iter.hasNext(); )
+        {
+            deps.add(moduleMap.get(((ICapability) iter.next()).getModule()));
+        }
+        target.m_usesMap = usesMap;
+        target.m_usesDeps = (ModulePackages[]) deps.toArray(new ModulePackages[deps.size()]);
+
         return usesMap;
     }
 
@@ -1003,14 +1162,40 @@ public class Resolver
     private static Map getModulePackages(Map moduleMap, IModule module, Map candidatesMap)
         throws ResolveException
     {
-        Map map = (Map) moduleMap.get(module);
+        return getModulePackagesEntry(moduleMap, module, candidatesMap).m_pkgMap;
+    }
+
+    private static ModulePackages getModulePackagesEntry(
+        Map moduleMap, IModule module, Map candidatesMap)
+        throws ResolveException
+    {
+        ModulePackages entry = (ModulePackages) moduleMap.get(module);
 
-        if (map == null)
+        if (entry == null)
         {
-            map = calculateModulePackages(module, candidatesMap);
-            moduleMap.put(module, map);
+            entry = new ModulePackages(
+                module, calculateModulePackages(module, candidatesMap), candidatesMap);
+            moduleMap.put(module, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Removes all package spaces from the specified module map that were
+     * calculated from candidates that are no longer selected, so that only
+     * those package spaces are recalculated for a new candidate permutation.
+     * @param moduleMap the module map to update.
+    **/
+    private static void invalidateModulePackages(Map moduleMap)
+    {
+        for (Iterator iter = moduleMap.entrySet().iterator(); iter.hasNext(); )
+        {
+            ModulePackages entry = (ModulePackages) ((Map.Entry) iter.next()).getValue();
+            if (!entry.isCurrent())
+            {
+                iter.remove();
+            }
         }
-        return map;
     }
 
     /**
@@ -1728,4 +1913,73 @@ public class Resolver
         List getResolvedCandidates(IRequirement req);
         List getUnresolvedCandidates(IRequirement req);
     }
-}
\ No newline at end of file
+
+    /**
+     * The cached package space of a module along with the candidates it was
+     * calculated from. The package space of an unresolved module depends on
+     * the selected candidates of its own candidate sets and, because of
+     * required bundles, on the candidate sets of the unresolved modules it
+     * transitively requires. The package space of a resolved module only
+     * depends on its wires, so it never changes during a resolve. The uses
+     * constraints calculated for the module are cached too, along with the
+     * package spaces they were calculated from.
+    **/
+    private static class ModulePackages
+    {
+        public final IModule m_module;
+        public final Map m_pkgMap;
+        private final CandidateSet[] m_candSets;
+        private final ICapability[] m_selected;
+        public Map m_usesMap = null;
+        public ModulePackages[] m_usesDeps = null;
+
+        public ModulePackages(IModule module, Map pkgMap, Map candidatesMap)
+        {
+            m_module = module;
+            m_pkgMap = pkgMap;
+
+            // Remember the currently selected candidates of all candidate sets
+            // the package space might depend on.
+            List candSets = new ArrayList();
+            addCandidateSets(module, candidatesMap, candSets, new HashSet());
+            m_candSets = (CandidateSet[]) candSets.toArray(new CandidateSet[candSets.size()]);
+            m_selected = new ICapability[m_candSets.length];
+            for (int i = 0; i < m_candSets.length; i++)
+            {
+                m_selected[i] = (ICapability) m_candSets[i].m_candidates.get(m_candSets[i].m_idx);
+            }
+        }
+
+        public boolean isCurrent()
+        {
+            for (int i = 0; i < m_candSets.length; i++)
+            {
+                if (m_candSets[i].m_candidates.get(m_candSets[i].m_idx) != m_selected[i])
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static void addCandidateSets(
+            IModule module, Map candidatesMap, List candSets, Set visited)
+        {
+            List candSetList = (List) candidatesMap.get(module);
+            if ((candSetList == null) || !visited.add(module))
+            {
+                return;
+            }
+            for (int i = 0; i < candSetList.size(); i++)
+            {
+                CandidateSet cs = (CandidateSet) candSetList.get(i);
+                candSets.add(cs);
+                ICapability candCap = (ICapability) cs.m_candidates.get(cs.m_idx);
+                if (candCap.getNamespace().equals(ICapability.MODULE_NAMESPACE))
+                {
+                    addCandidateSets(candCap.getModule(), candidatesMap, candSets, visited);
+                }
+            }
+        }
+    }
+}
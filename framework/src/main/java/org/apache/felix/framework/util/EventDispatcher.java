@@ -21,14 +21,18 @@ package org.apache.felix.framework.util;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Dictionary;
 import java.util.EventListener;
 import java.util.EventObject;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 
+import org.apache.felix.framework.FilterImpl;
 import org.apache.felix.framework.InvokeHookCallback;
 import org.apache.felix.framework.Logger;
 import org.apache.felix.framework.ServiceRegistry;
@@ -70,6 +74,9 @@ public class EventDispatcher
     private Object[] m_bundleListeners = m_emptyList;
     private Object[] m_syncBundleListeners = m_emptyList;
     private Object[] m_serviceListeners = m_emptyList;
+    // Index of the service listeners by the object class their filter
+    // requires; it is created lazily and discarded when listeners change.
+    private ServiceListenerIndex m_serviceListenerIndex = null;
 
     // A single thread is used to deliver events for all dispatchers.
     private static Thread m_thread = null;
@@ -81,15 +88,48 @@ public class EventDispatcher
     private static final ArrayList m_requestList = new ArrayList();
     // Pooled requests to avoid memory allocation.
     private static final ArrayList m_requestPool = new ArrayList();
+    // Statistics for the single dispatch thread, guarded by the request list.
+    private static int m_maxRequests = 0;
+    private static long m_deliveredRequests = 0;
 
-    private EventDispatcher(Logger logger)
+    // Alternatively, a dispatcher may deliver asynchronous events using
+    // its own pool of threads; this is null if the single thread is used.
+    private final DispatchPool m_pool;
+
+    private EventDispatcher(Logger logger, int threadCount)
     {
         m_logger = logger;
+        m_pool = (threadCount > 0) ? new DispatchPool(threadCount) : null;
     }
 
     public static EventDispatcher start(Logger logger)
     {
-        EventDispatcher eventDispatcher = new EventDispatcher(logger);
+        return start(logger, 0);
+    }
+
+    /**
+     * Creates an event dispatcher. If the specified thread count is greater
+     * than zero, then the dispatcher delivers asynchronous events with its own
+     * pool of threads. Events are queued per listener bundle, where each queue
+     * is served by at most one thread at a time, so every listener receives its
+     * events in order while listeners of different bundles receive them
+     * concurrently. Otherwise, asynchronous events of all dispatchers are
+     * delivered by a single shared thread.
+     * @param logger the logger for delivery errors.
+     * @param threadCount the number of dispatch threads for this dispatcher or
+     *        zero to use the single shared dispatch thread.
+     * @return the started event dispatcher.
+    **/
+    public static EventDispatcher start(Logger logger, int threadCount)
+    {
+        EventDispatcher eventDispatcher = new EventDispatcher(logger, threadCount);
+
+        // A dispatcher with its own pool does not need the shared thread.
+        if (eventDispatcher.m_pool != null)
+        {
+            eventDispatcher.m_pool.start();
+            return eventDispatcher;
+        }
 
         synchronized (m_threadLock)
         {
@@ -134,6 +174,75 @@ public class EventDispatcher
         m_serviceRegistry = sr;
     }
 
+    /**
+     * Stops asynchronous event delivery for this dispatcher once all queued
+     * events have been delivered. If the dispatcher uses the single shared
+     * dispatch thread, then this is the same as calling <tt>shutdown()</tt>.
+    **/
+    public void stop()
+    {
+        if (m_pool != null)
+        {
+            m_pool.stop();
+        }
+        else
+        {
+            shutdown();
+        }
+    }
+
+    /**
+     * Returns the number of asynchronous event deliveries that are currently
+     * queued. If the single shared dispatch thread is used, then this includes
+     * the deliveries queued by all dispatchers.
+     * @return the number of queued deliveries.
+    **/
+    public int getQueueDepth()
+    {
+        if (m_pool != null)
+        {
+            return m_pool.getQueueDepth();
+        }
+        synchronized (m_requestList)
+        {
+            return m_requestList.size();
+        }
+    }
+
+    /**
+     * Returns the largest number of asynchronous event deliveries that were
+     * queued at the same time.
+     * @return the maximum queue depth.
+    **/
+    public int getMaxQueueDepth()
+    {
+        if (m_pool != null)
+        {
+            return m_pool.getMaxQueueDepth();
+        }
+        synchronized (m_requestList)
+        {
+            return m_maxRequests;
+        }
+    }
+
+    /**
+     * Returns the number of asynchronous event deliveries that have
+     * been completed.
+     * @return the number of delivered events.
+    **/
+    public long getDeliveredCount()
+    {
+        if (m_pool != null)
+        {
+            return m_pool.getDeliveredCount();
+        }
+        synchronized (m_requestList)
+        {
+            return m_deliveredRequests;
+        }
+    }
+
     public static void shutdown()
     {
         synchronized (m_threadLock)
@@ -282,6 +391,7 @@ public class EventDispatcher
             else if (clazz == ServiceListener.class)
             {
                 m_serviceListeners = listeners;
+                m_serviceListenerIndex = null;
             }
         }
         return null;
@@ -396,6 +506,7 @@ public class EventDispatcher
             else if (clazz == ServiceListener.class)
             {
                 m_serviceListeners = listeners;
+                m_serviceListenerIndex = null;
             }
         }
 
@@ -532,6 +643,7 @@ public class EventDispatcher
                         // The spec says to update the filter in this case.
                         oldFilter = (Filter) listeners[i + LISTENER_FILTER_OFFSET];
                         listeners[i + LISTENER_FILTER_OFFSET] = filter;
+                        m_serviceListenerIndex = null;
                     }
                     return oldFilter;
                 }
@@ -624,11 +736,18 @@ public class EventDispatcher
     public void fireServiceEvent(
         final ServiceEvent event, final Dictionary oldProps, final Framework felix)
     {
-        // Take a snapshot of the listener array.
+        // Take a snapshot of the listeners that can possibly match the
+        // event's service, which are the listeners whose filter does not
+        // require an object class or requires one of the service's.
         Object[] listeners = null;
         synchronized (this)
         {
-            listeners = m_serviceListeners;
+            if (m_serviceListenerIndex == null)
+            {
+                m_serviceListenerIndex = new ServiceListenerIndex(m_serviceListeners);
+            }
+            listeners = m_serviceListenerIndex.getListeners(
+                (String[]) event.getServiceReference().getProperty(Constants.OBJECTCLASS));
         }
 
         if (m_serviceRegistry != null)
@@ -666,6 +785,13 @@ public class EventDispatcher
     private void fireEventAsynchronously(
         Logger logger, int type, Object[] listeners, EventObject event)
     {
+        // If this dispatcher has its own threads, then queue the event there.
+        if (m_pool != null)
+        {
+            m_pool.dispatch(logger, type, listeners, event);
+            return;
+        }
+
         //TODO: should possibly check this within thread lock, seems to be ok though without
         // If dispatch thread is stopped, then ignore dispatch request.
         if (m_stopping || m_thread == null)
@@ -698,6 +824,7 @@ public class EventDispatcher
         {
             // Add our request to the list.
             m_requestList.add(req);
+            m_maxRequests = Math.max(m_maxRequests, m_requestList.size());
             // Notify the dispatch thread that there is work to do.
             m_requestList.notify();
         }
@@ -955,6 +1082,11 @@ public class EventDispatcher
             // catching Throwables when it invokes callbacks.
             fireEventImmediately(req.m_logger, req.m_type, req.m_listeners, req.m_event, null);
 
+            synchronized (m_requestList)
+            {
+                m_deliveredRequests++;
+            }
+
             // Put dispatch request in cache.
             synchronized (m_requestPool)
             {
@@ -967,6 +1099,133 @@ public class EventDispatcher
         }
     }
 
+    /**
+     * An index of a service listener array by the object class that the
+     * filter of each listener requires, which is an object class equality
+     * comparison by itself or in a top-level conjunction. Since the object
+     * class of a service never changes, listeners requiring a different
+     * object class can neither match a service event nor have matched the
+     * service previously, so they can be skipped during dispatch.
+    **/
+    private static class ServiceListenerIndex
+    {
+        private final Object[] m_listeners;
+        // Maps object class to the sorted offsets of its listeners.
+        private final Map m_classOffsets = new HashMap();
+        // Sorted offsets of listeners that do not require an object class.
+        private final int[] m_unindexedOffsets;
+
+        ServiceListenerIndex(Object[] listeners)
+        {
+            m_listeners = listeners;
+
+            Map classLists = new HashMap();
+            List unindexed = new ArrayList();
+            Map terms = new HashMap();
+            for (int i = 0; i < listeners.length; i += LISTENER_ARRAY_INCREMENT)
+            {
+                Object filter = listeners[i + LISTENER_FILTER_OFFSET];
+                Object objectClass = null;
+                if (filter instanceof FilterImpl)
+                {
+                    terms.clear();
+                    ((FilterImpl) filter).getEqualityTerms(terms);
+                    objectClass = terms.get(Constants.OBJECTCLASS.toLowerCase());
+                }
+                if (objectClass instanceof String)
+                {
+                    List list = (List) classLists.get(objectClass);
+                    if (list == null)
+                    {
+                        list = new ArrayList();
+                        classLists.put(objectClass, list);
+                    }
+                    list.add(new Integer(i));
+                }
+                else
+                {
+                    unindexed.add(new Integer(i));
+                }
+            }
+
+            for (Iterator it = classLists.entrySet().iterator(); it.hasNext(); )
+            {
+                Map.Entry entry = (Map.Entry) it.next();
+                m_classOffsets.put(entry.getKey(), toArray((List) entry.getValue()));
+            }
+            m_unindexedOffsets = toArray(unindexed);
+        }
+
+        /**
+         * Returns the listeners that can possibly match a service with the
+         * specified object classes, in the same order as in the indexed
+         * listener array.
+         * @param objectClass the object classes of the service.
+         * @return a listener array containing the possibly matching listeners.
+        **/
+        Object[] getListeners(String[] objectClass)
+        {
+            if (m_classOffsets.isEmpty() || (objectClass == null))
+            {
+                return m_listeners;
+            }
+
+            // Collect the offsets of the possibly matching listeners. Every
+            // listener is in at most one index entry, so there are no duplicates.
+            int[][] matches = new int[objectClass.length][];
+            int count = m_unindexedOffsets.length;
+            for (int i = 0; i < objectClass.length; i++)
+            {
+                matches[i] = (int[]) m_classOffsets.get(objectClass[i]);
+                count += (matches[i] == null) ? 0 : matches[i].length;
+            }
+            if (count * LISTENER_ARRAY_INCREMENT == m_listeners.length)
+            {
+                return m_listeners;
+            }
+            else if (count == 0)
+            {
+                return m_emptyList;
+            }
+
+            int[] offsets = new int[count];
+            System.arraycopy(m_unindexedOffsets, 0, offsets, 0, m_unindexedOffsets.length);
+            int idx = m_unindexedOffsets.length;
+            for (int i = 0; i < matches.length; i++)
+            {
+                if (matches[i] != null)
+                {
+                    System.arraycopy(matches[i], 0, offsets, idx, matches[i].length);
+                    idx += matches[i].length;
+                }
+            }
+            // Preserve the original listener order.
+            if (idx > m_unindexedOffsets.length)
+            {
+                Arrays.sort(offsets);
+            }
+
+            Object[] listeners = new Object[count * LISTENER_ARRAY_INCREMENT];
+            for (int i = 0; i < count; i++)
+            {
+                System.arraycopy(
+                    m_listeners, offsets[i],
+                    listeners, i * LISTENER_ARRAY_INCREMENT, LISTENER_ARRAY_INCREMENT);
+            }
+            return listeners;
+        }
+
+        private static int[] toArray(List list)
+        {
+            int[] array = new int[list.size()];
+            for (int i = 0; i < array.length; i++)
+            {
+                array[i] = ((Integer) list.get(i)).intValue();
+            }
+            return array;
+        }
+    }
+
     static class ListenerBundleContextCollectionWrapper implements Collection
     {
         private Object[] m_listeners;
@@ -1173,4 +1432,210 @@ public class EventDispatcher
         public Object[] m_listeners = null;
         public EventObject m_event = null;
     }
+
+    /**
+     * A pool of threads delivering the asynchronous events of a single
+     * dispatcher. Requests are queued per listener bundle and a bundle's
+     * queue is only ever served by one thread at a time, which preserves
+     * the delivery order for each listener.
+    **/
+    private static class DispatchPool
+    {
+        private final Thread[] m_threads;
+        // Maps listener bundle to its queue of pending requests.
+        private final Map m_queues = new HashMap();
+        // Bundle queues with pending requests not being served by a thread.
+        private final List m_readyQueues = new ArrayList();
+        private boolean m_stopping = false;
+        private int m_depth = 0;
+        private int m_maxDepth = 0;
+        private long m_delivered = 0;
+
+        DispatchPool(int threadCount)
+        {
+            m_threads = new Thread[threadCount];
+        }
+
+        synchronized void start()
+        {
+            for (int i = 0; i < m_threads.length; i++)
+            {
+                m_threads[i] = new Thread(new Runnable() {
+                    public void run()
+                    {
+                        DispatchPool.this.run();
+                    }
+                }, "FelixDispatchQueue-" + (i + 1));
+                m_threads[i].start();
+            }
+        }
+
+        void stop()
+        {
+            synchronized (this)
+            {
+                m_stopping = true;
+                notifyAll();
+            }
+
+            // Wait for the threads to deliver the queued events, unless
+            // we are called from one of them.
+            for (int i = 0; i < m_threads.length; i++)
+            {
+                if ((m_threads[i] != null) && (m_threads[i] != Thread.currentThread()))
+                {
+                    try
+                    {
+                        m_threads[i].join();
+                    }
+                    catch (InterruptedException ex)
+                    {
+                        // Not much we can do here, so just stop waiting.
+                    }
+                }
+            }
+        }
+
+        void dispatch(Logger logger, int type, Object[] listeners, EventObject event)
+        {
+            // Split the listeners by bundle, keeping their relative order.
+            Map bundleListeners = new HashMap();
+            List bundles = new ArrayList();
+            for (int i = 0; i < listeners.length; i += LISTENER_ARRAY_INCREMENT)
+            {
+                Object bundle = listeners[i + LISTENER_BUNDLE_OFFSET];
+                List list = (List) bundleListeners.get(bundle);
+                if (list == null)
+                {
+                    list = new ArrayList();
+                    bundleListeners.put(bundle, list);
+                    bundles.add(bundle);
+                }
+                for (int j = 0; j < LISTENER_ARRAY_INCREMENT; j++)
+                {
+                    list.add(listeners[i + j]);
+                }
+            }
+
+            synchronized (this)
+            {
+                if (m_stopping)
+                {
+                    return;
+                }
+
+                for (int i = 0; i < bundles.size(); i++)
+                {
+                    Object bundle = bundles.get(i);
+
+                    Request req = new Request();
+                    req.m_logger = logger;
+                    req.m_type = type;
+                    req.m_listeners = ((List) bundleListeners.get(bundle)).toArray();
+                    req.m_event = event;
+
+                    BundleQueue queue = (BundleQueue) m_queues.get(bundle);
+                    if (queue == null)
+                    {
+                        queue = new BundleQueue(bundle);
+                        m_queues.put(bundle, queue);
+                    }
+                    queue.m_requests.add(req);
+                    if (!queue.m_scheduled)
+                    {
+                        queue.m_scheduled = true;
+                        m_readyQueues.add(queue);
+                        notify();
+                    }
+
+                    m_depth++;
+                    m_maxDepth = Math.max(m_maxDepth, m_depth);
+                }
+            }
+        }
+
+        synchronized int getQueueDepth()
+        {
+            return m_depth;
+        }
+
+        synchronized int getMaxQueueDepth()
+        {
+            return m_maxDepth;
+        }
+
+        synchronized long getDeliveredCount()
+        {
+            return m_delivered;
+        }
+
+        private void run()
+        {
+            while (true)
+            {
+                BundleQueue queue = null;
+                Request req = null;
+                synchronized (this)
+                {
+                    // Wait while there are no requests to dispatch. Once all
+                    // requests are delivered and we are stopping, exit.
+                    while (m_readyQueues.isEmpty() && !m_stopping)
+                    {
+                        try
+                        {
+                            wait();
+                        }
+                        catch (InterruptedException ex)
+                        {
+                            // Not much we can do here except for keep waiting.
+                        }
+                    }
+                    if (m_readyQueues.isEmpty())
+                    {
+                        return;
+                    }
+
+                    queue = (BundleQueue) m_readyQueues.remove(0);
+                    req = (Request) queue.m_requests.remove(0);
+                }
+
+                // Deliver event outside of synchronized block; the bundle
+                // queue stays scheduled, so no other thread delivers events
+                // to the same listeners in the meantime.
+                fireEventImmediately(
+                    req.m_logger, req.m_type, req.m_listeners, req.m_event, null);
+
+                synchronized (this)
+                {
+                    m_depth--;
+                    m_delivered++;
+
+                    // Reschedule the queue behind the other ready queues if it
+                    // has more requests, otherwise forget about it.
+                    if (queue.m_requests.isEmpty())
+                    {
+                        queue.m_scheduled = false;
+                        m_queues.remove(queue.m_bundle);
+                    }
+                    else
+                    {
+                        m_readyQueues.add(queue);
+                        notify();
+                    }
+                }
+            }
+        }
+    }
+
+    private static class BundleQueue
+    {
+        public final Object m_bundle;
+        public final List m_requests = new ArrayList();
+        public boolean m_scheduled = false;
+
+        BundleQueue(Object bundle)
+        {
+            m_bundle = bundle;
+        }
+    }
 }
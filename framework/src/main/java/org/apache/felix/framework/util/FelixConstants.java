@@ -52,6 +52,12 @@ public interface FelixConstants extends org.osgi.framework.Constants
         = "felix.startlevel.bundle";
     public static final String SERVICE_URLHANDLERS_PROP = "felix.service.urlhandlers";
     public static final String IMPLICIT_BOOT_DELEGATION_PROP = "felix.bootdelegation.implicit";
+    public static final String SERVICE_INDEX_PROPS_PROP = "felix.service.index.properties";
+    public static final String EVENT_DISPATCH_THREADS_PROP = "felix.events.async.threads";
+    public static final String RESOLVER_THREADS_PROP = "felix.resolver.threads";
+    public static final String MODULE_LOOKUP_CACHE_SIZE_PROP = "felix.module.lookup.cache.size";
+    public static final int MODULE_LOOKUP_CACHE_SIZE_DEFAULT = 256;
+    public static final String CLASSLOADER_PARALLEL_PROP = "felix.classloader.parallel";
 
     // Start level-related constants.
     public static final int FRAMEWORK_INACTIVE_STARTLEVEL = 0;
@@ -18,6 +18,7 @@
  */
 package org.apache.felix.framework.util.manifestparser;
 
+import org.apache.felix.framework.FilterImpl;
 import org.apache.felix.framework.util.MapToDictionary;
 import org.apache.felix.framework.util.VersionRange;
 import org.apache.felix.moduleloader.ICapability;
@@ -38,7 +39,7 @@ public class Requirement implements IRequirement
     public Requirement(String namespace, String filterStr) throws InvalidSyntaxException
     {
         m_namespace = namespace;
-        m_filter = FrameworkUtil.createFilter(filterStr);
+        m_filter = FilterImpl.newInstance(filterStr);
         m_directives = null;
         m_attributes = null;
         m_isOptional = false;
@@ -166,8 +167,16 @@ public class Requirement implements IRequirement
         // we must use that filter for evaluation.
         if ((m_attributes == null) && (m_filter != null))
         {
-            return m_namespace.equals(capability.getNamespace()) &&
-                getFilter().match(new MapToDictionary(capability.getProperties()));
+            if (!m_namespace.equals(capability.getNamespace()))
+            {
+                return false;
+            }
+            // Match the framework's filter against the capability properties
+            // directly to avoid wrapping them in a dictionary.
+            Filter filter = getFilter();
+            return (filter instanceof FilterImpl)
+                ? ((FilterImpl) filter).matchMap(capability.getProperties())
+                : filter.match(new MapToDictionary(capability.getProperties()));
         }
         // Otherwise, if the requirement was constructed with attributes, then
         // perform the evaluation manually instead of using the filter for
@@ -361,7 +370,7 @@ public class Requirement implements IRequirement
 
         try
         {
-            return FrameworkUtil.createFilter(sb.toString());
+            return FilterImpl.newInstance(sb.toString());
         }
         catch (InvalidSyntaxException ex)
         {
@@ -0,0 +1,209 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.framework.util.VersionRange;
+import org.apache.felix.framework.util.manifestparser.Capability;
+import org.apache.felix.framework.util.manifestparser.R4Attribute;
+import org.apache.felix.framework.util.manifestparser.Requirement;
+import org.apache.felix.moduleloader.ICapability;
+import org.apache.felix.moduleloader.IModule;
+import org.apache.felix.moduleloader.IRequirement;
+import org.easymock.MockControl;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Version;
+
+public class CapabilityIndexTest extends TestCase
+{
+    public void testTargetNameLookup() throws Exception
+    {
+        IModule a = createModule();
+        IModule b = createModule();
+        ICapability capA = exportPackage(a, "p");
+        ICapability capB = exportPackage(b, "q");
+
+        FelixResolverState.CapabilityIndex index = new FelixResolverState.CapabilityIndex();
+        index.add(capA);
+        index.add(capB);
+
+        List candidates = index.getCandidates(importPackage("p"));
+        assertEquals(1, candidates.size());
+        assertSame(capA, candidates.get(0));
+
+        assertTrue(index.getCandidates(importPackage("r")).isEmpty());
+    }
+
+    public void testFilterEqualityLookup() throws Exception
+    {
+        IModule a = createModule();
+        ICapability x = generic(a, "name", "x");
+        ICapability y = generic(a, "name", "y");
+
+        FelixResolverState.CapabilityIndex index = new FelixResolverState.CapabilityIndex();
+        index.add(x);
+        index.add(y);
+
+        // Filter attribute names are matched case-insensitively.
+        List candidates = index.getCandidates(
+            new Requirement("generic", "(&(NAME=y)(size>=1))"));
+        assertEquals(1, candidates.size());
+        assertSame(y, candidates.get(0));
+
+        // Without equality terms, all capabilities of the namespace are candidates.
+        candidates = index.getCandidates(new Requirement("generic", "(name=*)"));
+        assertEquals(2, candidates.size());
+        assertTrue(candidates.contains(x));
+        assertTrue(candidates.contains(y));
+
+        // Other namespaces are not candidates.
+        assertTrue(index.getCandidates(new Requirement("other", "(name=x)")).isEmpty());
+    }
+
+    public void testNonStringAttributeNotUsedForLookup() throws Exception
+    {
+        IModule a = createModule();
+        ICapability s = generic(a, "size", "1");
+        ICapability v = new Capability(a, "generic", null,
+            new R4Attribute[] { new R4Attribute("size", new Version("1.0.0"), false) });
+
+        FelixResolverState.CapabilityIndex index = new FelixResolverState.CapabilityIndex();
+        index.add(s);
+        index.add(v);
+
+        // A non-string value may still match, so all capabilities are returned.
+        assertEquals(2, index.getCandidates(new Requirement("generic", "(size=1)")).size());
+
+        // Once the non-string value is gone, the attribute is used again.
+        index.remove(v);
+        List candidates = index.getCandidates(new Requirement("generic", "(size=1)"));
+        assertEquals(1, candidates.size());
+        assertSame(s, candidates.get(0));
+    }
+
+    public void testAddAndRemove() throws Exception
+    {
+        IModule a = createModule();
+        ICapability cap = exportPackage(a, "p");
+
+        FelixResolverState.CapabilityIndex index = new FelixResolverState.CapabilityIndex();
+        index.add(cap);
+        index.add(cap);
+        assertEquals(1, index.getCandidates(importPackage("p")).size());
+
+        index.remove(cap);
+        assertTrue(index.getCandidates(importPackage("p")).isEmpty());
+        assertTrue(index.getCandidates(new Requirement(
+            ICapability.PACKAGE_NAMESPACE, "(package=*)")).isEmpty());
+
+        // Removing an unknown capability is ignored.
+        index.remove(cap);
+        assertTrue(index.getCandidates(importPackage("p")).isEmpty());
+    }
+
+    /**
+     * Fragments are not indexed themselves. Instead, the host is unindexed
+     * before attaching a fragment and reindexed with its merged capabilities
+     * afterwards, which include the fragment's exports as capabilities of
+     * the host, but not the fragment's other capabilities.
+    **/
+    public void testFragmentCapabilitiesIndexedForHost() throws Exception
+    {
+        IModule host = createModule();
+        IModule fragment = createModule();
+        ICapability hostBundle = bundle(host, "host");
+        ICapability hostExport = exportPackage(host, "p");
+        ICapability fragmentBundle = bundle(fragment, "fragment");
+        ICapability fragmentExport = exportPackage(fragment, "f");
+
+        FelixResolverState.CapabilityIndex index = new FelixResolverState.CapabilityIndex();
+        index.add(hostBundle);
+        index.add(hostExport);
+
+        // Attach the fragment, as FelixResolverState.addFragment() does.
+        index.remove(hostBundle);
+        index.remove(hostExport);
+        ICapability mergedExport = new Capability(host,
+            fragmentExport.getNamespace(), null,
+            ((Capability) fragmentExport).getAttributes());
+        index.add(hostBundle);
+        index.add(hostExport);
+        index.add(mergedExport);
+
+        List candidates = index.getCandidates(importPackage("f"));
+        assertEquals(1, candidates.size());
+        assertSame(host, ((ICapability) candidates.get(0)).getModule());
+        assertFalse(candidates.contains(fragmentExport));
+
+        assertEquals(1, index.getCandidates(importPackage("p")).size());
+        assertTrue(index.getCandidates(requireBundle("fragment")).isEmpty());
+        candidates = index.getCandidates(requireBundle("host"));
+        assertEquals(1, candidates.size());
+        assertSame(hostBundle, candidates.get(0));
+        assertFalse(candidates.contains(fragmentBundle));
+    }
+
+    private static IModule createModule()
+    {
+        MockControl control = MockControl.createNiceControl(IModule.class);
+        IModule module = (IModule) control.getMock();
+        control.replay();
+        return module;
+    }
+
+    private static ICapability exportPackage(IModule module, String pkg)
+    {
+        return new Capability(module, ICapability.PACKAGE_NAMESPACE, null,
+            new R4Attribute[] {
+                new R4Attribute(ICapability.PACKAGE_PROPERTY, pkg, false),
+                new R4Attribute(ICapability.VERSION_PROPERTY, Version.emptyVersion, false) });
+    }
+
+    private static ICapability bundle(IModule module, String symbolicName)
+    {
+        return new Capability(module, ICapability.MODULE_NAMESPACE, null,
+            new R4Attribute[] {
+                new R4Attribute(Constants.BUNDLE_SYMBOLICNAME_ATTRIBUTE, symbolicName, false),
+                new R4Attribute(Constants.BUNDLE_VERSION_ATTRIBUTE, Version.emptyVersion, false) });
+    }
+
+    private static ICapability generic(IModule module, String name, String value)
+    {
+        return new Capability(module, "generic", null,
+            new R4Attribute[] { new R4Attribute(name, value, false) });
+    }
+
+    private static IRequirement importPackage(String pkg)
+    {
+        return new Requirement(ICapability.PACKAGE_NAMESPACE, null,
+            new R4Attribute[] {
+                new R4Attribute(ICapability.PACKAGE_PROPERTY, pkg, false),
+                new R4Attribute(ICapability.VERSION_PROPERTY, VersionRange.infiniteRange, false) });
+    }
+
+    private static IRequirement requireBundle(String symbolicName)
+    {
+        return new Requirement(ICapability.MODULE_NAMESPACE, null,
+            new R4Attribute[] {
+                new R4Attribute(Constants.BUNDLE_SYMBOLICNAME_ATTRIBUTE, symbolicName, false) });
+    }
+}
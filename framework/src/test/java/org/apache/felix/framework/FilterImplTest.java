@@ -0,0 +1,157 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.util.Arrays;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.framework.util.StringMap;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.Version;
+
+public class FilterImplTest extends TestCase
+{
+    private static final String[] FILTERS = new String[] {
+        "(a=1)", "(a>=1)", "(a<=1)", "(a~=1)", "(a=*)", "(A=x*y)", "(a=*x*)",
+        "(&(a=1)(b=2))", "(|(a=1)(b=2))", "(!(a=1))", "(a=hello)",
+        "(a~=HeLLo)", "( & (a = 1 ) ( b=2 ))", "(v>=1.2.0)", "(v<=1.0)",
+        "(c=x)", "(d=true)", "(e=2.5)", "(f=2.5)", "(a=h\\*llo)",
+        "(s=abc*)", "(s=*bc)", "(s=a*c)", "(s=**)", "(l=3)", "(arr=2)",
+        "(col=y)", "(e>=0.0)", "(e<=-0.0)", "(e=NaN)", "(f>=NaN)", "(f<=0)"
+    };
+
+    public void testMatchesFrameworkUtilFilter() throws Exception
+    {
+        Dictionary[] dicts = new Dictionary[3];
+        dicts[0] = new Hashtable();
+        dicts[0].put("a", new Integer(1));
+        dicts[0].put("B", "2");
+        dicts[0].put("v", new Version("1.2.3"));
+        dicts[0].put("c", new Character('x'));
+        dicts[0].put("d", Boolean.TRUE);
+        dicts[0].put("e", new Double(2.5));
+        dicts[0].put("f", new Float(2.5f));
+        dicts[0].put("s", "abc");
+        dicts[0].put("l", new Long(3));
+        dicts[0].put("arr", new int[] { 1, 2 });
+        dicts[0].put("col", Arrays.asList(new String[] { "x", "y" }));
+        dicts[1] = new Hashtable();
+        dicts[1].put("a", "hello");
+        dicts[1].put("s", new String[] { "zzz", "abcd" });
+        dicts[1].put("v", new Version("0.9"));
+        dicts[1].put("e", new Double(-0.0));
+        dicts[1].put("f", new Float(0.0f));
+        dicts[2] = new Hashtable();
+        dicts[2].put("a", "h*llo");
+        dicts[2].put("arr", new Integer[] { new Integer(3) });
+        dicts[2].put("l", new long[] { 5, 3 });
+        dicts[2].put("e", new Double(Double.NaN));
+        dicts[2].put("f", new Float(Float.NaN));
+
+        for (int i = 0; i < FILTERS.length; i++)
+        {
+            Filter expected = FrameworkUtil.createFilter(FILTERS[i]);
+            FilterImpl filter = FilterImpl.newInstance(FILTERS[i]);
+            assertEquals(expected.toString(), filter.toString());
+            assertEquals(expected, filter);
+            for (int j = 0; j < dicts.length; j++)
+            {
+                boolean result = match(expected, dicts[j]);
+                assertEquals(FILTERS[i] + " " + dicts[j],
+                    result, filter.match(dicts[j]));
+                assertEquals(FILTERS[i] + " " + dicts[j],
+                    result, filter.matchMap((Map) dicts[j]));
+            }
+        }
+    }
+
+    private static boolean match(Filter filter, Dictionary dict)
+    {
+        try
+        {
+            return filter.match(dict);
+        }
+        catch (NumberFormatException ex)
+        {
+            // The generic implementation fails on unconvertible operands.
+            return false;
+        }
+    }
+
+    public void testInvalidSyntax()
+    {
+        String[] invalid = new String[] {
+            "(a=1", "a=1", "(a=1))", "(&)", "(=1)", "(a=)", "(a(=1)" };
+        for (int i = 0; i < invalid.length; i++)
+        {
+            try
+            {
+                FilterImpl.newInstance(invalid[i]);
+                fail("Expected syntax exception: " + invalid[i]);
+            }
+            catch (InvalidSyntaxException ex)
+            {
+                // Expected.
+            }
+        }
+    }
+
+    public void testCaseSensitivity() throws Exception
+    {
+        FilterImpl filter = FilterImpl.newInstance("(Key=value)");
+        Hashtable dict = new Hashtable();
+        dict.put("kEY", "value");
+        assertTrue(filter.match(dict));
+        assertFalse(filter.matchCase(dict));
+
+        StringMap map = new StringMap(false);
+        map.put("KEY", "value");
+        assertTrue(filter.matchMap(map));
+    }
+
+    public void testUnconvertibleOperand() throws Exception
+    {
+        Hashtable dict = new Hashtable();
+        dict.put("a", new Integer(1));
+        assertFalse(FilterImpl.newInstance("(a=foo)").match(dict));
+        assertFalse(FilterImpl.newInstance("(a=99999999999)").match(dict));
+    }
+
+    public void testCache() throws Exception
+    {
+        assertSame(FilterImpl.newInstance("(a=b)"), FilterImpl.newInstance("(a=b)"));
+    }
+
+    public void testEqualityTerms() throws Exception
+    {
+        Map terms = new HashMap();
+        FilterImpl.newInstance("(&(objectClass=a.B)(x=*)(Y=z\\*)(|(c=d)))")
+            .getEqualityTerms(terms);
+        assertEquals(2, terms.size());
+        assertEquals("a.B", terms.get("objectclass"));
+        assertEquals("z*", terms.get("y"));
+    }
+}
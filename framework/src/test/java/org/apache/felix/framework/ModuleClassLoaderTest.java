@@ -0,0 +1,217 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+
+public class ModuleClassLoaderTest extends TestCase
+{
+    private static final int THREAD_COUNT = 8;
+    private static final int BUNDLE_COUNT = 20;
+    private static final Class[] PAYLOAD = new Class[] {
+        Payload0.class, Payload1.class, Payload2.class,
+        Payload3.class, Payload4.class, Payload5.class };
+
+    private File m_cacheDir;
+    private Felix m_felix;
+
+    protected void setUp() throws Exception
+    {
+        m_cacheDir = File.createTempFile("felix-cache", ".dir");
+        m_cacheDir.delete();
+
+        Map config = new HashMap();
+        config.put(Constants.FRAMEWORK_STORAGE, m_cacheDir.getAbsolutePath());
+        config.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.5.0");
+        config.put(FelixConstants.CLASSLOADER_PARALLEL_PROP, "true");
+        m_felix = new Felix(config);
+        m_felix.start();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        m_felix.stop();
+        m_felix.waitForStop(10000);
+        delete(m_cacheDir);
+    }
+
+    /**
+     * Loads the classes of a class hierarchy from the same bundle on many
+     * threads at once, each thread starting with a different class, and
+     * checks that every thread gets the same classes defined by the bundle.
+    **/
+    public void testConcurrentClassLoading() throws Exception
+    {
+        byte[] jar = createPayloadJar();
+
+        for (int bundleIdx = 0; bundleIdx < BUNDLE_COUNT; bundleIdx++)
+        {
+            final Bundle bundle = m_felix.getBundleContext().installBundle(
+                "payload" + bundleIdx, new ByteArrayInputStream(jar));
+            final Class[][] results = new Class[THREAD_COUNT][PAYLOAD.length];
+            final List errors = new ArrayList();
+            final Object[] gate = new Object[] { Boolean.FALSE };
+
+            Thread[] threads = new Thread[THREAD_COUNT];
+            for (int threadIdx = 0; threadIdx < THREAD_COUNT; threadIdx++)
+            {
+                final int offset = threadIdx;
+                threads[threadIdx] = new Thread()
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            synchronized (gate)
+                            {
+                                while (gate[0] == Boolean.FALSE)
+                                {
+                                    gate.wait();
+                                }
+                            }
+                            for (int i = 0; i < PAYLOAD.length; i++)
+                            {
+                                int classIdx = (PAYLOAD.length - 1 - i + offset) % PAYLOAD.length;
+                                results[offset][classIdx] =
+                                    bundle.loadClass(PAYLOAD[classIdx].getName());
+                            }
+                        }
+                        catch (Throwable ex)
+                        {
+                            synchronized (errors)
+                            {
+                                errors.add(ex);
+                            }
+                        }
+                    }
+                };
+                threads[threadIdx].start();
+            }
+
+            synchronized (gate)
+            {
+                gate[0] = Boolean.TRUE;
+                gate.notifyAll();
+            }
+            for (int threadIdx = 0; threadIdx < THREAD_COUNT; threadIdx++)
+            {
+                threads[threadIdx].join();
+            }
+
+            assertEquals(errors.toString(), 0, errors.size());
+            for (int classIdx = 0; classIdx < PAYLOAD.length; classIdx++)
+            {
+                Class clazz = results[0][classIdx];
+                assertEquals(PAYLOAD[classIdx].getName(), clazz.getName());
+                assertNotSame(PAYLOAD[classIdx], clazz);
+                assertTrue(clazz.getClassLoader() instanceof ModuleImpl.ModuleClassLoader);
+                for (int threadIdx = 1; threadIdx < THREAD_COUNT; threadIdx++)
+                {
+                    assertSame(clazz, results[threadIdx][classIdx]);
+                }
+                if (classIdx > 0)
+                {
+                    assertSame(results[0][classIdx - 1], clazz.getSuperclass());
+                }
+            }
+
+            bundle.uninstall();
+        }
+    }
+
+    private static byte[] createPayloadJar() throws Exception
+    {
+        Manifest mf = new Manifest();
+        mf.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        mf.getMainAttributes().putValue(Constants.BUNDLE_MANIFESTVERSION, "2");
+        mf.getMainAttributes().putValue(Constants.BUNDLE_SYMBOLICNAME, "payload");
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        JarOutputStream jos = new JarOutputStream(baos, mf);
+        for (int i = 0; i < PAYLOAD.length; i++)
+        {
+            String name = PAYLOAD[i].getName().replace('.', '/') + ".class";
+            jos.putNextEntry(new ZipEntry(name));
+            InputStream is = ModuleClassLoaderTest.class.getClassLoader()
+                .getResourceAsStream(name);
+            byte[] buf = new byte[4096];
+            for (int len = is.read(buf); len >= 0; len = is.read(buf))
+            {
+                jos.write(buf, 0, len);
+            }
+            is.close();
+            jos.closeEntry();
+        }
+        jos.close();
+        return baos.toByteArray();
+    }
+
+    private static void delete(File file)
+    {
+        File[] children = file.listFiles();
+        for (int i = 0; (children != null) && (i < children.length); i++)
+        {
+            delete(children[i]);
+        }
+        file.delete();
+    }
+
+    public static class Payload0
+    {
+        static final int HASH = "Payload0".hashCode();
+    }
+
+    public static class Payload1 extends Payload0
+    {
+    }
+
+    public static class Payload2 extends Payload1
+    {
+    }
+
+    public static class Payload3 extends Payload2
+    {
+    }
+
+    public static class Payload4 extends Payload3
+    {
+    }
+
+    public static class Payload5 extends Payload4
+    {
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+import junit.framework.TestCase;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.service.packageadmin.PackageAdmin;
+
+public class ModuleLookupCacheTest extends TestCase
+{
+    private static final String PAYLOAD_PKG =
+        Payload.class.getName().substring(0, Payload.class.getName().lastIndexOf('.'));
+
+    private File m_cacheDir;
+    private Felix m_felix;
+
+    protected void setUp() throws Exception
+    {
+        m_cacheDir = File.createTempFile("felix-cache", ".dir");
+        m_cacheDir.delete();
+
+        Map config = new HashMap();
+        config.put(Constants.FRAMEWORK_STORAGE, m_cacheDir.getAbsolutePath());
+        config.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.5.0");
+        config.put(Constants.FRAMEWORK_BOOTDELEGATION, "junit.*");
+        config.put(Constants.FRAMEWORK_BUNDLE_PARENT,
+            Constants.FRAMEWORK_BUNDLE_PARENT_FRAMEWORK);
+        m_felix = new Felix(config);
+        m_felix.start();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        m_felix.stop();
+        m_felix.waitForStop(10000);
+        delete(m_cacheDir);
+    }
+
+    /**
+     * Checks that a class found to be missing before a module is refreshed
+     * is found through the wire to a new exporter after the refresh.
+    **/
+    public void testMissingClassFoundAfterRefresh() throws Exception
+    {
+        Map headers = new HashMap();
+        headers.put(Constants.IMPORT_PACKAGE, PAYLOAD_PKG + "; resolution:=optional");
+        Bundle importer = install("importer", headers, null);
+
+        assertNotLoadable(importer, Payload.class.getName());
+        assertNotLoadable(importer, Payload.class.getName());
+
+        headers = new HashMap();
+        headers.put(Constants.EXPORT_PACKAGE, PAYLOAD_PKG);
+        Bundle exporter = install("exporter", headers, Payload.class);
+        refresh(importer);
+
+        Class clazz = importer.loadClass(Payload.class.getName());
+        assertSame(exporter.loadClass(Payload.class.getName()), clazz);
+        assertNotSame(Payload.class, clazz);
+    }
+
+    /**
+     * Checks that a class found to be missing from a host is found in the
+     * content of a fragment attached when the host is resolved again.
+    **/
+    public void testMissingClassFoundInAttachedFragment() throws Exception
+    {
+        Bundle host = install("host", new HashMap(), null);
+
+        assertNotLoadable(host, Payload.class.getName());
+
+        Map headers = new HashMap();
+        headers.put(Constants.FRAGMENT_HOST, "host");
+        install("fragment", headers, Payload.class);
+        refresh(host);
+
+        Class clazz = host.loadClass(Payload.class.getName());
+        assertNotSame(Payload.class, clazz);
+    }
+
+    /**
+     * Checks that dynamic imports are still searched for a class that is
+     * known to be missing from the static sources of the module.
+    **/
+    public void testDynamicImportSearchedForKnownMissingClass() throws Exception
+    {
+        Map headers = new HashMap();
+        headers.put(Constants.DYNAMICIMPORT_PACKAGE, PAYLOAD_PKG);
+        Bundle importer = install("importer", headers, null);
+
+        assertNotLoadable(importer, Payload.class.getName());
+        ModuleImpl module = (ModuleImpl) ((BundleImpl) importer).getCurrentModule();
+        long hits = module.getLookupCacheHits();
+        assertNotLoadable(importer, Payload.class.getName());
+        assertEquals(hits + 1, module.getLookupCacheHits());
+
+        headers = new HashMap();
+        headers.put(Constants.EXPORT_PACKAGE, PAYLOAD_PKG);
+        Bundle exporter = install("exporter", headers, Payload.class);
+
+        Class clazz = importer.loadClass(Payload.class.getName());
+        assertSame(exporter.loadClass(Payload.class.getName()), clazz);
+    }
+
+    /**
+     * Checks that boot delegated packages are delegated to the parent class
+     * loader on cache misses and hits alike.
+    **/
+    public void testBootDelegation() throws Exception
+    {
+        Bundle bundle = install("bundle", new HashMap(), null);
+        ModuleImpl module = (ModuleImpl) ((BundleImpl) bundle).getCurrentModule();
+
+        assertSame(TestCase.class, bundle.loadClass(TestCase.class.getName()));
+        long misses = module.getLookupCacheMisses();
+        long hits = module.getLookupCacheHits();
+        long totalMisses = m_felix.getLookupCacheMisses();
+        long totalHits = m_felix.getLookupCacheHits();
+        assertSame(TestCase.class, bundle.loadClass(TestCase.class.getName()));
+        assertEquals(misses, module.getLookupCacheMisses());
+        assertEquals(hits + 1, module.getLookupCacheHits());
+        assertEquals(totalMisses, m_felix.getLookupCacheMisses());
+        assertEquals(totalHits + 1, m_felix.getLookupCacheHits());
+
+        // java.* packages are always delegated and never searched locally.
+        assertSame(String.class, bundle.loadClass(String.class.getName()));
+        assertSame(String.class, bundle.loadClass(String.class.getName()));
+        assertNotLoadable(bundle, "java.lang.NoSuchClass");
+    }
+
+    private Bundle install(String name, Map headers, Class payload) throws Exception
+    {
+        Manifest mf = new Manifest();
+        mf.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        mf.getMainAttributes().putValue(Constants.BUNDLE_MANIFESTVERSION, "2");
+        mf.getMainAttributes().putValue(Constants.BUNDLE_SYMBOLICNAME, name);
+        for (Iterator it = headers.entrySet().iterator(); it.hasNext(); )
+        {
+            Map.Entry entry = (Map.Entry) it.next();
+            mf.getMainAttributes().putValue(
+                (String) entry.getKey(), (String) entry.getValue());
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        JarOutputStream jos = new JarOutputStream(baos, mf);
+        if (payload != null)
+        {
+            String entry = payload.getName().replace('.', '/') + ".class";
+            jos.putNextEntry(new ZipEntry(entry));
+            InputStream is = ModuleLookupCacheTest.class.getClassLoader()
+                .getResourceAsStream(entry);
+            byte[] buf = new byte[4096];
+            for (int len = is.read(buf); len >= 0; len = is.read(buf))
+            {
+                jos.write(buf, 0, len);
+            }
+            is.close();
+            jos.closeEntry();
+        }
+        jos.close();
+
+        return m_felix.getBundleContext().installBundle(
+            name, new ByteArrayInputStream(baos.toByteArray()));
+    }
+
+    private void refresh(Bundle bundle) throws Exception
+    {
+        final Object[] refreshed = new Object[1];
+        FrameworkListener listener = new FrameworkListener()
+        {
+            public void frameworkEvent(FrameworkEvent event)
+            {
+                if (event.getType() == FrameworkEvent.PACKAGES_REFRESHED)
+                {
+                    synchronized (refreshed)
+                    {
+                        refreshed[0] = event;
+                        refreshed.notifyAll();
+                    }
+                }
+            }
+        };
+        m_felix.getBundleContext().addFrameworkListener(listener);
+        try
+        {
+            PackageAdmin pa = (PackageAdmin) m_felix.getBundleContext().getService(
+                m_felix.getBundleContext().getServiceReference(PackageAdmin.class.getName()));
+            pa.refreshPackages(new Bundle[] { bundle });
+            synchronized (refreshed)
+            {
+                long end = System.currentTimeMillis() + 10000;
+                while ((refreshed[0] == null) && (System.currentTimeMillis() < end))
+                {
+                    refreshed.wait(100);
+                }
+            }
+            assertNotNull("Refresh did not complete", refreshed[0]);
+        }
+        finally
+        {
+            m_felix.getBundleContext().removeFrameworkListener(listener);
+        }
+    }
+
+    private static void assertNotLoadable(Bundle bundle, String name)
+    {
+        try
+        {
+            bundle.loadClass(name);
+            fail("Class should not be loadable: " + name);
+        }
+        catch (ClassNotFoundException ex)
+        {
+            // Expected.
+        }
+    }
+
+    private static void delete(File file)
+    {
+        File[] children = file.listFiles();
+        for (int i = 0; (children != null) && (i < children.length); i++)
+        {
+            delete(children[i]);
+        }
+        file.delete();
+    }
+
+    public static class Payload
+    {
+    }
+}
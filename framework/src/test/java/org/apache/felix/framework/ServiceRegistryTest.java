@@ -28,6 +28,7 @@ import junit.framework.TestCase;
 import org.easymock.MockControl;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.FrameworkUtil;
 import org.osgi.framework.ServiceEvent;
 import org.osgi.framework.ServiceFactory;
 import org.osgi.framework.ServiceReference;
@@ -385,4 +386,157 @@ public class ServiceRegistryTest extends TestCase
         assertSame(reg, sfGet.iterator().next());        
         assertSame(reg, sfUnget.iterator().next());        
     } 
+
+    public void testIndexedServiceReferences() throws Exception
+    {
+        MockControl control = MockControl.createNiceControl(Bundle.class);
+        Bundle b = (Bundle) control.getMock();
+        control.replay();
+
+        ServiceRegistry sr = new ServiceRegistry(
+            new Logger(), null, new String[] { "service.pid" });
+
+        Hashtable props = new Hashtable();
+        props.put("service.pid", "pid1");
+        ServiceRegistration reg1 = sr.registerService(
+            b, new String[] { "a.A", "b.B" }, new Object(), props);
+        props = new Hashtable();
+        props.put("service.pid", new String[] { "pid2", "pid3" });
+        ServiceRegistration reg2 = sr.registerService(
+            b, new String[] { "a.A" }, new Object(), props);
+        props = new Hashtable();
+        props.put("service.pid", new Integer(4));
+        ServiceRegistration reg3 = sr.registerService(
+            b, new String[] { "c.C" }, new Object(), props);
+
+        assertEquals(2, sr.getServiceReferences("a.A", null).size());
+        assertEquals(1, sr.getServiceReferences("b.B", null).size());
+        assertEquals(0, sr.getServiceReferences("d.D", null).size());
+        assertEquals(3, sr.getServiceReferences(null, null).size());
+
+        List refs = sr.getServiceReferences(
+            null, FrameworkUtil.createFilter("(objectClass=b.B)"));
+        assertEquals(1, refs.size());
+        assertSame(reg1.getReference(), refs.get(0));
+
+        refs = sr.getServiceReferences(
+            "a.A", FrameworkUtil.createFilter("(SERVICE.PID=pid3)"));
+        assertEquals(1, refs.size());
+        assertSame(reg2.getReference(), refs.get(0));
+
+        refs = sr.getServiceReferences(
+            null, FrameworkUtil.createFilter("(&(service.pid=4)(objectClass=c.C))"));
+        assertEquals(1, refs.size());
+        assertSame(reg3.getReference(), refs.get(0));
+        reg3.unregister();
+
+        props = new Hashtable();
+        props.put("service.pid", "pid5");
+        reg1.setProperties(props);
+        assertEquals(0, sr.getServiceReferences(
+            null, FrameworkUtil.createFilter("(service.pid=pid1)")).size());
+        refs = sr.getServiceReferences(
+            null, FrameworkUtil.createFilter("(service.pid=pid5)"));
+        assertEquals(1, refs.size());
+        assertSame(reg1.getReference(), refs.get(0));
+
+        reg2.unregister();
+        assertEquals(1, sr.getServiceReferences("a.A", null).size());
+        assertEquals(0, sr.getServiceReferences(
+            null, FrameworkUtil.createFilter("(service.pid=pid2)")).size());
+    }
+
+    public void testConcurrentGetServiceContention() throws Exception
+    {
+        final int threadCount = 8;
+        final int iterations = 20000;
+
+        final ServiceRegistry sr = new ServiceRegistry(new Logger(), null);
+        final ServiceReference[] refs = new ServiceReference[threadCount];
+        final Bundle[] bundles = new Bundle[threadCount];
+        for (int i = 0; i < threadCount; i++)
+        {
+            MockControl control = MockControl.createNiceControl(Bundle.class);
+            bundles[i] = (Bundle) control.getMock();
+            control.replay();
+            refs[i] = sr.registerService(
+                bundles[i], new String[] { "a.A" }, new Object(), new Hashtable())
+                .getReference();
+        }
+
+        // Each thread uses its own bundle to repeatedly get and unget
+        // every service, so threads only contend on shared registrations.
+        final List errors = new ArrayList();
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++)
+        {
+            final Bundle bundle = bundles[i];
+            threads[i] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        for (int j = 0; j < iterations; j++)
+                        {
+                            ServiceReference ref = refs[j % refs.length];
+                            assertNotNull(sr.getService(bundle, ref));
+                            assertTrue(sr.ungetService(bundle, ref));
+                        }
+                    }
+                    catch (Throwable th)
+                    {
+                        synchronized (errors)
+                        {
+                            errors.add(th);
+                        }
+                    }
+                }
+            };
+        }
+
+        for (int i = 0; i < threadCount; i++)
+        {
+            threads[i].start();
+        }
+        for (int i = 0; i < threadCount; i++)
+        {
+            threads[i].join();
+        }
+
+        assertEquals(errors.toString(), 0, errors.size());
+        for (int i = 0; i < threadCount; i++)
+        {
+            assertNull(sr.getServicesInUse(bundles[i]));
+            assertNull(sr.getUsingBundles(refs[i]));
+        }
+    }
+
+    public void testGetServiceRefusedWhileUngettingClients() throws Exception
+    {
+        MockControl control = MockControl.createNiceControl(Bundle.class);
+        Bundle b1 = (Bundle) control.getMock();
+        control.replay();
+        control = MockControl.createNiceControl(Bundle.class);
+        Bundle b2 = (Bundle) control.getMock();
+        control.replay();
+
+        ServiceRegistry sr = new ServiceRegistry(new Logger(), null);
+        ServiceRegistrationImpl reg = (ServiceRegistrationImpl) sr.registerService(
+            b1, new String[] { "a.A" }, new Object(), new Hashtable());
+        ServiceReference ref = reg.getReference();
+        assertNotNull(sr.getService(b1, ref));
+
+        // Once the registry starts ungetting the service from its clients
+        // during unregistration, no new usages may be added since they
+        // would never be flushed.
+        reg.closeUsage();
+        assertTrue(reg.isValid());
+        assertNull(sr.getService(b2, ref));
+        assertNull(sr.getServicesInUse(b2));
+
+        reg.unregister();
+        assertNull(sr.getServicesInUse(b1));
+        assertNull(sr.getUsingBundles(ref));
+    }
 }
@@ -0,0 +1,329 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.searchpolicy;
+
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.framework.Logger;
+import org.apache.felix.framework.util.VersionRange;
+import org.apache.felix.framework.util.manifestparser.Capability;
+import org.apache.felix.framework.util.manifestparser.R4Attribute;
+import org.apache.felix.framework.util.manifestparser.R4Directive;
+import org.apache.felix.framework.util.manifestparser.R4Library;
+import org.apache.felix.framework.util.manifestparser.Requirement;
+import org.apache.felix.moduleloader.ICapability;
+import org.apache.felix.moduleloader.IContent;
+import org.apache.felix.moduleloader.IModule;
+import org.apache.felix.moduleloader.IRequirement;
+import org.apache.felix.moduleloader.IWire;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Version;
+
+public class ResolverTest extends TestCase
+{
+    /**
+     * Resolves a synthetic bundle graph where every library bundle prefers
+     * the newest provider of the API package it uses, while the root bundle
+     * only accepts the oldest one, so the resolver has to go through all
+     * candidate permutations to find the consistent class space.
+    **/
+    public void testResolvePermutations() throws Exception
+    {
+        final int apiCount = 5;
+        final int libCount = 10;
+
+        List modules = new ArrayList();
+        List rootReqs = new ArrayList();
+        for (int i = 0; i < apiCount; i++)
+        {
+            String pkg = "api" + i;
+            modules.add(new StubModule("api" + i + "-1",
+                new ICapability[0], new IRequirement[0]).export(pkg, "1.0.0", null));
+            modules.add(new StubModule("api" + i + "-2",
+                new ICapability[0], new IRequirement[0]).export(pkg, "2.0.0", null));
+            rootReqs.add(importPackage(pkg, "[1.0.0,2.0.0)"));
+        }
+        for (int i = 0; i < libCount; i++)
+        {
+            String api = "api" + (i % apiCount);
+            StubModule lib = new StubModule("lib" + i,
+                new ICapability[0],
+                new IRequirement[] { importPackage(api, "0.0.0") });
+            modules.add(lib.export("lib" + i, "1.0.0", api));
+            rootReqs.add(importPackage("lib" + i, "0.0.0"));
+        }
+        StubModule root = new StubModule("root", new ICapability[0],
+            (IRequirement[]) rootReqs.toArray(new IRequirement[rootReqs.size()]));
+        modules.add(root);
+
+        Resolver.ResolverState state = new StubResolverState(modules);
+
+        Map wireMap = new Resolver(new Logger(), null).resolve(state, root);
+
+        // Every module must be wired to the version 1 API providers.
+        IWire[] wires = (IWire[]) wireMap.get(root);
+        assertEquals(apiCount + libCount, wires.length);
+        for (int i = 0; i < modules.size(); i++)
+        {
+            wires = (IWire[]) wireMap.get(modules.get(i));
+            for (int j = 0; (wires != null) && (j < wires.length); j++)
+            {
+                if (wires[j].getExporter().getSymbolicName().startsWith("api"))
+                {
+                    assertTrue(wires[j].getExporter().getSymbolicName().endsWith("-1"));
+                }
+            }
+        }
+    }
+
+    public void testPartitionRootModules() throws Exception
+    {
+        StubModule a = new StubModule("a", new ICapability[0],
+            new IRequirement[0]).export("p", "1.0.0", null);
+        StubModule b = new StubModule("b", new ICapability[0],
+            new IRequirement[] { importPackage("p", "0.0.0") });
+        StubModule c = new StubModule("c", new ICapability[0],
+            new IRequirement[] { importPackage("q", "0.0.0") });
+        StubModule d = new StubModule("d", new ICapability[0],
+            new IRequirement[0]).export("q", "1.0.0", null);
+        StubModule e = new StubModule("e", new ICapability[0],
+            new IRequirement[] { importPackage("q", "0.0.0") });
+        StubModule f = new StubModule("f", new ICapability[0],
+            new IRequirement[] { importPackage("r", "0.0.0") });
+
+        List modules = new ArrayList();
+        modules.add(a);
+        modules.add(b);
+        modules.add(c);
+        modules.add(d);
+        modules.add(e);
+        modules.add(f);
+
+        List groups = Resolver.partitionRootModules(new StubResolverState(modules),
+            new IModule[] { b, c, null, f, e, a, b });
+
+        assertEquals(3, groups.size());
+        assertEquals(Arrays.asList(new IModule[] { b, a }),
+            Arrays.asList((IModule[]) groups.get(0)));
+        assertEquals(Arrays.asList(new IModule[] { c, e }),
+            Arrays.asList((IModule[]) groups.get(1)));
+        assertEquals(Arrays.asList(new IModule[] { f }),
+            Arrays.asList((IModule[]) groups.get(2)));
+    }
+
+    private static IRequirement importPackage(String pkg, String range)
+    {
+        return new Requirement(ICapability.PACKAGE_NAMESPACE, null,
+            new R4Attribute[] {
+                new R4Attribute(ICapability.PACKAGE_PROPERTY, pkg, false),
+                new R4Attribute(ICapability.VERSION_PROPERTY, VersionRange.parse(range), false) });
+    }
+
+    private static class StubResolverState implements Resolver.ResolverState
+    {
+        private final List m_modules;
+
+        StubResolverState(List modules)
+        {
+            m_modules = modules;
+        }
+
+        public IModule[] getModules()
+        {
+            return (IModule[]) m_modules.toArray(new IModule[m_modules.size()]);
+        }
+
+        public List getResolvedCandidates(IRequirement req)
+        {
+            return new ArrayList();
+        }
+
+        public List getUnresolvedCandidates(IRequirement req)
+        {
+            List candidates = new ArrayList();
+            for (int i = 0; i < m_modules.size(); i++)
+            {
+                ICapability[] caps = ((IModule) m_modules.get(i)).getCapabilities();
+                for (int j = 0; j < caps.length; j++)
+                {
+                    if (req.isSatisfied(caps[j]))
+                    {
+                        candidates.add(caps[j]);
+                    }
+                }
+            }
+            Collections.sort(candidates);
+            return candidates;
+        }
+    }
+
+    private static class StubModule implements IModule
+    {
+        private final String m_name;
+        private ICapability[] m_caps;
+        private final IRequirement[] m_reqs;
+
+        StubModule(String name, ICapability[] caps, IRequirement[] reqs)
+        {
+            m_name = name;
+            m_caps = caps;
+            m_reqs = reqs;
+        }
+
+        StubModule export(String pkg, String version, String uses)
+        {
+            ICapability[] caps = new ICapability[m_caps.length + 1];
+            System.arraycopy(m_caps, 0, caps, 0, m_caps.length);
+            caps[m_caps.length] = new Capability(this, ICapability.PACKAGE_NAMESPACE,
+                (uses == null)
+                    ? new R4Directive[0]
+                    : new R4Directive[] { new R4Directive(Constants.USES_DIRECTIVE, uses) },
+                new R4Attribute[] {
+                    new R4Attribute(ICapability.PACKAGE_PROPERTY, pkg, false),
+                    new R4Attribute(ICapability.VERSION_PROPERTY, new Version(version), false) });
+            m_caps = caps;
+            return this;
+        }
+
+        public void setSecurityContext(Object securityContext)
+        {
+        }
+
+        public Object getSecurityContext()
+        {
+            return null;
+        }
+
+        public Map getHeaders()
+        {
+            return new HashMap();
+        }
+
+        public boolean isExtension()
+        {
+            return false;
+        }
+
+        public String getSymbolicName()
+        {
+            return m_name;
+        }
+
+        public Version getVersion()
+        {
+            return Version.emptyVersion;
+        }
+
+        public ICapability[] getCapabilities()
+        {
+            return m_caps;
+        }
+
+        public IRequirement[] getRequirements()
+        {
+            return m_reqs;
+        }
+
+        public IRequirement[] getDynamicRequirements()
+        {
+            return null;
+        }
+
+        public R4Library[] getNativeLibraries()
+        {
+            return null;
+        }
+
+        public int getDeclaredActivationPolicy()
+        {
+            return EAGER_ACTIVATION;
+        }
+
+        public Bundle getBundle()
+        {
+            return null;
+        }
+
+        public String getId()
+        {
+            return m_name;
+        }
+
+        public IWire[] getWires()
+        {
+            return null;
+        }
+
+        public boolean isResolved()
+        {
+            return false;
+        }
+
+        public IContent getContent()
+        {
+            return null;
+        }
+
+        public Class getClassByDelegation(String name) throws ClassNotFoundException
+        {
+            throw new ClassNotFoundException(name);
+        }
+
+        public URL getResourceByDelegation(String name)
+        {
+            return null;
+        }
+
+        public Enumeration getResourcesByDelegation(String name)
+        {
+            return null;
+        }
+
+        public URL getEntry(String name)
+        {
+            return null;
+        }
+
+        public boolean hasInputStream(int index, String urlPath)
+        {
+            return false;
+        }
+
+        public InputStream getInputStream(int index, String urlPath)
+        {
+            return null;
+        }
+
+        public String toString()
+        {
+            return m_name;
+        }
+    }
+}
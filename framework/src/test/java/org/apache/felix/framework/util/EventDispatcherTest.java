@@ -29,11 +29,14 @@ import java.util.Set;
 
 import junit.framework.TestCase;
 
+import org.apache.felix.framework.FilterImpl;
 import org.apache.felix.framework.Logger;
 import org.apache.felix.framework.ServiceRegistry;
 import org.easymock.EasyMock;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
 import org.osgi.framework.Constants;
 import org.osgi.framework.ServiceEvent;
 import org.osgi.framework.ServiceListener;
@@ -155,6 +158,117 @@ public class EventDispatcherTest extends TestCase
         assertTrue(calledHooks.contains(eh2));
     }
 
+    public void testFireServiceEventByObjectClass() throws Exception
+    {
+        Bundle b1 = getMockBundle();
+        Bundle b2 = getMockBundle();
+
+        EventDispatcher ed = EventDispatcher.start(new Logger());
+        EventDispatcher.shutdown();
+
+        final List fired = Collections.synchronizedList(new ArrayList());
+        ServiceListener sl1 = new ServiceListener()
+        {
+            public void serviceChanged(ServiceEvent event)
+            {
+                fired.add(this);
+            }
+        };
+        ed.addListener(b1, ServiceListener.class, sl1,
+            FilterImpl.newInstance("(objectClass=java.lang.String)"));
+        ServiceListener sl2 = new ServiceListener()
+        {
+            public void serviceChanged(ServiceEvent event)
+            {
+                fired.add(this);
+            }
+        };
+        ed.addListener(b1, ServiceListener.class, sl2,
+            FilterImpl.newInstance("(&(objectClass=java.lang.Integer)(a=b))"));
+        ServiceListener sl3 = new ServiceListener()
+        {
+            public void serviceChanged(ServiceEvent event)
+            {
+                fired.add(this);
+            }
+        };
+        ed.addListener(b2, ServiceListener.class, sl3, null);
+
+        ServiceReference sr = (ServiceReference) EasyMock.createNiceMock(ServiceReference.class);
+        EasyMock.expect(sr.getProperty(Constants.OBJECTCLASS)).andReturn(new String[]
+            {
+                "java.lang.String"
+            }).anyTimes();
+        sr.isAssignableTo(b1, String.class.getName());
+        EasyMock.expectLastCall().andReturn(Boolean.TRUE).anyTimes();
+        sr.isAssignableTo(b2, String.class.getName());
+        EasyMock.expectLastCall().andReturn(Boolean.TRUE).anyTimes();
+        EasyMock.replay(new Object[]
+            {
+                sr
+            });
+
+        // Listeners are notified in reverse order of registration.
+        ed.fireServiceEvent(new ServiceEvent(ServiceEvent.REGISTERED, sr), null, null);
+        assertEquals(2, fired.size());
+        assertSame(sl3, fired.get(0));
+        assertSame(sl1, fired.get(1));
+
+        // Updating the filter must update the index.
+        fired.clear();
+        ed.addListener(b1, ServiceListener.class, sl1,
+            FilterImpl.newInstance("(objectClass=java.lang.Integer)"));
+        ed.addListener(b1, ServiceListener.class, sl2,
+            FilterImpl.newInstance("(|(objectClass=java.lang.String)(a=b))"));
+        ed.fireServiceEvent(new ServiceEvent(ServiceEvent.REGISTERED, sr), null, null);
+        assertEquals(2, fired.size());
+        assertSame(sl3, fired.get(0));
+        assertSame(sl2, fired.get(1));
+    }
+
+    public void testParallelBundleEventDelivery()
+    {
+        Bundle b1 = getMockBundle();
+        Bundle b2 = getMockBundle();
+
+        EventDispatcher ed = EventDispatcher.start(new Logger(), 2);
+
+        final List received1 = Collections.synchronizedList(new ArrayList());
+        final List received2 = Collections.synchronizedList(new ArrayList());
+        ed.addListener(b1, BundleListener.class, new BundleListener()
+        {
+            public void bundleChanged(BundleEvent event)
+            {
+                received1.add(event);
+            }
+        }, null);
+        ed.addListener(b2, BundleListener.class, new BundleListener()
+        {
+            public void bundleChanged(BundleEvent event)
+            {
+                received2.add(event);
+            }
+        }, null);
+
+        List fired = new ArrayList();
+        for (int i = 0; i < 50; i++)
+        {
+            BundleEvent event = new BundleEvent(BundleEvent.INSTALLED, b1);
+            fired.add(event);
+            ed.fireBundleEvent(event);
+        }
+
+        // Stopping the dispatcher waits for all queued events to be delivered.
+        ed.stop();
+
+        // Each listener must have received all events in the order fired.
+        assertEquals(fired, received1);
+        assertEquals(fired, received2);
+        assertEquals(0, ed.getQueueDepth());
+        assertEquals(100, ed.getDeliveredCount());
+        assertTrue(ed.getMaxQueueDepth() > 0);
+    }
+
     private Bundle getMockBundle()
     {
         BundleContext bc = (BundleContext) EasyMock.createNiceMock(BundleContext.class);
@@ -34,7 +34,7 @@ public final class Dispatcher
     public void dispatch(HttpServletRequest req, HttpServletResponse res)
         throws ServletException, IOException
     {
-        ServletPipeline servletPipeline = new ServletPipeline(this.handlerRegistry.getServlets());
+        ServletPipeline servletPipeline = new ServletPipeline(this.handlerRegistry.getServletMapping());
         FilterPipeline filterPipeline = new FilterPipeline(this.handlerRegistry.getFilters(), servletPipeline);
         filterPipeline.dispatch(req, res, new NotFoundFilterChain());
     }
@@ -21,19 +21,20 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.apache.felix.http.base.internal.context.ExtServletContext;
 import java.io.IOException;
+import java.util.regex.Pattern;
 
 public final class FilterHandler
     extends AbstractHandler implements Comparable<FilterHandler>
 {
     private final Filter filter;
-    private final String pattern;
+    private final Pattern regex;
     private final int ranking;
 
     public FilterHandler(ExtServletContext context, Filter filter, String pattern, int ranking)
     {
         super(context);
         this.filter = filter;
-        this.pattern = pattern;
+        this.regex = Pattern.compile(pattern);
         this.ranking = ranking;
     }
 
@@ -57,7 +58,7 @@ public final class FilterHandler
 
     public boolean matches(String uri)
     {
-        return uri.matches(this.pattern);
+        return this.regex.matcher(uri).matches();
     }
 
     public void handle(HttpServletRequest req, HttpServletResponse res, FilterChain chain)
@@ -30,6 +30,7 @@ public final class HandlerRegistry
     private final Map<Filter, FilterHandler> filterMap;
     private final Map<String, Servlet> aliasMap;
     private ServletHandler[] servlets;
+    private ServletMapping servletMapping;
     private FilterHandler[] filters;
 
     public HandlerRegistry()
@@ -38,6 +39,7 @@ public final class HandlerRegistry
         this.filterMap = new HashMap<Filter, FilterHandler>();
         this.aliasMap = new HashMap<String, Servlet>();
         this.servlets = new ServletHandler[0];
+        this.servletMapping = new ServletMapping(this.servlets);
         this.filters = new FilterHandler[0];
     }
 
@@ -46,6 +48,11 @@ public final class HandlerRegistry
         return this.servlets;
     }
 
+    public ServletMapping getServletMapping()
+    {
+        return this.servletMapping;
+    }
+
     public FilterHandler[] getFilters()
     {
         return this.filters;
@@ -127,6 +134,7 @@ public final class HandlerRegistry
         ServletHandler[] tmp = this.servletMap.values().toArray(new ServletHandler[this.servletMap.size()]);
         Arrays.sort(tmp);
         this.servlets = tmp;
+        this.servletMapping = new ServletMapping(tmp);
     }
 
     private void updateFilterArray()
@@ -0,0 +1,195 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.felix.http.base.internal.handler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Immutable trie of the servlet aliases used to find the servlet handling a
+ * request. Each node of the trie represents an alias path segment and has
+ * its children sorted by segment, so a lookup takes a binary search per
+ * segment of the request path and does not allocate any objects.
+ */
+public final class ServletMapping
+{
+    private final static Node[] NO_CHILDREN = new Node[0];
+
+    private final Node root;
+    private final ServletHandler[] handlers;
+
+    public ServletMapping(ServletHandler[] handlers)
+    {
+        this.handlers = handlers;
+
+        Builder builder = new Builder(null);
+        for (ServletHandler handler : handlers) {
+            builder.add(handler, handler.getAlias());
+        }
+
+        this.root = builder.build();
+    }
+
+    public ServletHandler[] getHandlers()
+    {
+        return this.handlers;
+    }
+
+    public boolean isEmpty()
+    {
+        return this.handlers.length == 0;
+    }
+
+    /**
+     * Returns the handler with the longest alias matching the uri in the
+     * sense of {@link ServletHandler#matches(String)} or <code>null</code>
+     * if there is none.
+     */
+    public ServletHandler find(String uri)
+    {
+        if ((uri == null) || !uri.startsWith("/")) {
+            return null;
+        }
+
+        Node node = this.root;
+        ServletHandler found = node.handler;
+        int start = 1;
+        while (start <= uri.length()) {
+            int end = uri.indexOf('/', start);
+            if (end < 0) {
+                end = uri.length();
+            }
+
+            node = node.getChild(uri, start, end);
+            if (node == null) {
+                break;
+            }
+
+            if (node.handler != null) {
+                found = node.handler;
+            }
+
+            start = end + 1;
+        }
+
+        return found;
+    }
+
+    private final static class Node
+    {
+        private final String segment;
+        private final ServletHandler handler;
+        private final Node[] children;
+
+        public Node(String segment, ServletHandler handler, Node[] children)
+        {
+            this.segment = segment;
+            this.handler = handler;
+            this.children = children;
+        }
+
+        public Node getChild(String uri, int start, int end)
+        {
+            int low = 0;
+            int high = this.children.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = compare(this.children[mid].segment, uri, start, end);
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return this.children[mid];
+                }
+            }
+
+            return null;
+        }
+
+        private static int compare(String segment, String uri, int start, int end)
+        {
+            int len = Math.min(segment.length(), end - start);
+            for (int i = 0; i < len; i++) {
+                int diff = segment.charAt(i) - uri.charAt(start + i);
+                if (diff != 0) {
+                    return diff;
+                }
+            }
+
+            return segment.length() - (end - start);
+        }
+    }
+
+    private final static class Builder
+    {
+        private final String segment;
+        private final List<Builder> children;
+        private ServletHandler handler;
+
+        public Builder(String segment)
+        {
+            this.segment = segment;
+            this.children = new ArrayList<Builder>();
+        }
+
+        public void add(ServletHandler handler, String alias)
+        {
+            Builder node = this;
+            if (!alias.equals("/")) {
+                for (String segment : alias.substring(1).split("/", -1)) {
+                    node = node.getChild(segment);
+                }
+            }
+
+            node.handler = handler;
+        }
+
+        private Builder getChild(String segment)
+        {
+            for (Builder child : this.children) {
+                if (child.segment.equals(segment)) {
+                    return child;
+                }
+            }
+
+            Builder child = new Builder(segment);
+            this.children.add(child);
+            return child;
+        }
+
+        public Node build()
+        {
+            Node[] nodes = this.children.isEmpty() ? NO_CHILDREN : new Node[this.children.size()];
+            for (int i = 0; i < nodes.length; i++) {
+                nodes[i] = this.children.get(i).build();
+            }
+
+            Arrays.sort(nodes, new Comparator<Node>()
+            {
+                public int compare(Node n1, Node n2)
+                {
+                    return n1.segment.compareTo(n2.segment);
+                }
+            });
+
+            return new Node(this.segment, this.handler, nodes);
+        }
+    }
+}
@@ -106,7 +106,7 @@ public final class HttpServiceImpl
         }
         
         try {
-            Servlet servlet = new ResourceServlet(name);
+            Servlet servlet = new ResourceServlet(name, this.bundle);
             registerServlet(alias, servlet, null, context);
         } catch (ServletException e) {
             SystemLogger.error("Failed to register resources", e);
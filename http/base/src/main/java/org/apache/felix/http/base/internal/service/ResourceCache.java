@@ -0,0 +1,263 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.felix.http.base.internal.service;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.osgi.framework.Bundle;
+
+/**
+ * Cache of the resources served by the {@link ResourceServlet}. The content
+ * of small resources is kept in memory in least recently used order up to a
+ * maximum total size. Larger resources are only described by their length,
+ * modification time and, if they are files, the file to send them from.
+ * Cached resources are validated on every lookup against the modification
+ * time of their file, of the bundle providing them or of their URL.
+ */
+final class ResourceCache
+{
+    private final int maxSize;
+    private final int maxEntrySize;
+    private final LinkedHashMap<String, Resource> entries;
+    private int size;
+
+    public ResourceCache(int maxSize, int maxEntrySize)
+    {
+        this.maxSize = maxSize;
+        this.maxEntrySize = maxEntrySize;
+        this.entries = new LinkedHashMap<String, Resource>(16, 0.75f, true);
+    }
+
+    /**
+     * Returns the resource for the URL. The cached content of resources
+     * provided by the given bundle is validated against the modification
+     * time of the bundle without connecting to the URL. Other resources are
+     * validated against the modification time of the file or URL.
+     */
+    public Resource get(URL url, Bundle bundle)
+        throws IOException
+    {
+        File file = getFile(url);
+        long lastModified;
+        if (file != null) {
+            lastModified = file.lastModified();
+        } else if ((bundle != null) && isBundleUrl(url)) {
+            lastModified = bundle.getLastModified();
+        } else {
+            lastModified = getLastModified(url);
+        }
+
+        String key = url.toExternalForm();
+        if (lastModified != 0) {
+            synchronized (this) {
+                Resource resource = this.entries.get(key);
+                if ((resource != null) && (resource.getLastModified() == lastModified)) {
+                    return resource;
+                }
+            }
+        }
+
+        Resource resource = (file != null) ? load(url, file, lastModified) : load(url, lastModified);
+        if ((lastModified != 0) && (resource.getContent() != null)) {
+            put(key, resource);
+        }
+
+        return resource;
+    }
+
+    private synchronized void put(String key, Resource resource)
+    {
+        Resource old = this.entries.put(key, resource);
+        if (old != null) {
+            this.size -= old.getContent().length;
+        }
+
+        this.size += resource.getContent().length;
+        for (Iterator<Resource> it = this.entries.values().iterator(); (this.size > this.maxSize) && it.hasNext();) {
+            this.size -= it.next().getContent().length;
+            it.remove();
+        }
+    }
+
+    private Resource load(URL url, File file, long lastModified)
+        throws IOException
+    {
+        long length = file.length();
+        if (length > this.maxEntrySize) {
+            return new Resource(url, file, null, length, lastModified, getETag(lastModified, length));
+        }
+
+        InputStream is = new FileInputStream(file);
+        try {
+            return load(url, file, is, length, lastModified);
+        } finally {
+            is.close();
+        }
+    }
+
+    private Resource load(URL url, long lastModified)
+        throws IOException
+    {
+        URLConnection conn = url.openConnection();
+        InputStream is = conn.getInputStream();
+        try {
+            long length = conn.getContentLength();
+            if ((length < 0) || (length > this.maxEntrySize)) {
+                // the content is streamed from the URL again when sent
+                return new Resource(url, null, null, length, lastModified, getETag(lastModified, length));
+            }
+
+            return load(url, null, is, length, lastModified);
+        } finally {
+            is.close();
+        }
+    }
+
+    private Resource load(URL url, File file, InputStream is, long length, long lastModified)
+        throws IOException
+    {
+        byte[] content = new byte[(int)length];
+        int pos = 0;
+        while (pos < content.length) {
+            int n = is.read(content, pos, content.length - pos);
+            if (n < 0) {
+                throw new IOException("Unexpected end of resource " + url);
+            }
+
+            pos += n;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        String etag = "\"" + Long.toHexString(crc.getValue()) + "-" + Long.toHexString(length) + "\"";
+        return new Resource(url, file, content, length, lastModified, etag);
+    }
+
+    private static String getETag(long lastModified, long length)
+    {
+        if ((lastModified != 0) && (length >= 0)) {
+            return "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(length) + "\"";
+        }
+
+        return null;
+    }
+
+    private static long getLastModified(URL url)
+    {
+        long lastModified = 0;
+
+        try {
+            URLConnection conn = url.openConnection();
+            lastModified = conn.getLastModified();
+
+            // close the stream the connection may have opened
+            conn.getInputStream().close();
+        } catch (Exception e)
+        {
+            // Do nothing
+        }
+
+        if (lastModified == 0) {
+            String filepath = url.getPath();
+            if (filepath != null) {
+                File f = new File(filepath);
+                if (f.exists()) {
+                    lastModified = f.lastModified();
+                }
+            }
+        }
+
+        return lastModified;
+    }
+
+    private static boolean isBundleUrl(URL url)
+    {
+        String protocol = url.getProtocol();
+        return "bundle".equals(protocol) || "bundleentry".equals(protocol) || "bundleresource".equals(protocol);
+    }
+
+    private static File getFile(URL url)
+    {
+        if ("file".equals(url.getProtocol())) {
+            File file = new File(url.getPath());
+            if (file.isFile()) {
+                return file;
+            }
+        }
+
+        return null;
+    }
+
+    public final static class Resource
+    {
+        private final URL url;
+        private final File file;
+        private final byte[] content;
+        private final long length;
+        private final long lastModified;
+        private final String etag;
+
+        public Resource(URL url, File file, byte[] content, long length, long lastModified, String etag)
+        {
+            this.url = url;
+            this.file = file;
+            this.content = content;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.etag = etag;
+        }
+
+        public URL getUrl()
+        {
+            return this.url;
+        }
+
+        public File getFile()
+        {
+            return this.file;
+        }
+
+        public byte[] getContent()
+        {
+            return this.content;
+        }
+
+        public long getLength()
+        {
+            return this.length;
+        }
+
+        public long getLastModified()
+        {
+            return this.lastModified;
+        }
+
+        public String getETag()
+        {
+            return this.etag;
+        }
+    }
+}
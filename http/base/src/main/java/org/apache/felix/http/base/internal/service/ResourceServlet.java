@@ -20,21 +20,28 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.ServletException;
+import org.osgi.framework.Bundle;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.File;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URL;
-import java.net.URLConnection;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
 public final class ResourceServlet 
     extends HttpServlet
 {
+    private final static ResourceCache CACHE = new ResourceCache(16 * 1024 * 1024, 1024 * 1024);
+
     private final String path;
+    private final Bundle bundle;
 
-    public ResourceServlet(String path)
+    public ResourceServlet(String path, Bundle bundle)
     {
         this.path = path;
+        this.bundle = bundle;
     }
 
     @Override
@@ -68,41 +75,69 @@ public final class ResourceServlet
             res.setContentType(contentType);
         }
 
-        long lastModified  = getLastModified(url);
+        ResourceCache.Resource resource = null;
+        if (acceptsGzip(req)) {
+            URL gzipUrl = getServletContext().getResource(resName + ".gz");
+            if (gzipUrl != null) {
+                resource = CACHE.get(gzipUrl, this.bundle);
+                res.setHeader("Content-Encoding", "gzip");
+                res.setHeader("Vary", "Accept-Encoding");
+            }
+        }
+
+        if (resource == null) {
+            resource = CACHE.get(url, this.bundle);
+        }
+
+        long lastModified = resource.getLastModified();
         if (lastModified != 0) {
             res.setDateHeader("Last-Modified", lastModified);
         }
 
-        if (!resourceModified(lastModified, req.getDateHeader("If-Modified-Since"))) {
+        String etag = resource.getETag();
+        if (etag != null) {
+            res.setHeader("ETag", etag);
+        }
+
+        if (!resourceModified(req, etag, lastModified)) {
             res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        long length = resource.getLength();
+        if (length < 0) {
+            copyResource(resource, 0, -1, res);
+            return;
+        }
+
+        res.setHeader("Accept-Ranges", "bytes");
+        long[] range = getRange(req, etag, lastModified, length);
+        if (range == null) {
+            res.setHeader("Content-Range", "bytes */" + length);
+            res.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+        } else if ((range[0] == 0) && (range[1] == length)) {
+            copyResource(resource, 0, length, res);
         } else {
-            copyResource(url, res);
+            res.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            res.setHeader("Content-Range", "bytes " + range[0] + "-" + (range[1] - 1) + "/" + length);
+            copyResource(resource, range[0], range[1] - range[0], res);
         }
     }
 
-    private long getLastModified(URL url)
+    private boolean acceptsGzip(HttpServletRequest req)
     {
-        long lastModified = 0;
+        String accept = req.getHeader("Accept-Encoding");
+        return (accept != null) && (accept.indexOf("gzip") >= 0);
+    }
 
-        try {
-            URLConnection conn = url.openConnection();
-            lastModified = conn.getLastModified();
-        } catch (Exception e)
-        {
-            // Do nothing
-        }
-
-        if (lastModified == 0) {
-            String filepath = url.getPath();
-            if (filepath != null) {
-                File f = new File(filepath);
-                if (f.exists()) {
-                    lastModified = f.lastModified();
-                }
-            }
+    boolean resourceModified(HttpServletRequest req, String etag, long lastModified)
+    {
+        String ifNoneMatch = req.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            return !etagMatches(ifNoneMatch, etag, true);
         }
 
-        return lastModified;
+        return resourceModified(lastModified, req.getDateHeader("If-Modified-Since"));
     }
 
     private boolean resourceModified(long resTimestamp, long modSince)
@@ -113,34 +148,180 @@ public final class ResourceServlet
         return resTimestamp == 0 || modSince == -1 || resTimestamp > modSince;
     }
 
-    private void copyResource(URL url, HttpServletResponse res)
+    /**
+     * Returns whether the entity tag matches one of the tags in the header.
+     * The weak comparison ignores the <code>W/</code> prefix of weak tags,
+     * which never match in the strong comparison.
+     */
+    boolean etagMatches(String header, String etag, boolean weak)
+    {
+        if (etag == null) {
+            return header.trim().equals("*");
+        }
+
+        if (weak) {
+            etag = stripWeak(etag);
+        } else if (etag.startsWith("W/")) {
+            return false;
+        }
+
+        for (String tag : header.split(",")) {
+            tag = tag.trim();
+            if (weak) {
+                tag = stripWeak(tag);
+            }
+
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static String stripWeak(String tag)
+    {
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+
+    /**
+     * Returns the start (inclusive) and end (exclusive) of the single byte
+     * range requested by the <code>Range</code> header, the complete
+     * resource if no or no supported range is requested or the range does
+     * not apply because of the <code>If-Range</code> header, or
+     * <code>null</code> if the requested range is not satisfiable.
+     */
+    long[] getRange(HttpServletRequest req, String etag, long lastModified, long length)
+    {
+        long[] all = new long[] { 0, length };
+
+        String range = req.getHeader("Range");
+        if ((range == null) || !range.startsWith("bytes=") || (range.indexOf(',') >= 0)) {
+            return all;
+        }
+
+        String ifRange = req.getHeader("If-Range");
+        if (ifRange != null) {
+            if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+                if (!etagMatches(ifRange, etag, false)) {
+                    return all;
+                }
+            } else {
+                try {
+                    if (resourceModified(lastModified, req.getDateHeader("If-Range"))) {
+                        return all;
+                    }
+                } catch (IllegalArgumentException e) {
+                    return all;
+                }
+            }
+        }
+
+        String spec = range.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return all;
+        }
+
+        try {
+            long start;
+            long end;
+            if (dash == 0) {
+                // suffix range of the last bytes
+                long suffix = Long.parseLong(spec.substring(1));
+                start = Math.max(0, length - suffix);
+                end = length;
+            } else {
+                start = Long.parseLong(spec.substring(0, dash));
+                end = (dash == spec.length() - 1) ? length
+                    : Math.min(length, Long.parseLong(spec.substring(dash + 1)) + 1);
+            }
+
+            if ((start >= length) || (start >= end)) {
+                return null;
+            }
+
+            return new long[] { start, end };
+        } catch (NumberFormatException e) {
+            return all;
+        }
+    }
+
+    private void copyResource(ResourceCache.Resource resource, long start, long length, HttpServletResponse res)
         throws IOException
     {
-        OutputStream os = null;
-        InputStream is = null;
+        if (length >= 0) {
+            res.setContentLength((int)length);
+        }
 
+        OutputStream os = null;
         try {
             os = res.getOutputStream();
-            is = url.openStream();
-
-            int len = 0;
-            byte[] buf = new byte[1024];
-            int n;
 
-            while ((n = is.read(buf, 0, buf.length)) >= 0) {
-                os.write( buf, 0, n );
-                len += n;
+            if (resource.getContent() != null) {
+                os.write(resource.getContent(), (int)start, (int)length);
+            } else if (resource.getFile() != null) {
+                copyFile(resource, start, length, os);
+            } else {
+                copyStream(resource.getUrl(), start, length, os);
+            }
+        } finally {
+            if (os != null) {
+                os.close();
             }
+        }
+    }
 
-            res.setContentLength(len);
+    private void copyFile(ResourceCache.Resource resource, long start, long length, OutputStream os)
+        throws IOException
+    {
+        FileInputStream is = new FileInputStream(resource.getFile());
+        try {
+            FileChannel in = is.getChannel();
+            WritableByteChannel out = Channels.newChannel(os);
+
+            long end = start + length;
+            while (start < end) {
+                long n = in.transferTo(start, end - start, out);
+                if (n <= 0) {
+                    break;
+                }
+
+                start += n;
+            }
         } finally {
-            if (is != null) {
-                is.close();
+            is.close();
+        }
+    }
+
+    private void copyStream(URL url, long start, long length, OutputStream os)
+        throws IOException
+    {
+        InputStream is = url.openStream();
+        try {
+            while (start > 0) {
+                long n = is.skip(start);
+                if (n <= 0) {
+                    return;
+                }
+
+                start -= n;
             }
 
-            if (os != null) {
-                os.close();
+            byte[] buf = new byte[8192];
+            while (length != 0) {
+                int n = is.read(buf, 0, (length < 0) ? buf.length : (int)Math.min(buf.length, length));
+                if (n < 0) {
+                    break;
+                }
+
+                os.write(buf, 0, n);
+                if (length > 0) {
+                    length -= n;
+                }
             }
+        } finally {
+            is.close();
         }
     }
 }
@@ -0,0 +1,119 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.felix.http.base.internal.handler;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.Assert;
+import org.mockito.Mockito;
+import org.apache.felix.http.base.internal.context.ExtServletContext;
+import javax.servlet.Servlet;
+import java.util.Arrays;
+
+public class ServletMappingTest
+{
+    private ExtServletContext context;
+
+    @Before
+    public void setUp()
+    {
+        this.context = Mockito.mock(ExtServletContext.class);
+    }
+
+    private ServletHandler createHandler(String alias)
+    {
+        return new ServletHandler(this.context, Mockito.mock(Servlet.class), alias);
+    }
+
+    private ServletMapping createMapping(ServletHandler... handlers)
+    {
+        Arrays.sort(handlers);
+        return new ServletMapping(handlers);
+    }
+
+    @Test
+    public void testEmpty()
+    {
+        ServletMapping mapping = createMapping();
+        Assert.assertTrue(mapping.isEmpty());
+        Assert.assertNull(mapping.find("/a"));
+    }
+
+    @Test
+    public void testLongestAlias()
+    {
+        ServletHandler h1 = createHandler("/a");
+        ServletHandler h2 = createHandler("/a/b");
+        ServletHandler h3 = createHandler("/c");
+        ServletMapping mapping = createMapping(h1, h2, h3);
+
+        Assert.assertFalse(mapping.isEmpty());
+        Assert.assertSame(h1, mapping.find("/a"));
+        Assert.assertSame(h1, mapping.find("/a/"));
+        Assert.assertSame(h1, mapping.find("/a/c"));
+        Assert.assertSame(h1, mapping.find("/a/bc"));
+        Assert.assertSame(h2, mapping.find("/a/b"));
+        Assert.assertSame(h2, mapping.find("/a/b/"));
+        Assert.assertSame(h2, mapping.find("/a/b/c"));
+        Assert.assertSame(h3, mapping.find("/c/d"));
+        Assert.assertNull(mapping.find("/ab"));
+        Assert.assertNull(mapping.find("/"));
+        Assert.assertNull(mapping.find(""));
+        Assert.assertNull(mapping.find(null));
+    }
+
+    @Test
+    public void testRootAlias()
+    {
+        ServletHandler root = createHandler("/");
+        ServletHandler h1 = createHandler("/a");
+        ServletMapping mapping = createMapping(root, h1);
+
+        Assert.assertSame(root, mapping.find("/"));
+        Assert.assertSame(root, mapping.find("/b"));
+        Assert.assertSame(root, mapping.find("/ab"));
+        Assert.assertSame(h1, mapping.find("/a/b"));
+        Assert.assertNull(mapping.find("a"));
+    }
+
+    @Test
+    public void testSameAsMatches()
+    {
+        String[] aliases = { "/", "/a", "/a/b", "/a/b/c", "/b", "/ba", "/a/bb", "/z/y" };
+        String[] uris = { "/", "/a", "/a/", "/a/b", "/a/bb/c", "/a/b/c/d", "/b/", "/ba/a",
+            "/bb", "/z", "/z/y/x", "/a//b" };
+
+        ServletHandler[] handlers = new ServletHandler[aliases.length];
+        for (int i = 0; i < aliases.length; i++) {
+            handlers[i] = createHandler(aliases[i]);
+        }
+
+        ServletMapping mapping = createMapping(handlers.clone());
+        Arrays.sort(handlers);
+        for (String uri : uris) {
+            ServletHandler expected = null;
+            for (ServletHandler handler : handlers) {
+                if (handler.matches(uri)) {
+                    expected = handler;
+                    break;
+                }
+            }
+
+            Assert.assertSame(uri, expected, mapping.find(uri));
+        }
+    }
+}
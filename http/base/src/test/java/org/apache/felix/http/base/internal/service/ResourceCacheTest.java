@@ -0,0 +1,209 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.felix.http.base.internal.service;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.osgi.framework.Bundle;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+
+public class ResourceCacheTest
+{
+    private File dir;
+    private ResourceCache cache;
+
+    @Before
+    public void setUp()
+        throws IOException
+    {
+        this.dir = File.createTempFile("resources", ".dir");
+        this.dir.delete();
+        this.dir.mkdirs();
+
+        this.cache = new ResourceCache(10, 8);
+    }
+
+    @After
+    public void tearDown()
+    {
+        File[] files = this.dir.listFiles();
+        for (int i = 0; (files != null) && (i < files.length); i++) {
+            files[i].delete();
+        }
+
+        this.dir.delete();
+    }
+
+    @Test
+    public void testSmallResource()
+        throws IOException
+    {
+        URL url = write("a.txt", "abcdef");
+
+        ResourceCache.Resource resource = this.cache.get(url, null);
+        Assert.assertEquals("abcdef", new String(resource.getContent()));
+        Assert.assertEquals(6, resource.getLength());
+        Assert.assertEquals(new File(url.getPath()).lastModified(), resource.getLastModified());
+        Assert.assertNotNull(resource.getETag());
+        Assert.assertSame(resource, this.cache.get(url, null));
+    }
+
+    @Test
+    public void testLargeResource()
+        throws IOException
+    {
+        URL url = write("a.txt", "abcdefghi");
+
+        ResourceCache.Resource resource = this.cache.get(url, null);
+        Assert.assertNull(resource.getContent());
+        Assert.assertEquals(new File(url.getPath()), resource.getFile());
+        Assert.assertEquals(9, resource.getLength());
+        Assert.assertNotNull(resource.getETag());
+
+        // large resources are not cached
+        ResourceCache.Resource other = this.cache.get(url, null);
+        Assert.assertNotSame(resource, other);
+        Assert.assertEquals(resource.getETag(), other.getETag());
+    }
+
+    @Test
+    public void testModifiedResource()
+        throws IOException
+    {
+        URL url = write("a.txt", "abcdef");
+
+        ResourceCache.Resource resource = this.cache.get(url, null);
+        URL modified = write("a.txt", "ghijkl");
+        File file = new File(modified.getPath());
+        file.setLastModified(resource.getLastModified() + 2000);
+
+        ResourceCache.Resource other = this.cache.get(modified, null);
+        Assert.assertNotSame(resource, other);
+        Assert.assertEquals("ghijkl", new String(other.getContent()));
+        Assert.assertFalse(resource.getETag().equals(other.getETag()));
+    }
+
+    @Test
+    public void testEvictionByTotalSize()
+        throws IOException
+    {
+        URL a = write("a.txt", "aaaa");
+        URL b = write("b.txt", "bbbb");
+        URL c = write("c.txt", "cccc");
+
+        ResourceCache.Resource ra = this.cache.get(a, null);
+        ResourceCache.Resource rb = this.cache.get(b, null);
+        Assert.assertSame(ra, this.cache.get(a, null));
+
+        // the least recently used resource is evicted
+        ResourceCache.Resource rc = this.cache.get(c, null);
+        Assert.assertSame(ra, this.cache.get(a, null));
+        Assert.assertSame(rc, this.cache.get(c, null));
+        Assert.assertNotSame(rb, this.cache.get(b, null));
+    }
+
+    @Test
+    public void testBundleResource()
+        throws IOException
+    {
+        final int[] connections = new int[1];
+        final int[] open = new int[1];
+        URLStreamHandler handler = new URLStreamHandler()
+        {
+            protected URLConnection openConnection(URL url)
+            {
+                connections[0]++;
+                return new URLConnection(url)
+                {
+                    private InputStream in;
+
+                    public void connect()
+                    {
+                        if (this.in == null) {
+                            open[0]++;
+                            this.in = new ByteArrayInputStream("abcdef".getBytes())
+                            {
+                                public void close()
+                                {
+                                    open[0]--;
+                                }
+                            };
+                        }
+                    }
+
+                    public InputStream getInputStream()
+                    {
+                        connect();
+                        return this.in;
+                    }
+
+                    public int getContentLength()
+                    {
+                        connect();
+                        return 6;
+                    }
+                };
+            }
+        };
+        URL url = new URL("bundle", "1.0", -1, "/a.txt", handler);
+        Bundle bundle = Mockito.mock(Bundle.class);
+        Mockito.when(bundle.getLastModified()).thenReturn(1000L);
+
+        ResourceCache.Resource resource = this.cache.get(url, bundle);
+        Assert.assertEquals("abcdef", new String(resource.getContent()));
+        Assert.assertEquals(1000L, resource.getLastModified());
+
+        // cache hits do not connect to the URL
+        Assert.assertSame(resource, this.cache.get(url, bundle));
+        Assert.assertEquals(1, connections[0]);
+        Assert.assertEquals(0, open[0]);
+
+        // an updated bundle invalidates the cached resource
+        Mockito.when(bundle.getLastModified()).thenReturn(2000L);
+        Assert.assertNotSame(resource, this.cache.get(url, bundle));
+        Assert.assertEquals(2, connections[0]);
+        Assert.assertEquals(0, open[0]);
+
+        // without the bundle the URL is connected to for validation
+        this.cache.get(url, null);
+        Assert.assertEquals(0, open[0]);
+    }
+
+    private URL write(String name, String content)
+        throws IOException
+    {
+        File file = new File(this.dir, name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes());
+        } finally {
+            out.close();
+        }
+
+        return file.toURI().toURL();
+    }
+}
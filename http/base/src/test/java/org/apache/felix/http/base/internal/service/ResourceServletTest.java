@@ -0,0 +1,235 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.felix.http.base.internal.service;
+
+import org.junit.Before;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+import javax.servlet.http.HttpServletRequest;
+
+public class ResourceServletTest
+{
+    private static final String ETAG = "\"abc-b\"";
+    private static final long LAST_MODIFIED = 1000000000000L;
+
+    private ResourceServlet servlet;
+    private HttpServletRequest req;
+
+    @Before
+    public void setUp()
+    {
+        this.servlet = new ResourceServlet("/res", null);
+        this.req = Mockito.mock(HttpServletRequest.class);
+        Mockito.when(this.req.getDateHeader(Mockito.anyString())).thenReturn(-1L);
+    }
+
+    @Test
+    public void testNoRange()
+    {
+        assertRange(0, 11, getRange());
+
+        setHeader("Range", "items=0-1");
+        assertRange(0, 11, getRange());
+    }
+
+    @Test
+    public void testRange()
+    {
+        setHeader("Range", "bytes=2-4");
+        assertRange(2, 5, getRange());
+
+        setHeader("Range", "bytes=2-100");
+        assertRange(2, 11, getRange());
+    }
+
+    @Test
+    public void testOpenEndedRange()
+    {
+        setHeader("Range", "bytes=2-");
+        assertRange(2, 11, getRange());
+    }
+
+    @Test
+    public void testSuffixRange()
+    {
+        setHeader("Range", "bytes=-3");
+        assertRange(8, 11, getRange());
+
+        setHeader("Range", "bytes=-100");
+        assertRange(0, 11, getRange());
+    }
+
+    @Test
+    public void testUnsatisfiableRange()
+    {
+        setHeader("Range", "bytes=11-");
+        Assert.assertNull(getRange());
+
+        setHeader("Range", "bytes=5-4");
+        Assert.assertNull(getRange());
+    }
+
+    @Test
+    public void testMultipleRanges()
+    {
+        // only single ranges are supported, the complete resource is sent
+        setHeader("Range", "bytes=0-1,5-6");
+        assertRange(0, 11, getRange());
+    }
+
+    @Test
+    public void testInvalidRange()
+    {
+        setHeader("Range", "bytes=a-b");
+        assertRange(0, 11, getRange());
+
+        setHeader("Range", "bytes=5");
+        assertRange(0, 11, getRange());
+    }
+
+    @Test
+    public void testIfRangeETag()
+    {
+        setHeader("Range", "bytes=2-4");
+
+        setHeader("If-Range", ETAG);
+        assertRange(2, 5, getRange());
+
+        setHeader("If-Range", "\"other\"");
+        assertRange(0, 11, getRange());
+
+        // If-Range requires the strong comparison
+        setHeader("If-Range", "W/" + ETAG);
+        assertRange(0, 11, getRange());
+    }
+
+    @Test
+    public void testIfRangeDate()
+    {
+        setHeader("Range", "bytes=2-4");
+        setHeader("If-Range", "Sun, 09 Sep 2001 01:46:40 GMT");
+
+        Mockito.when(this.req.getDateHeader("If-Range")).thenReturn(LAST_MODIFIED);
+        assertRange(2, 5, getRange());
+
+        Mockito.when(this.req.getDateHeader("If-Range")).thenReturn(LAST_MODIFIED - 1000);
+        assertRange(0, 11, getRange());
+
+        Mockito.when(this.req.getDateHeader("If-Range")).thenThrow(new IllegalArgumentException());
+        assertRange(0, 11, getRange());
+    }
+
+    @Test
+    public void testResourceModifiedETag()
+    {
+        setHeader("If-None-Match", ETAG);
+        Assert.assertFalse(resourceModified());
+
+        setHeader("If-None-Match", "\"other\", " + ETAG);
+        Assert.assertFalse(resourceModified());
+
+        setHeader("If-None-Match", "*");
+        Assert.assertFalse(resourceModified());
+
+        setHeader("If-None-Match", "\"other\"");
+        Assert.assertTrue(resourceModified());
+    }
+
+    @Test
+    public void testResourceModifiedWeakETag()
+    {
+        // If-None-Match uses the weak comparison
+        setHeader("If-None-Match", "W/" + ETAG);
+        Assert.assertFalse(resourceModified());
+
+        Assert.assertFalse(this.servlet.resourceModified(this.req, "W/" + ETAG, LAST_MODIFIED));
+
+        setHeader("If-None-Match", ETAG);
+        Assert.assertFalse(this.servlet.resourceModified(this.req, "W/" + ETAG, LAST_MODIFIED));
+    }
+
+    @Test
+    public void testResourceModifiedETagPrecedence()
+    {
+        // If-Modified-Since is ignored if If-None-Match is present
+        Mockito.when(this.req.getDateHeader("If-Modified-Since")).thenReturn(LAST_MODIFIED);
+
+        setHeader("If-None-Match", "\"other\"");
+        Assert.assertTrue(resourceModified());
+
+        setHeader("If-None-Match", null);
+        Assert.assertFalse(resourceModified());
+    }
+
+    @Test
+    public void testResourceModifiedDate()
+    {
+        Assert.assertTrue(resourceModified());
+
+        Mockito.when(this.req.getDateHeader("If-Modified-Since")).thenReturn(LAST_MODIFIED + 500);
+        Assert.assertFalse(resourceModified());
+
+        Mockito.when(this.req.getDateHeader("If-Modified-Since")).thenReturn(LAST_MODIFIED - 1000);
+        Assert.assertTrue(resourceModified());
+
+        // resources without modification time are always modified
+        Assert.assertTrue(this.servlet.resourceModified(this.req, ETAG, 0));
+    }
+
+    @Test
+    public void testETagMatches()
+    {
+        Assert.assertTrue(this.servlet.etagMatches(ETAG, ETAG, false));
+        Assert.assertTrue(this.servlet.etagMatches(" \"x\" , " + ETAG, ETAG, false));
+        Assert.assertTrue(this.servlet.etagMatches("*", ETAG, false));
+        Assert.assertTrue(this.servlet.etagMatches("*", null, false));
+        Assert.assertFalse(this.servlet.etagMatches(ETAG, null, false));
+        Assert.assertFalse(this.servlet.etagMatches("\"x\"", ETAG, false));
+
+        Assert.assertFalse(this.servlet.etagMatches("W/" + ETAG, ETAG, false));
+        Assert.assertFalse(this.servlet.etagMatches(ETAG, "W/" + ETAG, false));
+        Assert.assertFalse(this.servlet.etagMatches("W/" + ETAG, "W/" + ETAG, false));
+
+        Assert.assertTrue(this.servlet.etagMatches("W/" + ETAG, ETAG, true));
+        Assert.assertTrue(this.servlet.etagMatches(ETAG, "W/" + ETAG, true));
+        Assert.assertTrue(this.servlet.etagMatches("W/" + ETAG, "W/" + ETAG, true));
+        Assert.assertFalse(this.servlet.etagMatches("W/\"x\"", ETAG, true));
+    }
+
+    private void setHeader(String name, String value)
+    {
+        Mockito.when(this.req.getHeader(name)).thenReturn(value);
+    }
+
+    private long[] getRange()
+    {
+        return this.servlet.getRange(this.req, ETAG, LAST_MODIFIED, 11);
+    }
+
+    private boolean resourceModified()
+    {
+        return this.servlet.resourceModified(this.req, ETAG, LAST_MODIFIED);
+    }
+
+    private static void assertRange(long start, long end, long[] range)
+    {
+        Assert.assertNotNull(range);
+        Assert.assertEquals(start, range[0]);
+        Assert.assertEquals(end, range[1]);
+    }
+}
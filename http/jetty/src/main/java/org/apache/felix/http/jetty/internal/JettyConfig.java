@@ -60,6 +60,27 @@ public final class JettyConfig
 
     /** Felix specific property to control whether to want or require HTTPS client certificates. Valid values are "none", "wants", "needs". Default is "none". */
     private static final String FELIX_HTTPS_CLIENT_CERT = "org.apache.felix.https.clientcertificate";
+
+    /** Felix specific property to set the number of acceptors, which is also the number of NIO selectors. Default is 1. */
+    private static final String FELIX_JETTY_ACCEPTORS = "org.apache.felix.http.jetty.acceptors";
+
+    /** Felix specific property to set the size of the queue of connections waiting to be accepted. Default is 0 for the platform default. */
+    private static final String FELIX_JETTY_ACCEPT_QUEUE_SIZE = "org.apache.felix.http.jetty.acceptQueueSize";
+
+    /** Felix specific property to set the maximum idle time of connections in milliseconds. Default is 60000. */
+    private static final String FELIX_JETTY_MAX_IDLE_TIME = "org.apache.felix.http.jetty.maxIdleTime";
+
+    /** Felix specific property to set the minimum number of request threads. Default is 2. */
+    private static final String FELIX_JETTY_MIN_THREADS = "org.apache.felix.http.jetty.threads.min";
+
+    /** Felix specific property to set the maximum number of request threads. Default is 250. */
+    private static final String FELIX_JETTY_MAX_THREADS = "org.apache.felix.http.jetty.threads.max";
+
+    /** Felix specific property to set the time in milliseconds after which idle request threads are stopped. Default is 60000. */
+    private static final String FELIX_JETTY_THREAD_IDLE_TIME = "org.apache.felix.http.jetty.threads.maxIdleTime";
+
+    /** Felix specific property to enable the collection of connection and request statistics. Default is false. */
+    private static final String FELIX_JETTY_STATISTICS = "org.apache.felix.http.jetty.statistics";
     
     private final BundleContext context;
     private boolean debug;
@@ -73,6 +94,13 @@ public final class JettyConfig
     private String trustPassword;
     private boolean useHttp;
     private String clientcert;
+    private int acceptors;
+    private int acceptQueueSize;
+    private int maxIdleTime;
+    private int minThreads;
+    private int maxThreads;
+    private int threadIdleTime;
+    private boolean statistics;
 
     public JettyConfig(BundleContext context)
     {
@@ -135,6 +163,41 @@ public final class JettyConfig
         return this.clientcert;
     }
 
+    public int getAcceptors()
+    {
+        return this.acceptors;
+    }
+
+    public int getAcceptQueueSize()
+    {
+        return this.acceptQueueSize;
+    }
+
+    public int getMaxIdleTime()
+    {
+        return this.maxIdleTime;
+    }
+
+    public int getMinThreads()
+    {
+        return this.minThreads;
+    }
+
+    public int getMaxThreads()
+    {
+        return this.maxThreads;
+    }
+
+    public int getThreadIdleTime()
+    {
+        return this.threadIdleTime;
+    }
+
+    public boolean isStatistics()
+    {
+        return this.statistics;
+    }
+
     public void reset()
     {
         update(null);
@@ -157,6 +220,13 @@ public final class JettyConfig
         this.truststore = getProperty(props, FELIX_TRUSTSTORE, null);
         this.trustPassword = getProperty(props, FELIX_TRUSTSTORE_PASSWORD, null);
         this.clientcert = getProperty(props, FELIX_HTTPS_CLIENT_CERT, "none");
+        this.acceptors = Math.max(1, getIntProperty(props, FELIX_JETTY_ACCEPTORS, 1));
+        this.acceptQueueSize = Math.max(0, getIntProperty(props, FELIX_JETTY_ACCEPT_QUEUE_SIZE, 0));
+        this.maxIdleTime = getIntProperty(props, FELIX_JETTY_MAX_IDLE_TIME, 60000);
+        this.minThreads = Math.max(1, getIntProperty(props, FELIX_JETTY_MIN_THREADS, 2));
+        this.maxThreads = Math.max(this.minThreads, getIntProperty(props, FELIX_JETTY_MAX_THREADS, 250));
+        this.threadIdleTime = getIntProperty(props, FELIX_JETTY_THREAD_IDLE_TIME, 60000);
+        this.statistics = getBooleanProperty(props, FELIX_JETTY_STATISTICS, false);
     }
 
     private String getProperty(Dictionary props, String name, String defValue)
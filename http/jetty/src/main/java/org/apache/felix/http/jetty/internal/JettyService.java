@@ -28,6 +28,7 @@ import org.mortbay.jetty.Connector;
 import org.mortbay.jetty.nio.SelectChannelConnector;
 import org.mortbay.jetty.servlet.*;
 import org.mortbay.log.Log;
+import org.mortbay.thread.QueuedThreadPool;
 import org.apache.felix.http.base.internal.DispatcherServlet;
 import org.apache.felix.http.base.internal.HttpServiceController;
 import org.apache.felix.http.base.internal.logger.SystemLogger;
@@ -48,6 +49,7 @@ public final class JettyService
     private Thread thread;
     private ServiceRegistration configServiceReg;
     private Server server;
+    private QueuedThreadPool threadPool;
     private DispatcherServlet dispatcher;
     private final HttpServiceController controller;
 
@@ -117,6 +119,8 @@ public final class JettyService
 
     private void stopJetty()
     {
+        logStatistics();
+
         try {
             this.server.stop();
         } catch (Exception e) {
@@ -131,6 +135,13 @@ public final class JettyService
         this.server = new Server();
         this.server.addUserRealm(realm);
 
+        this.threadPool = new QueuedThreadPool();
+        this.threadPool.setName("Jetty HTTP Service Worker");
+        this.threadPool.setMinThreads(this.config.getMinThreads());
+        this.threadPool.setMaxThreads(this.config.getMaxThreads());
+        this.threadPool.setMaxIdleTimeMs(this.config.getThreadIdleTime());
+        this.server.setThreadPool(this.threadPool);
+
         if (this.config.isUseHttp()) {
             initializeHttp();
         }
@@ -150,9 +161,8 @@ public final class JettyService
     private void initializeHttp()
         throws Exception
     {
-        Connector connector = new SelectChannelConnector();
-        connector.setPort(this.config.getHttpPort());
-        connector.setMaxIdleTime(60000);
+        SelectChannelConnector connector = new SelectChannelConnector();
+        configureConnector(connector, this.config.getHttpPort());
         this.server.addConnector(connector);
     }
 
@@ -160,8 +170,7 @@ public final class JettyService
         throws Exception
     {
         SslSelectChannelConnector connector = new SslSelectChannelConnector();
-        connector.setPort(this.config.getHttpsPort());
-        connector.setMaxIdleTime(60000);
+        configureConnector(connector, this.config.getHttpsPort());
         
         if (this.config.getKeystore() != null) {
             connector.setKeystore(this.config.getKeystore());
@@ -194,6 +203,42 @@ public final class JettyService
         this.server.addConnector(connector);
     }
 
+    private void configureConnector(SelectChannelConnector connector, int port)
+    {
+        // the acceptors of a select channel connector are the selectors
+        // handling all connections, requests are only dispatched to the
+        // thread pool once they are ready to be handled
+        connector.setPort(port);
+        connector.setAcceptors(this.config.getAcceptors());
+        connector.setMaxIdleTime(this.config.getMaxIdleTime());
+        if (this.config.getAcceptQueueSize() > 0) {
+            connector.setAcceptQueueSize(this.config.getAcceptQueueSize());
+        }
+
+        connector.setStatsOn(this.config.isStatistics());
+    }
+
+    private void logStatistics()
+    {
+        if ((this.server == null) || (this.threadPool == null)) {
+            return;
+        }
+
+        SystemLogger.info("Jetty thread pool: threads=" + this.threadPool.getThreads() + ", idle="
+            + this.threadPool.getIdleThreads() + ", queued=" + this.threadPool.getQueueSize() + ", max="
+            + this.threadPool.getMaxThreads());
+
+        Connector[] connectors = this.server.getConnectors();
+        for (int i = 0; (connectors != null) && (i < connectors.length); i++) {
+            if (connectors[i].getStatsOn()) {
+                SystemLogger.info("Jetty connector " + connectors[i].getName() + ": connections="
+                    + connectors[i].getConnections() + ", open max=" + connectors[i].getConnectionsOpenMax()
+                    + ", requests=" + connectors[i].getRequests() + ", connection duration avg="
+                    + connectors[i].getConnectionsDurationAve() + "ms");
+            }
+        }
+    }
+
     public void run()
     {
         this.running = true;
@@ -18,6 +18,10 @@
  */
 package org.apache.felix.log;
 
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.felix.log.service.ExtendedLogReaderService;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
 import org.osgi.service.log.LogReaderService;
@@ -55,6 +59,24 @@ public final class Activator implements BundleActivator
     private static final String STORE_DEBUG_PROPERTY = "org.apache.felix.log.storeDebug";
     /** The default value for the store debug property. */
     private static final boolean DEFAULT_STORE_DEBUG = false;
+    /** The name of the property that defines the maximum number of entries queued per listener. */
+    private static final String LISTENER_QUEUE_SIZE_PROPERTY = "org.apache.felix.log.listenerQueueSize";
+    /** The default value for the listener queue size property. */
+    private static final int DEFAULT_LISTENER_QUEUE_SIZE = 1000;
+    /** The name of the property that defines what happens when a listener queue is full. */
+    private static final String OVERFLOW_POLICY_PROPERTY = "org.apache.felix.log.overflowPolicy";
+    /** The overflow policy values, in the order of the listener thread constants. */
+    private static final String[] OVERFLOW_POLICIES = { "dropOldest", "block", "sample" };
+    /** The name of the property that defines whether the log is journaled to disk. */
+    private static final String JOURNAL_PROPERTY = "org.apache.felix.log.journal";
+    /** The name of the property that defines the size of the journal segment files. */
+    private static final String JOURNAL_SEGMENT_SIZE_PROPERTY = "org.apache.felix.log.journal.segmentSize";
+    /** The default value for the journal segment size property. */
+    private static final int DEFAULT_JOURNAL_SEGMENT_SIZE = 4 * 1024 * 1024;
+    /** The name of the property that defines the maximum number of journal segment files. */
+    private static final String JOURNAL_MAX_SEGMENTS_PROPERTY = "org.apache.felix.log.journal.maxSegments";
+    /** The default value for the journal maximum segments property. */
+    private static final int DEFAULT_JOURNAL_MAX_SEGMENTS = 16;
     /** The log. */
     private Log m_log;
 
@@ -101,6 +123,102 @@ public final class Activator implements BundleActivator
         return storeDebug;
     }
 
+    /**
+     * Returns the maximum number of entries queued per listener.
+     * @param context the bundle context (used to look up a property)
+     * @return the maximum number of entries queued per listener
+     */
+    private static int getListenerQueueSize(final BundleContext context)
+    {
+        int queueSize = DEFAULT_LISTENER_QUEUE_SIZE;
+
+        String queueSizePropValue = context.getProperty(LISTENER_QUEUE_SIZE_PROPERTY);
+        if (queueSizePropValue != null)
+        {
+            try
+            {
+                queueSize = Integer.parseInt(queueSizePropValue);
+            }
+            catch (NumberFormatException e)
+            {
+                // the property value is invalid - ignore
+            }
+        }
+
+        return queueSize;
+    }
+
+    /**
+     * Returns the policy to apply when a listener queue is full.
+     * @param context the bundle context (used to look up a property)
+     * @return the overflow policy
+     */
+    private static int getOverflowPolicy(final BundleContext context)
+    {
+        int policy = LogListenerThread.DROP_OLDEST;
+
+        String policyPropValue = context.getProperty(OVERFLOW_POLICY_PROPERTY);
+        for (int i = 0; policyPropValue != null && i < OVERFLOW_POLICIES.length; ++i)
+        {
+            if (OVERFLOW_POLICIES[i].equalsIgnoreCase(policyPropValue.trim()))
+            {
+                policy = i;
+            }
+        }
+
+        return policy;
+    }
+
+    /**
+     * Returns the integer value of a property.
+     * @param context the bundle context (used to look up a property)
+     * @param name the name of the property
+     * @param defaultValue the value to return if the property is not set or invalid
+     * @return the value of the property
+     */
+    private static int getIntProperty(final BundleContext context, final String name,
+        final int defaultValue)
+    {
+        int value = defaultValue;
+
+        String propValue = context.getProperty(name);
+        if (propValue != null)
+        {
+            try
+            {
+                value = Integer.parseInt(propValue);
+            }
+            catch (NumberFormatException e)
+            {
+                // the property value is invalid - ignore
+            }
+        }
+
+        return value;
+    }
+
+    /**
+     * Opens the journal of the log if it is enabled.
+     * @param context the bundle context (used to look up properties)
+     * @return the journal, or <code>null</code> if it is not enabled
+     * @throws IOException if the journal cannot be opened
+     */
+    private static LogJournal getJournal(final BundleContext context) throws IOException
+    {
+        LogJournal journal = null;
+
+        String journalPropValue = context.getProperty(JOURNAL_PROPERTY);
+        File dir = context.getDataFile("journal");
+        if (dir != null && Boolean.valueOf(journalPropValue).booleanValue())
+        {
+            journal = new LogJournal(context, dir,
+                getIntProperty(context, JOURNAL_SEGMENT_SIZE_PROPERTY, DEFAULT_JOURNAL_SEGMENT_SIZE),
+                getIntProperty(context, JOURNAL_MAX_SEGMENTS_PROPERTY, DEFAULT_JOURNAL_MAX_SEGMENTS));
+        }
+
+        return journal;
+    }
+
     /**
      * Called by the OSGi framework when the bundle is started.
      * Used to register the service implementations with the framework.
@@ -109,8 +227,32 @@ public final class Activator implements BundleActivator
      */
     public void start(final BundleContext context) throws Exception
     {
+        // open the journal, logging without it if it cannot be opened
+        LogJournal journal = null;
+        IOException journalException = null;
+        try
+        {
+            journal = getJournal(context);
+        }
+        catch (IOException e)
+        {
+            journalException = e;
+        }
+
         // create the log instance
-        m_log = new Log(getMaxSize(context), getStoreDebug(context));
+        m_log = new Log(getMaxSize(context), getStoreDebug(context),
+            getListenerQueueSize(context), getOverflowPolicy(context), journal);
+
+        // restore the historic log of the previous run from the journal
+        if (journal != null)
+        {
+            m_log.replay(journal.getEntries());
+        }
+        else if (journalException != null)
+        {
+            m_log.addEntry(new LogEntryImpl(context.getBundle(), null, LogService.LOG_ERROR,
+                "Unable to open the log journal, continuing without it", journalException));
+        }
 
         // register the listeners
         context.addBundleListener(m_log);
@@ -121,7 +263,8 @@ public final class Activator implements BundleActivator
         context.registerService(LogService.class.getName(),
             new LogServiceFactory(m_log), null);
 
-        context.registerService(LogReaderService.class.getName(),
+        context.registerService(new String[] {
+            LogReaderService.class.getName(), ExtendedLogReaderService.class.getName() },
             new LogReaderServiceFactory(m_log), null);
     }
 
@@ -18,8 +18,10 @@
  */
 package org.apache.felix.log;
 
+import java.io.IOException;
 import java.util.Enumeration;
 
+import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleEvent;
 import org.osgi.framework.BundleListener;
 import org.osgi.framework.FrameworkEvent;
@@ -39,14 +41,20 @@ import org.osgi.service.log.LogService;
  */
 final class Log implements BundleListener, FrameworkListener, ServiceListener
 {
-    /** The first log entry. */
-    private LogNode m_head;
-    /** The last log entry. */
-    private LogNode m_tail;
-    /** The log size. */
-    private int m_size;
-    /** The log listener thread. */
-    private LogListenerThread listenerThread;
+    /** The historic log entries. */
+    private final LogStore m_store;
+    /** The journal of the log, or <code>null</code> if there is none. */
+    private volatile LogJournal m_journal;
+    /** The log listener threads, replaced on every change. */
+    private volatile LogListenerThread[] m_listenerThreads = new LogListenerThread[0];
+    /** The maximum number of entries waiting to be delivered to a listener. */
+    private final int m_listenerQueueSize;
+    /** The policy to apply when the queue of a listener is full. */
+    private final int m_overflowPolicy;
+    /** The number of entries delivered to listeners that were removed. */
+    private long m_delivered = 0;
+    /** The number of entries dropped for listeners that were removed. */
+    private long m_dropped = 0;
     /** The maximum size for the log. */
     private final int m_maxSize;
     /** Whether or not to store debug messages. */
@@ -56,80 +64,145 @@ final class Log implements BundleListener, FrameworkListener, ServiceListener
      * Create a new instance.
      * @param maxSize the maximum size for the log
      * @param storeDebug whether or not to store debug messages
+     * @param listenerQueueSize the maximum number of entries waiting to be
+     *        delivered to a listener
+     * @param overflowPolicy the policy to apply when the queue of a listener is full
+     * @param journal the journal to write the entries to, or <code>null</code>
+     *        to only keep them in memory
      */
-    Log(final int maxSize, final boolean storeDebug)
+    Log(final int maxSize, final boolean storeDebug,
+        final int listenerQueueSize, final int overflowPolicy,
+        final LogJournal journal)
     {
+        this.m_journal = journal;
+        this.m_listenerQueueSize = listenerQueueSize;
+        this.m_overflowPolicy = overflowPolicy;
         this.m_maxSize = maxSize;
         this.m_storeDebug = storeDebug;
+        this.m_store = (maxSize != 0) ? new LogStore(maxSize) : null;
     }
 
     /**
      * Close the log.
      */
-    void close()
+    synchronized void close()
     {
-        if (listenerThread != null)
+        LogListenerThread[] threads = m_listenerThreads;
+        for (int i = 0; i < threads.length; ++i)
         {
-            listenerThread.shutdown();
-            listenerThread = null;
+            threads[i].shutdown();
         }
+        m_listenerThreads = new LogListenerThread[0];
 
-        m_head = null;
-        m_tail = null;
-        m_size = 0;
+        if (m_store != null)
+        {
+            m_store.clear();
+        }
+
+        if (m_journal != null)
+        {
+            m_journal.close();
+            m_journal = null;
+        }
     }
 
     /**
-     * Adds the entry to the log.
-     * @param entry the entry to add to the log
+     * Adds the entries of a previous run of the framework to the historic
+     * log, without writing them to the journal or notifying any listeners.
+     * @param entries the entries to add, oldest first
      */
-    synchronized void addEntry(final LogEntry entry)
+    void replay(final Enumeration entries)
     {
-        if (m_maxSize != 0)
+        while (entries.hasMoreElements())
         {
-            // add the entry to the historic log
-            if (m_storeDebug || entry.getLevel() != LogService.LOG_DEBUG)
+            LogEntry entry = (LogEntry) entries.nextElement();
+            if (m_store != null && (m_storeDebug || entry.getLevel() != LogService.LOG_DEBUG))
             {
-                // create a new node for the entry
-                LogNode node = new LogNode(entry);
-
-                // add to the front of the linked list
-                node.setNextNode(m_head);
-                if (m_head != null)
-                {
-                    m_head.setPreviousNode(node);
-                }
-
-                // and store the node
-                m_head = node;
-
-                // bump the size of the list
-                ++m_size;
+                m_store.add(entry);
+            }
+        }
+    }
 
-                // if no tail node - add the node to the tail
-                if (m_tail == null)
-                {
-                    m_tail = node;
-                }
+    /**
+     * Adds the entry to the log.  This only holds the lock of the log store
+     * for the time needed to store the entry, so that logging does not
+     * contend with the reading of the log or the delivery to listeners.
+     * @param entry the entry to add to the log
+     */
+    void addEntry(final LogEntry entry)
+    {
+        // add the entry to the historic log
+        if (m_storeDebug || entry.getLevel() != LogService.LOG_DEBUG)
+        {
+            if (m_store != null)
+            {
+                m_store.add(entry);
             }
 
-            // ensure the historic log doesn't grow beyond a certain size
-            if (m_maxSize != -1)
+            LogJournal journal = m_journal;
+            if (journal != null)
             {
-                if (m_size > m_maxSize)
+                try
+                {
+                    journal.append(entry);
+                }
+                catch (IOException e)
                 {
-                    LogNode last = m_tail.getPreviousNode();
-                    last.setNextNode(null);
-                    m_tail = last;
-                    --m_size;
+                    IOException failure = recoverJournal(journal, entry);
+                    if (failure != null)
+                    {
+                        // the journal is disabled now, so this does not recurse
+                        addEntry(new LogEntryImpl(null, null, LogService.LOG_ERROR,
+                            "Unable to write to the log journal, continuing without it",
+                            failure));
+                    }
                 }
             }
         }
 
         // notify any listeners
-        if (listenerThread != null)
+        LogListenerThread[] threads = m_listenerThreads;
+        for (int i = 0; i < threads.length; ++i)
         {
-            listenerThread.addEntry(entry);
+            threads[i].addEntry(entry);
+        }
+    }
+
+    /**
+     * Reopens the journal after a failed write and writes the entry to the
+     * reopened journal.  If this fails as well, journaling is stopped rather
+     * than failing every subsequent log call.
+     * @param failed the journal that failed to write the entry
+     * @param entry the entry that could not be written
+     * @return the exception that caused journaling to be stopped, or
+     *         <code>null</code> if the journal was reopened
+     */
+    private synchronized IOException recoverJournal(final LogJournal failed,
+        final LogEntry entry)
+    {
+        if (m_journal != failed)
+        {
+            // already reopened or stopped by another thread, or closed
+            return null;
+        }
+
+        failed.close();
+        LogJournal journal = null;
+        try
+        {
+            journal = failed.reopen();
+            journal.append(entry);
+            m_journal = journal;
+            return null;
+        }
+        catch (IOException e)
+        {
+            if (journal != null)
+            {
+                journal.close();
+            }
+            m_journal = null;
+            return e;
         }
     }
 
@@ -139,14 +212,16 @@ final class Log implements BundleListener, FrameworkListener, ServiceListener
      */
     synchronized void addListener(final LogListener listener)
     {
-        if (listenerThread == null)
-        {
-            // create a new listener thread if necessary:
-            // the listener thread only runs if there are any registered listeners
-            listenerThread = new LogListenerThread();
-            listenerThread.start();
-        }
-        listenerThread.addListener(listener);
+        // every listener has its own delivery thread, which only runs
+        // as long as the listener is registered
+        LogListenerThread thread = new LogListenerThread(listener,
+            m_listenerQueueSize, m_overflowPolicy);
+        thread.start();
+
+        LogListenerThread[] threads = new LogListenerThread[m_listenerThreads.length + 1];
+        System.arraycopy(m_listenerThreads, 0, threads, 0, m_listenerThreads.length);
+        threads[m_listenerThreads.length] = thread;
+        m_listenerThreads = threads;
     }
 
     /**
@@ -155,26 +230,86 @@ final class Log implements BundleListener, FrameworkListener, ServiceListener
      */
     synchronized void removeListener(final LogListener listener)
     {
-        if (listenerThread != null)
+        for (int i = 0; i < m_listenerThreads.length; ++i)
         {
-            listenerThread.removeListener(listener);
-
-            // shutdown the thread if there are no listeners
-            if (listenerThread.getListenerCount() == 0)
+            if (m_listenerThreads[i].getListener() == listener)
             {
-                listenerThread.shutdown();
-                listenerThread = null;
+                LogListenerThread thread = m_listenerThreads[i];
+                thread.shutdown();
+                m_delivered += thread.getDeliveredCount();
+                m_dropped += thread.getDroppedCount();
+
+                LogListenerThread[] threads = new LogListenerThread[m_listenerThreads.length - 1];
+                System.arraycopy(m_listenerThreads, 0, threads, 0, i);
+                System.arraycopy(m_listenerThreads, i + 1, threads, i, threads.length - i);
+                m_listenerThreads = threads;
+                return;
             }
         }
     }
 
+    /**
+     * Returns the number of entries delivered to log listeners.
+     * @return the number of entries delivered to log listeners
+     */
+    synchronized long getDeliveredCount()
+    {
+        long count = m_delivered;
+        for (int i = 0; i < m_listenerThreads.length; ++i)
+        {
+            count += m_listenerThreads[i].getDeliveredCount();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of entries not delivered to log listeners because
+     * their queue was full.
+     * @return the number of entries dropped for log listeners
+     */
+    synchronized long getDroppedCount()
+    {
+        long count = m_dropped;
+        for (int i = 0; i < m_listenerThreads.length; ++i)
+        {
+            count += m_listenerThreads[i].getDroppedCount();
+        }
+        return count;
+    }
+
     /**
      * Returns an enumeration of all the entries in the log most recent first.
      * @return an enumeration of all the entries in the log most recent first
      */
-    synchronized Enumeration getEntries()
+    Enumeration getEntries()
+    {
+        return new LogEntryEnumeration((m_store != null)
+            ? m_store.getEntries() : new LogEntry[0]);
+    }
+
+    /**
+     * Returns an enumeration of all the entries in the journal oldest first.
+     * @return an enumeration of all the entries in the journal oldest first
+     */
+    Enumeration getJournalEntries()
+    {
+        LogJournal journal = m_journal;
+        return (journal != null)
+            ? journal.getEntries() : new LogEntryEnumeration(new LogEntry[0]);
+    }
+
+    /**
+     * Returns an enumeration of the most recent entries in the log of the
+     * specified bundle and level, most recent first.
+     * @param bundle the bundle of the entries, or <code>null</code> for any bundle
+     * @param level the level of the entries, or <code>0</code> for any level
+     * @param max the maximum number of entries to return
+     * @return an enumeration of the matching entries most recent first
+     */
+    Enumeration getEntries(final Bundle bundle, final int level, final int max)
     {
-        return new LogNodeEnumeration(m_head, m_tail);
+        return new LogEntryEnumeration((m_store != null)
+            ? m_store.getEntries(bundle, level, max) : new LogEntry[0]);
     }
 
     /** The messages returned for the framework events. */
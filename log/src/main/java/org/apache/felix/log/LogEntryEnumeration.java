@@ -19,29 +19,28 @@
 package org.apache.felix.log;
 
 import java.util.Enumeration;
+import java.util.NoSuchElementException;
 
 import org.osgi.service.log.LogEntry;
 
 /**
- * Implementation of the {@link Enumeration} interface for a linked list of
- * {@link LogNode} entries.
+ * Implementation of the {@link Enumeration} interface for a snapshot of
+ * {@link LogEntry} objects.
  */
-final class LogNodeEnumeration implements Enumeration
+final class LogEntryEnumeration implements Enumeration
 {
-    /** The next node. */
-    private LogNode m_next;
-    /** The last node. */
-    private final LogNode m_last;
+    /** The entries to return. */
+    private final LogEntry[] m_entries;
+    /** The index of the next entry. */
+    private int m_next = 0;
 
     /**
      * Creates a new instance.
-     * @param start the first node to return
-     * @param end the last node to return
+     * @param entries the entries to return
      */
-    LogNodeEnumeration(final LogNode start, final LogNode end)
+    LogEntryEnumeration(final LogEntry[] entries)
     {
-        m_next = start;
-        m_last = end;
+        m_entries = entries;
     }
 
     /**
@@ -50,7 +49,7 @@ final class LogNodeEnumeration implements Enumeration
      */
     public boolean hasMoreElements()
     {
-        return m_next != null;
+        return m_next < m_entries.length;
     }
 
     /**
@@ -59,19 +58,10 @@ final class LogNodeEnumeration implements Enumeration
      */
     public Object nextElement()
     {
-        LogEntry result = null;
-
-        if (m_next == m_last)
-        {
-            result = m_next.getEntry();
-            m_next = null;
-        }
-        else if (m_next != null)
+        if (m_next >= m_entries.length)
         {
-            result = m_next.getEntry();
-            m_next = m_next.getNextNode();
+            throw new NoSuchElementException();
         }
-
-        return result;
+        return m_entries[m_next++];
     }
-}
\ No newline at end of file
+}
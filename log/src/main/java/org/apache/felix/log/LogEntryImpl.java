@@ -72,6 +72,29 @@ final class LogEntryImpl implements LogEntry
         this.m_time = System.currentTimeMillis();
     }
 
+    /**
+     * Create a new instance for an entry that was logged earlier, such as an
+     * entry read back from the log journal.
+     * @param bundle the bundle that created the LogEntry object
+     * @param level the severity level for this LogEntry object
+     * @param message the message to associate with this LogEntry object
+     * @param exception the exception to associate with this LogEntry object
+     * @param time the system time in milliseconds when the entry was created
+     */
+    LogEntryImpl(final Bundle bundle,
+        final int level,
+        final String message,
+        final Throwable exception,
+        final long time)
+    {
+        this.m_bundle = bundle;
+        this.m_exception = exception;
+        this.m_level = level;
+        this.m_message = message;
+        this.m_serviceReference = null;
+        this.m_time = time;
+    }
+
     /**
      * Returns the bundle that created this LogEntry object.
      * @return the bundle that created this LogEntry object;<code>null</code> if no
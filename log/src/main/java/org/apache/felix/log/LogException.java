@@ -18,6 +18,9 @@
  */
 package org.apache.felix.log;
 
+import java.io.PrintStream;
+import java.io.PrintWriter;
+
 /**
  * Implementation dependent exception class used to avoid references to any
  * bundle defined exception class, which might prevent an uninstalled bundle
@@ -34,6 +37,8 @@ final class LogException extends Exception
     private final String m_message;
     /** The localized message from the original exception. */
     private final String m_localizedMessage;
+    /** The printed stack trace of an exception read back from the journal. */
+    private final String m_stackTrace;
 
     /**
      * Create a new instance.
@@ -44,6 +49,7 @@ final class LogException extends Exception
         m_className = exception.getClass().getName();
         m_message = exception.getMessage();
         m_localizedMessage = exception.getLocalizedMessage();
+        m_stackTrace = null;
         setStackTrace(exception.getStackTrace());
 
         Throwable cause = exception.getCause();
@@ -54,6 +60,73 @@ final class LogException extends Exception
         }
     }
 
+    /**
+     * Create a new instance for an exception read back from the journal.
+     * @param className the class name of the original exception
+     * @param message the message of the original exception
+     * @param stackTrace the printed stack trace of the original exception
+     */
+    LogException(final String className, final String message, final String stackTrace)
+    {
+        m_className = className;
+        m_message = message;
+        m_localizedMessage = message;
+        m_stackTrace = stackTrace;
+        setStackTrace(new StackTraceElement[0]);
+    }
+
+    /**
+     * Returns the class name of the original exception.
+     * @return the class name of the original exception
+     */
+    String getClassName()
+    {
+        return m_className;
+    }
+
+    /**
+     * Returns the message of the original exception.
+     * @return the message of the original exception
+     */
+    String getOriginalMessage()
+    {
+        return m_message;
+    }
+
+    /**
+     * Prints the stack trace, which is the printed stack trace of the
+     * original exception if it was read back from the journal.
+     * @param s the stream to print to
+     */
+    public void printStackTrace(final PrintStream s)
+    {
+        if (m_stackTrace != null)
+        {
+            s.print(m_stackTrace);
+        }
+        else
+        {
+            super.printStackTrace(s);
+        }
+    }
+
+    /**
+     * Prints the stack trace, which is the printed stack trace of the
+     * original exception if it was read back from the journal.
+     * @param s the writer to print to
+     */
+    public void printStackTrace(final PrintWriter s)
+    {
+        if (m_stackTrace != null)
+        {
+            s.print(m_stackTrace);
+        }
+        else
+        {
+            super.printStackTrace(s);
+        }
+    }
+
     /**
      * Returns the message associated with the exception.  The message
      * will be the class name of the original exception followed by the
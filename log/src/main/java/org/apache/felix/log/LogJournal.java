@@ -0,0 +1,554 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.log.LogEntry;
+
+/**
+ * Append-only journal of log entries, which keeps the history of the log
+ * on disk so that it survives a restart or crash of the framework.
+ * <p>
+ * The journal is a sequence of segment files of a fixed size, which are
+ * preallocated when they are started.  When the current segment is full a
+ * new one is started, and the oldest segments are deleted once there are
+ * more than the maximum number of segments.  Each entry is stored as a
+ * record consisting of its length followed by a compact binary encoding of
+ * the bundle id, service id, level, time, message and exception of the entry.
+ * The length of a record is written after its content, and the unused part of
+ * a segment is zero, so a record that was not completely written when the
+ * framework crashed is ignored when the journal is read.
+ * <p>
+ * The segment files are accessed through {@link RandomAccessFile} rather
+ * than memory mapped, since the bundle has to run on Java 1.3.
+ */
+final class LogJournal
+{
+    /** The prefix of the segment file names. */
+    private static final String SEGMENT_PREFIX = "log-";
+    /** The suffix of the segment file names. */
+    private static final String SEGMENT_SUFFIX = ".journal";
+    /** The size of the record length. */
+    private static final int LENGTH_SIZE = 4;
+
+    /** The bundle context used to look up the bundles of the entries. */
+    private final BundleContext m_context;
+    /** The directory containing the segment files. */
+    private final File m_dir;
+    /** The size of a segment file. */
+    private final int m_segmentSize;
+    /** The maximum number of segment files to keep. */
+    private final int m_maxSegments;
+    /** The numbers of the segment files, oldest first. */
+    private final List m_segments = new ArrayList();
+    /** The file of the current segment. */
+    private RandomAccessFile m_file;
+    /** The size of the current segment. */
+    private int m_capacity;
+    /** The position of the next record in the current segment. */
+    private int m_position;
+    /** The buffer used to encode the records. */
+    private final ByteArrayOutputStream m_bytes = new ByteArrayOutputStream();
+    /** The stream used to encode the records. */
+    private final DataOutputStream m_out = new DataOutputStream(m_bytes);
+
+    /**
+     * Opens the journal in the specified directory, continuing the last
+     * segment of an existing journal.
+     * @param context the bundle context used to look up the bundles of the entries
+     * @param dir the directory containing the segment files
+     * @param segmentSize the size of a segment file
+     * @param maxSegments the maximum number of segment files to keep
+     * @throws IOException if the journal cannot be opened
+     */
+    LogJournal(final BundleContext context, final File dir, final int segmentSize,
+        final int maxSegments) throws IOException
+    {
+        m_context = context;
+        m_dir = dir;
+        m_segmentSize = segmentSize;
+        m_maxSegments = Math.max(1, maxSegments);
+
+        if (!m_dir.isDirectory() && !m_dir.mkdirs())
+        {
+            throw new IOException("Unable to create journal directory: " + m_dir);
+        }
+
+        String[] names = m_dir.list();
+        for (int i = 0; names != null && i < names.length; ++i)
+        {
+            if (names[i].startsWith(SEGMENT_PREFIX) && names[i].endsWith(SEGMENT_SUFFIX))
+            {
+                try
+                {
+                    m_segments.add(new Long(names[i].substring(SEGMENT_PREFIX.length(),
+                        names[i].length() - SEGMENT_SUFFIX.length())));
+                }
+                catch (NumberFormatException e)
+                {
+                    // not a segment file - ignore
+                }
+            }
+        }
+        Collections.sort(m_segments);
+
+        if (m_segments.isEmpty())
+        {
+            startSegment(0, m_segmentSize);
+        }
+        else
+        {
+            // continue after the last complete record of the last segment
+            long last = ((Long) m_segments.get(m_segments.size() - 1)).longValue();
+            m_file = new RandomAccessFile(getSegmentFile(last), "rw");
+            m_capacity = (int) m_file.length();
+            m_position = 0;
+            int length;
+            while ((length = getRecordLength(m_file, m_position, m_capacity)) > 0)
+            {
+                m_position += LENGTH_SIZE + length;
+            }
+        }
+    }
+
+    /**
+     * Appends an entry to the journal.
+     * @param entry the entry to append
+     * @throws IOException if the entry cannot be written
+     */
+    synchronized void append(final LogEntry entry) throws IOException
+    {
+        if (m_file == null)
+        {
+            throw new IOException("The journal is closed.");
+        }
+
+        m_bytes.reset();
+        encode(entry);
+        int length = m_bytes.size();
+
+        // always leave room for the zero length that terminates the segment
+        if (m_position + 2 * LENGTH_SIZE + length > m_capacity)
+        {
+            long next = ((Long) m_segments.get(m_segments.size() - 1)).longValue() + 1;
+            startSegment(next, Math.max(m_segmentSize, 2 * LENGTH_SIZE + length));
+        }
+
+        // write the content before the length, so that it is never read incomplete
+        m_file.seek(m_position + LENGTH_SIZE);
+        m_file.write(m_bytes.toByteArray());
+        m_file.seek(m_position);
+        m_file.writeInt(length);
+        m_position += LENGTH_SIZE + length;
+    }
+
+    /**
+     * Returns an enumeration of the entries in the journal, oldest first.
+     * The enumeration reads the segments on demand and only returns the
+     * entries written before this method was called.
+     * @return an enumeration of the entries in the journal, oldest first
+     */
+    synchronized Enumeration getEntries()
+    {
+        File[] files = new File[m_segments.size()];
+        for (int i = 0; i < files.length; ++i)
+        {
+            files[i] = getSegmentFile(((Long) m_segments.get(i)).longValue());
+        }
+        return new JournalEnumeration(m_context, files, m_position);
+    }
+
+    /**
+     * Writes all the entries to disk and closes the journal.
+     */
+    synchronized void close()
+    {
+        try
+        {
+            closeSegment();
+        }
+        catch (IOException e)
+        {
+            // the entries written so far are still in the file - ignore
+        }
+    }
+
+    /**
+     * Opens the journal again with the same settings, continuing after the
+     * last complete record.  The journal should be closed before.
+     * @return the reopened journal
+     * @throws IOException if the journal cannot be opened
+     */
+    LogJournal reopen() throws IOException
+    {
+        return new LogJournal(m_context, m_dir, m_segmentSize, m_maxSegments);
+    }
+
+    /**
+     * Writes the current segment to disk and starts a new segment, deleting
+     * the oldest segments beyond the maximum number of segments.
+     * @param number the number of the new segment
+     * @param size the size of the new segment
+     * @throws IOException if the new segment cannot be created
+     */
+    private void startSegment(final long number, final int size) throws IOException
+    {
+        closeSegment();
+
+        RandomAccessFile file = new RandomAccessFile(getSegmentFile(number), "rw");
+        try
+        {
+            file.setLength(size);
+        }
+        catch (IOException e)
+        {
+            file.close();
+            throw e;
+        }
+        m_file = file;
+        m_capacity = size;
+        m_position = 0;
+        m_segments.add(new Long(number));
+
+        while (m_segments.size() > m_maxSegments)
+        {
+            getSegmentFile(((Long) m_segments.remove(0)).longValue()).delete();
+        }
+    }
+
+    /**
+     * Writes the current segment to disk and closes it.
+     * @throws IOException if the segment cannot be written
+     */
+    private void closeSegment() throws IOException
+    {
+        if (m_file != null)
+        {
+            RandomAccessFile file = m_file;
+            m_file = null;
+            try
+            {
+                file.getFD().sync();
+            }
+            finally
+            {
+                file.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the file of the specified segment.
+     * @param number the number of the segment
+     * @return the file of the segment
+     */
+    private File getSegmentFile(final long number)
+    {
+        return new File(m_dir, SEGMENT_PREFIX + number + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Encodes the entry into the record buffer.
+     * @param entry the entry to encode
+     * @throws IOException if the entry cannot be encoded
+     */
+    private void encode(final LogEntry entry) throws IOException
+    {
+        ServiceReference sr = entry.getServiceReference();
+        Object serviceId = (sr == null) ? null : sr.getProperty(Constants.SERVICE_ID);
+
+        m_out.writeLong((entry.getBundle() == null) ? -1 : entry.getBundle().getBundleId());
+        m_out.writeLong((serviceId instanceof Long) ? ((Long) serviceId).longValue() : -1);
+        m_out.writeInt(entry.getLevel());
+        m_out.writeLong(entry.getTime());
+        writeString(entry.getMessage());
+
+        Throwable exception = entry.getException();
+        m_out.writeBoolean(exception != null);
+        if (exception != null)
+        {
+            StringWriter trace = new StringWriter();
+            exception.printStackTrace(new PrintWriter(trace));
+            if (exception instanceof LogException)
+            {
+                writeString(((LogException) exception).getClassName());
+                writeString(((LogException) exception).getOriginalMessage());
+            }
+            else
+            {
+                writeString(exception.getClass().getName());
+                writeString(exception.getMessage());
+            }
+            writeString(trace.toString());
+        }
+        m_out.flush();
+    }
+
+    /**
+     * Writes a string, which may be <code>null</code>, into the record buffer.
+     * @param value the string to write
+     * @throws IOException if the string cannot be written
+     */
+    private void writeString(final String value) throws IOException
+    {
+        if (value == null)
+        {
+            m_out.writeInt(-1);
+        }
+        else
+        {
+            byte[] bytes = value.getBytes("UTF-8");
+            m_out.writeInt(bytes.length);
+            m_out.write(bytes);
+        }
+    }
+
+    /**
+     * Reads the specified file up to the specified position.
+     * @param file the file to read
+     * @param limit the position up to which the file may be read
+     * @return the content of the file
+     * @throws IOException if the file cannot be read
+     */
+    private static byte[] read(final File file, final int limit) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            byte[] content = new byte[(int) Math.min(limit, raf.length())];
+            raf.readFully(content);
+            return content;
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    /**
+     * Returns the length of the record at the specified position.
+     * @param file the file of the segment
+     * @param position the position of the record
+     * @param limit the position up to which the segment may be read
+     * @return the length of the record, or <code>0</code> if there is no
+     *         complete record at the position
+     * @throws IOException if the segment cannot be read
+     */
+    private static int getRecordLength(final RandomAccessFile file, final int position,
+        final int limit) throws IOException
+    {
+        if (position + LENGTH_SIZE > limit)
+        {
+            return 0;
+        }
+        file.seek(position);
+        int length = file.readInt();
+        return (length > 0 && position + LENGTH_SIZE + length <= limit) ? length : 0;
+    }
+
+    /**
+     * Returns the length of the record at the specified position.
+     * @param content the content of the segment
+     * @param position the position of the record
+     * @return the length of the record, or <code>0</code> if there is no
+     *         complete record at the position
+     */
+    private static int getRecordLength(final byte[] content, final int position)
+    {
+        if (position + LENGTH_SIZE > content.length)
+        {
+            return 0;
+        }
+        int length = ((content[position] & 0xff) << 24)
+            | ((content[position + 1] & 0xff) << 16)
+            | ((content[position + 2] & 0xff) << 8)
+            | (content[position + 3] & 0xff);
+        return (length > 0 && position + LENGTH_SIZE + length <= content.length) ? length : 0;
+    }
+
+    /**
+     * Enumeration of the entries of a snapshot of the journal segments.
+     */
+    private static final class JournalEnumeration implements Enumeration
+    {
+        /** The bundle context used to look up the bundles of the entries. */
+        private final BundleContext m_context;
+        /** The segment files to read. */
+        private final File[] m_files;
+        /** The position up to which the last segment may be read. */
+        private final int m_lastLimit;
+        /** The index of the segment being read. */
+        private int m_fileIndex = -1;
+        /** The content of the segment being read. */
+        private byte[] m_content;
+        /** The position of the next record. */
+        private int m_position;
+        /** The next entry to return. */
+        private LogEntry m_next;
+
+        /**
+         * Create a new instance.
+         * @param context the bundle context used to look up the bundles of the entries
+         * @param files the segment files to read, oldest first
+         * @param lastLimit the position up to which the last segment may be read
+         */
+        JournalEnumeration(final BundleContext context, final File[] files,
+            final int lastLimit)
+        {
+            m_context = context;
+            m_files = files;
+            m_lastLimit = lastLimit;
+            m_next = readNext();
+        }
+
+        /**
+         * Determines whether there are any more elements to return.
+         * @return <code>true</code> if there are more elements; <code>false</code> otherwise
+         */
+        public boolean hasMoreElements()
+        {
+            return m_next != null;
+        }
+
+        /**
+         * Returns the current element and moves onto the next element.
+         * @return the current element
+         */
+        public Object nextElement()
+        {
+            if (m_next == null)
+            {
+                throw new NoSuchElementException();
+            }
+            LogEntry result = m_next;
+            m_next = readNext();
+            return result;
+        }
+
+        /**
+         * Reads the next entry, moving to the next segment when needed.
+         * @return the next entry, or <code>null</code> if there are no more entries
+         */
+        private LogEntry readNext()
+        {
+            for (;;)
+            {
+                int length = (m_content == null) ? 0 : getRecordLength(m_content, m_position);
+                if (length > 0)
+                {
+                    DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                        m_content, m_position + LENGTH_SIZE, length));
+                    m_position += LENGTH_SIZE + length;
+                    try
+                    {
+                        return decode(in);
+                    }
+                    catch (IOException e)
+                    {
+                        // the record is corrupt - skip it
+                        continue;
+                    }
+                    catch (RuntimeException e)
+                    {
+                        // the record is corrupt - skip it
+                        continue;
+                    }
+                }
+
+                if (++m_fileIndex >= m_files.length)
+                {
+                    m_content = null;
+                    return null;
+                }
+                try
+                {
+                    m_content = read(m_files[m_fileIndex],
+                        (m_fileIndex == m_files.length - 1) ? m_lastLimit : Integer.MAX_VALUE);
+                }
+                catch (IOException e)
+                {
+                    // the segment was deleted or cannot be read - skip it
+                    m_content = null;
+                }
+                m_position = 0;
+            }
+        }
+
+        /**
+         * Decodes a record.
+         * @param in the content of the record
+         * @return the decoded entry
+         * @throws IOException if the record is incomplete
+         */
+        private LogEntry decode(final DataInputStream in) throws IOException
+        {
+            long bundleId = in.readLong();
+            in.readLong(); // the service id, which cannot be restored
+            int level = in.readInt();
+            long time = in.readLong();
+            String message = readString(in);
+
+            Throwable exception = null;
+            if (in.readBoolean())
+            {
+                String className = readString(in);
+                String exceptionMessage = readString(in);
+                exception = new LogException(className, exceptionMessage, readString(in));
+            }
+
+            return new LogEntryImpl((bundleId < 0) ? null : m_context.getBundle(bundleId),
+                level, message, exception, time);
+        }
+
+        /**
+         * Reads a string, which may be <code>null</code>, from a record.
+         * @param in the content of the record
+         * @return the string read
+         * @throws IOException if the record is incomplete
+         */
+        private static String readString(final DataInputStream in) throws IOException
+        {
+            int length = in.readInt();
+            if (length < 0)
+            {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return new String(bytes, "UTF-8");
+        }
+    }
+}
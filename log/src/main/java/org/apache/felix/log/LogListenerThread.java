@@ -18,73 +18,147 @@
  */
 package org.apache.felix.log;
 
-import java.util.Iterator;
-import java.util.List;
-import java.util.Stack;
-import java.util.Vector;
-
 import org.osgi.service.log.LogEntry;
 import org.osgi.service.log.LogListener;
 
 /**
  * This class is responsible for asynchronously delivering log messages to
- * any {@link LogListener} subscribers.  A subscriber can be added using the
+ * a {@link LogListener} subscriber.  A subscriber can be added using the
  * {@link org.osgi.service.log.LogReaderService#addLogListener(LogListener)}
  * method.
+ * <p>
+ * Each subscriber has its own thread and bounded queue of entries, so a slow
+ * listener does not delay the delivery to the other listeners.  The thread
+ * delivers all the entries queued since its last run in one batch.  What
+ * happens when the queue is full is determined by the overflow policy.
  */
 final class LogListenerThread extends Thread
 {
+    /** Overflow policy discarding the oldest queued entry. */
+    static final int DROP_OLDEST = 0;
+    /** Overflow policy blocking the logging thread until there is room. */
+    static final int BLOCK = 1;
+    /** Overflow policy keeping one of every {@link #SAMPLE_RATE} entries. */
+    static final int SAMPLE = 2;
+    /** The rate at which overflowing entries are kept by the sample policy. */
+    static final int SAMPLE_RATE = 10;
+
+    /** The listener to deliver the entries to. */
+    private final LogListener m_listener;
+    /** The overflow policy. */
+    private final int m_overflowPolicy;
+    /** The ring buffer of entries waiting to be delivered to the listener. */
+    private final LogEntry[] m_queue;
+    /** The index of the oldest entry in the queue. */
+    private int m_head = 0;
+    /** The number of entries in the queue. */
+    private int m_count = 0;
+    /** The number of entries that overflowed since the queue was last drained. */
+    private int m_overflowCount = 0;
+    /** The number of entries delivered to the listener. */
+    private long m_delivered = 0;
+    /** The number of entries discarded because the queue was full. */
+    private long m_dropped = 0;
     /** Whether the thread is stopping or not. */
     private boolean m_stopping = false;
-    /** The stack of entries waiting to be delivered to the log listeners. **/
-    private final Stack m_entriesToDeliver = new Stack();
-    /** The list of listeners. */
-    private final List m_listeners = new Vector();
 
     /**
-     * Add an entry to the list of messages to deliver.
-     * @param entry the log entry to deliver
+     * Create a new instance.
+     * @param listener the listener to deliver the entries to
+     * @param queueSize the maximum number of entries waiting to be delivered
+     * @param overflowPolicy the policy to apply when the queue is full
      */
-    void addEntry(final LogEntry entry)
+    LogListenerThread(final LogListener listener, final int queueSize,
+        final int overflowPolicy)
     {
-        synchronized (m_entriesToDeliver)
-        {
-            m_entriesToDeliver.add(entry);
-            m_entriesToDeliver.notifyAll();
-        }
+        super("FelixLogListener");
+        setDaemon(true);
+        m_listener = listener;
+        m_queue = new LogEntry[Math.max(1, queueSize)];
+        m_overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Returns the listener the entries are delivered to.
+     * @return the listener the entries are delivered to
+     */
+    LogListener getListener()
+    {
+        return m_listener;
     }
 
     /**
-     * Add a listener to the list of listeners that are subscribed.
-     * @param listener the listener to add to the list of subscribed listeners
+     * Add an entry to the queue of messages to deliver.
+     * @param entry the log entry to deliver
      */
-    void addListener(final LogListener listener)
+    void addEntry(final LogEntry entry)
     {
-        synchronized (m_listeners)
+        synchronized (m_queue)
         {
-            m_listeners.add(listener);
+            if (m_count == m_queue.length)
+            {
+                if (m_overflowPolicy == BLOCK)
+                {
+                    while (m_count == m_queue.length && !m_stopping)
+                    {
+                        try
+                        {
+                            m_queue.wait();
+                        }
+                        catch (InterruptedException e)
+                        {
+                            // do nothing
+                        }
+                    }
+                    if (m_stopping)
+                    {
+                        return;
+                    }
+                }
+                else if (m_overflowPolicy == SAMPLE && (m_overflowCount++ % SAMPLE_RATE) != 0)
+                {
+                    // only every n-th overflowing entry replaces the oldest one
+                    ++m_dropped;
+                    return;
+                }
+                else
+                {
+                    // discard the oldest entry
+                    m_queue[m_head] = null;
+                    m_head = (m_head + 1) % m_queue.length;
+                    --m_count;
+                    ++m_dropped;
+                }
+            }
+
+            m_queue[(m_head + m_count) % m_queue.length] = entry;
+            ++m_count;
+            m_queue.notifyAll();
         }
     }
 
     /**
-     * Remove a listener from the list of listeners that are subscribed.
-     * @param listener the listener to remove from the list of subscribed listeners
+     * Returns the number of entries delivered to the listener.
+     * @return the number of entries delivered to the listener
      */
-    void removeListener(final LogListener listener)
+    long getDeliveredCount()
     {
-        synchronized (m_listeners)
+        synchronized (m_queue)
         {
-            m_listeners.remove(listener);
+            return m_delivered;
         }
     }
 
     /**
-     * Returns the number of listeners that are currently registered.
-     * @return the number of listeners that are currently registered
+     * Returns the number of entries discarded because the queue was full.
+     * @return the number of entries discarded because the queue was full
      */
-    int getListenerCount()
+    long getDroppedCount()
     {
-        return m_listeners.size();
+        synchronized (m_queue)
+        {
+            return m_dropped;
+        }
     }
 
     /**
@@ -92,65 +166,73 @@ final class LogListenerThread extends Thread
      */
     void shutdown()
     {
-        m_stopping = true;
-
-        synchronized (m_entriesToDeliver)
+        synchronized (m_queue)
         {
-            m_entriesToDeliver.notifyAll();
+            m_stopping = true;
+            m_queue.notifyAll();
         }
     }
 
     /**
      * The main method of the thread: waits for new messages to be receieved
-     * and then delivers them to any registered log listeners.
+     * and then delivers them in batches to the log listener.
      */
     public void run()
     {
-        boolean stop = false;
+        LogEntry[] batch = new LogEntry[m_queue.length];
 
-        for (; !stop;)
+        for (;;)
         {
-            synchronized (m_entriesToDeliver)
-            {
-                if (!m_entriesToDeliver.isEmpty())
-                {
-                    LogEntry entry = (LogEntry) m_entriesToDeliver.pop();
-
-                    synchronized (m_listeners)
-                    {
-                        Iterator listenerIt = m_listeners.iterator();
-                        while (listenerIt.hasNext())
-                        {
-                            try
-                            {
-                                LogListener listener = (LogListener) listenerIt.next();
-                                listener.logged(entry);
-                            }
-                            catch (Throwable t)
-                            {
-                                // catch and discard any exceptions thrown by the listener
-                            }
-                        }
-                    }
-                }
+            int size;
 
-                if (m_entriesToDeliver.isEmpty())
+            synchronized (m_queue)
+            {
+                while (m_count == 0 && !m_stopping)
                 {
                     try
                     {
-                        m_entriesToDeliver.wait();
+                        m_queue.wait();
                     }
                     catch (InterruptedException e)
                     {
                         // do nothing
                     }
                 }
+
+                if (m_stopping)
+                {
+                    return;
+                }
+
+                // take all the queued entries in the order they were logged
+                size = m_count;
+                for (int i = 0; i < size; ++i)
+                {
+                    int idx = (m_head + i) % m_queue.length;
+                    batch[i] = m_queue[idx];
+                    m_queue[idx] = null;
+                }
+                m_head = 0;
+                m_count = 0;
+                m_overflowCount = 0;
+                m_delivered += size;
+
+                // wake up any logging threads blocked on a full queue
+                m_queue.notifyAll();
             }
 
-            if (m_stopping)
+            for (int i = 0; i < size; ++i)
             {
-                stop = true;
+                try
+                {
+                    m_listener.logged(batch[i]);
+                }
+                catch (Throwable t)
+                {
+                    // catch and discard any exceptions thrown by the listener
+                }
+                batch[i] = null;
             }
         }
     }
-}
\ No newline at end of file
+}
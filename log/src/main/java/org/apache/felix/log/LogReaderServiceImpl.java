@@ -23,12 +23,15 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Vector;
 
+import org.apache.felix.log.service.ExtendedLogReaderService;
+import org.osgi.framework.Bundle;
 import org.osgi.service.log.LogListener;
 import org.osgi.service.log.LogReaderService;
 
 /**
  * Implementation of the OSGi {@link LogReaderService} interface.  See section 101
- * of the OSGi service compendium.
+ * of the OSGi service compendium.  The extended methods of the
+ * {@link ExtendedLogReaderService} interface are implemented as well.
  * <p>
  * The {@link LogReaderService} maintains a list of {@link org.osgi.service.log.LogEntry}
  * objects called the <i>log</i>.  The {@link LogReaderService} is a service that bundle
@@ -36,7 +39,7 @@ import org.osgi.service.log.LogReaderService;
  * notifications about {@link org.osgi.service.log.LogEntry} objects when they are created
  * through the {@link org.osgi.service.log.LogService}.
  */
-final class LogReaderServiceImpl implements LogReaderService
+final class LogReaderServiceImpl implements ExtendedLogReaderService
 {
     /** The log implementation. */
     private final Log m_log;
@@ -92,6 +95,55 @@ final class LogReaderServiceImpl implements LogReaderService
         return m_log.getEntries();
     }
 
+    /**
+     * This method retrieves the most recent past log entries of a bundle and
+     * level as an enumeration with the most recent entry first.  Unlike
+     * {@link #getLog()} the entries are looked up through the indexes of the
+     * log rather than by scanning all the stored entries.
+     * @param bundle the bundle of the entries, or <code>null</code> for any bundle
+     * @param level the level of the entries, or <code>0</code> for any level
+     * @param max the maximum number of entries to return
+     * @return an enumeration of the matching {@link LogEntry} objects
+     */
+    public Enumeration getLog(final Bundle bundle, final int level, final int max)
+    {
+        return m_log.getEntries(bundle, level, max);
+    }
+
+    /**
+     * This method retrieves all the log entries in the journal of the log,
+     * including those logged before the framework was restarted, as an
+     * enumeration with the oldest entry first.  The entries are read from
+     * disk as the enumeration is iterated.  The enumeration is empty if the
+     * journal is not enabled.
+     * @return an enumeration of the {@link LogEntry} objects in the journal
+     */
+    public Enumeration getJournal()
+    {
+        return m_log.getJournalEntries();
+    }
+
+    /**
+     * Returns the number of log entries delivered to the log listeners of
+     * all log reader services.
+     * @return the number of log entries delivered to log listeners
+     */
+    public long getDeliveredCount()
+    {
+        return m_log.getDeliveredCount();
+    }
+
+    /**
+     * Returns the number of log entries that were not delivered to the log
+     * listeners of all log reader services because the listener could not
+     * keep up with the logging.
+     * @return the number of log entries dropped for log listeners
+     */
+    public long getDroppedCount()
+    {
+        return m_log.getDroppedCount();
+    }
+
     /**
      * Remove all log listeners registered through this service.
      */
@@ -0,0 +1,266 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.osgi.framework.Bundle;
+import org.osgi.service.log.LogEntry;
+import org.osgi.service.log.LogService;
+
+/**
+ * Bounded store for the historic log entries.  Entries are kept in a
+ * preallocated ring buffer indexed by their sequence number, so adding an
+ * entry only stores a reference and never allocates a node.  Each slot also
+ * links to the previous entry of the same bundle and of the same level, which
+ * allows the most recent entries of a bundle or level to be retrieved without
+ * scanning the whole history.
+ * <p>
+ * All methods hold the store lock only for the time needed to update or copy
+ * the buffer, so the historic log can be read while entries are added and
+ * listeners are notified outside of it.
+ */
+final class LogStore
+{
+    /** The initial capacity of an unbounded store. */
+    private static final int INITIAL_CAPACITY = 64;
+    /** The highest level for which entries are indexed. */
+    private static final int MAX_INDEXED_LEVEL = LogService.LOG_DEBUG;
+
+    /** The maximum number of entries to keep, or -1 for no limit. */
+    private final int m_maxSize;
+    /** The lock guarding the buffer and indexes. */
+    private final Object m_lock = new Object();
+    /** The buffer of entries, indexed by sequence number modulo its length. */
+    private LogEntry[] m_entries;
+    /** The sequence number of the previous entry of the same bundle, per slot. */
+    private long[] m_prevByBundle;
+    /** The sequence number of the previous entry of the same level, per slot. */
+    private long[] m_prevByLevel;
+    /** The sequence number of the next entry to add. */
+    private long m_next = 0;
+    /** The sequence number of the last entry per bundle id. */
+    private final Map m_lastByBundle = new HashMap();
+    /** The sequence number of the last entry per level. */
+    private final long[] m_lastByLevel = new long[MAX_INDEXED_LEVEL + 1];
+
+    /**
+     * Create a new instance.
+     * @param maxSize the maximum number of entries to keep, or -1 for no limit
+     */
+    LogStore(final int maxSize)
+    {
+        m_maxSize = maxSize;
+        allocate((maxSize == -1) ? INITIAL_CAPACITY : maxSize);
+    }
+
+    /**
+     * Adds an entry to the store, discarding the oldest entry if the store is full.
+     * @param entry the entry to add
+     */
+    void add(final LogEntry entry)
+    {
+        Bundle bundle = entry.getBundle();
+        Long bundleKey = (bundle == null) ? null : new Long(bundle.getBundleId());
+        int level = entry.getLevel();
+
+        synchronized (m_lock)
+        {
+            if ((m_maxSize == -1) && (m_next == m_entries.length))
+            {
+                grow();
+            }
+
+            int slot = (int) (m_next % m_entries.length);
+            m_entries[slot] = entry;
+
+            if (bundleKey != null)
+            {
+                long[] last = (long[]) m_lastByBundle.get(bundleKey);
+                if (last == null)
+                {
+                    last = new long[] { -1 };
+                    m_lastByBundle.put(bundleKey, last);
+                }
+                m_prevByBundle[slot] = last[0];
+                last[0] = m_next;
+            }
+            else
+            {
+                m_prevByBundle[slot] = -1;
+            }
+
+            if ((level > 0) && (level <= MAX_INDEXED_LEVEL))
+            {
+                m_prevByLevel[slot] = m_lastByLevel[level];
+                m_lastByLevel[level] = m_next;
+            }
+            else
+            {
+                m_prevByLevel[slot] = -1;
+            }
+
+            m_next++;
+        }
+    }
+
+    /**
+     * Returns a snapshot of all the entries in the store most recent first.
+     * @return the entries in the store most recent first
+     */
+    LogEntry[] getEntries()
+    {
+        synchronized (m_lock)
+        {
+            int size = size();
+            LogEntry[] result = new LogEntry[size];
+            for (int i = 0; i < size; i++)
+            {
+                result[i] = m_entries[(int) ((m_next - 1 - i) % m_entries.length)];
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Returns a snapshot of the most recent entries of the specified bundle
+     * and level, most recent first.
+     * @param bundle the bundle of the entries, or <code>null</code> for any bundle
+     * @param level the level of the entries, or <code>0</code> for any level
+     * @param max the maximum number of entries to return
+     * @return the matching entries most recent first
+     */
+    LogEntry[] getEntries(final Bundle bundle, final int level, final int max)
+    {
+        Long bundleKey = (bundle == null) ? null : new Long(bundle.getBundleId());
+
+        synchronized (m_lock)
+        {
+            long oldest = m_next - size();
+            int count = 0;
+            LogEntry[] result = new LogEntry[Math.max(0, Math.min(max, size()))];
+
+            if (bundleKey != null)
+            {
+                // follow the chain of the bundle, filtering on the level
+                long[] last = (long[]) m_lastByBundle.get(bundleKey);
+                long seq = (last == null) ? -1 : last[0];
+                while ((seq >= oldest) && (seq >= 0) && (count < result.length))
+                {
+                    int slot = (int) (seq % m_entries.length);
+                    if ((level == 0) || (m_entries[slot].getLevel() == level))
+                    {
+                        result[count++] = m_entries[slot];
+                    }
+                    seq = m_prevByBundle[slot];
+                }
+            }
+            else if ((level > 0) && (level <= MAX_INDEXED_LEVEL))
+            {
+                // follow the chain of the level
+                long seq = m_lastByLevel[level];
+                while ((seq >= oldest) && (seq >= 0) && (count < result.length))
+                {
+                    int slot = (int) (seq % m_entries.length);
+                    result[count++] = m_entries[slot];
+                    seq = m_prevByLevel[slot];
+                }
+            }
+            else
+            {
+                // no index applies, so scan the history
+                for (long seq = m_next - 1; (seq >= oldest) && (count < result.length); seq--)
+                {
+                    LogEntry entry = m_entries[(int) (seq % m_entries.length)];
+                    if ((level == 0) || (entry.getLevel() == level))
+                    {
+                        result[count++] = entry;
+                    }
+                }
+            }
+
+            if (count < result.length)
+            {
+                LogEntry[] tmp = new LogEntry[count];
+                System.arraycopy(result, 0, tmp, 0, count);
+                result = tmp;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Removes all the entries from the store.
+     */
+    void clear()
+    {
+        synchronized (m_lock)
+        {
+            allocate((m_maxSize == -1) ? INITIAL_CAPACITY : m_maxSize);
+            m_next = 0;
+            m_lastByBundle.clear();
+        }
+    }
+
+    /**
+     * Returns the number of entries in the store.  Must be called with the lock held.
+     * @return the number of entries in the store
+     */
+    private int size()
+    {
+        return (int) Math.min(m_next, m_entries.length);
+    }
+
+    /**
+     * Allocates empty buffers of the specified capacity.
+     * @param capacity the capacity of the buffers
+     */
+    private void allocate(final int capacity)
+    {
+        m_entries = new LogEntry[capacity];
+        m_prevByBundle = new long[capacity];
+        m_prevByLevel = new long[capacity];
+        for (int i = 0; i < m_lastByLevel.length; i++)
+        {
+            m_lastByLevel[i] = -1;
+        }
+    }
+
+    /**
+     * Doubles the capacity of an unbounded store, which is full and therefore
+     * has all its entries in sequence order starting at slot zero.
+     */
+    private void grow()
+    {
+        int capacity = m_entries.length * 2;
+
+        LogEntry[] entries = new LogEntry[capacity];
+        System.arraycopy(m_entries, 0, entries, 0, m_entries.length);
+        m_entries = entries;
+
+        long[] prev = new long[capacity];
+        System.arraycopy(m_prevByBundle, 0, prev, 0, m_prevByBundle.length);
+        m_prevByBundle = prev;
+
+        prev = new long[capacity];
+        System.arraycopy(m_prevByLevel, 0, prev, 0, m_prevByLevel.length);
+        m_prevByLevel = prev;
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.log.service;
+
+import java.util.Enumeration;
+
+import org.osgi.framework.Bundle;
+import org.osgi.service.log.LogReaderService;
+
+/**
+ * Extension of the OSGi {@link LogReaderService} interface offered by the
+ * Apache Felix log service.  The log reader service is registered under
+ * both interface names, so bundles which want to use the extended methods
+ * look up the service by the name of this interface.
+ */
+public interface ExtendedLogReaderService extends LogReaderService
+{
+    /**
+     * This method retrieves the most recent past log entries of a bundle and
+     * level as an enumeration with the most recent entry first.  Unlike
+     * {@link #getLog()} the entries are looked up through the indexes of the
+     * log rather than by scanning all the stored entries.
+     * @param bundle the bundle of the entries, or <code>null</code> for any bundle
+     * @param level the level of the entries, or <code>0</code> for any level
+     * @param max the maximum number of entries to return
+     * @return an enumeration of the matching {@link org.osgi.service.log.LogEntry} objects
+     */
+    Enumeration getLog(Bundle bundle, int level, int max);
+
+    /**
+     * Returns the number of log entries delivered to the log listeners of
+     * all log reader services.
+     * @return the number of log entries delivered to log listeners
+     */
+    long getDeliveredCount();
+
+    /**
+     * Returns the number of log entries that were not delivered to the log
+     * listeners of all log reader services because the listener could not
+     * keep up with the logging.
+     * @return the number of log entries dropped for log listeners
+     */
+    long getDroppedCount();
+
+    /**
+     * This method retrieves all the log entries in the journal of the log,
+     * including those logged before the framework was restarted, as an
+     * enumeration with the oldest entry first.  The entries are read from
+     * disk as the enumeration is iterated.  The enumeration is empty if the
+     * journal is not enabled.
+     * @return an enumeration of the {@link org.osgi.service.log.LogEntry} objects in the journal
+     */
+    Enumeration getJournal();
+}
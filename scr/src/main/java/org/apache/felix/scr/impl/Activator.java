@@ -90,11 +90,18 @@ public class Activator implements BundleActivator, SynchronousBundleListener
                 + context.getBundle().getHeaders().get( Constants.BUNDLE_VERSION ), null );
         }
 
-        // create and start the component actor
+        // create and start the component actor, running it in more than
+        // one thread to act upon different components concurrently if
+        // configured so
         m_componentActor = new ComponentActorThread();
-        Thread t = new Thread(m_componentActor, "SCR Component Actor");
-        t.setDaemon( true );
-        t.start();
+        int actorThreads = getActorThreads( context );
+        for ( int i = 0; i < actorThreads; i++ )
+        {
+            String name = ( actorThreads == 1 ) ? "SCR Component Actor" : "SCR Component Actor #" + ( i + 1 );
+            Thread t = new Thread( m_componentActor, name );
+            t.setDaemon( true );
+            t.start();
+        }
 
         // register for bundle updates
         context.addBundleListener( this );
@@ -316,6 +323,35 @@ public class Activator implements BundleActivator, SynchronousBundleListener
     }
 
 
+    /**
+     * Returns the number of threads running the component actor as
+     * configured with the <code>ds.actor.threads</code> framework property.
+     * By default a single thread acts upon all components one after the
+     * other. With more threads, tasks for different components are run
+     * concurrently while tasks for the same component are still run in the
+     * order they have been scheduled.
+     */
+    private static int getActorThreads( BundleContext bundleContext )
+    {
+        String threadsString = bundleContext.getProperty( "ds.actor.threads" );
+        if ( threadsString != null )
+        {
+            try
+            {
+                return Math.max( 1, Integer.parseInt( threadsString.trim() ) );
+            }
+            catch ( NumberFormatException nfe )
+            {
+                log( LogService.LOG_WARNING, bundleContext.getBundle(), "Ignoring invalid ds.actor.threads value "
+                    + threadsString, null );
+            }
+        }
+
+        // default to a single thread
+        return 1;
+    }
+
+
     private static int getLogLevel( BundleContext bundleContext )
     {
         String levelString = bundleContext.getProperty( "ds.loglevel" );
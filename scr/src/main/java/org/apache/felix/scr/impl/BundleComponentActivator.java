@@ -34,6 +34,7 @@ import java.util.StringTokenizer;
 import org.apache.felix.scr.impl.config.ComponentHolder;
 import org.apache.felix.scr.impl.helper.Logger;
 import org.apache.felix.scr.impl.manager.AbstractComponentManager;
+import org.apache.felix.scr.impl.manager.DependencyIndex;
 import org.apache.felix.scr.impl.metadata.ComponentMetadata;
 import org.apache.felix.scr.impl.metadata.XmlHandler;
 import org.apache.felix.scr.impl.parser.KXml2SAXParser;
@@ -476,6 +477,18 @@ public class BundleComponentActivator implements Logger
     }
 
 
+    /**
+     * Returns the {@link DependencyIndex} of the component registry through
+     * which the dependency managers of the components receive service events
+     * or <code>null</code> if this instance has already been disposed.
+     */
+    public DependencyIndex getDependencyIndex()
+    {
+        final ComponentRegistry componentRegistry = m_componentRegistry;
+        return ( componentRegistry != null ) ? componentRegistry.getDependencyIndex() : null;
+    }
+
+
     //---------- Component ID support
 
     public long registerComponentId(AbstractComponentManager componentManager) {
@@ -47,6 +47,17 @@ public abstract class ComponentActivatorTask implements Runnable
     protected abstract void doRun();
 
 
+    /**
+     * Returns the component acted upon by this task. Tasks for the same
+     * component are run in the order in which they have been scheduled and
+     * never concurrently.
+     */
+    AbstractComponentManager getComponent()
+    {
+        return component;
+    }
+
+
     public void run()
     {
         // fail, if the bundle is not active
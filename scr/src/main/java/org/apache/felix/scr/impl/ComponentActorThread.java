@@ -19,7 +19,10 @@
 package org.apache.felix.scr.impl;
 
 
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.Set;
 
 import org.osgi.service.log.LogService;
 
@@ -27,6 +30,13 @@ import org.osgi.service.log.LogService;
 /**
  * The <code>ComponentActorThread</code> is the thread used to act upon registered
  * components of the service component runtime.
+ * <p>
+ * The same instance may be run by more than one thread to act upon different
+ * components concurrently. Tasks acting upon the same component are never
+ * run concurrently and are run in the order in which they have been
+ * scheduled: a thread always takes the first task in the queue whose
+ * component is not currently acted upon by another thread. With a single
+ * thread this is just the order in which the tasks have been scheduled.
  */
 class ComponentActorThread implements Runnable
 {
@@ -48,26 +58,29 @@ class ComponentActorThread implements Runnable
     // the queue of Runnable instances  to be run
     private LinkedList tasks;
 
+    // the components currently acted upon by a thread
+    private Set running;
+
 
     ComponentActorThread()
     {
         tasks = new LinkedList();
+        running = new HashSet();
     }
 
 
     // waits on Runnable instances coming into the queue. As instances come
     // in, this method calls the Runnable.run method, logs any exception
     // happening and keeps on waiting for the next Runnable. If the Runnable
-    // taken from the queue is this thread instance itself, the thread
-    // terminates.
+    // taken from the queue is the termination task, the thread terminates.
     public void run()
     {
         for ( ;; )
         {
-            final Runnable task;
+            Runnable task;
             synchronized ( tasks )
             {
-                while ( tasks.isEmpty() )
+                while ( ( task = nextTask() ) == null )
                 {
                     try
                     {
@@ -78,11 +91,10 @@ class ComponentActorThread implements Runnable
                         // don't care
                     }
                 }
-
-                task = ( Runnable ) tasks.removeFirst();
             }
 
-            // return if the task is this thread itself
+            // return if the task is the termination task, which is left in
+            // the queue to also terminate any other thread
             if ( task == TERMINATION_TASK )
             {
                 Activator.log( LogService.LOG_DEBUG, null, "Shutting down ComponentActorThread", null );
@@ -90,6 +102,7 @@ class ComponentActorThread implements Runnable
             }
 
             // otherwise execute the task, log any issues
+            final Object component = getComponent( task );
             try
             {
                 Activator.log( LogService.LOG_INFO, null, "Running task: " + task, null );
@@ -99,12 +112,24 @@ class ComponentActorThread implements Runnable
             {
                 Activator.log( LogService.LOG_ERROR, null, "Unexpected problem executing task " + task, t );
             }
+            finally
+            {
+                // release the component for further tasks
+                if ( component != null )
+                {
+                    synchronized ( tasks )
+                    {
+                        running.remove( component );
+                        tasks.notifyAll();
+                    }
+                }
+            }
         }
     }
 
 
-    // cause this thread to terminate by adding this thread to the end
-    // of the queue
+    // cause this thread to terminate by adding the termination task to the
+    // end of the queue
     void terminate()
     {
         schedule( TERMINATION_TASK );
@@ -126,4 +151,43 @@ class ComponentActorThread implements Runnable
             tasks.notifyAll();
         }
     }
+
+
+    // returns and removes the first task whose component is not currently
+    // acted upon, marking the component as running. The termination task is
+    // only returned once all tasks scheduled before it have been taken and
+    // is not removed. Returns null if no task can be run. Must be called
+    // with the tasks lock held.
+    private Runnable nextTask()
+    {
+        for ( Iterator ti = tasks.iterator(); ti.hasNext(); )
+        {
+            final Runnable task = ( Runnable ) ti.next();
+            if ( task == TERMINATION_TASK )
+            {
+                return ( task == tasks.getFirst() ) ? task : null;
+            }
+
+            final Object component = getComponent( task );
+            if ( component == null || running.add( component ) )
+            {
+                ti.remove();
+                return task;
+            }
+        }
+
+        return null;
+    }
+
+
+    // returns the component acted upon by the task or null if the task is
+    // not related to a single component
+    private static Object getComponent( Runnable task )
+    {
+        if ( task instanceof ComponentActivatorTask )
+        {
+            return ( ( ComponentActivatorTask ) task ).getComponent();
+        }
+        return null;
+    }
 }
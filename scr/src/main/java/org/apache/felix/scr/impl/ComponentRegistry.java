@@ -20,6 +20,7 @@ package org.apache.felix.scr.impl;
 
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.Hashtable;
@@ -32,6 +33,7 @@ import org.apache.felix.scr.impl.config.ComponentHolder;
 import org.apache.felix.scr.impl.config.UnconfiguredComponentHolder;
 import org.apache.felix.scr.impl.manager.AbstractComponentManager;
 import org.apache.felix.scr.impl.manager.ComponentFactoryImpl;
+import org.apache.felix.scr.impl.manager.DependencyIndex;
 import org.apache.felix.scr.impl.metadata.ComponentMetadata;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
@@ -70,6 +72,8 @@ public class ComponentRegistry implements ScrService
      * Map of components by component ID. This map indexed by the component
      * ID number (<code>java.lang.Long</code>) contains the actual
      * {@link AbstractComponentManager} instances existing in the system.
+     * The map is synchronized because components may be created and
+     * disposed by more than one component actor thread concurrently.
      *
      * @see #registerComponentId(AbstractComponentManager)
      * @see #unregisterComponentId(long)
@@ -89,13 +93,25 @@ public class ComponentRegistry implements ScrService
      */
     private ServiceRegistration m_registration;
 
+    /**
+     * The index dispatching service events to the dependency managers of
+     * all components and caching the references of the services they
+     * depend on.
+     *
+     * @see #getDependencyIndex()
+     */
+    private DependencyIndex m_dependencyIndex;
+
 
     protected ComponentRegistry( BundleContext context )
     {
         m_componentsByName = new HashMap();
-        m_componentsById = new HashMap();
+        m_componentsById = Collections.synchronizedMap( new HashMap() );
         m_componentCounter = -1;
 
+        // single service listener for all component dependencies
+        m_dependencyIndex = new DependencyIndex( context );
+
         // register as ScrService
         Dictionary props = new Hashtable();
         props.put( Constants.SERVICE_DESCRIPTION, "Declarative Services Management Agent" );
@@ -112,6 +128,23 @@ public class ComponentRegistry implements ScrService
             m_registration.unregister();
             m_registration = null;
         }
+
+        if ( m_dependencyIndex != null )
+        {
+            m_dependencyIndex.dispose();
+            m_dependencyIndex = null;
+        }
+    }
+
+
+    /**
+     * Returns the {@link DependencyIndex} through which the dependency
+     * managers of all components receive service events or <code>null</code>
+     * if this registry has been disposed.
+     */
+    final DependencyIndex getDependencyIndex()
+    {
+        return m_dependencyIndex;
     }
 
 
@@ -119,13 +152,16 @@ public class ComponentRegistry implements ScrService
 
     public Component[] getComponents()
     {
-        if ( m_componentsById.isEmpty() )
+        synchronized ( m_componentsById )
         {
-            return null;
-        }
+            if ( m_componentsById.isEmpty() )
+            {
+                return null;
+            }
 
-        return ( org.apache.felix.scr.Component[] ) m_componentsById.values().toArray(
-            new Component[m_componentsById.size()] );
+            return ( org.apache.felix.scr.Component[] ) m_componentsById.values().toArray(
+                new Component[m_componentsById.size()] );
+        }
     }
 
 
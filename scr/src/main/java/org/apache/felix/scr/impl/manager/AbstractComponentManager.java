@@ -116,6 +116,10 @@ public abstract class AbstractComponentManager implements Component
 
 
     //---------- Asynchronous frontend to state change methods ----------------
+    // The state changes scheduled by these methods are run by the component
+    // actor in the order in which they are scheduled and never concurrently
+    // for the same component, even if the actor runs in more than one thread.
+
     /**
      * Enables this component and - if satisfied - also activates it. If
      * enabling the component fails for any reason, the component ends up
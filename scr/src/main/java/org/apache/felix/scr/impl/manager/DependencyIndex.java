@@ -0,0 +1,342 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.scr.impl.manager;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.felix.scr.impl.Activator;
+import org.osgi.framework.AllServiceListener;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.log.LogService;
+
+
+/**
+ * The <code>DependencyIndex</code> dispatches service events to the
+ * {@link DependencyManager} instances interested in them. Instead of each
+ * dependency manager registering its own service listener, the index
+ * registers a single listener with the framework and routes each event by
+ * looking up the service interfaces of the event in a map of interface
+ * names to dependency managers.
+ * <p>
+ * For each interface in the index, the references of the registered services
+ * are cached and kept current from the service events. This allows the
+ * dependency managers to find their candidate services without querying the
+ * service registry. The cache is created when the first dependency manager
+ * for an interface is added and dropped when the last one is removed.
+ */
+public class DependencyIndex implements AllServiceListener
+{
+
+    // empty array returned if no services are cached for an interface
+    private static final ServiceReference[] NO_REFERENCES = new ServiceReference[0];
+
+    // empty array of dependency managers for a new entry
+    private static final DependencyManager[] NO_MANAGERS = new DependencyManager[0];
+
+    // the bundle context used to listen for service events
+    private final BundleContext m_context;
+
+    // map of Entry instances indexed by service interface name
+    private final Map m_entries;
+
+
+    public DependencyIndex( BundleContext context )
+    {
+        m_context = context;
+        m_entries = new HashMap();
+
+        context.addServiceListener( this );
+    }
+
+
+    public void dispose()
+    {
+        m_context.removeServiceListener( this );
+
+        synchronized ( m_entries )
+        {
+            m_entries.clear();
+        }
+    }
+
+
+    //---------- AllServiceListener interface ---------------------------------
+
+    /**
+     * Updates the cached service references of the interfaces of the service
+     * and forwards the event to the dependency managers for these interfaces.
+     * The cache is updated before the dependency managers are called so
+     * that a service being unregistered is not offered as a replacement
+     * for itself.
+     */
+    public void serviceChanged( ServiceEvent event )
+    {
+        final ServiceReference ref = event.getServiceReference();
+        final String[] names = ( String[] ) ref.getProperty( Constants.OBJECTCLASS );
+        if ( names == null )
+        {
+            return;
+        }
+
+        for ( int i = 0; i < names.length; i++ )
+        {
+            final DependencyManager[] managers;
+            synchronized ( m_entries )
+            {
+                final Entry entry = ( Entry ) m_entries.get( names[i] );
+                if ( entry == null )
+                {
+                    continue;
+                }
+
+                switch ( event.getType() )
+                {
+                    case ServiceEvent.REGISTERED:
+                        entry.addReference( ref );
+                        break;
+
+                    case ServiceEvent.UNREGISTERING:
+                        entry.removeReference( ref );
+                        break;
+                }
+
+                managers = entry.managers;
+            }
+
+            for ( int j = 0; j < managers.length; j++ )
+            {
+                try
+                {
+                    managers[j].serviceChanged( event );
+                }
+                catch ( Throwable t )
+                {
+                    // isolate the dependency managers from each other as the
+                    // framework would do for separately registered listeners
+                    Activator.log( LogService.LOG_ERROR, null, "Unexpected problem handling service event for "
+                        + managers[j].getName(), t );
+                }
+            }
+        }
+    }
+
+
+    //---------- DependencyManager support ------------------------------------
+
+    /**
+     * Adds the dependency manager to the index to receive service events for
+     * its service interface. If this is the first dependency manager for
+     * the interface, the references of the currently registered services are
+     * loaded from the service registry.
+     */
+    void addDependencyManager( DependencyManager dependencyManager )
+    {
+        final String name = dependencyManager.getServiceName();
+        synchronized ( m_entries )
+        {
+            Entry entry = ( Entry ) m_entries.get( name );
+            if ( entry == null )
+            {
+                entry = new Entry( getAllServiceReferences( name ) );
+                m_entries.put( name, entry );
+            }
+            entry.addManager( dependencyManager );
+        }
+    }
+
+
+    /**
+     * Removes the dependency manager from the index. If this is the last
+     * dependency manager for the interface, the cached references for the
+     * interface are dropped.
+     */
+    void removeDependencyManager( DependencyManager dependencyManager )
+    {
+        final String name = dependencyManager.getServiceName();
+        synchronized ( m_entries )
+        {
+            Entry entry = ( Entry ) m_entries.get( name );
+            if ( entry != null && entry.removeManager( dependencyManager ) )
+            {
+                m_entries.remove( name );
+            }
+        }
+    }
+
+
+    /**
+     * Returns the cached references of all services registered under the
+     * given interface. The returned array must not be modified. If no
+     * dependency manager for the interface is in the index, an empty array
+     * is returned.
+     * <p>
+     * The references are not filtered for visibility to any bundle.
+     * A service unregistered while the cache was being loaded has its
+     * <code>UNREGISTERING</code> event dispatched before the entry for
+     * the interface exists. The reference of such a service is dropped
+     * from the cache here once the unregistration has completed.
+     */
+    ServiceReference[] getServiceReferences( String name )
+    {
+        synchronized ( m_entries )
+        {
+            final Entry entry = ( Entry ) m_entries.get( name );
+            if ( entry == null )
+            {
+                return NO_REFERENCES;
+            }
+
+            entry.removeStaleReferences();
+            return entry.references;
+        }
+    }
+
+
+    private ServiceReference[] getAllServiceReferences( String name )
+    {
+        try
+        {
+            ServiceReference[] refs = m_context.getAllServiceReferences( name, null );
+            return ( refs != null ) ? refs : NO_REFERENCES;
+        }
+        catch ( InvalidSyntaxException ise )
+        {
+            // not expected since no filter is used
+            Activator.log( LogService.LOG_ERROR, null, "Unexpected problem getting services " + name, ise );
+            return NO_REFERENCES;
+        }
+    }
+
+
+    /**
+     * The <code>Entry</code> holds the dependency managers and cached
+     * service references of a single interface. Both are kept in arrays
+     * which are replaced on each modification so they may be used without
+     * holding the lock once retrieved.
+     */
+    private static class Entry
+    {
+        DependencyManager[] managers;
+
+        ServiceReference[] references;
+
+
+        Entry( ServiceReference[] references )
+        {
+            this.managers = NO_MANAGERS;
+            this.references = references;
+        }
+
+
+        void addManager( DependencyManager manager )
+        {
+            DependencyManager[] newManagers = new DependencyManager[managers.length + 1];
+            System.arraycopy( managers, 0, newManagers, 0, managers.length );
+            newManagers[managers.length] = manager;
+            managers = newManagers;
+        }
+
+
+        // returns true if no more managers are left
+        boolean removeManager( DependencyManager manager )
+        {
+            for ( int i = 0; i < managers.length; i++ )
+            {
+                if ( managers[i] == manager )
+                {
+                    DependencyManager[] newManagers = new DependencyManager[managers.length - 1];
+                    System.arraycopy( managers, 0, newManagers, 0, i );
+                    System.arraycopy( managers, i + 1, newManagers, i, newManagers.length - i );
+                    managers = newManagers;
+                    break;
+                }
+            }
+            return managers.length == 0;
+        }
+
+
+        void addReference( ServiceReference reference )
+        {
+            // the reference may already have been loaded with the entry
+            for ( int i = 0; i < references.length; i++ )
+            {
+                if ( references[i].equals( reference ) )
+                {
+                    return;
+                }
+            }
+
+            ServiceReference[] newReferences = new ServiceReference[references.length + 1];
+            System.arraycopy( references, 0, newReferences, 0, references.length );
+            newReferences[references.length] = reference;
+            references = newReferences;
+        }
+
+
+        // removes the references of services no longer registered
+        void removeStaleReferences()
+        {
+            List valid = null;
+            for ( int i = 0; i < references.length; i++ )
+            {
+                if ( references[i].getBundle() == null )
+                {
+                    if ( valid == null )
+                    {
+                        valid = new ArrayList( Arrays.asList( references ).subList( 0, i ) );
+                    }
+                }
+                else if ( valid != null )
+                {
+                    valid.add( references[i] );
+                }
+            }
+
+            if ( valid != null )
+            {
+                references = ( ServiceReference[] ) valid.toArray( new ServiceReference[valid.size()] );
+            }
+        }
+
+
+        void removeReference( ServiceReference reference )
+        {
+            for ( int i = 0; i < references.length; i++ )
+            {
+                if ( references[i].equals( reference ) )
+                {
+                    ServiceReference[] newReferences = new ServiceReference[references.length - 1];
+                    System.arraycopy( references, 0, newReferences, 0, i );
+                    System.arraycopy( references, i + 1, newReferences, i, newReferences.length - i );
+                    references = newReferences;
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -85,6 +85,9 @@ public class DependencyManager implements ServiceListener, Reference
     // the target service filter
     private Filter m_targetFilter;
 
+    // the index dispatching service events while enabled
+    private DependencyIndex m_index;
+
 
     /**
      * Constructor that receives several parameters.
@@ -139,10 +142,23 @@ public class DependencyManager implements ServiceListener, Reference
     /**
      * Called when a registered service changes state. In the case of service
      * modification the service is assumed to be removed and added again.
+     * <p>
+     * Events are dispatched by the {@link DependencyIndex} for any service
+     * registered under the interface of this dependency. Like the framework
+     * does for a service listener of the component's bundle, events for
+     * services whose interface is not visible to the bundle or which the
+     * bundle has no permission to get are ignored. The events are received
+     * through the bundle context of the Service Component Runtime, so the
+     * framework only checks the permissions of the runtime itself.
      */
     public void serviceChanged( ServiceEvent event )
     {
         final ServiceReference ref = event.getServiceReference();
+        if ( !isAssignable( ref ) || !hasGetPermission() )
+        {
+            return;
+        }
+
         final String serviceString = "Service " + m_dependencyMetadata.getInterface() + "/"
             + ref.getProperty( Constants.SERVICE_ID );
 
@@ -178,7 +194,8 @@ public class DependencyManager implements ServiceListener, Reference
                 {
                     // recalculate the number of services matching the filter
                     // because we don't know whether this service previously matched
-                    // or not
+                    // or not (the references are taken from the index and
+                    // are thus not a registry query)
                     ServiceReference refs[] = getFrameworkServiceReferences();
                     m_size = ( refs == null ) ? 0 : refs.length;
 
@@ -294,11 +311,17 @@ public class DependencyManager implements ServiceListener, Reference
      * @param reference The reference to the service unregistering or being
      *      modified.
      *
+     * The deactivation and reactivation of the component are not run on the
+     * calling thread but scheduled with the component actor. Thus this
+     * method does not wait for the lock of the component, which may be held
+     * by another thread activating the component and waiting for a service
+     * registered or unregistered on the calling thread.
+     *
      * @return <code>true</code> if the service has been removed without the
      *      component being deactivated. <code>true</code> is also returned
      *      if the service was not bound at all. <code>false</code> is returned
-     *      if the component has been deactivated due to this service being
-     *      removed.
+     *      if the deactivation of the component has been scheduled due to
+     *      this service being removed.
      */
     private boolean serviceRemoved( ServiceReference reference )
     {
@@ -326,10 +349,12 @@ public class DependencyManager implements ServiceListener, Reference
                     new Object[]
                         { m_dependencyMetadata.getName(), m_dependencyMetadata.getInterface() }, null );
 
-                // deactivate the component now
-                m_componentManager.deactivateInternal( ComponentConstants.DEACTIVATION_REASON_REFERENCE );
+                // deactivate the component through the component actor,
+                // which also activates it again if a replacement service has
+                // been registered in the meantime
+                m_componentManager.reactivate( ComponentConstants.DEACTIVATION_REASON_REFERENCE );
 
-                // component is deactivated, this does all for this service
+                // component is being deactivated, this does all for this service
                 return false;
             }
 
@@ -342,8 +367,7 @@ public class DependencyManager implements ServiceListener, Reference
                     m_componentManager.log( LogService.LOG_DEBUG,
                         "Dependency Manager: Static dependency on {0}/{1} is broken", new Object[]
                             { m_dependencyMetadata.getName(), m_dependencyMetadata.getInterface() }, null );
-                    m_componentManager.deactivateInternal( ComponentConstants.DEACTIVATION_REASON_REFERENCE );
-                    m_componentManager.activate();
+                    m_componentManager.reactivate( ComponentConstants.DEACTIVATION_REASON_REFERENCE );
                 }
                 catch ( Exception ex )
                 {
@@ -372,10 +396,10 @@ public class DependencyManager implements ServiceListener, Reference
                                 "Dependency Manager: Deactivating component due to mandatory dependency on {0}/{1} not satisfied",
                                 new Object[]
                                     { m_dependencyMetadata.getName(), m_dependencyMetadata.getInterface() }, null );
-                        m_componentManager.deactivateInternal( ComponentConstants.DEACTIVATION_REASON_REFERENCE );
+                        m_componentManager.reactivate( ComponentConstants.DEACTIVATION_REASON_REFERENCE );
 
                         // required service could not be replaced, component
-                        // is deactivated and we are done
+                        // is being deactivated and we are done
                         return false;
                     }
                 }
@@ -456,21 +480,33 @@ public class DependencyManager implements ServiceListener, Reference
 
     /**
      * Enables this dependency manager by starting to listen for service
-     * events.
+     * events. Service events are received through the
+     * {@link DependencyIndex} of the component registry, which also
+     * caches the references of the services registered under the interface
+     * of this dependency.
      * @throws InvalidSyntaxException if the target filter is invalid
      */
     void enable() throws InvalidSyntaxException
     {
-        if ( hasGetPermission() )
+        final DependencyIndex index = m_componentManager.getActivator().getDependencyIndex();
+        if ( index == null )
         {
+            // the component activator has already been disposed
+            m_size = 0;
+
+            m_componentManager.log( LogService.LOG_DEBUG,
+                "Not registered for service events since the component bundle is being stopped", null );
+        }
+        else if ( hasGetPermission() )
+        {
+            // register with the index, which loads the registered services
+            index.addDependencyManager( this );
+            m_index = index;
+
             // get the current number of registered services available
             ServiceReference refs[] = getFrameworkServiceReferences();
             m_size = ( refs == null ) ? 0 : refs.length;
 
-            // register the service listener
-            String filterString = "(" + Constants.OBJECTCLASS + "=" + m_dependencyMetadata.getInterface() + ")";
-            m_componentManager.getActivator().getBundleContext().addServiceListener( this, filterString );
-
             m_componentManager.log( LogService.LOG_DEBUG,
                 "Registered for service events, currently {0} service(s) match the filter", new Object[]
                     { new Integer( m_size ) }, null );
@@ -495,8 +531,12 @@ public class DependencyManager implements ServiceListener, Reference
      */
     void disable()
     {
-        BundleContext context = m_componentManager.getActivator().getBundleContext();
-        context.removeServiceListener( this );
+        final DependencyIndex index = m_index;
+        if ( index != null )
+        {
+            index.removeDependencyManager( this );
+            m_index = null;
+        }
 
         m_size = 0;
 
@@ -539,8 +579,10 @@ public class DependencyManager implements ServiceListener, Reference
      * syntactically incorrect an error message is logged with the LogService
      * and <code>null</code> is returned.
      * <p>
-     * This method always directly accesses the framework's service registry
-     * and ignores the services bound by this dependency manager.
+     * This method ignores the services bound by this dependency manager. While
+     * this dependency manager is enabled the services are taken from the
+     * references cached by the {@link DependencyIndex}, otherwise the
+     * framework's service registry is accessed directly.
      */
     ServiceReference[] getFrameworkServiceReferences()
     {
@@ -554,6 +596,13 @@ public class DependencyManager implements ServiceListener, Reference
         {
             try
             {
+                final DependencyIndex index = m_index;
+                if ( index != null )
+                {
+                    return getMatchingServiceReferences( index.getServiceReferences( getServiceName() ),
+                        getFilter( targetFilter ) );
+                }
+
                 return m_componentManager.getActivator().getBundleContext().getServiceReferences(
                     m_dependencyMetadata.getInterface(), targetFilter );
             }
@@ -570,6 +619,68 @@ public class DependencyManager implements ServiceListener, Reference
     }
 
 
+    /**
+     * Returns the references of the given cached <code>references</code>
+     * visible to the component's bundle and matching the <code>filter</code>
+     * or <code>null</code> if no reference matches. This implements the
+     * checks applied by <code>BundleContext.getServiceReferences</code>
+     * on the references cached by the {@link DependencyIndex}.
+     */
+    private ServiceReference[] getMatchingServiceReferences( ServiceReference[] references, Filter filter )
+    {
+        List matching = null;
+        for ( int i = 0; i < references.length; i++ )
+        {
+            final ServiceReference ref = references[i];
+            if ( isAssignable( ref ) && ( filter == null || filter.match( ref ) ) )
+            {
+                if ( matching == null )
+                {
+                    matching = new ArrayList();
+                }
+                matching.add( ref );
+            }
+        }
+
+        return ( matching == null ) ? null : ( ServiceReference[] ) matching
+            .toArray( new ServiceReference[matching.size()] );
+    }
+
+
+    /**
+     * Returns <code>true</code> if the service is still registered and the
+     * interface of this dependency as seen by the service's registering bundle
+     * is the same as seen by the component's bundle.
+     */
+    private boolean isAssignable( ServiceReference ref )
+    {
+        final BundleContext context = m_componentManager.getActivator().getBundleContext();
+        return context != null && ref.getBundle() != null
+            && ref.isAssignableTo( context.getBundle(), m_dependencyMetadata.getInterface() );
+    }
+
+
+    /**
+     * Returns the <code>Filter</code> for the target filter string, reusing
+     * the current target filter if the string is the current target.
+     *
+     * @throws InvalidSyntaxException if the target filter string is invalid
+     */
+    private Filter getFilter( String targetFilter ) throws InvalidSyntaxException
+    {
+        if ( targetFilter == null )
+        {
+            return null;
+        }
+        else if ( m_targetFilter != null && targetFilter.equals( m_target ) )
+        {
+            return m_targetFilter;
+        }
+
+        return m_componentManager.getActivator().getBundleContext().createFilter( targetFilter );
+    }
+
+
     /**
      * Returns a <code>ServiceReference</code> instances for a service
      * implementing the interface and complying to the (optional) target filter
@@ -0,0 +1,251 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.scr.impl;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.scr.impl.manager.AbstractComponentManager;
+import org.apache.felix.scr.impl.manager.ImmediateComponentManager;
+import org.apache.felix.scr.impl.metadata.ComponentMetadata;
+import org.apache.felix.scr.impl.metadata.XmlHandler;
+
+
+public class ComponentActorThreadTest extends TestCase
+{
+
+    private ComponentActorThread actor;
+
+    private Thread[] threads;
+
+
+    protected void tearDown() throws Exception
+    {
+        if ( actor != null )
+        {
+            actor.terminate();
+            join();
+        }
+    }
+
+
+    public void test_single_thread_keeps_schedule_order()
+    {
+        start( 1 );
+
+        final AbstractComponentManager c1 = createComponentManager( "c1" );
+        final AbstractComponentManager c2 = createComponentManager( "c2" );
+        final List log = Collections.synchronizedList( new ArrayList() );
+
+        actor.schedule( new RecordingTask( "a", c1, log, 20 ) );
+        actor.schedule( new RecordingTask( "b", c1, log, 0 ) );
+        actor.schedule( new RecordingTask( "c", c2, log, 0 ) );
+        actor.schedule( new RecordingTask( "d", c1, log, 0 ) );
+        actor.terminate();
+        join();
+
+        assertEquals( "[a, b, c, d]", log.toString() );
+    }
+
+
+    public void test_tasks_for_different_components_run_concurrently()
+    {
+        start( 2 );
+
+        final AbstractComponentManager c1 = createComponentManager( "c1" );
+        final AbstractComponentManager c2 = createComponentManager( "c2" );
+        final Object[] latch = new Object[1];
+
+        // the first task only completes once the second is running
+        actor.schedule( new ComponentActivatorTask( "wait", c1 )
+        {
+            protected void doRun()
+            {
+            }
+
+
+            public void run()
+            {
+                synchronized ( latch )
+                {
+                    final long end = System.currentTimeMillis() + 5000;
+                    while ( latch[0] == null && System.currentTimeMillis() < end )
+                    {
+                        try
+                        {
+                            latch.wait( 100 );
+                        }
+                        catch ( InterruptedException ie )
+                        {
+                            // don't care
+                        }
+                    }
+                }
+            }
+        } );
+        actor.schedule( new ComponentActivatorTask( "signal", c2 )
+        {
+            protected void doRun()
+            {
+            }
+
+
+            public void run()
+            {
+                synchronized ( latch )
+                {
+                    latch[0] = this;
+                    latch.notifyAll();
+                }
+            }
+        } );
+        actor.terminate();
+        join();
+
+        assertNotNull( "Tasks of different components must run concurrently", latch[0] );
+    }
+
+
+    public void test_tasks_for_same_component_run_in_order()
+    {
+        start( 4 );
+
+        final AbstractComponentManager[] components = new AbstractComponentManager[3];
+        final List[] logs = new List[components.length];
+        for ( int i = 0; i < components.length; i++ )
+        {
+            components[i] = createComponentManager( "c" + i );
+            logs[i] = Collections.synchronizedList( new ArrayList() );
+        }
+
+        final List expected = new ArrayList();
+        for ( int i = 0; i < 50; i++ )
+        {
+            expected.add( String.valueOf( i ) );
+            for ( int c = 0; c < components.length; c++ )
+            {
+                actor.schedule( new RecordingTask( String.valueOf( i ), components[c], logs[c], i % 3 ) );
+            }
+        }
+        actor.terminate();
+        join();
+
+        for ( int c = 0; c < components.length; c++ )
+        {
+            assertEquals( expected, logs[c] );
+        }
+    }
+
+
+    private void start( int count )
+    {
+        actor = new ComponentActorThread();
+        threads = new Thread[count];
+        for ( int i = 0; i < count; i++ )
+        {
+            threads[i] = new Thread( actor, "Test Component Actor #" + i );
+            threads[i].setDaemon( true );
+            threads[i].start();
+        }
+    }
+
+
+    private void join()
+    {
+        for ( int i = 0; i < threads.length; i++ )
+        {
+            try
+            {
+                threads[i].join( 10000 );
+            }
+            catch ( InterruptedException ie )
+            {
+                // don't care
+            }
+            assertFalse( "Actor thread must terminate", threads[i].isAlive() );
+        }
+    }
+
+
+    private static AbstractComponentManager createComponentManager( String name )
+    {
+        final ComponentMetadata metadata = new ComponentMetadata( XmlHandler.DS_VERSION_1_1 );
+        metadata.setName( name );
+        return new ImmediateComponentManager( null, null, metadata );
+    }
+
+    /**
+     * Task recording its name in the log of its component, failing the test
+     * if it is run while another task for the same component is running.
+     */
+    private static class RecordingTask extends ComponentActivatorTask
+    {
+        private static final String RUNNING = "running";
+
+        private final String name;
+        private final List log;
+        private final long sleep;
+
+
+        RecordingTask( String name, AbstractComponentManager component, List log, long sleep )
+        {
+            super( name, component );
+            this.name = name;
+            this.log = log;
+            this.sleep = sleep;
+        }
+
+
+        protected void doRun()
+        {
+        }
+
+
+        public void run()
+        {
+            synchronized ( log )
+            {
+                // a task of the same component is still running
+                if ( log.contains( RUNNING ) )
+                {
+                    log.add( "overlap" );
+                }
+                log.add( name );
+                log.add( RUNNING );
+            }
+
+            try
+            {
+                Thread.sleep( sleep );
+            }
+            catch ( InterruptedException ie )
+            {
+                // don't care
+            }
+            finally
+            {
+                log.remove( RUNNING );
+            }
+        }
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.scr.impl.manager;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.scr.impl.metadata.ComponentMetadata;
+import org.apache.felix.scr.impl.metadata.ReferenceMetadata;
+import org.apache.felix.scr.impl.metadata.XmlHandler;
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceReference;
+
+
+public class DependencyIndexTest extends TestCase
+{
+
+    private static final String SERVICE = "org.example.Service";
+
+    private Bundle bundle;
+
+    private BundleContext context;
+
+    private DependencyIndex index;
+
+
+    protected void setUp()
+    {
+        bundle = ( Bundle ) EasyMock.createNiceMock( Bundle.class );
+        EasyMock.replay( bundle );
+
+        context = ( BundleContext ) EasyMock.createMock( BundleContext.class );
+    }
+
+
+    public void test_cache_loaded_once_per_interface() throws InvalidSyntaxException
+    {
+        final ServiceReference ref1 = createReference( SERVICE, bundle );
+        final ServiceReference ref2 = createReference( SERVICE, bundle );
+        expectLoad( new ServiceReference[]
+            { ref1, ref2 } );
+
+        final RecordingDependencyManager dm1 = createDependencyManager();
+        final RecordingDependencyManager dm2 = createDependencyManager();
+        assertEquals( 0, index.getServiceReferences( SERVICE ).length );
+
+        index.addDependencyManager( dm1 );
+        index.addDependencyManager( dm2 );
+        assertReferences( new ServiceReference[]
+            { ref1, ref2 }, index.getServiceReferences( SERVICE ) );
+
+        // the cache is dropped with the last dependency manager
+        index.removeDependencyManager( dm1 );
+        assertReferences( new ServiceReference[]
+            { ref1, ref2 }, index.getServiceReferences( SERVICE ) );
+        index.removeDependencyManager( dm2 );
+        assertEquals( 0, index.getServiceReferences( SERVICE ).length );
+
+        EasyMock.verify( context );
+    }
+
+
+    public void test_no_services_registered() throws InvalidSyntaxException
+    {
+        expectLoad( null );
+
+        index.addDependencyManager( createDependencyManager() );
+        assertEquals( 0, index.getServiceReferences( SERVICE ).length );
+    }
+
+
+    public void test_register_updates_cache_before_dispatch() throws InvalidSyntaxException
+    {
+        expectLoad( null );
+        final RecordingDependencyManager dm = createDependencyManager();
+        index.addDependencyManager( dm );
+
+        final ServiceReference ref = createReference( SERVICE, bundle );
+        index.serviceChanged( new ServiceEvent( ServiceEvent.REGISTERED, ref ) );
+
+        assertEquals( 1, dm.events.size() );
+        assertReferences( new ServiceReference[]
+            { ref }, ( ServiceReference[] ) dm.references.get( 0 ) );
+        assertReferences( new ServiceReference[]
+            { ref }, index.getServiceReferences( SERVICE ) );
+    }
+
+
+    public void test_unregister_updates_cache_before_dispatch() throws InvalidSyntaxException
+    {
+        final ServiceReference ref1 = createReference( SERVICE, bundle );
+        final ServiceReference ref2 = createReference( SERVICE, bundle );
+        expectLoad( new ServiceReference[]
+            { ref1, ref2 } );
+        final RecordingDependencyManager dm = createDependencyManager();
+        index.addDependencyManager( dm );
+
+        // the service being unregistered is not offered as its replacement
+        index.serviceChanged( new ServiceEvent( ServiceEvent.UNREGISTERING, ref1 ) );
+
+        assertEquals( 1, dm.events.size() );
+        assertReferences( new ServiceReference[]
+            { ref2 }, ( ServiceReference[] ) dm.references.get( 0 ) );
+        assertReferences( new ServiceReference[]
+            { ref2 }, index.getServiceReferences( SERVICE ) );
+    }
+
+
+    public void test_events_dispatched_in_order_of_registration() throws InvalidSyntaxException
+    {
+        expectLoad( null );
+        final List log = new ArrayList();
+        final RecordingDependencyManager dm1 = createDependencyManager( log );
+        final RecordingDependencyManager dm2 = createDependencyManager( log );
+        index.addDependencyManager( dm1 );
+        index.addDependencyManager( dm2 );
+
+        final ServiceReference ref = createReference( SERVICE, bundle );
+        index.serviceChanged( new ServiceEvent( ServiceEvent.REGISTERED, ref ) );
+        index.serviceChanged( new ServiceEvent( ServiceEvent.MODIFIED, ref ) );
+        index.serviceChanged( new ServiceEvent( ServiceEvent.UNREGISTERING, ref ) );
+
+        assertEquals( Arrays.asList( new Object[]
+            { dm1, dm2, dm1, dm2, dm1, dm2 } ), log );
+        assertEquals( Arrays.asList( new Object[]
+            { new Integer( ServiceEvent.REGISTERED ), new Integer( ServiceEvent.MODIFIED ),
+                new Integer( ServiceEvent.UNREGISTERING ) } ), dm1.events );
+
+        // no more events once removed
+        index.removeDependencyManager( dm1 );
+        index.serviceChanged( new ServiceEvent( ServiceEvent.REGISTERED, ref ) );
+        assertEquals( 3, dm1.events.size() );
+        assertEquals( 4, dm2.events.size() );
+    }
+
+
+    public void test_events_for_other_interfaces_ignored() throws InvalidSyntaxException
+    {
+        expectLoad( null );
+        final RecordingDependencyManager dm = createDependencyManager();
+        index.addDependencyManager( dm );
+
+        index.serviceChanged( new ServiceEvent( ServiceEvent.REGISTERED, createReference( "org.example.Other",
+            bundle ) ) );
+
+        assertEquals( 0, dm.events.size() );
+        assertEquals( 0, index.getServiceReferences( SERVICE ).length );
+    }
+
+
+    public void test_registered_reference_loaded_with_cache() throws InvalidSyntaxException
+    {
+        // the service is registered while the cache is loaded, so the
+        // reference is loaded and the REGISTERED event is received
+        final ServiceReference ref = createReference( SERVICE, bundle );
+        expectLoad( new ServiceReference[]
+            { ref } );
+        index.addDependencyManager( createDependencyManager() );
+
+        index.serviceChanged( new ServiceEvent( ServiceEvent.REGISTERED, ref ) );
+
+        assertReferences( new ServiceReference[]
+            { ref }, index.getServiceReferences( SERVICE ) );
+    }
+
+
+    public void test_unregistered_reference_loaded_with_cache() throws InvalidSyntaxException
+    {
+        // the UNREGISTERING event of the service is dispatched before the
+        // cache is loaded but the service is still found in the registry
+        final Bundle[] registrant = new Bundle[]
+            { bundle };
+        final ServiceReference stale = ( ServiceReference ) EasyMock.createNiceMock( ServiceReference.class );
+        EasyMock.expect( stale.getProperty( Constants.OBJECTCLASS ) ).andReturn( new String[]
+            { SERVICE } ).anyTimes();
+        EasyMock.expect( stale.getBundle() ).andAnswer( new IAnswer()
+        {
+            public Object answer()
+            {
+                return registrant[0];
+            }
+        } ).anyTimes();
+        EasyMock.replay( stale );
+        final ServiceReference ref = createReference( SERVICE, bundle );
+        expectLoad( new ServiceReference[]
+            { stale, ref } );
+
+        index.serviceChanged( new ServiceEvent( ServiceEvent.UNREGISTERING, stale ) );
+        index.addDependencyManager( createDependencyManager() );
+
+        // the unregistration completes after the cache has been loaded
+        registrant[0] = null;
+
+        assertReferences( new ServiceReference[]
+            { ref }, index.getServiceReferences( SERVICE ) );
+    }
+
+
+    private void expectLoad( ServiceReference[] refs ) throws InvalidSyntaxException
+    {
+        EasyMock.reset( context );
+        context.addServiceListener( ( DependencyIndex ) EasyMock.anyObject() );
+        EasyMock.expectLastCall().anyTimes();
+        EasyMock.expect( context.getAllServiceReferences( SERVICE, null ) ).andReturn( refs ).once();
+        EasyMock.replay( context );
+
+        if ( index == null )
+        {
+            index = new DependencyIndex( context );
+        }
+    }
+
+
+    private static ServiceReference createReference( String name, Bundle bundle )
+    {
+        final ServiceReference ref = ( ServiceReference ) EasyMock.createNiceMock( ServiceReference.class );
+        EasyMock.expect( ref.getProperty( Constants.OBJECTCLASS ) ).andReturn( new String[]
+            { name } ).anyTimes();
+        EasyMock.expect( ref.getBundle() ).andReturn( bundle ).anyTimes();
+        EasyMock.replay( ref );
+        return ref;
+    }
+
+
+    private RecordingDependencyManager createDependencyManager()
+    {
+        return createDependencyManager( new ArrayList() );
+    }
+
+
+    private RecordingDependencyManager createDependencyManager( List log )
+    {
+        final ComponentMetadata metadata = new ComponentMetadata( XmlHandler.DS_VERSION_1_1 );
+        metadata.setName( "component" );
+        final ReferenceMetadata reference = new ReferenceMetadata();
+        reference.setName( "service" );
+        reference.setInterface( SERVICE );
+        return new RecordingDependencyManager( new ImmediateComponentManager( null, null, metadata ), reference,
+            log );
+    }
+
+
+    private static void assertReferences( ServiceReference[] expected, ServiceReference[] actual )
+    {
+        assertEquals( Arrays.asList( expected ), Arrays.asList( actual ) );
+    }
+
+    /**
+     * Dependency manager recording the events dispatched to it together
+     * with the references cached by the index at the time of dispatch.
+     */
+    private class RecordingDependencyManager extends DependencyManager
+    {
+        final List log;
+        final List events = new ArrayList();
+        final List references = new ArrayList();
+
+
+        RecordingDependencyManager( AbstractComponentManager componentManager, ReferenceMetadata dependency,
+            List log )
+        {
+            super( componentManager, dependency );
+            this.log = log;
+        }
+
+
+        public void serviceChanged( ServiceEvent event )
+        {
+            log.add( this );
+            events.add( new Integer( event.getType() ) );
+            references.add( index.getServiceReferences( SERVICE ) );
+        }
+    }
+}